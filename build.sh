@@ -9,7 +9,7 @@ mkdir -p build/frontend build/optimizer build/backend
 
 # Build Optimizer first (contains IR classes needed by frontend)
 echo "Building IR Optimizer..."
-javac src/optimizer/ir/*.java src/optimizer/ir/datatype/*.java src/optimizer/ir/operand/*.java src/optimizer/middle_end/*.java src/optimizer/*.java -d build/optimizer
+javac src/optimizer/ir/*.java src/optimizer/ir/datatype/*.java src/optimizer/ir/operand/*.java src/optimizer/middle_end/*.java src/optimizer/interpreter/*.java src/optimizer/*.java -d build/optimizer
 
 # Build Frontend Parser
 echo "Building Frontend Parser..."
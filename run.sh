@@ -31,7 +31,8 @@ case $COMMAND in
     
     optimize)
         echo "Optimizing $INPUT_FILE..."
-        java -cp build/optimizer middle_end.midEnd "$INPUT_FILE" > out.ir
+        # extra arguments (-O0/-O1/-O2, --passes=...) go to the optimizer
+        java -cp build/optimizer middle_end.midEnd "$INPUT_FILE" "${@:3}" > out.ir
         echo "Output written to out.ir"
         ;;
     
@@ -39,10 +40,17 @@ case $COMMAND in
         echo "Generating MIPS code for $INPUT_FILE..."
         # Default to naive unless specified otherwise
         SELECTOR="--naive"
-        if [ "$#" -ge 3 ] && [ "$3" == "--greedy" ]; then
-            SELECTOR="--greedy"
+        if [ "$#" -ge 3 ] && { [ "$3" == "--greedy" ] || [ "$3" == "--graph" ] || [ "$3" == "--linear" ]; }; then
+            SELECTOR="$3"
         fi
-        java -cp build/backend BackEnd "$INPUT_FILE" "$SELECTOR"
+        # --peephole[=rules] after the file cleans up the generated code
+        EXTRA=()
+        for arg in "${@:3}"; do
+            case "$arg" in
+                --peephole*) EXTRA+=("$arg") ;;
+            esac
+        done
+        java -cp build/backend BackEnd "$INPUT_FILE" "$SELECTOR" "${EXTRA[@]}"
         echo "Output written to out.s"
         ;;
     
@@ -12,6 +12,25 @@ import java.io.FileOutputStream;
 
 public class BackEnd {
     public static void main(String[] args) throws Exception {
+        // --profile=file can come anywhere after the IR file: the counts of a run of
+        // that same file (IRInterpreter --profile), used by --greedy and --graph
+        // --peephole, or --peephole=rule,rule,... for only some of its rules, cleans
+        // up the MIPS of any selector (see Peephole)
+        IRProfile profile = null;
+        Peephole peephole = null;
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--profile="))
+                profile = IRProfile.read(arg.substring("--profile=".length()));
+            else if (arg.equals("--peephole"))
+                peephole = new Peephole();
+            else if (arg.startsWith("--peephole="))
+                peephole = Peephole.of(arg.substring("--peephole=".length()));
+            else
+                positional.add(arg);
+        }
+        args = positional.toArray(new String[0]);
+
         // Parse the IR file
         IRReader irReader = new IRReader();
         IRProgram program = irReader.parseIRFile(args[0]);
@@ -23,21 +42,38 @@ public class BackEnd {
         // Use the InstructionSelector to transform IR to MIPS32 instructions
         // if ran with tag --greedy, use InstructionSelectorGreedy 
         // if ran with tag --naive use InstructionSelector
+        // if ran with tag --graph use InstructionSelectorGraph (global graph coloring)
+        // if ran with tag --linear use InstructionSelectorLinearScan (global linear scan, quicker)
 
         List<String> mipsInstructions = null;
         if (args.length >= 2 && args[1].equals("--greedy")) {
             InstructionSelectorGreedy selector;
             selector = new InstructionSelectorGreedy(program);
+            selector.setProfile(profile);
+            mipsInstructions = selector.selectInstructions();
+        } else if (args.length >= 2 && args[1].equals("--graph")) {
+            InstructionSelectorGraph selector;
+            selector = new InstructionSelectorGraph(program);
+            selector.setProfile(profile);
+            mipsInstructions = selector.selectInstructions();
+        } else if (args.length >= 2 && args[1].equals("--linear")) {
+            InstructionSelectorLinearScan selector;
+            selector = new InstructionSelectorLinearScan(program);
             mipsInstructions = selector.selectInstructions();
         } else if (args.length >= 2 && args[1].equals("--naive")) {
             InstructionSelector selector;
             selector = new InstructionSelector(program);
             mipsInstructions = selector.selectInstructions();
         } else {
-            System.out.println("Please provide a tag --greedy or --naive");
+            System.out.println("Please provide a tag --greedy, --graph, --linear or --naive");
             System.exit(1);
         }
 
+        if (peephole != null) {
+            mipsInstructions = peephole.optimize(mipsInstructions);
+            System.err.println(peephole.summary());
+        }
+
         String outputFileName = "out.s";
 
         if (args.length >= 3) {
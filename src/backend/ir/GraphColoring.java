@@ -0,0 +1,377 @@
+package ir;
+
+import ir.IRInstruction.OpCode;
+
+import java.util.*;
+
+// Chaitin-Briggs register allocation of the variables of one function:
+//  - build: two variables interfere when one is defined while the other is live
+//    (the source of an assign x, y does not interfere with x because of it), and
+//    all variables live at the entry interfere, since they are set there;
+//  - coalesce: the two variables of an assign x, y that do not interfere get
+//    one node if the merged node has fewer than k neighbours of degree k or
+//    more (Briggs' conservative test), so that coloring it stays as easy;
+//  - simplify: nodes of degree below k are taken out of the graph and pushed;
+//    when none is left, the node with the least spill cost per neighbour is
+//    pushed anyway, as a potential spill;
+//  - select: the nodes are popped and given a color that none of their
+//    neighbours has, the color of a move partner if possible; a potential spill
+//    that finds no color is spilled. A variable live across a call takes one
+//    of the colors the callee keeps (from callerSaved on) if it can, so that it
+//    needs no store and load around the call, and any other variable one of
+//    the others, so that the function has less to save for its caller.
+// Spilled variables live on the stack and are loaded into scratch registers that
+// are not among the k, so no new live ranges come out of spilling and one round
+// is enough.
+//
+// The spill cost of a variable is the number of its uses and defs, each counted
+// as often as its block runs: from a profile if there is one, else 10^d for a
+// block nested in d loops.
+class GraphColoring implements RegisterAllocation {
+    private final Liveness liveness;
+    private final int k;
+    private final int callerSaved;
+    private final int n;
+    private final BitSet[] adjacent;
+    private final int[] alias;
+    private final double[] cost;
+    private final BitSet acrossCalls = new BitSet();
+    private final List<int[]> moves = new ArrayList<>();
+    private final List<Double> moveWeights = new ArrayList<>();
+
+    // per variable: the register number, or -1 if spilled
+    final int[] color;
+    private final int[] slot;
+    private int slots;
+    int coalescedMoves;
+    int spills;
+
+    GraphColoring(Liveness liveness, int k, int callerSaved, BitSet calls, double[] blockWeights) {
+        this.liveness = liveness;
+        this.k = k;
+        this.callerSaved = callerSaved;
+        this.n = liveness.size();
+        adjacent = new BitSet[n];
+        alias = new int[n];
+        cost = new double[n];
+        for (int v = 0; v < n; v++) {
+            adjacent[v] = new BitSet();
+            alias[v] = v;
+        }
+        color = new int[n];
+
+        build(blockWeights, calls);
+        coalesce();
+        Deque<Integer> stack = simplify();
+        select(stack);
+        // coalesced variables share their register or slot
+        slot = new int[n];
+        for (int v = 0; v < n; v++) {
+            if (find(v) == v && color[v] < 0)
+                slot[v] = slots++;
+        }
+        for (int v = 0; v < n; v++) {
+            color[v] = color[find(v)];
+            slot[v] = slot[find(v)];
+        }
+    }
+
+    public int register(int v, int position) {
+        return color[v];
+    }
+
+    public int slot(int v) {
+        return slot[v];
+    }
+
+    public int slots() {
+        return slots;
+    }
+
+    public List<Integer> movesAt(int position) {
+        return Collections.emptyList();
+    }
+
+    public BitSet registers() {
+        BitSet registers = new BitSet();
+        for (int c : color) {
+            if (c >= 0)
+                registers.set(c);
+        }
+        return registers;
+    }
+
+    public String summary() {
+        return "graph coloring: " + n + " variables, " + coalescedMoves + " moves coalesced, " + spills + " spilled";
+    }
+
+    // the variable whose node v has been merged into
+    int find(int v) {
+        while (alias[v] != v)
+            v = alias[v];
+        return v;
+    }
+
+    private void addEdge(int a, int b) {
+        if (a != b) {
+            adjacent[a].set(b);
+            adjacent[b].set(a);
+        }
+    }
+
+    private void build(double[] blockWeights, BitSet calls) {
+        List<BasicBlock> blocks = liveness.cfg.basicBlocks;
+        for (int b = 0; b < blocks.size(); b++) {
+            List<IRInstruction> instructions = blocks.get(b).getInstructions();
+            BitSet live = (BitSet) liveness.liveOut[b].clone();
+            for (int i = instructions.size() - 1; i >= 0; i--) {
+                IRInstruction instruction = instructions.get(i);
+                if (instruction.opCode == OpCode.RETURN)
+                    live.clear();
+                BitSet uses = liveness.uses(instruction);
+                int d = liveness.defOf(instruction);
+                if (calls.get(blocks.get(b).getStartLine() + i)) {
+                    BitSet across = (BitSet) live.clone();
+                    if (d >= 0)
+                        across.clear(d);
+                    acrossCalls.or(across);
+                }
+                if (d >= 0) {
+                    int source = isMove(instruction) ? liveness.numberOf(instruction.operands[1]) : -1;
+                    if (source >= 0) {
+                        moves.add(new int[] {d, source});
+                        moveWeights.add(blockWeights[b]);
+                    }
+                    for (int l = live.nextSetBit(0); l >= 0; l = live.nextSetBit(l + 1)) {
+                        if (l != source)
+                            addEdge(d, l);
+                    }
+                    live.clear(d);
+                    cost[d] += blockWeights[b];
+                }
+                for (int u = uses.nextSetBit(0); u >= 0; u = uses.nextSetBit(u + 1))
+                    cost[u] += blockWeights[b];
+                live.or(uses);
+            }
+        }
+        BitSet entry = liveness.liveIn[0];
+        for (int a = entry.nextSetBit(0); a >= 0; a = entry.nextSetBit(a + 1)) {
+            for (int b = entry.nextSetBit(a + 1); b >= 0; b = entry.nextSetBit(b + 1))
+                addEdge(a, b);
+        }
+    }
+
+    static boolean isMove(IRInstruction instruction) {
+        return instruction.opCode == OpCode.ASSIGN && instruction.operands.length == 2;
+    }
+
+    private void coalesce() {
+        // the moves that run most often first
+        Integer[] order = new Integer[moves.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (x, y) -> Double.compare(moveWeights.get(y), moveWeights.get(x)));
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i : order) {
+                int a = find(moves.get(i)[0]);
+                int b = find(moves.get(i)[1]);
+                if (a == b || adjacent[a].get(b) || !briggs(a, b))
+                    continue;
+                for (int m = adjacent[b].nextSetBit(0); m >= 0; m = adjacent[b].nextSetBit(m + 1)) {
+                    adjacent[m].clear(b);
+                    addEdge(a, m);
+                }
+                adjacent[b].clear();
+                alias[b] = a;
+                cost[a] += cost[b];
+                if (acrossCalls.get(b))
+                    acrossCalls.set(a);
+                coalescedMoves++;
+                changed = true;
+            }
+        }
+    }
+
+    // whether a and b merged would have fewer than k neighbours of significant degree
+    private boolean briggs(int a, int b) {
+        BitSet neighbours = (BitSet) adjacent[a].clone();
+        neighbours.or(adjacent[b]);
+        int significant = 0;
+        for (int m = neighbours.nextSetBit(0); m >= 0; m = neighbours.nextSetBit(m + 1)) {
+            int degree = adjacent[m].cardinality();
+            if (adjacent[a].get(m) && adjacent[b].get(m))
+                degree--;
+            if (degree >= k)
+                significant++;
+        }
+        return significant < k;
+    }
+
+    private Deque<Integer> simplify() {
+        int[] degree = new int[n];
+        BitSet left = new BitSet();
+        for (int v = 0; v < n; v++) {
+            if (find(v) == v) {
+                left.set(v);
+                degree[v] = adjacent[v].cardinality();
+            }
+        }
+        Deque<Integer> stack = new ArrayDeque<>();
+        while (!left.isEmpty()) {
+            int chosen = -1;
+            for (int v = left.nextSetBit(0); v >= 0; v = left.nextSetBit(v + 1)) {
+                if (degree[v] < k) {
+                    chosen = v;
+                    break;
+                }
+            }
+            if (chosen < 0) {
+                // potential spill: the cheapest per neighbour it frees
+                double best = Double.MAX_VALUE;
+                for (int v = left.nextSetBit(0); v >= 0; v = left.nextSetBit(v + 1)) {
+                    double ratio = cost[v] / degree[v];
+                    if (ratio < best) {
+                        best = ratio;
+                        chosen = v;
+                    }
+                }
+            }
+            left.clear(chosen);
+            for (int m = adjacent[chosen].nextSetBit(0); m >= 0; m = adjacent[chosen].nextSetBit(m + 1))
+                degree[m]--;
+            stack.push(chosen);
+        }
+        return stack;
+    }
+
+    private void select(Deque<Integer> stack) {
+        Arrays.fill(color, -1);
+        BitSet colored = new BitSet();
+        while (!stack.isEmpty()) {
+            int v = stack.pop();
+            BitSet used = new BitSet();
+            for (int m = adjacent[v].nextSetBit(0); m >= 0; m = adjacent[v].nextSetBit(m + 1)) {
+                if (colored.get(m))
+                    used.set(color[m]);
+            }
+            int c = -1;
+            for (int[] move : moves) {
+                int a = find(move[0]);
+                int b = find(move[1]);
+                int partner = a == v ? b : b == v ? a : -1;
+                if (partner >= 0 && colored.get(partner) && !used.get(color[partner])) {
+                    c = color[partner];
+                    break;
+                }
+            }
+            if (c < 0)
+                c = acrossCalls.get(v) ? free(used, callerSaved, k, 0, callerSaved)
+                        : free(used, 0, callerSaved, callerSaved, k);
+            if (c >= 0) {
+                color[v] = c;
+                colored.set(v);
+            } else {
+                spills++;
+            }
+        }
+    }
+
+    // the first color not in used in [from, to), else in [otherFrom, otherTo), or -1
+    private static int free(BitSet used, int from, int to, int otherFrom, int otherTo) {
+        int c = used.nextClearBit(from);
+        if (c < to)
+            return c;
+        c = used.nextClearBit(otherFrom);
+        return c < otherTo ? c : -1;
+    }
+
+    // how often each block runs: its count in the profile if there is one, else
+    // 10^d where d is how many loops it is in
+    static double[] blockWeights(CFG cfg, IRProfile.FunctionProfile profile) {
+        List<BasicBlock> blocks = cfg.basicBlocks;
+        double[] weights = new double[blocks.size()];
+        if (profile != null) {
+            for (int b = 0; b < blocks.size(); b++)
+                weights[b] = profile.getLineCount(blocks.get(b).getInstructions().get(0).irLineNumber);
+            return weights;
+        }
+        int[] depth = loopDepths(cfg);
+        for (int b = 0; b < blocks.size(); b++)
+            weights[b] = Math.pow(10, Math.min(depth[b], 8));
+        return weights;
+    }
+
+    // for every block, the number of natural loops it is in; a loop comes from
+    // an edge to a block that dominates its source
+    static int[] loopDepths(CFG cfg) {
+        List<BasicBlock> blocks = cfg.basicBlocks;
+        int count = blocks.size();
+        Map<BasicBlock, Integer> index = new IdentityHashMap<>();
+        for (int b = 0; b < count; b++)
+            index.put(blocks.get(b), b);
+
+        BitSet[] dominators = new BitSet[count];
+        for (int b = 0; b < count; b++) {
+            dominators[b] = new BitSet();
+            if (b == 0)
+                dominators[b].set(0);
+            else
+                dominators[b].set(0, count);
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = 1; b < count; b++) {
+                BitSet set = null;
+                for (BasicBlock predecessor : blocks.get(b).getPredecessors()) {
+                    if (set == null)
+                        set = (BitSet) dominators[index.get(predecessor)].clone();
+                    else
+                        set.and(dominators[index.get(predecessor)]);
+                }
+                if (set == null)
+                    continue;
+                set.set(b);
+                if (!set.equals(dominators[b])) {
+                    dominators[b] = set;
+                    changed = true;
+                }
+            }
+        }
+
+        // the body of the loop of each header, from all its back edges
+        Map<Integer, BitSet> loops = new TreeMap<>();
+        for (int b = 0; b < count; b++) {
+            for (BasicBlock successor : blocks.get(b).getSuccessors()) {
+                int header = index.get(successor);
+                if (!dominators[b].get(header))
+                    continue;
+                BitSet body = loops.computeIfAbsent(header, h -> new BitSet());
+                body.set(header);
+                Deque<Integer> work = new ArrayDeque<>();
+                if (!body.get(b)) {
+                    body.set(b);
+                    work.push(b);
+                }
+                while (!work.isEmpty()) {
+                    for (BasicBlock predecessor : blocks.get(work.pop()).getPredecessors()) {
+                        int p = index.get(predecessor);
+                        if (!body.get(p)) {
+                            body.set(p);
+                            work.push(p);
+                        }
+                    }
+                }
+            }
+        }
+        int[] depth = new int[count];
+        for (BitSet body : loops.values()) {
+            for (int b = body.nextSetBit(0); b >= 0; b = body.nextSetBit(b + 1))
+                depth[b]++;
+        }
+        return depth;
+    }
+}
@@ -0,0 +1,147 @@
+package ir;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * Execution counts of an IR program, collected by running it (IRInterpreter --profile)
+ * and read back by the optimizer. Blocks, edges and instructions are named by IR
+ * source lines: a block by the line of its first instruction, an edge by the blocks
+ * it connects. The counts therefore only apply to the IR file that was run.
+ *
+ * The file format is one record per line:
+ * <pre>
+ * function name calls instructions inclusive
+ * block line count
+ * edge fromLine toLine count
+ * line line count
+ * </pre>
+ * where block, edge and line records belong to the function before them. Counts
+ * that are zero are left out. Lines starting with '#' are comments.
+ */
+public class IRProfile {
+
+    public static class FunctionProfile {
+        public final String name;
+
+        // times the function was called
+        public long calls;
+
+        // IR instructions executed in the function itself
+        public long instructions;
+
+        // IR instructions executed while the function was running, including the
+        // functions it called (recursive calls counted once)
+        public long inclusive;
+
+        private final Map<Integer, Long> blocks = new TreeMap<>();
+        private final Map<Integer, Map<Integer, Long>> edges = new TreeMap<>();
+        private final Map<Integer, Long> lines = new TreeMap<>();
+
+        public FunctionProfile(String name) {
+            this.name = name;
+        }
+
+        public long getBlockCount(int firstLine) {
+            return blocks.getOrDefault(firstLine, 0L);
+        }
+
+        public long getEdgeCount(int fromLine, int toLine) {
+            Map<Integer, Long> targets = edges.get(fromLine);
+            return targets == null ? 0 : targets.getOrDefault(toLine, 0L);
+        }
+
+        public long getLineCount(int line) {
+            return lines.getOrDefault(line, 0L);
+        }
+
+        public void addBlockCount(int firstLine, long count) {
+            if (count != 0)
+                blocks.merge(firstLine, count, Long::sum);
+        }
+
+        public void addEdgeCount(int fromLine, int toLine, long count) {
+            if (count != 0)
+                edges.computeIfAbsent(fromLine, k -> new TreeMap<>()).merge(toLine, count, Long::sum);
+        }
+
+        public void addLineCount(int line, long count) {
+            if (count != 0)
+                lines.merge(line, count, Long::sum);
+        }
+    }
+
+    private final Map<String, FunctionProfile> functions = new LinkedHashMap<>();
+
+    /**
+     * The counts of a function, or null if it is not in the profile
+     */
+    public FunctionProfile getFunction(String name) {
+        return functions.get(name);
+    }
+
+    public FunctionProfile addFunction(String name) {
+        return functions.computeIfAbsent(name, FunctionProfile::new);
+    }
+
+    public Collection<FunctionProfile> getFunctions() {
+        return functions.values();
+    }
+
+    public void write(PrintStream ps) {
+        ps.println("# IR execution profile");
+        for (FunctionProfile function : functions.values()) {
+            ps.println("function " + function.name + " " + function.calls + " " + function.instructions
+                    + " " + function.inclusive);
+            for (Map.Entry<Integer, Long> block : function.blocks.entrySet())
+                ps.println("block " + block.getKey() + " " + block.getValue());
+            for (Map.Entry<Integer, Map<Integer, Long>> from : function.edges.entrySet()) {
+                for (Map.Entry<Integer, Long> to : from.getValue().entrySet())
+                    ps.println("edge " + from.getKey() + " " + to.getKey() + " " + to.getValue());
+            }
+            for (Map.Entry<Integer, Long> line : function.lines.entrySet())
+                ps.println("line " + line.getKey() + " " + line.getValue());
+        }
+    }
+
+    public static IRProfile read(String filename) throws FileNotFoundException, IRException {
+        IRProfile profile = new IRProfile();
+        FunctionProfile function = null;
+        int lineNumber = 0;
+        try (Scanner scanner = new Scanner(new File(filename))) {
+            while (scanner.hasNextLine()) {
+                lineNumber++;
+                String line = scanner.nextLine().trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split("\\s+");
+                try {
+                    if (fields[0].equals("function")) {
+                        if (fields.length != 5)
+                            throw new IRException("Invalid profile record", lineNumber);
+                        function = profile.addFunction(fields[1]);
+                        function.calls = Long.parseLong(fields[2]);
+                        function.instructions = Long.parseLong(fields[3]);
+                        function.inclusive = Long.parseLong(fields[4]);
+                    } else if (function == null) {
+                        throw new IRException("Profile record outside of a function", lineNumber);
+                    } else if (fields[0].equals("block") && fields.length == 3) {
+                        function.addBlockCount(Integer.parseInt(fields[1]), Long.parseLong(fields[2]));
+                    } else if (fields[0].equals("edge") && fields.length == 4) {
+                        function.addEdgeCount(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                                Long.parseLong(fields[3]));
+                    } else if (fields[0].equals("line") && fields.length == 3) {
+                        function.addLineCount(Integer.parseInt(fields[1]), Long.parseLong(fields[2]));
+                    } else {
+                        throw new IRException("Invalid profile record", lineNumber);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IRException("Invalid count", lineNumber);
+                }
+            }
+        }
+        return profile;
+    }
+}
@@ -0,0 +1,551 @@
+package ir;
+
+import ir.IRInstruction.OpCode;
+import ir.datatype.*;
+import ir.operand.*;
+
+import java.util.*;
+
+// Instruction selection with global register allocation: the variables of each
+// function are kept where a register allocator puts them (a RegisterAllocation
+// over the liveness of the function, see Liveness), instead of per block as in
+// InstructionSelectorGreedy. Subclasses choose the allocator. $t0-$t6 and
+// $s0-$s7 are allocated; $t7-$t9 are scratch registers for spilled variables,
+// constants and array addresses.
+//
+// Calls follow the MIPS convention: a callee may change the $t registers but
+// gives the $s registers back as it found them. The allocators put what is live
+// across calls in $s registers where they can; the $t registers live across a
+// call are stored before it and loaded after it, and a function saves the $s
+// registers it uses at its entry and loads them at its return. The syscalls of
+// the intrinsics only touch $v0 and $a0, so nothing is kept around them.
+//
+// Frame of a function, from $sp up:
+//   outgoing arguments past the fourth of the calls it makes
+//   $ra, if it makes calls
+//   the stack slots of the allocation
+//   one slot per $t register, to keep it across calls, if it makes calls
+//   the $s registers it uses, except in main, which returns to no one
+// Arguments come in $a0-$a3 and, past the fourth, in the caller's outgoing area
+// right above the frame; they are moved to their registers at the entry.
+//
+// When a variable is in different places at the end of a block and the start
+// of a successor, the moves between them go at the end of the block, after the
+// branch for the fall-through edge, or on a stub the branch jumps to instead.
+public abstract class InstructionSelectorGlobal {
+    static final String[] REGISTERS = {"t0", "t1", "t2", "t3", "t4", "t5", "t6",
+                                       "s0", "s1", "s2", "s3", "s4", "s5", "s6", "s7"};
+    // REGISTERS[0..CALLER_SAVED-1] are the $t ones
+    static final int CALLER_SAVED = 7;
+
+    private final IRProgram program;
+    private IRProfile profile;
+
+    // the function being selected
+    private IRFunction function;
+    private CFG cfg;
+    private Liveness liveness;
+    private RegisterAllocation allocation;
+    private boolean makesCalls;
+    private int frameSize;
+    private int raOffset;
+    private int slotOffset;
+    private int saveOffset;
+    private int calleeOffset;
+    private List<Integer> calleeSaved;
+    private int labels;
+    private int position;            // of the instruction being selected
+    private List<String> code;
+    private List<String> stubs;      // edge moves for taken branches
+
+    protected InstructionSelectorGlobal(IRProgram program) {
+        this.program = program;
+    }
+
+    // use the execution counts of a run of this same IR (IRInterpreter --profile)
+    // where the allocator can
+    public void setProfile(IRProfile profile) {
+        this.profile = profile;
+    }
+
+    // where the variables of the function of cfg go, in registers 0..registers-1
+    // or in stack slots; registers from callerSaved on are kept by the callee of
+    // the instructions in calls; counts is the profile of the function, or null
+    abstract RegisterAllocation allocate(CFG cfg, Liveness liveness, int registers, int callerSaved,
+                                         BitSet calls, IRProfile.FunctionProfile counts);
+
+    public List<String> selectInstructions() {
+        List<String> mips = new ArrayList<>();
+        mips.add(".data");
+        for (IRFunction f : program.functions) {
+            for (IRVariableOperand var : f.variables) {
+                if (var.getType() instanceof IRArrayType && !f.parameters.contains(var))
+                    mips.add(f.name + var.getName() + ": .space " + 4 * ((IRArrayType) var.getType()).getSize());
+            }
+        }
+        mips.add(".text");
+        // main first, where execution starts
+        for (IRFunction f : program.functions) {
+            if (f.name.equals("main"))
+                mips.addAll(selectFunction(f));
+        }
+        for (IRFunction f : program.functions) {
+            if (!f.name.equals("main"))
+                mips.addAll(selectFunction(f));
+        }
+        return mips;
+    }
+
+    private List<String> selectFunction(IRFunction f) {
+        function = f;
+        code = new ArrayList<>();
+        stubs = new ArrayList<>();
+        labels = 0;
+        cfg = new CFG(f);
+        liveness = new Liveness(cfg);
+        IRProfile.FunctionProfile counts = profile == null ? null : profile.getFunction(f.name);
+        int outgoing = 0;
+        BitSet calls = new BitSet();
+        for (int i = 0; i < f.instructions.size(); i++) {
+            IRInstruction instruction = f.instructions.get(i);
+            if (isUserCall(instruction)) {
+                calls.set(i);
+                int arguments = instruction.operands.length - (instruction.opCode == OpCode.CALL ? 1 : 2);
+                outgoing = Math.max(outgoing, arguments - 4);
+            }
+        }
+        makesCalls = !calls.isEmpty();
+        allocation = allocate(cfg, liveness, REGISTERS.length, CALLER_SAVED, calls, counts);
+        System.err.println(f.name + ": " + allocation.summary());
+
+        // frame layout
+        calleeSaved = new ArrayList<>();
+        BitSet used = allocation.registers();
+        if (!f.name.equals("main")) {
+            for (int r = used.nextSetBit(CALLER_SAVED); r >= 0; r = used.nextSetBit(r + 1))
+                calleeSaved.add(r);
+        }
+        raOffset = 4 * outgoing;
+        slotOffset = makesCalls ? raOffset + 4 : raOffset;
+        saveOffset = slotOffset + 4 * allocation.slots();
+        calleeOffset = makesCalls ? saveOffset + 4 * CALLER_SAVED : saveOffset;
+        int size = calleeOffset + 4 * calleeSaved.size();
+        frameSize = (size + 7) / 8 * 8;
+
+        code.add(f.name + ":");
+        if (frameSize > 0)
+            code.add("addi $sp, $sp, -" + frameSize);
+        if (makesCalls)
+            code.add("sw $ra, " + raOffset + "($sp)");
+        for (int i = 0; i < calleeSaved.size(); i++)
+            code.add("sw $" + REGISTERS[calleeSaved.get(i)] + ", " + (calleeOffset + 4 * i) + "($sp)");
+
+        // parameters to their homes, and variables read before they are set to 0
+        position = 0;
+        BitSet entry = liveness.liveIn[0];
+        for (int i = 0; i < f.parameters.size(); i++) {
+            int v = liveness.numberOf(f.parameters.get(i));
+            if (!entry.get(v))
+                continue;
+            String home = location(v, 0);
+            if (i < 4) {
+                move("$a" + i, home);
+            } else {
+                String reg = isRegister(home) ? home : "$t7";
+                code.add("lw " + reg + ", " + (frameSize + 4 * (i - 4)) + "($sp)");
+                move(reg, home);
+            }
+        }
+        for (int v = entry.nextSetBit(0); v >= 0; v = entry.nextSetBit(v + 1)) {
+            if (f.parameters.contains(liveness.variables.get(v)))
+                continue;
+            String home = location(v, 0);
+            code.add(isRegister(home) ? "li " + home + ", 0" : "sw $zero, " + home);
+        }
+
+        List<BasicBlock> blocks = cfg.basicBlocks;
+        for (int b = 0; b < blocks.size(); b++) {
+            BasicBlock block = blocks.get(b);
+            List<IRInstruction> instructions = block.getInstructions();
+            BitSet[] liveAfter = liveness.liveAfter(b);
+            for (int i = 0; i < instructions.size(); i++) {
+                IRInstruction instruction = instructions.get(i);
+                position = block.getStartLine() + i;
+                // moves at the start of a block are made on its edges
+                if (i > 0)
+                    splitMoves();
+                boolean last = i == instructions.size() - 1;
+                BasicBlock next = b + 1 < blocks.size() ? blocks.get(b + 1) : null;
+                if (last && instruction.opCode == OpCode.GOTO) {
+                    edgeMoves(block, cfg.labelToBlock.get(((IRLabelOperand) instruction.operands[0]).getName()));
+                    select(instruction, liveAfter[i], null);
+                } else if (last && BRANCHES.containsKey(instruction.opCode)) {
+                    String target = ((IRLabelOperand) instruction.operands[0]).getName();
+                    List<String[]> moves = edge(block, cfg.labelToBlock.get(target));
+                    String stub = null;
+                    if (!moves.isEmpty()) {
+                        stub = f.name + "__edge" + labels++;
+                        List<String> body = code;
+                        code = stubs;
+                        code.add(stub + ":");
+                        parallelMoves(moves);
+                        code.add("j " + f.name + "_" + target);
+                        code = body;
+                    }
+                    select(instruction, liveAfter[i], stub);
+                    if (next != null)
+                        edgeMoves(block, next);
+                } else {
+                    select(instruction, liveAfter[i], null);
+                    if (last && instruction.opCode != OpCode.RETURN && next != null)
+                        edgeMoves(block, next);
+                }
+            }
+        }
+        epilogue();
+        code.addAll(stubs);
+        return code;
+    }
+
+    private void epilogue() {
+        if (function.name.equals("main")) {
+            code.add("li $v0, 10");
+            code.add("syscall");
+            return;
+        }
+        for (int i = 0; i < calleeSaved.size(); i++)
+            code.add("lw $" + REGISTERS[calleeSaved.get(i)] + ", " + (calleeOffset + 4 * i) + "($sp)");
+        if (makesCalls)
+            code.add("lw $ra, " + raOffset + "($sp)");
+        if (frameSize > 0)
+            code.add("addi $sp, $sp, " + frameSize);
+        code.add("jr $ra");
+    }
+
+    private static boolean isUserCall(IRInstruction instruction) {
+        if (instruction.opCode != OpCode.CALL && instruction.opCode != OpCode.CALLR)
+            return false;
+        String name = instruction.operands[instruction.opCode == OpCode.CALL ? 0 : 1].toString();
+        return !(name.equals("puti") || name.equals("putc") || name.equals("geti") || name.equals("getc"));
+    }
+
+    private static boolean fits16(long value) {
+        return value >= -32768 && value <= 32767;
+    }
+
+    private static boolean isRegister(String location) {
+        return location.startsWith("$");
+    }
+
+    // where variable v is at position p: a register or an offset from $sp
+    private String location(int v, int p) {
+        int register = allocation.register(v, p);
+        return register >= 0 ? "$" + REGISTERS[register] : (slotOffset + 4 * allocation.slot(v)) + "($sp)";
+    }
+
+    // copies between a register and a register or a slot
+    private void move(String from, String to) {
+        if (from.equals(to))
+            return;
+        if (!isRegister(to))
+            code.add("sw " + from + ", " + to);
+        else if (!isRegister(from))
+            code.add("lw " + to + ", " + from);
+        else
+            code.add("move " + to + ", " + from);
+    }
+
+    private void splitMoves() {
+        List<String[]> moves = new ArrayList<>();
+        for (int v : allocation.movesAt(2 * position))
+            moves.add(new String[] {location(v, 2 * position - 1), location(v, 2 * position)});
+        parallelMoves(moves);
+    }
+
+    // the moves on the edge from block to successor
+    private List<String[]> edge(BasicBlock block, BasicBlock successor) {
+        List<String[]> moves = new ArrayList<>();
+        BitSet live = liveness.liveIn[liveness.indexOf(successor)];
+        int end = 2 * block.getEndLine() + 1;
+        int start = 2 * successor.getStartLine();
+        for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+            String from = location(v, end);
+            String to = location(v, start);
+            if (!from.equals(to))
+                moves.add(new String[] {from, to});
+        }
+        return moves;
+    }
+
+    private void edgeMoves(BasicBlock block, BasicBlock successor) {
+        parallelMoves(edge(block, successor));
+    }
+
+    // Makes moves that all happen at once: stores first, then the moves between
+    // registers in an order that reads each register before it is written, with
+    // $t7 breaking cycles, then loads. No slot is both read and written.
+    private void parallelMoves(List<String[]> moves) {
+        List<String[]> registers = new ArrayList<>();
+        for (String[] m : moves) {
+            if (!isRegister(m[1]))
+                move(m[0], m[1]);
+            else if (isRegister(m[0]))
+                registers.add(m.clone());
+        }
+        while (!registers.isEmpty()) {
+            String[] ready = null;
+            for (String[] m : registers) {
+                boolean read = false;
+                for (String[] other : registers) {
+                    if (other != m && other[0].equals(m[1]))
+                        read = true;
+                }
+                if (!read) {
+                    ready = m;
+                    break;
+                }
+            }
+            if (ready == null) {
+                // a cycle: keep the target of one move aside
+                ready = registers.get(0);
+                code.add("move $t7, " + ready[1]);
+                for (String[] m : registers) {
+                    if (m[0].equals(ready[1]))
+                        m[0] = "$t7";
+                }
+            }
+            move(ready[0], ready[1]);
+            registers.remove(ready);
+        }
+        for (String[] m : moves) {
+            if (isRegister(m[1]) && !isRegister(m[0]))
+                move(m[0], m[1]);
+        }
+    }
+
+    private String label(IROperand operand) {
+        return function.name + "_" + operand;
+    }
+
+    // the register holding the value of operand, loading it into scratch if
+    // it is a constant, a spilled variable or a local array
+    private String read(IROperand operand, String scratch) {
+        if (operand instanceof IRConstantOperand) {
+            code.add("li " + scratch + ", " + ((IRConstantOperand) operand).getValueString());
+            return scratch;
+        }
+        int v = liveness.numberOf(operand);
+        if (v < 0) {
+            code.add("la " + scratch + ", " + function.name + ((IRVariableOperand) operand).getName());
+            return scratch;
+        }
+        String home = location(v, 2 * position);
+        if (isRegister(home))
+            return home;
+        code.add("lw " + scratch + ", " + home);
+        return scratch;
+    }
+
+    // the register to compute operand into; scratch if it is spilled, in which
+    // case written() stores it
+    private String target(IROperand operand, String scratch) {
+        String home = location(liveness.numberOf(operand), 2 * position + 1);
+        return isRegister(home) ? home : scratch;
+    }
+
+    private void written(IROperand operand, String reg) {
+        move(reg, location(liveness.numberOf(operand), 2 * position + 1));
+    }
+
+    private static Integer constant(IROperand operand) {
+        return operand instanceof IRConstantOperand
+                ? Integer.valueOf(((IRConstantOperand) operand).getValueString()) : null;
+    }
+
+    // stub, if not null, is where a branch goes instead of its label
+    private void select(IRInstruction instruction, BitSet liveAfter, String stub) {
+        IROperand[] operands = instruction.operands;
+        switch (instruction.opCode) {
+            case LABEL:
+                code.add(label(operands[0]) + ":");
+                break;
+            case GOTO:
+                code.add("j " + label(operands[0]));
+                break;
+            case ASSIGN:
+                if (operands.length == 3)
+                    fillArray(operands[0], operands[1], operands[2]);
+                else
+                    assign(operands[0], operands[1]);
+                break;
+            case ADD: case SUB: case MULT: case DIV: case AND: case OR:
+                binary(instruction.opCode, operands[0], operands[1], operands[2]);
+                break;
+            case BREQ: case BRNEQ: case BRLT: case BRGT: case BRLEQ: case BRGEQ: {
+                String a = read(operands[1], "$t8");
+                String b = read(operands[2], "$t9");
+                code.add(BRANCHES.get(instruction.opCode) + " " + a + ", " + b + ", "
+                        + (stub != null ? stub : label(operands[0])));
+                break;
+            }
+            case RETURN:
+                if (operands.length > 0) {
+                    String value = read(operands[0], "$v0");
+                    if (!value.equals("$v0"))
+                        code.add("move $v0, " + value);
+                }
+                epilogue();
+                break;
+            case CALL:
+            case CALLR:
+                call(instruction, liveAfter);
+                break;
+            case ARRAY_LOAD: {
+                String dest = target(operands[0], "$t7");
+                code.add("lw " + dest + ", " + element(operands[1], operands[2]));
+                written(operands[0], dest);
+                break;
+            }
+            case ARRAY_STORE: {
+                String value = read(operands[0], "$t7");
+                code.add("sw " + value + ", " + element(operands[1], operands[2]));
+                break;
+            }
+        }
+    }
+
+    private static final Map<OpCode, String> BRANCHES = new EnumMap<>(OpCode.class);
+    static {
+        BRANCHES.put(OpCode.BREQ, "beq");
+        BRANCHES.put(OpCode.BRNEQ, "bne");
+        BRANCHES.put(OpCode.BRLT, "blt");
+        BRANCHES.put(OpCode.BRGT, "bgt");
+        BRANCHES.put(OpCode.BRLEQ, "ble");
+        BRANCHES.put(OpCode.BRGEQ, "bge");
+    }
+
+    private void assign(IROperand dest, IROperand source) {
+        int s = liveness.numberOf(source);
+        // coalesced, or spilled to the same slot
+        if (s >= 0 && location(s, 2 * position).equals(location(liveness.numberOf(dest), 2 * position + 1)))
+            return;
+        String reg = target(dest, "$t7");
+        String value = read(source, reg);
+        if (!value.equals(reg))
+            code.add("move " + reg + ", " + value);
+        written(dest, reg);
+    }
+
+    // assign A, n, v: the first n elements of A get v
+    private void fillArray(IROperand array, IROperand count, IROperand value) {
+        String loop = function.name + "__fill" + labels;
+        String end = function.name + "__fill" + labels + "_end";
+        labels++;
+        String base = read(array, "$t7");
+        if (!base.equals("$t7"))
+            code.add("move $t7, " + base);
+        String n = read(count, "$t8");
+        if (!n.equals("$t8"))
+            code.add("move $t8, " + n);
+        String v = read(value, "$t9");
+        code.add("ble $t8, $zero, " + end);
+        code.add(loop + ":");
+        code.add("sw " + v + ", 0($t7)");
+        code.add("addi $t7, $t7, 4");
+        code.add("addi $t8, $t8, -1");
+        code.add("bgt $t8, $zero, " + loop);
+        code.add(end + ":");
+    }
+
+    private void binary(OpCode op, IROperand dest, IROperand a, IROperand b) {
+        boolean commutes = op == OpCode.ADD || op == OpCode.MULT || op == OpCode.AND || op == OpCode.OR;
+        if (commutes && constant(a) != null && constant(b) == null) {
+            IROperand t = a;
+            a = b;
+            b = t;
+        }
+        String reg = target(dest, "$t7");
+        String x = read(a, "$t8");
+        Integer c = constant(b);
+        if (c != null && op == OpCode.ADD && fits16(c)) {
+            code.add("addi " + reg + ", " + x + ", " + c);
+        } else if (c != null && op == OpCode.SUB && fits16(-(long) c)) {
+            code.add("addi " + reg + ", " + x + ", " + (-(long) c));
+        } else if (c != null && (op == OpCode.AND || op == OpCode.OR) && c >= 0 && c <= 65535) {
+            code.add((op == OpCode.AND ? "andi " : "ori ") + reg + ", " + x + ", " + c);
+        } else {
+            String y = read(b, "$t9");
+            String mnemonic = op == OpCode.ADD ? "add" : op == OpCode.SUB ? "sub" : op == OpCode.MULT ? "mul"
+                    : op == OpCode.DIV ? "div" : op == OpCode.AND ? "and" : "or";
+            code.add(mnemonic + " " + reg + ", " + x + ", " + y);
+        }
+        written(dest, reg);
+    }
+
+    // the address operand of element index of array, computed in $t8/$t9
+    private String element(IROperand array, IROperand index) {
+        String base = read(array, "$t8");
+        Integer c = constant(index);
+        if (c != null && fits16(4L * c))
+            return 4 * c + "(" + base + ")";
+        String i = read(index, "$t9");
+        code.add("sll $t9, " + i + ", 2");
+        code.add("add $t8, " + base + ", $t9");
+        return "0($t8)";
+    }
+
+    private void call(IRInstruction instruction, BitSet liveAfter) {
+        boolean returns = instruction.opCode == OpCode.CALLR;
+        IROperand[] operands = instruction.operands;
+        int first = returns ? 2 : 1;
+        String name = operands[first - 1].toString();
+        switch (name) {
+            case "puti":
+            case "putc": {
+                String value = read(operands[first], "$a0");
+                if (!value.equals("$a0"))
+                    code.add("move $a0, " + value);
+                code.add("li $v0, " + (name.equals("puti") ? 1 : 11));
+                code.add("syscall");
+                return;
+            }
+            case "geti":
+            case "getc":
+                code.add("li $v0, " + (name.equals("geti") ? 5 : 12));
+                code.add("syscall");
+                if (returns)
+                    written(operands[0], "$v0");
+                return;
+        }
+
+        // keep the $t registers of what is live after the call, except its
+        // result; the callee keeps the $s ones
+        BitSet live = (BitSet) liveAfter.clone();
+        if (returns)
+            live.clear(liveness.numberOf(operands[0]));
+        SortedSet<Integer> saved = new TreeSet<>();
+        for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+            int register = allocation.register(v, 2 * position + 1);
+            if (register >= 0 && register < CALLER_SAVED)
+                saved.add(register);
+        }
+        for (int r : saved)
+            code.add("sw $" + REGISTERS[r] + ", " + (saveOffset + 4 * r) + "($sp)");
+        for (int i = first; i < operands.length; i++) {
+            int k = i - first;
+            if (k < 4) {
+                String reg = "$a" + k;
+                String value = read(operands[i], reg);
+                if (!value.equals(reg))
+                    code.add("move " + reg + ", " + value);
+            } else {
+                code.add("sw " + read(operands[i], "$t7") + ", " + 4 * (k - 4) + "($sp)");
+            }
+        }
+        code.add("jal " + name);
+        for (int r : saved)
+            code.add("lw $" + REGISTERS[r] + ", " + (saveOffset + 4 * r) + "($sp)");
+        if (returns)
+            written(operands[0], "$v0");
+    }
+}
@@ -0,0 +1,17 @@
+package ir;
+
+import java.util.BitSet;
+
+// Global register allocation by graph coloring (GraphColoring): each variable
+// keeps one register, or one stack slot, for the whole function.
+public class InstructionSelectorGraph extends InstructionSelectorGlobal {
+    public InstructionSelectorGraph(IRProgram program) {
+        super(program);
+    }
+
+    @Override
+    RegisterAllocation allocate(CFG cfg, Liveness liveness, int registers, int callerSaved,
+                                BitSet calls, IRProfile.FunctionProfile counts) {
+        return new GraphColoring(liveness, registers, callerSaved, calls, GraphColoring.blockWeights(cfg, counts));
+    }
+}
@@ -23,6 +23,12 @@ public class InstructionSelectorGreedy {
     private List<BasicBlock> currBlocks; // current blocks
     private BasicBlock currB; // current block
     private Map<IRVariableOperand, Integer> varCount; // count the number of occurrences of each variable in the block
+    private IRProfile profile; // execution counts of the program, null if none
+    private Liveness liveness; // global liveness of the current function
+    private BitSet liveAfter; // variables live after the current instruction
+    private Set<IRVariableOperand> dirty; // block registers set since they were last stored
+    private IRInstruction currInstruction; // the instruction being selected
+    private List<String> calleeSaved; // $s registers the function uses, saved in its prologue
 
     public InstructionSelectorGreedy(IRProgram pr) {
         g_mipsInstructions = new ArrayList < > ();
@@ -30,6 +36,12 @@ public class InstructionSelectorGreedy {
         program = pr;
     }
 
+    // use the execution counts of a run of this same IR (IRInterpreter --profile)
+    // to decide which variables get registers in each block
+    public void setProfile(IRProfile profile) {
+        this.profile = profile;
+    }
+
 
     
     public List<String> selectInstructions() {
@@ -103,6 +115,29 @@ public class InstructionSelectorGreedy {
         List<String> mipsI = new ArrayList<>();
         mipsI.add(function.name + ":");
 
+        currCfg = new CFG(function);
+        currBlocks = currCfg.basicBlocks;
+        liveness = new Liveness(currCfg);
+
+        // registers of every block first, so that the prologue knows which $s
+        // registers the function needs to save for its caller
+        Map<BasicBlock, Map<IRVariableOperand, String>> blockRegs = new IdentityHashMap<>();
+        Set<String> sUsed = new TreeSet<>();
+        for (BasicBlock block : currBlocks) {
+            currB = block;
+            getUEVAR(block);
+            countOcc(block);
+            regAlloc(block);
+            blockRegs.put(block, blockRegMap);
+            for (String reg : blockRegMap.values()) {
+                if (reg.startsWith("s")) {
+                    sUsed.add(reg);
+                }
+            }
+        }
+        // main returns to no one, so it has nothing to keep
+        calleeSaved = function.name.equals("main") ? new ArrayList<>() : new ArrayList<>(sUsed);
+
         mipsI.addAll(getPrologue(function));
 
         // initialize all variables to 0
@@ -118,17 +153,13 @@ public class InstructionSelectorGreedy {
             }
         }
 
-        currCfg = new CFG(function);
-        currBlocks = currCfg.basicBlocks;
-
         for (BasicBlock block : currBlocks) {
             currB = block;
+            BitSet[] blockLiveAfter = liveness.liveAfter(liveness.indexOf(block));
+            BitSet liveOut = liveness.liveOut[liveness.indexOf(block)];
+            dirty = new HashSet<>();
+            blockRegMap = blockRegs.get(block);
 
-            // intra-block analysis
-            getUEVAR(block); 
-            countOcc(block);
-            regAlloc(block);
-            
             IRInstruction fiInstruction = block.getInstructions().get(0);
             IRInstruction laInstruction = null;
             
@@ -140,18 +171,26 @@ public class InstructionSelectorGreedy {
             }
 
             mipsI.add("# Block Running: ");
-            for (IRInstruction instruction : block.getInstructions()) {
+            for (int i = 0; i < block.getInstructions().size(); i++) {
+                IRInstruction instruction = block.getInstructions().get(i);
                 laInstruction = instruction;
+                liveAfter = blockLiveAfter[i];
 
                 // save all values that has an assigned register in the block, before a jump
                 if (isAjump(instruction)){
                     mipsI.add("# Block Saving - before jump: ");
-                    mipsI.addAll(storeBlock(block));
+                    mipsI.addAll(storeBlock(liveOut));
                 }
 
                 selectInstructionsForInstruction(instruction);
                 mipsI.addAll(i_mipsInstructions);
 
+                // its register now holds a value the stack does not have
+                int def = liveness.defOf(instruction);
+                if (def >= 0 && blockRegMap.containsKey(liveness.variables.get(def))) {
+                    dirty.add(liveness.variables.get(def));
+                }
+
                 // save all values that has an assigned register in the block, after a label
                 if (isALabel(instruction)){
                     mipsI.add("# Block Loading: - after label: ");
@@ -163,7 +202,7 @@ public class InstructionSelectorGreedy {
             // if it is a jump, we will save the values before the jump
             if (!isAjump(laInstruction)){
             mipsI.add("# Block Saving: ");
-                mipsI.addAll(storeBlock(block));
+                mipsI.addAll(storeBlock(liveOut));
             }
 
         }
@@ -175,16 +214,33 @@ public class InstructionSelectorGreedy {
         return mipsI;
     }
 
-    // save all values that has an assigned register in the block back to the stack 
-    private List<String> storeBlock (BasicBlock bb){
+    // save the values that has an assigned register in the block back to the stack,
+    // those that are still live and were set in the block since they were last saved
+    private List<String> storeBlock (BitSet live){
         List<String> storeBlock = new ArrayList<>();
         for (Map.Entry<IRVariableOperand, String> entry : blockRegMap.entrySet()) {
-            int offset = varToStackMap.get(entry.getKey().toString());
-            storeBlock.add("sw $" + entry.getValue() + ", " + offset + "($sp)");
+            if (dirty.contains(entry.getKey()) && live.get(liveness.numberOf(entry.getKey()))) {
+                int offset = varToStackMap.get(entry.getKey().toString());
+                storeBlock.add("sw $" + entry.getValue() + ", " + offset + "($sp)");
+                dirty.remove(entry.getKey());
+            }
         }
         return storeBlock;
     }
 
+    // what is live after the current call, except the variable it sets
+    private BitSet liveAcrossCall() {
+        BitSet live = (BitSet) liveAfter.clone();
+        if (instructionTarget() >= 0) {
+            live.clear(instructionTarget());
+        }
+        return live;
+    }
+
+    private int instructionTarget() {
+        return currInstruction == null ? -1 : liveness.defOf(currInstruction);
+    }
+
     // get the set of variables that are used before they are defined in the block
     private void getUEVAR(BasicBlock block) {
         Set<IRVariableOperand> ueVar = new HashSet<>();
@@ -337,6 +393,11 @@ public class InstructionSelectorGreedy {
         // go over the vars in the varCount map and allocate registers to the most frequent ones from the temp registers
         // if there are more vars than the number of temp registers, we will have to spill some of them to the stack
 
+        if (profile != null && profile.getFunction(currFunction.name) != null) {
+            regAllocProfiled(block, profile.getFunction(currFunction.name));
+            return;
+        }
+
         // sort the map by the number of occurrences
         List<Map.Entry<IRVariableOperand, Integer>> list = new LinkedList<>(varCount.entrySet());
         Collections.sort(list, new Comparator<Map.Entry<IRVariableOperand, Integer>>() {
@@ -345,36 +406,111 @@ public class InstructionSelectorGreedy {
             }
         });
 
-        blockRegMap = new HashMap<>(); // reset the blockRegMap
-
         // allocate registers to the most frequent vars
-        int i = 0;
+        List<IRVariableOperand> vars = new ArrayList<>();
         for (Map.Entry<IRVariableOperand, Integer> entry : list) {
-            if (i < 7) {
-                blockRegMap.put(entry.getKey(), "t" + i);
-                i++;
-            } 
+            vars.add(entry.getKey());
         }
+        assignRegisters(block, vars);
     }
 
-    private List<String> getPrologue(IRFunction function) {
-        List<String> prologue = new ArrayList<>();
-        int stSize = 8 + function.getVarOnly().size() * 4 + function.parameters.size() * 4;
+    // with a profile: a register saves a load or store at each occurrence of the
+    // variable, but costs a load at the start of the block (if the value is used
+    // before it is set) and a store at the end, every time the block runs; give
+    // the registers to the vars that save the most over the run, and none to vars
+    // that would cost more than they save or to blocks that never ran
+    private void regAllocProfiled (BasicBlock block, IRProfile.FunctionProfile counts){
+        long runs = counts.getLineCount(block.getInstructions().get(0).irLineNumber);
+        Map<IRVariableOperand, Long> saved = new HashMap<>();
+        for (Map.Entry<IRVariableOperand, Integer> entry : varCount.entrySet()) {
+            int cost = 1 + (block.uevar.contains(entry.getKey()) ? 1 : 0);
+            long save = runs * (entry.getValue() - cost);
+            if (save > 0)
+                saved.put(entry.getKey(), save);
+        }
+
+        List<Map.Entry<IRVariableOperand, Long>> list = new ArrayList<>(saved.entrySet());
+        list.sort((o1, o2) -> o2.getValue().compareTo(o1.getValue()));
+
+        List<IRVariableOperand> vars = new ArrayList<>();
+        for (Map.Entry<IRVariableOperand, Long> entry : list) {
+            vars.add(entry.getKey());
+        }
+        assignRegisters(block, vars);
+    }
+
+    // give registers to vars, most important first: the ones live across a call
+    // of the block get $s0-$s7, which the callee keeps, so they need no store and
+    // load around it; the others get $t0-$t6
+    private void assignRegisters(BasicBlock block, List<IRVariableOperand> vars) {
+        BitSet acrossCalls = new BitSet();
+        List<IRInstruction> instructions = block.getInstructions();
+        BitSet[] after = liveness.liveAfter(liveness.indexOf(block));
+        for (int i = 0; i < instructions.size(); i++) {
+            if (isUserCall(instructions.get(i))) {
+                BitSet live = (BitSet) after[i].clone();
+                int def = liveness.defOf(instructions.get(i));
+                if (def >= 0) {
+                    live.clear(def);
+                }
+                acrossCalls.or(live);
+            }
+        }
+
+        blockRegMap = new HashMap<>(); // reset the blockRegMap
+        int t = 0;
+        int s = 0;
+        for (IRVariableOperand var : vars) {
+            if (s < 8 && acrossCalls.get(liveness.numberOf(var))) {
+                blockRegMap.put(var, "s" + s);
+                s++;
+            } else if (t < 7) {
+                blockRegMap.put(var, "t" + t);
+                t++;
+            }
+        }
+    }
+
+    private static boolean isUserCall(IRInstruction instruction) {
+        if (instruction.opCode != IRInstruction.OpCode.CALL && instruction.opCode != IRInstruction.OpCode.CALLR) {
+            return false;
+        }
+        String name = instruction.operands[instruction.opCode == IRInstruction.OpCode.CALL ? 0 : 1].toString();
+        return !(name.equals("puti") || name.equals("putc") || name.equals("geti") || name.equals("getc"));
+    }
+
+    // the frame: $ra and $fp, the variables, the parameters, then the $s
+    // registers the function uses, which it has to give back to its caller
+    private int calleeSaveOffset(IRFunction function) {
+        return 8 + function.getVarOnly().size() * 4 + function.parameters.size() * 4;
+    }
+
+    private int frameSize(IRFunction function) {
+        int stSize = calleeSaveOffset(function) + calleeSaved.size() * 4;
         if (stSize % 8 != 0) {
             stSize += 4;
         }
+        return stSize;
+    }
+
+    private List<String> getPrologue(IRFunction function) {
+        List<String> prologue = new ArrayList<>();
+        int stSize = frameSize(function);
         prologue.add("addi $sp, $sp, -" + stSize);
         prologue.add("sw $ra, 0($sp)");
         prologue.add("sw $fp, 4($sp)");
         prologue.add("addi $fp, $sp, " + (stSize - 4));
+        for (int i = 0; i < calleeSaved.size(); i++) {
+            prologue.add("sw $" + calleeSaved.get(i) + ", " + (calleeSaveOffset(function) + i * 4) + "($sp)");
+        }
         return prologue;
     }
 
     private List<String> getEpilogue(IRFunction function) {
         List<String> epilogue = new ArrayList<>();
-        int stSize = 8 + function.getVarOnly().size() * 4 + function.parameters.size() * 4;
-        if (stSize % 8 != 0) {
-            stSize += 4;
+        int stSize = frameSize(function);
+        for (int i = 0; i < calleeSaved.size(); i++) {
+            epilogue.add("lw $" + calleeSaved.get(i) + ", " + (calleeSaveOffset(function) + i * 4) + "($sp)");
         }
         // epilogue.add("lw $fp, 4($sp)");
         epilogue.add("lw $ra, 0($sp)");
@@ -388,20 +524,25 @@ public class InstructionSelectorGreedy {
         return epilogue;
     }
 
+    // the callee may change $t and $a registers but keeps $s ones: store the
+    // $t registers of the block that are live across the call, and the
+    // parameters that are
     private List<String> saveVarPar(IRFunction function) {
         List<String> saveVarPar = new ArrayList<>();
         // the first 8 bytes are for the return address and the frame pointer -- already saved in the prologue
-        // the next n * 4 bytes are for the variables -- already saved whenever they are assigned
-        // the next m * 4 bytes are for the parameters -- save them to the stack
+        // the next n * 4 bytes are for the variables -- saved here if they are live and changed in the block
+        // the next m * 4 bytes are for the parameters -- save the live ones to the stack
 
-        saveVarPar.addAll(storeBlock(currB));
+        saveVarPar.addAll(storeBlock(callerSaved(liveAcrossCall())));
 
         // save the parameters to the stack
+        BitSet live = liveAcrossCall();
         int n = varToStackMap.size();
         for (int i = 0; i < function.parameters.size(); i++) {
-            int offset = (n * 4) + 8 + (i * 4);
-            String inst = "sw $a" + i + ", " + offset + "($sp)";
-            saveVarPar.add(inst);
+            if (live.get(liveness.numberOf(function.parameters.get(i)))) {
+                int offset = (n * 4) + 8 + (i * 4);
+                saveVarPar.add("sw $a" + i + ", " + offset + "($sp)");
+            }
         }
         return saveVarPar;
     }
@@ -409,71 +550,60 @@ public class InstructionSelectorGreedy {
     private List<String> restoreVarPar(IRFunction function) {
         List<String> restoreVarPar = new ArrayList<>();
         // the first 8 bytes are for the return address and the frame pointer -- already restored in the epilogue
-        // the next n * 4 bytes are for the variables -- will be restored whenever they are used
-        // the next m * 4 bytes are for the parameters -- restore them from the stack
-
-        // restore the variables from the stack (if they are in the map)
-        restoreVarPar.addAll(loadBlock(currB));
-        
-        // restore the parameters from the stack
-        int n = varToStackMap.size();
-        for (int i = 0; i < function.parameters.size(); i++) {
-            int offset = (n * 4) + 8 + (i * 4);
-            String inst = "lw $a" + i + ", " + offset + "($sp)";
-            restoreVarPar.add(inst);
-        }
-        
-        return restoreVarPar;
-    }
-
-    private List<String> restoreVarParSys(IRFunction function) {
-        List<String> restoreVarPar = new ArrayList<>();
-        // the first 8 bytes are for the return address and the frame pointer -- already restored in the epilogue
-        // the next n * 4 bytes are for the variables -- will be restored whenever they are used
-        // the next m * 4 bytes are for the parameters -- restore them from the stack
+        // the next n * 4 bytes are for the variables -- restore the live ones in $t registers
+        // the next m * 4 bytes are for the parameters -- restore the live ones from the stack
 
+        BitSet live = callerSaved(liveAcrossCall());
         for (Map.Entry<IRVariableOperand, String> entry : blockRegMap.entrySet()) {
-            String dest = entry.getValue();
-            String src = dest.replace('t', 's');
-            restoreVarPar.add("move $" + dest + ", $" + src);
+            if (live.get(liveness.numberOf(entry.getKey()))) {
+                int offset = varToStackMap.get(entry.getKey().toString());
+                restoreVarPar.add("lw $" + entry.getValue() + ", " + offset + "($sp)");
+            }
         }
         
         // restore the parameters from the stack
         int n = varToStackMap.size();
         for (int i = 0; i < function.parameters.size(); i++) {
-            int offset = (n * 4) + 8 + (i * 4);
-            String inst = "lw $a" + i + ", " + offset + "($sp)";
-            restoreVarPar.add(inst);
+            if (live.get(liveness.numberOf(function.parameters.get(i)))) {
+                int offset = (n * 4) + 8 + (i * 4);
+                restoreVarPar.add("lw $a" + i + ", " + offset + "($sp)");
+            }
         }
         
         return restoreVarPar;
     }
 
-    private List<String> saveVarParSys(IRFunction function) {
-        List<String> saveVarPar = new ArrayList<>();
-        // the first 8 bytes are for the return address and the frame pointer -- already saved in the prologue
-        // the next n * 4 bytes are for the variables -- already saved whenever they are assigned
-        // the next m * 4 bytes are for the parameters -- save them to the stack
-
-        // move all variables with assigned reg to $s
+    // live without the variables of the block in $s registers
+    private BitSet callerSaved(BitSet live) {
+        BitSet callerSaved = (BitSet) live.clone();
         for (Map.Entry<IRVariableOperand, String> entry : blockRegMap.entrySet()) {
-            String src = entry.getValue();
-            String dest = src.replace('t', 's');
-            saveVarPar.add("move $" + dest + ", $" + src);
+            if (entry.getValue().startsWith("s")) {
+                callerSaved.clear(liveness.numberOf(entry.getKey()));
+            }
         }
+        return callerSaved;
+    }
 
+    // the syscalls of puti and putc only change $v0 and $a0, which holds the
+    // first parameter: keep it on the stack if it is still needed after them
+    private List<String> saveA0Sys(IRFunction function) {
+        List<String> saveA0 = new ArrayList<>();
+        if (!function.parameters.isEmpty() && liveAfter.get(liveness.numberOf(function.parameters.get(0)))) {
+            saveA0.add("sw $a0, " + (varToStackMap.size() * 4 + 8) + "($sp)");
+        }
+        return saveA0;
+    }
 
-        // save the parameters to the stack
-        int n = varToStackMap.size();
-        for (int i = 0; i < function.parameters.size(); i++) {
-            int offset = (n * 4) + 8 + (i * 4);
-            String inst = "sw $a" + i + ", " + offset + "($sp)";
-            saveVarPar.add(inst);
+    private List<String> restoreA0Sys(IRFunction function) {
+        List<String> restoreA0 = new ArrayList<>();
+        if (!function.parameters.isEmpty() && liveAfter.get(liveness.numberOf(function.parameters.get(0)))) {
+            restoreA0.add("lw $a0, " + (varToStackMap.size() * 4 + 8) + "($sp)");
         }
-        return saveVarPar;
+        return restoreA0;
     }
 
     private void selectInstructionsForInstruction(IRInstruction instruction) {
+        currInstruction = instruction;
         i_mipsInstructions = new ArrayList<>();
         i_mipsInstructions.add("# " + instruction.toString());
 
@@ -846,7 +976,7 @@ public class InstructionSelectorGreedy {
                     // call, geti
                     //In MIPS, syscall, $v0 = 1, $a0 = integer to be printed
                     case ("puti"):
-                        i_mipsInstructions.addAll(saveVarParSys(currFunction));
+                        i_mipsInstructions.addAll(saveA0Sys(currFunction));
                         
                         String t = getRegForReading(instruction.operands[1], "t7"); // to be printed
                         String inst = "move $a0, $" + t;
@@ -857,27 +987,20 @@ public class InstructionSelectorGreedy {
                         i_mipsInstructions.add("li $v0, 1");
                         i_mipsInstructions.add("syscall");
                         
-                        i_mipsInstructions.addAll(restoreVarParSys(currFunction));
+                        i_mipsInstructions.addAll(restoreA0Sys(currFunction));
                         break;
                     case ("geti"):
                         //In Tiger-IR, call, geti
-                        i_mipsInstructions.addAll(saveVarParSys(currFunction));
-
+                        // the syscall only changes $v0, nothing to keep
                         i_mipsInstructions.add("li $v0, 5");
                         i_mipsInstructions.add("syscall");
-
-                        i_mipsInstructions.addAll(restoreVarParSys(currFunction));
                         break;
                     case ("getc"):
-                        i_mipsInstructions.addAll(saveVarParSys(currFunction));
-                        
                         i_mipsInstructions.add("li $v0, 12");
                         i_mipsInstructions.add("syscall");
-
-                        i_mipsInstructions.addAll(restoreVarParSys(currFunction));
                         break;
                     case ("putc"):
-                        i_mipsInstructions.addAll(saveVarParSys(currFunction));
+                        i_mipsInstructions.addAll(saveA0Sys(currFunction));
                         
                         t = getRegForReading(instruction.operands[1], "t7"); // to be printed
                         inst = "move $a0, $" + t;
@@ -888,7 +1011,7 @@ public class InstructionSelectorGreedy {
                         i_mipsInstructions.add("li $v0, 11");
                         i_mipsInstructions.add("syscall");
                         
-                        i_mipsInstructions.addAll(restoreVarParSys(currFunction));
+                        i_mipsInstructions.addAll(restoreA0Sys(currFunction));
                         break;
                     //if it is custom function, do something else
                     default:
@@ -921,14 +1044,9 @@ public class InstructionSelectorGreedy {
                     //In Tiger-IR, callr, a, geti
                     //In MIPS, syscall, $v0 = 5, $v0 is where integer is returned,
                     case ("geti"):
-                        i_mipsInstructions.addAll(saveVarParSys(currFunction));
-                        
                         String dest = getRegForWriting(instruction.operands[0], "t7"); 
                         i_mipsInstructions.add("li $v0, 5");
                         i_mipsInstructions.add("syscall");
-
-                        i_mipsInstructions.addAll(restoreVarParSys(currFunction));
-                        
                         i_mipsInstructions.add("move $"+ dest + ", $v0");
                         // save the value back to the stack if it is a variable
                         saveToStack(instruction.operands[0], dest);
@@ -0,0 +1,18 @@
+package ir;
+
+import java.util.BitSet;
+
+// Global register allocation by linear scan (LinearScan): quicker to compute
+// than graph coloring on large functions, with variables split between
+// registers and the stack where the registers run out.
+public class InstructionSelectorLinearScan extends InstructionSelectorGlobal {
+    public InstructionSelectorLinearScan(IRProgram program) {
+        super(program);
+    }
+
+    @Override
+    RegisterAllocation allocate(CFG cfg, Liveness liveness, int registers, int callerSaved,
+                                BitSet calls, IRProfile.FunctionProfile counts) {
+        return new LinearScan(liveness, registers, callerSaved, calls);
+    }
+}
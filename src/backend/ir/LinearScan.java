@@ -0,0 +1,478 @@
+package ir;
+
+import ir.IRInstruction.OpCode;
+
+import java.util.*;
+
+// Linear-scan register allocation with interval splitting and second-chance
+// spilling (after Traub, Holloway and Smith, and Wimmer and Moessenboeck):
+//  - the blocks are laid out in CFG order and every variable gets a live
+//    interval, a list of position ranges with holes where it is dead, and the
+//    positions where it is used or defined;
+//  - the intervals are handled by increasing start; one gets a register that
+//    is free for all of it, or for a first part of it, the rest being split
+//    off and handled later;
+//  - when no register is free, whichever of the interval and the ones holding
+//    a register is next used furthest away goes to the stack, from here on;
+//  - an interval on the stack gets a second chance at its next use: it is split
+//    there and the rest is handled again, so it may come back into a register.
+// Between registers that are as good, an interval live across a call takes one
+// the callee keeps (from callerSaved on), and any other interval one of the
+// others.
+// Where a split leaves a variable in another place, InstructionSelectorGlobal
+// moves it, inside a block or on the edges between blocks.
+//
+// Each step only looks at the intervals holding registers, so the time is close
+// to linear in the size of the function.
+class LinearScan implements RegisterAllocation {
+    // A part of the lifetime of a variable that stays in one place: the ranges
+    // lo..hi-1 and uses useLo..useHi-1 of the variable, which all its parts
+    // share so that splitting copies nothing; a part split inside a range has
+    // its own start of the first range or end of the last.
+    private static final class Interval {
+        final int variable;
+        final int[] from;            // ranges [from, to) of the variable, sorted
+        final int[] to;
+        final int[] uses;            // of the variable, sorted
+        int lo, hi;
+        int headFrom = -1;
+        int tailTo = -1;
+        int useLo, useHi;
+        int register = -1;           // -1: on the stack
+
+        Interval(int variable, int[] from, int[] to, int[] uses) {
+            this.variable = variable;
+            this.from = from;
+            this.to = to;
+            this.uses = uses;
+        }
+
+        int rangeFrom(int i) {
+            return i == lo && headFrom >= 0 ? headFrom : from[i];
+        }
+
+        int rangeTo(int i) {
+            return i == hi - 1 && tailTo >= 0 ? tailTo : to[i];
+        }
+
+        int start() {
+            return rangeFrom(lo);
+        }
+
+        int end() {
+            return rangeTo(hi - 1);
+        }
+
+        // the first range ending after position, or hi
+        private int rangeAfter(int position) {
+            int low = lo;
+            int high = hi;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (rangeTo(middle) > position)
+                    high = middle;
+                else
+                    low = middle + 1;
+            }
+            return low;
+        }
+
+        boolean covers(int position) {
+            int r = rangeAfter(position);
+            return r < hi && rangeFrom(r) <= position;
+        }
+
+        // the first position both cover, or MAX_VALUE
+        int intersection(Interval other) {
+            int i = lo;
+            int j = other.lo;
+            while (i < hi && j < other.hi) {
+                int start = Math.max(rangeFrom(i), other.rangeFrom(j));
+                int end = Math.min(rangeTo(i), other.rangeTo(j));
+                if (start < end)
+                    return start;
+                if (rangeTo(i) <= other.rangeTo(j))
+                    i++;
+                else
+                    j++;
+            }
+            return Integer.MAX_VALUE;
+        }
+
+        // the index of the first use at or after position, or useHi
+        private int useAfter(int position) {
+            int low = useLo;
+            int high = useHi;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (uses[middle] >= position)
+                    high = middle;
+                else
+                    low = middle + 1;
+            }
+            return low;
+        }
+
+        // the first use at or after position, or MAX_VALUE
+        int nextUse(int position) {
+            int k = useAfter(position);
+            return k < useHi ? uses[k] : Integer.MAX_VALUE;
+        }
+
+        // moves what is at or after position, which is after the start, to a
+        // new interval
+        Interval split(int position) {
+            Interval child = new Interval(variable, from, to, uses);
+            int r = rangeAfter(position);
+            child.lo = r;
+            child.hi = hi;
+            child.tailTo = tailTo;
+            if (rangeFrom(r) < position) {
+                child.headFrom = position;
+                hi = r + 1;
+                tailTo = position;
+            } else {
+                hi = r;
+                tailTo = -1;
+            }
+            int k = useAfter(position);
+            child.useLo = k;
+            child.useHi = useHi;
+            useHi = k;
+            return child;
+        }
+    }
+
+    private final int k;
+    private final int[] callerFirst;     // the registers, in order of preference
+    private final int[] calleeFirst;
+    private final int[] calls;           // where the calls read their arguments, sorted
+    private final List<List<Interval>> pieces = new ArrayList<>(); // per variable, by start
+    private final int[] slot;
+    private int slots;
+    private final Map<Integer, List<Integer>> moves = new HashMap<>();
+    private final PriorityQueue<Interval> unhandled = new PriorityQueue<>(
+            (a, b) -> a.start() != b.start() ? Integer.compare(a.start(), b.start())
+                    : Integer.compare(a.variable, b.variable));
+    private final List<Interval> active = new ArrayList<>();
+    private final List<Interval> inactive = new ArrayList<>();
+    private int intervals;
+    private int splits;
+
+    LinearScan(Liveness liveness, int k, int callerSaved, BitSet calls) {
+        this.k = k;
+        callerFirst = new int[k];
+        calleeFirst = new int[k];
+        for (int r = 0; r < k; r++) {
+            callerFirst[r] = r;
+            calleeFirst[r] = (r + callerSaved) % k;
+        }
+        this.calls = calls.stream().map(i -> 2 * i).toArray();
+        int n = liveness.size();
+        for (int v = 0; v < n; v++)
+            pieces.add(new ArrayList<>());
+        build(liveness);
+        for (List<Interval> list : pieces) {
+            if (!list.isEmpty()) {
+                unhandled.add(list.get(0));
+                intervals++;
+            }
+        }
+        allocate();
+
+        slot = new int[n];
+        for (int v = 0; v < n; v++) {
+            for (Interval piece : pieces.get(v)) {
+                if (piece.register < 0) {
+                    slot[v] = slots++;
+                    break;
+                }
+            }
+        }
+    }
+
+    // the intervals, going backwards over the blocks and their instructions so
+    // that each range comes before the ones already there
+    private void build(Liveness liveness) {
+        int n = liveness.size();
+        List<List<int[]>> ranges = new ArrayList<>();   // backwards
+        List<List<Integer>> uses = new ArrayList<>();   // backwards
+        for (int v = 0; v < n; v++) {
+            ranges.add(new ArrayList<>());
+            uses.add(new ArrayList<>());
+        }
+        List<BasicBlock> blocks = liveness.cfg.basicBlocks;
+        for (int b = blocks.size() - 1; b >= 0; b--) {
+            BasicBlock block = blocks.get(b);
+            int from = 2 * block.getStartLine();
+            int to = 2 * block.getEndLine() + 2;
+            BitSet live = (BitSet) liveness.liveOut[b].clone();
+            for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1))
+                addRange(ranges.get(v), from, to);
+            List<IRInstruction> instructions = block.getInstructions();
+            for (int i = instructions.size() - 1; i >= 0; i--) {
+                IRInstruction instruction = instructions.get(i);
+                int position = 2 * (block.getStartLine() + i);
+                if (instruction.opCode == OpCode.RETURN)
+                    live.clear();
+                int d = liveness.defOf(instruction);
+                if (d >= 0) {
+                    List<int[]> list = ranges.get(d);
+                    if (live.get(d))
+                        list.get(list.size() - 1)[0] = position + 1;
+                    else
+                        addRange(list, position + 1, position + 2);
+                    addUse(uses.get(d), position + 1);
+                    live.clear(d);
+                }
+                BitSet used = liveness.uses(instruction);
+                for (int u = used.nextSetBit(0); u >= 0; u = used.nextSetBit(u + 1)) {
+                    addRange(ranges.get(u), from, position + 1);
+                    addUse(uses.get(u), position);
+                }
+                live.or(used);
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            if (ranges.get(v).isEmpty())
+                continue;
+            List<int[]> list = ranges.get(v);
+            int count = list.size();
+            int[] from = new int[count];
+            int[] to = new int[count];
+            for (int i = 0; i < count; i++) {
+                from[i] = list.get(count - 1 - i)[0];
+                to[i] = list.get(count - 1 - i)[1];
+            }
+            List<Integer> used = uses.get(v);
+            int[] positions = new int[used.size()];
+            for (int i = 0; i < positions.length; i++)
+                positions[i] = used.get(positions.length - 1 - i);
+            Interval interval = new Interval(v, from, to, positions);
+            interval.hi = count;
+            interval.useHi = positions.length;
+            pieces.get(v).add(interval);
+        }
+    }
+
+    // ranges and uses are built backwards, so the first one is the last
+    private static void addRange(List<int[]> ranges, int from, int to) {
+        if (!ranges.isEmpty()) {
+            int[] first = ranges.get(ranges.size() - 1);
+            if (to >= first[0]) {
+                first[0] = Math.min(first[0], from);
+                first[1] = Math.max(first[1], to);
+                return;
+            }
+        }
+        ranges.add(new int[] {from, to});
+    }
+
+    private static void addUse(List<Integer> uses, int position) {
+        if (uses.isEmpty() || uses.get(uses.size() - 1) != position)
+            uses.add(position);
+    }
+
+    private void allocate() {
+        while (!unhandled.isEmpty()) {
+            Interval current = unhandled.poll();
+            int position = current.start();
+            for (Iterator<Interval> it = active.iterator(); it.hasNext(); ) {
+                Interval interval = it.next();
+                if (interval.end() <= position) {
+                    it.remove();
+                } else if (!interval.covers(position)) {
+                    it.remove();
+                    inactive.add(interval);
+                }
+            }
+            for (Iterator<Interval> it = inactive.iterator(); it.hasNext(); ) {
+                Interval interval = it.next();
+                if (interval.end() <= position) {
+                    it.remove();
+                } else if (interval.covers(position)) {
+                    it.remove();
+                    active.add(interval);
+                }
+            }
+            if (!allocateFree(current, position))
+                allocateBlocked(current, position);
+            if (current.register >= 0)
+                active.add(current);
+        }
+    }
+
+    // a register free at position for all of current, or for as much of it as
+    // can be split off
+    private boolean allocateFree(Interval current, int position) {
+        int[] freeUntil = new int[k];
+        Arrays.fill(freeUntil, Integer.MAX_VALUE);
+        for (Interval interval : active)
+            freeUntil[interval.register] = 0;
+        for (Interval interval : inactive) {
+            int at = interval.intersection(current);
+            if (at < freeUntil[interval.register])
+                freeUntil[interval.register] = at;
+        }
+        int[] order = preference(current);
+        int best = order[0];
+        for (int r : order) {
+            if (freeUntil[r] > freeUntil[best])
+                best = r;
+        }
+        if (freeUntil[best] >= current.end()) {
+            current.register = best;
+            return true;
+        }
+        int at = even(freeUntil[best]);
+        if (at <= position)
+            return false;
+        current.register = best;
+        unhandled.add(split(current, at));
+        return true;
+    }
+
+    // takes the register whose next use is furthest away, or spills current if
+    // its own next use is further still
+    private void allocateBlocked(Interval current, int position) {
+        int[] nextUse = new int[k];
+        Arrays.fill(nextUse, Integer.MAX_VALUE);
+        for (Interval interval : active)
+            nextUse[interval.register] = Math.min(nextUse[interval.register], interval.nextUse(position));
+        for (Interval interval : inactive) {
+            if (interval.intersection(current) != Integer.MAX_VALUE)
+                nextUse[interval.register] = Math.min(nextUse[interval.register], interval.nextUse(position));
+        }
+        int[] order = preference(current);
+        int best = order[0];
+        for (int r : order) {
+            if (nextUse[r] > nextUse[best])
+                best = r;
+        }
+        if (current.nextUse(position) > nextUse[best]) {
+            toStack(current);
+            return;
+        }
+        current.register = best;
+        for (Iterator<Interval> it = active.iterator(); it.hasNext(); ) {
+            Interval interval = it.next();
+            if (interval.register == best) {
+                it.remove();
+                spill(interval, position);
+            }
+        }
+        for (Iterator<Interval> it = inactive.iterator(); it.hasNext(); ) {
+            Interval interval = it.next();
+            if (interval.register == best && interval.intersection(current) != Integer.MAX_VALUE) {
+                it.remove();
+                spill(interval, position);
+            }
+        }
+    }
+
+    private int[] preference(Interval interval) {
+        return acrossCall(interval) ? calleeFirst : callerFirst;
+    }
+
+    // whether interval is live both where a call reads and where it writes
+    private boolean acrossCall(Interval interval) {
+        int c = Arrays.binarySearch(calls, interval.start());
+        for (c = c < 0 ? -c - 1 : c; c < calls.length && calls[c] < interval.end(); c++) {
+            if (interval.covers(calls[c]) && interval.covers(calls[c] + 1))
+                return true;
+        }
+        return false;
+    }
+
+    // interval goes to the stack from position on
+    private void spill(Interval interval, int position) {
+        int at = even(position);
+        if (at <= interval.start()) {
+            interval.register = -1;
+            toStack(interval);
+        } else {
+            toStack(split(interval, at));
+        }
+    }
+
+    // interval is on the stack until its next use that can be split off, which
+    // then gets a second chance at a register
+    private void toStack(Interval interval) {
+        interval.register = -1;
+        for (int u = interval.useLo; u < interval.useHi; u++) {
+            int at = even(interval.uses[u]);
+            if (at > interval.start()) {
+                unhandled.add(split(interval, at));
+                return;
+            }
+        }
+    }
+
+    private Interval split(Interval interval, int position) {
+        boolean live = interval.covers(position - 1) && interval.covers(position);
+        Interval child = interval.split(position);
+        List<Interval> list = pieces.get(interval.variable);
+        int k = list.size();
+        while (k > 0 && list.get(k - 1).start() > child.start())
+            k--;
+        list.add(k, child);
+        if (live)
+            moves.computeIfAbsent(position, p -> new ArrayList<>()).add(interval.variable);
+        splits++;
+        return child;
+    }
+
+    // the even position at or before position, where moves can go
+    private static int even(int position) {
+        return position & ~1;
+    }
+
+    // the piece of v at position: the last one starting at or before it
+    private Interval piece(int v, int position) {
+        List<Interval> list = pieces.get(v);
+        if (list.isEmpty())
+            return null;
+        int low = 0;
+        int high = list.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) / 2;
+            if (list.get(middle).start() <= position)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return list.get(low);
+    }
+
+    public int register(int v, int position) {
+        Interval piece = piece(v, position);
+        return piece == null ? -1 : piece.register;
+    }
+
+    public int slot(int v) {
+        return slot[v];
+    }
+
+    public int slots() {
+        return slots;
+    }
+
+    public List<Integer> movesAt(int position) {
+        return moves.getOrDefault(position, Collections.emptyList());
+    }
+
+    public BitSet registers() {
+        BitSet registers = new BitSet();
+        for (List<Interval> list : pieces) {
+            for (Interval piece : list) {
+                if (piece.register >= 0)
+                    registers.set(piece.register);
+            }
+        }
+        return registers;
+    }
+
+    public String summary() {
+        return "linear scan: " + intervals + " intervals, " + splits + " splits, " + slots + " spilled";
+    }
+}
@@ -0,0 +1,190 @@
+package ir;
+
+import ir.IRInstruction.OpCode;
+import ir.datatype.IRArrayType;
+import ir.operand.*;
+
+import java.util.*;
+
+// Global liveness of the variables of one function over its CFG, as bit vectors:
+// every variable that can live in a register (the int variables and the array
+// parameters; local arrays are labels in the data segment) gets a number, and
+// each block gets its USE and DEF sets and the LIVE-IN and LIVE-OUT sets
+//   LIVE-OUT(b) = union of LIVE-IN(s) over the successors s of b
+//   LIVE-IN(b)  = USE(b) | (LIVE-OUT(b) & ~DEF(b))
+// solved by iterating over the blocks backwards until nothing changes.
+//
+// The uses and defs are worked out here per opcode, since getSources/getTarget
+// of IRInstruction do not fit stores into arrays. A return ends the function
+// even when it is not the last instruction of its block, so it kills everything.
+class Liveness {
+    final CFG cfg;
+    final List<IRVariableOperand> variables = new ArrayList<>(); // number -> variable
+    private final Map<String, Integer> numbers = new HashMap<>();
+    private final Map<BasicBlock, Integer> blockIndex = new IdentityHashMap<>();
+
+    final BitSet[] use;
+    final BitSet[] def;
+    final BitSet[] liveIn;
+    final BitSet[] liveOut;
+
+    Liveness(CFG cfg) {
+        this.cfg = cfg;
+        IRFunction function = cfg.function;
+        for (IRVariableOperand param : function.parameters)
+            number(param);
+        for (IRVariableOperand var : function.variables) {
+            if (!(var.getType() instanceof IRArrayType))
+                number(var);
+        }
+
+        int n = cfg.basicBlocks.size();
+        use = new BitSet[n];
+        def = new BitSet[n];
+        liveIn = new BitSet[n];
+        liveOut = new BitSet[n];
+        for (int b = 0; b < n; b++) {
+            blockIndex.put(cfg.basicBlocks.get(b), b);
+            summarize(b);
+            liveIn[b] = new BitSet();
+            liveOut[b] = new BitSet();
+        }
+        solve();
+    }
+
+    private void number(IRVariableOperand var) {
+        if (!numbers.containsKey(var.getName())) {
+            numbers.put(var.getName(), variables.size());
+            variables.add(var);
+        }
+    }
+
+    int size() {
+        return variables.size();
+    }
+
+    // the number of the variable, or -1 if the operand is not one
+    int numberOf(IROperand operand) {
+        if (!(operand instanceof IRVariableOperand))
+            return -1;
+        Integer number = numbers.get(((IRVariableOperand) operand).getName());
+        return number == null ? -1 : number;
+    }
+
+    int indexOf(BasicBlock block) {
+        return blockIndex.get(block);
+    }
+
+    // the variables an instruction reads
+    BitSet uses(IRInstruction instruction) {
+        BitSet set = new BitSet();
+        IROperand[] operands = instruction.operands;
+        int from;
+        switch (instruction.opCode) {
+            case ASSIGN:
+                from = operands.length == 3 ? 0 : 1;
+                break;
+            case ADD: case SUB: case MULT: case DIV: case AND: case OR:
+            case BREQ: case BRNEQ: case BRLT: case BRGT: case BRLEQ: case BRGEQ:
+            case ARRAY_LOAD:
+                from = 1;
+                break;
+            case CALLR:
+                from = 2;
+                break;
+            case CALL:
+            case RETURN:
+            case ARRAY_STORE:
+                from = 0;
+                break;
+            default:
+                return set;
+        }
+        for (int i = from; i < operands.length; i++) {
+            int number = numberOf(operands[i]);
+            if (number >= 0)
+                set.set(number);
+        }
+        return set;
+    }
+
+    // the variable an instruction writes, or -1
+    int defOf(IRInstruction instruction) {
+        switch (instruction.opCode) {
+            case ASSIGN:
+                return instruction.operands.length == 3 ? -1 : numberOf(instruction.operands[0]);
+            case ADD: case SUB: case MULT: case DIV: case AND: case OR:
+            case CALLR:
+            case ARRAY_LOAD:
+                return numberOf(instruction.operands[0]);
+            default:
+                return -1;
+        }
+    }
+
+    // walks an instruction backwards: live holds what is live after it and is
+    // left holding what is live before it
+    void step(IRInstruction instruction, BitSet live) {
+        if (instruction.opCode == OpCode.RETURN)
+            live.clear();
+        int d = defOf(instruction);
+        if (d >= 0)
+            live.clear(d);
+        live.or(uses(instruction));
+    }
+
+    // USE and DEF of block b, going backwards so that a return kills everything
+    private void summarize(int b) {
+        List<IRInstruction> instructions = cfg.basicBlocks.get(b).getInstructions();
+        BitSet u = new BitSet();
+        BitSet d = new BitSet();
+        for (int i = instructions.size() - 1; i >= 0; i--) {
+            IRInstruction instruction = instructions.get(i);
+            if (instruction.opCode == OpCode.RETURN) {
+                u.clear();
+                d.set(0, size());
+            }
+            int k = defOf(instruction);
+            if (k >= 0) {
+                u.clear(k);
+                d.set(k);
+            }
+            u.or(uses(instruction));
+        }
+        use[b] = u;
+        def[b] = d;
+    }
+
+    private void solve() {
+        int n = cfg.basicBlocks.size();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = n - 1; b >= 0; b--) {
+                BitSet out = new BitSet();
+                for (BasicBlock successor : cfg.basicBlocks.get(b).getSuccessors())
+                    out.or(liveIn[indexOf(successor)]);
+                BitSet in = (BitSet) out.clone();
+                in.andNot(def[b]);
+                in.or(use[b]);
+                if (!in.equals(liveIn[b]) || !out.equals(liveOut[b])) {
+                    liveIn[b] = in;
+                    liveOut[b] = out;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    // what is live after each instruction of block b
+    BitSet[] liveAfter(int b) {
+        List<IRInstruction> instructions = cfg.basicBlocks.get(b).getInstructions();
+        BitSet[] after = new BitSet[instructions.size()];
+        BitSet live = (BitSet) liveOut[b].clone();
+        for (int i = instructions.size() - 1; i >= 0; i--) {
+            after[i] = (BitSet) live.clone();
+            step(instructions.get(i), live);
+        }
+        return after;
+    }
+}
@@ -0,0 +1,331 @@
+package ir;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Peephole optimization of the MIPS that the instruction selectors emit. The
+// lines are parsed into labels, instructions (an opcode and its operands),
+// comments and anything else (directives, data), and each rule looks at a
+// window of instructions and labels, comments left out, and says what to put
+// instead. Passes are made over the code until no rule applies anymore.
+//
+// The rules, by name, for --peephole=name,name,...:
+//   store-load  sw $r, A / lw $q, A: the load becomes move $q, $r, or goes
+//   self-move   move $x, $x goes
+//   jump-next   j L, or a branch to L, right before the label L goes
+//   li-add      li $t, c / add $d, $x, $t (or sub) becomes addi $d, $x, c
+//               when $t is not read again before it is written
+// A register is taken to be dead where the calling convention says nobody
+// reads it: the $t registers at a jal, and the $t and $a registers at a jr $ra.
+public class Peephole {
+    // one line of assembly
+    static final class Line {
+        final String text;
+        final String label;          // for a label line, else null
+        final String op;             // for an instruction, else null
+        final String[] args;
+
+        private Line(String text, String label, String op, String[] args) {
+            this.text = text;
+            this.label = label;
+            this.op = op;
+            this.args = args;
+        }
+
+        static Line instruction(String op, String... args) {
+            return new Line(args.length == 0 ? op : op + " " + String.join(", ", args), null, op, args);
+        }
+
+        static Line parse(String text) {
+            String line = text.trim();
+            if (line.isEmpty() || line.startsWith("#") || line.startsWith("."))
+                return new Line(text, null, null, null);
+            if (line.endsWith(":") && !line.contains(" "))
+                return new Line(text, line.substring(0, line.length() - 1), null, null);
+            if (line.contains(":") || line.contains("#"))
+                return new Line(text, null, null, null);
+            int space = line.indexOf(' ');
+            if (space < 0)
+                return new Line(text, null, line, new String[0]);
+            String[] args = line.substring(space + 1).split(",");
+            for (int i = 0; i < args.length; i++)
+                args[i] = args[i].trim();
+            return new Line(text, null, line.substring(0, space), args);
+        }
+
+        boolean isInstruction() {
+            return op != null;
+        }
+
+        // a comment, a directive or data: not seen by the rules
+        boolean isOther() {
+            return op == null && label == null;
+        }
+    }
+
+    // A rewrite of size instructions or labels in a row.
+    abstract static class Rule {
+        final String name;
+        final int size;
+
+        Rule(String name, int size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        // what to put instead of window, or null; next is the index in code of
+        // what follows the window
+        abstract List<Line> rewrite(List<Line> window, Peephole peephole, int next);
+    }
+
+    static final List<Rule> RULES = Arrays.asList(
+        new Rule("store-load", 2) {
+            List<Line> rewrite(List<Line> w, Peephole p, int next) {
+                Line store = w.get(0);
+                Line load = w.get(1);
+                if (!is(store, "sw", 2) || !is(load, "lw", 2) || !store.args[1].equals(load.args[1]))
+                    return null;
+                if (store.args[0].equals(load.args[0]))
+                    return Collections.singletonList(store);
+                return Arrays.asList(store, Line.instruction("move", load.args[0], store.args[0]));
+            }
+        },
+        new Rule("self-move", 1) {
+            List<Line> rewrite(List<Line> w, Peephole p, int next) {
+                Line move = w.get(0);
+                return is(move, "move", 2) && move.args[0].equals(move.args[1]) ? Collections.emptyList() : null;
+            }
+        },
+        new Rule("jump-next", 1) {
+            List<Line> rewrite(List<Line> w, Peephole p, int next) {
+                Line jump = w.get(0);
+                String target;
+                if (is(jump, "j", 1))
+                    target = jump.args[0];
+                else if (jump.isInstruction() && BRANCHES.contains(jump.op) && jump.args.length == 3)
+                    target = jump.args[2];
+                else
+                    return null;
+                // the labels right after it
+                for (int i = next; i < p.code.size() && !p.code.get(i).isInstruction(); i++) {
+                    if (target.equals(p.code.get(i).label))
+                        return Collections.emptyList();
+                }
+                return null;
+            }
+        },
+        new Rule("li-add", 2) {
+            List<Line> rewrite(List<Line> w, Peephole p, int next) {
+                Line li = w.get(0);
+                Line add = w.get(1);
+                if (!is(li, "li", 2) || !(is(add, "add", 3) || is(add, "sub", 3)))
+                    return null;
+                long c;
+                try {
+                    c = Long.parseLong(li.args[1]);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                String t = li.args[0];
+                String x;
+                if (add.args[2].equals(t) && !add.args[1].equals(t))
+                    x = add.args[1];
+                else if (add.op.equals("add") && add.args[1].equals(t) && !add.args[2].equals(t))
+                    x = add.args[2];
+                else
+                    return null;
+                long value = add.op.equals("add") ? c : -c;
+                if (value < -32768 || value > 32767)
+                    return null;
+                if (!add.args[0].equals(t) && !p.dead(t, next))
+                    return null;
+                return Collections.singletonList(Line.instruction("addi", add.args[0], x, String.valueOf(value)));
+            }
+        }
+    );
+
+    private static final Set<String> BRANCHES = new HashSet<>(Arrays.asList("beq", "bne", "blt", "bgt", "ble", "bge"));
+    private static final Pattern REGISTER = Pattern.compile("\\$\\w+");
+    private static final int DEAD_SEARCH = 256;       // lines dead() looks at, at most
+
+    private final List<Rule> rules;
+    private final Map<String, Integer> hits = new LinkedHashMap<>();
+    private List<Line> code;
+    private Map<String, Integer> labels;
+    private int passes;
+
+    Peephole(List<Rule> rules) {
+        this.rules = rules;
+        for (Rule rule : rules)
+            hits.put(rule.name, 0);
+    }
+
+    // all the rules
+    public Peephole() {
+        this(RULES);
+    }
+
+    // the rules named in a comma-separated list
+    public static Peephole of(String names) {
+        List<Rule> chosen = new ArrayList<>();
+        for (String name : names.split(",")) {
+            Rule found = null;
+            for (Rule rule : RULES) {
+                if (rule.name.equals(name.trim()))
+                    found = rule;
+            }
+            if (found == null)
+                throw new IllegalArgumentException("no peephole rule " + name.trim());
+            chosen.add(found);
+        }
+        return new Peephole(chosen);
+    }
+
+    public List<String> optimize(List<String> mips) {
+        code = new ArrayList<>();
+        for (String line : mips)
+            code.add(Line.parse(line));
+        boolean changed = true;
+        while (changed) {
+            passes++;
+            changed = pass();
+        }
+        List<String> out = new ArrayList<>();
+        for (Line line : code)
+            out.add(line.text);
+        return out;
+    }
+
+    // how often each rule applied
+    public Map<String, Integer> hits() {
+        return Collections.unmodifiableMap(hits);
+    }
+
+    public String summary() {
+        StringBuilder summary = new StringBuilder("peephole: " + passes + " passes");
+        for (Map.Entry<String, Integer> entry : hits.entrySet())
+            summary.append(", ").append(entry.getKey()).append(" ").append(entry.getValue());
+        return summary.toString();
+    }
+
+    // one pass over the code, copying it; whatever a rewrite makes is looked at
+    // again in the next pass
+    private boolean pass() {
+        labels = new HashMap<>();
+        for (int i = 0; i < code.size(); i++) {
+            if (code.get(i).label != null)
+                labels.put(code.get(i).label, i);
+        }
+        List<Line> out = new ArrayList<>();
+        boolean changed = false;
+        int i = 0;
+        while (i < code.size()) {
+            if (code.get(i).isOther()) {
+                out.add(code.get(i++));
+                continue;
+            }
+            boolean applied = false;
+            for (Rule rule : rules) {
+                // the window, and the comments in it
+                List<Line> window = new ArrayList<>();
+                List<Line> skipped = new ArrayList<>();
+                int j = i;
+                while (j < code.size() && window.size() < rule.size) {
+                    if (code.get(j).isOther())
+                        skipped.add(code.get(j));
+                    else
+                        window.add(code.get(j));
+                    j++;
+                }
+                if (window.size() < rule.size)
+                    continue;
+                List<Line> replacement = rule.rewrite(window, this, j);
+                if (replacement == null)
+                    continue;
+                out.addAll(replacement);
+                out.addAll(skipped);
+                hits.merge(rule.name, 1, Integer::sum);
+                i = j;
+                applied = changed = true;
+                break;
+            }
+            if (!applied)
+                out.add(code.get(i++));
+        }
+        code = out;
+        return changed;
+    }
+
+    // whether no path from line from on reads register before writing it,
+    // following jumps and branches for a few lines; unsure means no
+    boolean dead(String register, int from) {
+        Deque<Integer> work = new ArrayDeque<>();
+        Set<Integer> seen = new HashSet<>();
+        work.push(from);
+        int budget = DEAD_SEARCH;
+        while (!work.isEmpty()) {
+            int i = work.pop();
+            while (true) {
+                if (i >= code.size() || budget-- == 0)
+                    return false;
+                if (!seen.add(i))
+                    break;
+                Line line = code.get(i);
+                if (!line.isInstruction()) {
+                    i++;
+                    continue;
+                }
+                String op = line.op;
+                if (op.equals("jal")) {
+                    if (register.startsWith("$t"))
+                        break;
+                    return false;
+                }
+                if (op.equals("jr")) {
+                    if (line.args.length == 1 && line.args[0].equals("$ra")
+                            && (register.startsWith("$t") || register.startsWith("$a")))
+                        break;
+                    return false;
+                }
+                if (op.equals("syscall")) {
+                    if (register.equals("$v0") || register.equals("$a0"))
+                        return false;
+                    i++;
+                    continue;
+                }
+                if (op.equals("j")) {
+                    Integer target = line.args.length == 1 ? labels.get(line.args[0]) : null;
+                    if (target == null)
+                        return false;
+                    i = target;
+                    continue;
+                }
+                // div and mult of two registers only set hi and lo
+                boolean writes = !op.equals("sw") && !BRANCHES.contains(op)
+                        && !((op.equals("div") || op.equals("mult")) && line.args.length == 2);
+                for (int a = writes ? 1 : 0; a < line.args.length; a++) {
+                    Matcher m = REGISTER.matcher(line.args[a]);
+                    while (m.find()) {
+                        if (m.group().equals(register))
+                            return false;
+                    }
+                }
+                if (BRANCHES.contains(op)) {
+                    Integer target = line.args.length == 3 ? labels.get(line.args[2]) : null;
+                    if (target == null)
+                        return false;
+                    work.push(target);
+                } else if (writes && line.args.length > 0 && line.args[0].equals(register)) {
+                    break;
+                }
+                i++;
+            }
+        }
+        return true;
+    }
+
+    private static boolean is(Line line, String op, int args) {
+        return line.isInstruction() && line.op.equals(op) && line.args.length == args;
+    }
+}
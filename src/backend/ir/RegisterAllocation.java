@@ -0,0 +1,29 @@
+package ir;
+
+import java.util.BitSet;
+import java.util.List;
+
+// Where a register allocator keeps the variables of a function (numbered by
+// Liveness): at each position a variable is in one of the registers 0..k-1 or
+// in its stack slot. Instruction i of the function reads its operands at
+// position 2i and writes its result at 2i + 1.
+interface RegisterAllocation {
+    // the register of variable v at position, or -1 if it is in its stack slot
+    int register(int v, int position);
+
+    // the stack slot of variable v, counting from 0, if it is ever in one
+    int slot(int v);
+
+    // how many stack slots there are
+    int slots();
+
+    // the registers some variable is in somewhere
+    BitSet registers();
+
+    // the live variables that move to another register or to or from their slot
+    // at the even position, before the instruction there
+    List<Integer> movesAt(int position);
+
+    // one line on what the allocator did
+    String summary();
+}
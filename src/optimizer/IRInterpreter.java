@@ -3,20 +3,192 @@ import ir.datatype.IRArrayType;
 import ir.datatype.IRIntType;
 import ir.datatype.IRType;
 import ir.operand.*;
-
+import interpreter.BatchRunner;
+import interpreter.ByteInput;
+import interpreter.ByteOutput;
+import interpreter.FastInterpreter;
+import interpreter.Jit;
+import interpreter.LimitExceededException;
+import interpreter.Limits;
+import interpreter.LinkedProgram;
+
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
 import java.util.*;
 
 public class IRInterpreter {
 
+    // usage: IRInterpreter [--engine=fast|tree|jit] [--jit-threshold=N] [limits] [--profile=file]
+    //                      [--superinstructions=off] [--superinstruction-stats] <file.ir>
+    //        IRInterpreter --batch [--engine=fast|jit] [--threads=N] [limits] [--superinstructions=off]
+    //                      [--csv=file] <file.ir> <input.in|dir>...
+    // limits: [--max-depth=N] [--max-instructions=N] [--max-time=ms] [--max-array-bytes=N[k|m|g]]
+    //
+    // Exits with 1 after a runtime error and 2 when a limit stopped the program;
+    // the instruction count is then that of the part that ran.
     public static void main(String[] args) throws Exception {
-        IRInterpreter irInterpreter = new IRInterpreter(args[0]);
+        String filename = null;
+        Engine engine = Engine.FAST;
+        int jitThreshold = Jit.DEFAULT_THRESHOLD;
+        Limits limits = new Limits();
+        String profileFile = null;
+        boolean superinstructions = true;
+        boolean superinstructionStats = false;
+        boolean batch = false;
+        int threads = 1;
+        String csvFile = null;
+        List<String> inputs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--engine=fast"))
+                engine = Engine.FAST;
+            else if (arg.equals("--engine=tree"))
+                engine = Engine.TREE;
+            else if (arg.equals("--engine=jit"))
+                engine = Engine.JIT;
+            else if (arg.matches("--jit-threshold=\\d+"))
+                jitThreshold = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+            else if (arg.matches("--max-depth=[1-9]\\d{0,8}"))
+                limits.maxDepth = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+            else if (arg.matches("--max-instructions=\\d{1,18}"))
+                limits.maxInstructions = Long.parseLong(arg.substring(arg.indexOf('=') + 1));
+            else if (arg.matches("--max-time=\\d{1,12}"))
+                limits.maxMillis = Long.parseLong(arg.substring(arg.indexOf('=') + 1));
+            else if (arg.matches("--max-array-bytes=\\d{1,12}[kmg]?"))
+                limits.maxArrayBytes = parseBytes(arg.substring(arg.indexOf('=') + 1));
+            else if (arg.startsWith("--profile="))
+                profileFile = arg.substring("--profile=".length());
+            else if (arg.equals("--superinstructions=on") || arg.equals("--superinstructions=off"))
+                superinstructions = arg.endsWith("on");
+            else if (arg.equals("--superinstruction-stats"))
+                superinstructionStats = true;
+            else if (arg.equals("--batch"))
+                batch = true;
+            else if (arg.matches("--threads=\\d+"))
+                threads = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+            else if (arg.startsWith("--csv="))
+                csvFile = arg.substring("--csv=".length());
+            else if (batch && filename != null && !arg.startsWith("-"))
+                inputs.add(arg);
+            else if (arg.startsWith("-") || filename != null) {
+                System.err.println("Unknown option: " + arg);
+                filename = null;
+                break;
+            } else
+                filename = arg;
+        }
+        if ((profileFile != null || batch || superinstructionStats) && engine == Engine.TREE) {
+            System.err.println((batch ? "--batch" : profileFile != null ? "--profile" : "--superinstruction-stats")
+                    + " needs --engine=fast or --engine=jit");
+            filename = null;
+        }
+        if (filename == null || (batch && inputs.isEmpty())) {
+            System.err.println("Usage: IRInterpreter [--engine=fast|tree|jit] [--jit-threshold=N] [limits] [--profile=file]");
+            System.err.println("                     [--superinstructions=off] [--superinstruction-stats] <file.ir>");
+            System.err.println("       IRInterpreter --batch [--engine=fast|jit] [--threads=N] [limits] [--superinstructions=off]");
+            System.err.println("                     [--csv=file] <file.ir> <input.in|dir>...");
+            System.err.println("limits: [--max-depth=N] [--max-instructions=N] [--max-time=ms] [--max-array-bytes=N[k|m|g]]");
+            System.exit(1);
+        }
 
-        irInterpreter.run();
+        if (batch) {
+            System.exit(runBatch(filename, inputs, engine == Engine.JIT ? jitThreshold : -1, threads, limits,
+                    superinstructions, csvFile));
+        }
+
+        IRInterpreter irInterpreter = new IRInterpreter(filename);
+        irInterpreter.setEngine(engine);
+        irInterpreter.setJitThreshold(jitThreshold);
+        irInterpreter.setLimits(limits);
+        irInterpreter.setSuperinstructions(superinstructions);
+        irInterpreter.setProfiling(profileFile != null);
+
+        try {
+            irInterpreter.run();
+        } catch (LimitExceededException e) {
+            // reported like an error; the counts are those up to the limit
+            System.err.println("Number of non-label instructions executed: "
+                    + irInterpreter.getStats().getNonLabelInstructionCount());
+            System.exit(2);
+        } catch (IRException e) {
+            // already reported with the IR stack trace
+            System.exit(1);
+        }
+
+        if (profileFile != null) {
+            try (PrintStream ps = new PrintStream(profileFile)) {
+                irInterpreter.getProfile().write(ps);
+            }
+        }
 
         Stats stats = irInterpreter.getStats();
         System.err.println("Number of non-label instructions executed: " + stats.getNonLabelInstructionCount());
+        if (superinstructionStats) {
+            for (Map.Entry<String, long[]> entry : irInterpreter.getSuperinstructionCounts().entrySet())
+                System.err.println("Superinstruction " + entry.getKey() + ": " + entry.getValue()[0] + " in the code, "
+                        + entry.getValue()[1] + " executed");
+        }
+    }
+
+    // Runs the program on every input (the .in files of a directory, in name
+    // order) and prints a CSV row for each, see BatchRunner.writeCsv; the program
+    // is parsed and lowered once. A jitThreshold below 0 leaves out the Jit.
+    // Returns the exit status: 1 if any input failed with an error, else 2 if
+    // any was stopped by a limit, else 0.
+    private static int runBatch(String filename, List<String> inputs, int jitThreshold, int threads,
+                                Limits limits, boolean superinstructions, String csvFile) throws Exception {
+        List<String> files = new ArrayList<>();
+        for (String input : inputs) {
+            File[] entries = new File(input).listFiles((dir, name) -> name.endsWith(".in"));
+            if (entries == null) {
+                files.add(input);
+                continue;
+            }
+            Arrays.sort(entries);
+            for (File entry : entries)
+                files.add(entry.getPath());
+        }
+
+        LinkedProgram program = new LinkedProgram(new IRReader().parseIRFile(filename), superinstructions);
+        BatchRunner runner = new BatchRunner(program);
+        if (jitThreshold >= 0) {
+            Jit jit = new Jit(program, jitThreshold);
+            jit.setLoopLimits(limits.maxInstructions > 0 || limits.maxMillis > 0);
+            runner.setJit(jit);
+        }
+        runner.setThreads(threads);
+        runner.setLimits(limits);
+        List<BatchRunner.Result> results = runner.run(files);
+
+        PrintStream ps = csvFile == null ? System.out : new PrintStream(csvFile);
+        BatchRunner.writeCsv(results, ps);
+        ps.flush();
+        if (csvFile != null)
+            ps.close();
+        int status = 0;
+        for (BatchRunner.Result result : results) {
+            if (!result.ok && !result.limited)
+                return 1;
+            if (result.limited)
+                status = 2;
+        }
+        return status;
+    }
+
+    // a byte count with an optional k, m or g suffix (powers of 1024)
+    private static long parseBytes(String s) {
+        int shift = s.endsWith("k") ? 10 : s.endsWith("m") ? 20 : s.endsWith("g") ? 30 : 0;
+        if (shift > 0)
+            s = s.substring(0, s.length() - 1);
+        return Long.parseLong(s) << shift;
+    }
+
+    // TREE walks the IR instructions, FAST runs them lowered to slot-based code
+    // (interpreter.FastInterpreter), and JIT also compiles the functions that get
+    // hot to JVM bytecode (interpreter.Jit); all give the same output and Stats
+    public enum Engine {
+        TREE, FAST, JIT
     }
 
     private class StackFrame {
@@ -89,15 +261,31 @@ public class IRInterpreter {
     private IRProgram program;
     private Map<String, IRFunction> functionMap;
     private Map<IRFunction, Map<String, Integer>> functionLabelMap;
+    private Map<IRFunction, List<IRVariableOperand>> functionLocalMap;   // variables that are not parameters
+    private Map<IRInstruction, List<IRInstruction>> tailCallMap;         // self tail call -> what it skips
+    private Map<IRFunction, Long> arrayBytesMap;                        // bytes of the local arrays
 
     // Execution state
-    private Stack<StackFrame> stack;
+    private ArrayDeque<StackFrame> stack;
+    private Map<IRFunction, ArrayDeque<StackFrame>> framePool;          // frames that returned
     private ProgramCounter pc;
     private Map<String, Integer> currentLabelMap;
 
-    private Scanner stdinScanner;
+    private ByteInput stdin;
+    private ByteOutput stdout;
 
     private Stats stats;
+    private int ticks;                 // instructions left before checkLimits
+    private long deadline;             // System.nanoTime() at which the time limit runs out
+    private long arrayBytes;           // bytes of the local arrays of the frames on the stack
+
+    private Engine engine = Engine.TREE;
+    private int jitThreshold = Jit.DEFAULT_THRESHOLD;
+    private Limits limits = new Limits();
+    private boolean superinstructions = true;
+    private boolean profiling;
+    private IRProfile profile;
+    private Map<String, long[]> superinstructionCounts;
 
     public IRInterpreter(String filename) throws FileNotFoundException, IRException {
         IRReader irReader = new IRReader();
@@ -108,6 +296,10 @@ public class IRInterpreter {
     private void initProgram() {
         functionMap = new HashMap<>();
         functionLabelMap = new HashMap<>();
+        functionLocalMap = new HashMap<>();
+        framePool = new HashMap<>();
+        tailCallMap = new HashMap<>();
+        arrayBytesMap = new HashMap<>();
         for (IRFunction function : program.functions) {
             functionMap.put(function.name, function);
 
@@ -122,10 +314,93 @@ public class IRInterpreter {
                     labelMap.put(((IRLabelOperand) instruction.operands[0]).getName(), i);
             }
             functionLabelMap.put(function, labelMap);
+
+            List<IRVariableOperand> locals = new ArrayList<>(function.variables);
+            locals.removeAll(function.parameters);
+            functionLocalMap.put(function, locals);
+            framePool.put(function, new ArrayDeque<>());
+            findTailCalls(function, locals);
+            long bytes = 0;
+            for (IRVariableOperand variable : locals) {
+                if (variable.type instanceof IRArrayType)
+                    bytes += 4L * ((IRArrayType) variable.type).getSize();
+            }
+            arrayBytesMap.put(function, bytes);
+        }
+    }
+
+    // A call of a function to itself is a tail call if the function returns
+    // right after it: a call followed only by labels up to the end of a void
+    // function, or a callr followed by labels and a return of its result. It
+    // then runs in the frame of the caller, unless it passes a local array of
+    // the caller, which the frame would clear. The instructions it skips (the
+    // labels and the return) are still counted, so Stats do not change.
+    private void findTailCalls(IRFunction function, List<IRVariableOperand> locals) {
+        List<IRInstruction> instructions = function.instructions;
+        for (int i = 0; i < instructions.size(); i++) {
+            IRInstruction instruction = instructions.get(i);
+            boolean isCallr = instruction.opCode == IRInstruction.OpCode.CALLR;
+            if (instruction.opCode != IRInstruction.OpCode.CALL && !isCallr)
+                continue;
+            int first = isCallr ? 2 : 1;
+            if (!((IRFunctionOperand) instruction.operands[first - 1]).getName().equals(function.name))
+                continue;
+            boolean passesLocalArray = false;
+            for (int k = first; k < instruction.operands.length; k++) {
+                IROperand arg = instruction.operands[k];
+                if (arg instanceof IRVariableOperand && ((IRVariableOperand) arg).type instanceof IRArrayType
+                        && locals.contains(arg))
+                    passesLocalArray = true;
+            }
+            if (passesLocalArray)
+                continue;
+
+            int j = i + 1;
+            while (j < instructions.size() && instructions.get(j).opCode == IRInstruction.OpCode.LABEL)
+                j++;
+            if (!isCallr && j == instructions.size()) {
+                tailCallMap.put(instruction, new ArrayList<>(instructions.subList(i + 1, j)));
+            } else if (isCallr && j < instructions.size()
+                    && instructions.get(j).opCode == IRInstruction.OpCode.RETURN
+                    && instructions.get(j).operands[0] instanceof IRVariableOperand
+                    && ((IRVariableOperand) instructions.get(j).operands[0]).getName().equals(
+                            ((IRVariableOperand) instruction.operands[0]).getName())) {
+                tailCallMap.put(instruction, new ArrayList<>(instructions.subList(i + 1, j + 1)));
+            }
         }
     }
 
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    // the limits a run stops at with a LimitExceededException; the TREE engine
+    // checks the instruction and time limits every CHECK_INTERVAL instructions
+    public void setLimits(Limits limits) {
+        this.limits = limits;
+    }
+
+    // let the FAST and JIT engines run pairs of instructions as one (on by default)
+    public void setSuperinstructions(boolean superinstructions) {
+        this.superinstructions = superinstructions;
+    }
+
+    // calls plus loop iterations after which a function is compiled
+    public void setJitThreshold(int jitThreshold) {
+        this.jitThreshold = jitThreshold;
+    }
+
+    // collect an IRProfile of the run (not with the TREE engine)
+    public void setProfiling(boolean profiling) {
+        this.profiling = profiling;
+    }
+
     public void run() throws IRException {
+        if (engine != Engine.TREE) {
+            runFast();
+            return;
+        }
+
         // Add an entry call to main
         IRFunctionOperand mainFunctionOperand = new IRFunctionOperand("main", null);
         IRInstruction entryCall = new IRInstruction(IRInstruction.OpCode.CALL, new IROperand[]{mainFunctionOperand}, -1);
@@ -134,7 +409,7 @@ public class IRInterpreter {
         pc = new ProgramCounter();
         pc.set(entryInstList, 0);
 
-        stack = new Stack<>();
+        stack = new ArrayDeque<>();
         StackFrame entrySF = new StackFrame();
         stack.push(entrySF);
 
@@ -143,15 +418,31 @@ public class IRInterpreter {
         stats.totalInstructionCount = -1;
         stats.instructionCounts.put(IRInstruction.OpCode.CALL, -1);
 
-        stdinScanner = new Scanner(System.in);
+        stdout = new ByteOutput(System.out, Charset.defaultCharset());
+        stdin = new ByteInput(System.in, stdout);
+        ticks = CHECK_INTERVAL;
+        deadline = System.nanoTime() + limits.maxMillis * 1000000;
+        arrayBytes = 0;
+
+        try {
+            execute(entrySF);
+        } finally {
+            stdout.flush();
+        }
+    }
 
+    private void execute(StackFrame entrySF) throws IRException {
         while (true) {
             IRInstruction instruction = pc.next();
+            if (--ticks < 0)
+                checkLimits(instruction);
             executeInstruction(instruction);
 
             if (!pc.hasNext()) {
                 // Return from a procedure
                 StackFrame sf = stack.pop();
+                arrayBytes -= arrayBytesMap.get(sf.function);
+                releaseFrame(sf);
                 if (stack.peek() == entrySF) // Exit main
                     break;
                 IRFunction caller = sf.caller;
@@ -165,14 +456,54 @@ public class IRInterpreter {
                 currentLabelMap = functionLabelMap.get(caller);
             }
         }
+    }
 
-        stdinScanner.close();
+    private void runFast() throws IRException {
+        LinkedProgram linkedProgram = new LinkedProgram(program, superinstructions);
+        FastInterpreter fastInterpreter = new FastInterpreter(linkedProgram);
+        if (engine == Engine.JIT) {
+            Jit jit = new Jit(linkedProgram, jitThreshold);
+            jit.setLoopLimits(limits.maxInstructions > 0 || limits.maxMillis > 0);
+            fastInterpreter.setJit(jit);
+        }
+        fastInterpreter.setProfiling(profiling);
+        fastInterpreter.setLimits(limits);
+        try {
+            fastInterpreter.run(System.in, System.out);
+        } finally {
+            // the counts so far if the run stopped
+            if (profiling)
+                profile = fastInterpreter.getProfile();
+            superinstructionCounts = fastInterpreter.getSuperinstructionCounts();
+
+            stats = new Stats();
+            for (IRInstruction.OpCode opCode : IRInstruction.OpCode.values())
+                stats.instructionCounts.put(opCode, (int) fastInterpreter.getCount(opCode));
+            stats.totalInstructionCount = (int) fastInterpreter.getTotalCount();
+        }
     }
 
     public Stats getStats() {
         return stats;
     }
 
+    // superinstruction -> {places in the code, times executed} in the last run,
+    // null with the TREE engine
+    public Map<String, long[]> getSuperinstructionCounts() {
+        return superinstructionCounts;
+    }
+
+    // the profile of the last run, if profiling was on
+    public IRProfile getProfile() {
+        return profile;
+    }
+
+    // instructions between checks of the instruction and time limits
+    private static final int CHECK_INTERVAL = 1 << 12;
+
+    private static final Integer INT_ZERO = 0;
+    private static final Float FLOAT_ZERO = 0.0f;
+
     private Object getConstVal(IRConstantOperand constOperand) {
         if (constOperand.type == IRIntType.get())
             return Integer.parseInt(constOperand.getValueString());
@@ -259,13 +590,15 @@ public class IRInterpreter {
         switch (instruction.opCode) {
             case ASSIGN: {
                 if (instruction.operands.length > 2) { // Array assignment
-                    Object[] arr = (Object[]) getValFromVarOrConst(instruction.operands[0], sf);
+                    Object arr = getValFromVarOrConst(instruction.operands[0], sf);
                     int assignSize = (Integer) getValFromVarOrConst(instruction.operands[1], sf);
                     Object src = getValFromVarOrConst(instruction.operands[2], sf);
-                    if (assignSize < 0 || assignSize > arr.length)
+                    if (assignSize < 0 || assignSize > arrayLength(arr))
                         throwRuntimeException(instruction, "Out-of-bounds array access");
-                    for (int i = 0; i < assignSize; i++)
-                        arr[i] = src;
+                    if (arr instanceof int[])
+                        Arrays.fill((int[]) arr, 0, assignSize, (Integer) src);
+                    else
+                        Arrays.fill((float[]) arr, 0, assignSize, (Float) src);
                 } else {
                     IRVariableOperand dest = (IRVariableOperand) instruction.operands[0];
                     Object src = getValFromVarOrConst(instruction.operands[1], sf);
@@ -315,6 +648,7 @@ public class IRInterpreter {
                 StackFrame callerSF = stack.peek();
                 IRVariableOperand retVar = (IRVariableOperand) callInst.operands[0];
                 callerSF.setVal(retVar, retVal);
+                releaseFrame(sf);
                 pc.set((ArrayList<IRInstruction>) caller.instructions, sf.returnInstIdx);
                 currentLabelMap = functionLabelMap.get(caller);
                 break;
@@ -343,20 +677,26 @@ public class IRInterpreter {
             }
             case ARRAY_STORE: {
                 Object val = getValFromVarOrConst(instruction.operands[0], sf);
-                Object[] arr = (Object[]) getValFromVarOrConst(instruction.operands[1], sf);
+                Object arr = getValFromVarOrConst(instruction.operands[1], sf);
                 int offset = (Integer) getValFromVarOrConst(instruction.operands[2], sf);
-                if (offset < 0 || offset >= arr.length)
+                if (offset < 0 || offset >= arrayLength(arr))
                     throwRuntimeException(instruction, "Out-of-bounds array access");
-                arr[offset] = val;
+                if (arr instanceof int[])
+                    ((int[]) arr)[offset] = (Integer) val;
+                else
+                    ((float[]) arr)[offset] = (Float) val;
                 break;
             }
             case ARRAY_LOAD: {
                 IRVariableOperand dest = (IRVariableOperand) instruction.operands[0];
-                Object[] arr = (Object[]) getValFromVarOrConst(instruction.operands[1], sf);
+                Object arr = getValFromVarOrConst(instruction.operands[1], sf);
                 int offset = (Integer) getValFromVarOrConst(instruction.operands[2], sf);
-                if (offset < 0 || offset >= arr.length)
+                if (offset < 0 || offset >= arrayLength(arr))
                     throwRuntimeException(instruction, "Out-of-bounds array access");
-                sf.setVal(dest, arr[offset]);
+                if (arr instanceof int[])
+                    sf.setVal(dest, ((int[]) arr)[offset]);
+                else
+                    sf.setVal(dest, ((float[]) arr)[offset]);
                 break;
             }
             case LABEL:
@@ -366,38 +706,67 @@ public class IRInterpreter {
         }
     }
 
-    private void executeCall(IRInstruction callInst, IRFunction function, ArrayList<Object> arguments) {
+    private void executeCall(IRInstruction callInst, IRFunction function, ArrayList<Object> arguments)
+            throws IRException {
         StackFrame sf = stack.peek();
-        StackFrame calleeSF = new StackFrame();
+        List<IRInstruction> skipped = tailCallMap.get(callInst);
+        if (skipped != null) {
+            for (IRInstruction instruction : skipped)
+                stats.update(instruction);
+            initFrame(sf, arguments);
+            pc.setNextIdx(0);
+            return;
+        }
+        if (stack.size() > limits.maxDepth) // the entry frame is not a call
+            throwLimitExceeded(callInst, "Stack overflow");
+        long bytes = arrayBytesMap.get(function);
+        if (limits.maxArrayBytes > 0 && arrayBytes + bytes > limits.maxArrayBytes)
+            throwLimitExceeded(callInst, "Array memory limit exceeded");
+
+        StackFrame calleeSF = newFrame(function);
+        arrayBytes += bytes;
+        initFrame(calleeSF, arguments);
         calleeSF.caller = sf.function;
         calleeSF.callInst = callInst;
         calleeSF.returnInstIdx = pc.getNextIdx();
-        calleeSF.function = function;
-        calleeSF.varMap = buildVarMap(function, arguments);
         stack.push(calleeSF);
         pc.set((ArrayList<IRInstruction>) function.instructions, 0);
         currentLabelMap = functionLabelMap.get(function);
     }
 
-    private Map<String, Object> buildVarMap(IRFunction function, ArrayList<Object> arguments) {
-        Map<String, Object> varMap = new HashMap<>();
+    // A frame for a call to function. Frames that returned are reused: a
+    // function has the same variables every time, so only their values are
+    // reset by initFrame. Arrays are passed by reference, and a local array
+    // cannot outlive the call it belongs to.
+    private StackFrame newFrame(IRFunction function) {
+        StackFrame sf = framePool.get(function).pollLast();
+        if (sf == null) {
+            sf = new StackFrame();
+            sf.function = function;
+            sf.varMap = new HashMap<>();
+        }
+        return sf;
+    }
 
-        for (IRVariableOperand variable: function.variables) {
+    // sets the parameters of the frame to the arguments and every other variable to 0
+    private void initFrame(StackFrame sf, ArrayList<Object> arguments) {
+        IRFunction function = sf.function;
+        for (IRVariableOperand variable : functionLocalMap.get(function)) {
             if (variable.type instanceof IRArrayType) {
                 IRArrayType arrayType = (IRArrayType) variable.type;
-                Object[] arr = new Object[arrayType.getSize()];
-                varMap.put(variable.getName(), arr);
-                if (arrayType.getElementType() == IRIntType.get())
-                    for (int i = 0; i < arr.length; i++)
-                        arr[i] = new Integer(0);
+                boolean isInt = arrayType.getElementType() == IRIntType.get();
+                Object arr = sf.varMap.get(variable.getName());
+                if (arr == null)
+                    sf.varMap.put(variable.getName(),
+                            isInt ? new int[arrayType.getSize()] : new float[arrayType.getSize()]);
+                else if (isInt)
+                    Arrays.fill((int[]) arr, 0);
                 else
-                    for (int i = 0; i < arr.length; i++)
-                        arr[i] = new Float(0);
+                    Arrays.fill((float[]) arr, 0);
+            } else if (variable.type == IRIntType.get()) {
+                sf.varMap.put(variable.getName(), INT_ZERO);
             } else {
-                if (variable.type == IRIntType.get())
-                    varMap.put(variable.getName(), new Integer(0));
-                else
-                    varMap.put(variable.getName(), new Float(0));
+                sf.varMap.put(variable.getName(), FLOAT_ZERO);
             }
         }
 
@@ -406,10 +775,16 @@ public class IRInterpreter {
         while (pit.hasNext()) {
             IRVariableOperand param = pit.next();
             Object arg = ait.next();
-            varMap.put(param.getName(), arg);
+            sf.varMap.put(param.getName(), arg);
         }
+    }
 
-        return varMap;
+    private void releaseFrame(StackFrame sf) {
+        framePool.get(sf.function).addLast(sf);
+    }
+
+    private static int arrayLength(Object arr) {
+        return arr instanceof int[] ? ((int[]) arr).length : ((float[]) arr).length;
     }
 
     private void handleIntrinsicFunction(IRInstruction callInst, String functionName, ArrayList<Object> arguments)
@@ -418,11 +793,11 @@ public class IRInterpreter {
             case "geti": {
                 int i;
                 try {
-                    i = stdinScanner.nextInt();
+                    i = stdin.nextInt();
                 } catch (InputMismatchException e) {
                     i = 0;
                 }
-                stdinScanner.nextLine();
+                stdin.skipLine();
                 IRVariableOperand retVar = (IRVariableOperand) callInst.operands[0];
                 stack.peek().setVal(retVar, i);
                 break;
@@ -430,37 +805,32 @@ public class IRInterpreter {
             case "getf": {
                 float f;
                 try {
-                    f = stdinScanner.nextFloat();
+                    f = stdin.nextFloat();
                 } catch (InputMismatchException e) {
                     f = 0;
                 }
-                stdinScanner.nextLine();
+                stdin.skipLine();
                 IRVariableOperand retVar = (IRVariableOperand) callInst.operands[0];
                 stack.peek().setVal(retVar, f);
                 break;
             }
             case "getc": {
-                int c;
-                try {
-                    c = (int) System.in.read();
-                } catch (IOException e) {
-                    c = 0;
-                }
+                int c = stdin.read();
                 IRVariableOperand retVar = (IRVariableOperand) callInst.operands[0];
                 stack.peek().setVal(retVar, c);
                 break;
             }
             case "puti": {
-                System.out.print((Integer) arguments.get(0));
+                stdout.printInt((Integer) arguments.get(0));
                 break;
             }
             case "putf": {
-                System.out.print((Float) arguments.get(0));
+                stdout.printFloat((Float) arguments.get(0));
                 break;
             }
             case "putc": {
                 int c = (Integer) arguments.get(0);
-                System.out.print((char) c);
+                stdout.printChar(c);
                 break;
             }
             default:
@@ -468,17 +838,41 @@ public class IRInterpreter {
         }
     }
 
+    // before instruction, when ticks runs out: stops the run if it has gone past
+    // the instruction or time limit
+    private void checkLimits(IRInstruction instruction) throws IRException {
+        ticks = CHECK_INTERVAL;
+        if (limits.maxInstructions > 0 && stats.getNonLabelInstructionCount() > limits.maxInstructions)
+            throwLimitExceeded(instruction, "Instruction limit exceeded");
+        if (limits.maxMillis > 0 && System.nanoTime() - deadline > 0)
+            throwLimitExceeded(instruction, "Time limit exceeded");
+    }
+
     private void throwRuntimeException(IRInstruction instruction, String message) throws IRException {
+        reportRuntimeException(instruction, message);
+        throw new IRException();
+    }
+
+    private void throwLimitExceeded(IRInstruction instruction, String message) throws IRException {
+        reportRuntimeException(instruction, message);
+        throw new LimitExceededException(message);
+    }
+
+    private void reportRuntimeException(IRInstruction instruction, String message) {
+        stdout.flush();
         System.err.println("IR interpreter runtime exception: " + message);
         System.err.println("Stack trace:");
-        ListIterator<StackFrame> sit = stack.listIterator(stack.size());
         System.err.println("\t" + stack.peek().function.name + ":" + instruction.irLineNumber);
-        while (sit.hasPrevious()) {
-            StackFrame sf = sit.previous();
+        int printed = 1;
+        for (StackFrame sf : stack) {
             if (sf.caller == null)
                 break;
+            if (printed == FastInterpreter.MAX_TRACE) {
+                System.err.println("\t... " + (stack.size() - 1 - printed) + " more");
+                break;
+            }
             System.err.println("\t" + sf.caller.name + ":" + sf.caller.instructions.get(sf.returnInstIdx - 1).irLineNumber);
+            printed++;
         }
-        throw new IRException();
     }
 }
@@ -0,0 +1,147 @@
+package interpreter;
+
+import ir.IRException;
+import ir.IRInstruction.OpCode;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Runs one LinkedProgram on many input files in one JVM: the program is parsed
+// and lowered once, and every input gets an interpreter of its own reading the
+// file and printing to a buffer, so inputs can run on several threads at once.
+// With a Jit, code compiled while running one input is used by the others.
+public final class BatchRunner {
+    // what one input did
+    public static final class Result {
+        public final String input;
+        public final boolean ok;
+        public final boolean limited;     // stopped by one of the Limits
+        public final long instructions;   // non-label, as IRInterpreter prints them
+        public final double millis;
+        public final String output;
+        public final String errors;       // what the run printed on stderr
+
+        Result(String input, boolean ok, boolean limited, long instructions, double millis, String output,
+               String errors) {
+            this.input = input;
+            this.ok = ok;
+            this.limited = limited;
+            this.instructions = instructions;
+            this.millis = millis;
+            this.output = output;
+            this.errors = errors;
+        }
+    }
+
+    private final LinkedProgram program;
+    private Jit jit;
+    private int threads = 1;
+    private Limits limits = new Limits();
+
+    public BatchRunner(LinkedProgram program) {
+        this.program = program;
+    }
+
+    public void setJit(Jit jit) {
+        this.jit = jit;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    // limits of the run of each input
+    public void setLimits(Limits limits) {
+        this.limits = limits;
+    }
+
+    // results in the order of the inputs
+    public List<Result> run(List<String> inputs) throws InterruptedException {
+        List<Result> results = new ArrayList<>();
+        if (threads == 1 || inputs.size() <= 1) {
+            for (String input : inputs)
+                results.add(runOne(input));
+            return results;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, inputs.size()));
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (String input : inputs)
+                futures.add(pool.submit(() -> runOne(input)));
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    // runOne catches what a program can throw
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return results;
+    }
+
+    private Result runOne(String input) {
+        ByteArrayOutputStream outBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream errBytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(outBytes, false);
+        PrintStream err = new PrintStream(errBytes, false);
+        FastInterpreter interpreter = new FastInterpreter(program);
+        interpreter.setJit(jit);
+        interpreter.setLimits(limits);
+        boolean ok = false;
+        boolean limited = false;
+        long instructions = 0;
+        long begin = System.nanoTime();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(input))) {
+            interpreter.run(in, out, err);
+            ok = true;
+        } catch (LimitExceededException e) {
+            limited = true;
+        } catch (IRException e) {
+            // the interpreter has reported it on err
+        } catch (IOException e) {
+            err.println("Cannot read " + input + ": " + e.getMessage());
+        }
+        double millis = (System.nanoTime() - begin) / 1e6;
+        if (interpreter.edgeCounts != null)
+            instructions = interpreter.getTotalCount() - interpreter.getCount(OpCode.LABEL);
+        out.flush();
+        err.flush();
+        return new Result(input, ok, limited, instructions, millis, outBytes.toString(), errBytes.toString());
+    }
+
+    // One row per input: input,status,instructions,time_ms,output,errors, where
+    // status is ok, error or limit (stopped by the Limits). Status, instructions
+    // and time never need quotes; input, output and errors are quoted, with
+    // quotes doubled, and newlines and backslashes escaped as \n and \\ so that
+    // every row is one line.
+    public static void writeCsv(List<Result> results, PrintStream ps) {
+        ps.println("input,status,instructions,time_ms,output,errors");
+        for (Result result : results) {
+            ps.println(quote(result.input) + "," + (result.ok ? "ok" : result.limited ? "limit" : "error") + ","
+                    + result.instructions + "," + String.format(Locale.ROOT, "%.3f", result.millis) + ","
+                    + quote(result.output) + "," + quote(result.errors));
+        }
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"')
+                sb.append("\"\"");
+            else if (c == '\\')
+                sb.append("\\\\");
+            else if (c == '\n')
+                sb.append("\\n");
+            else if (c == '\r')
+                sb.append("\\r");
+            else
+                sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,232 @@
+package interpreter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+
+// Buffered reader of program input for the geti/getf/getc intrinsics. Numbers
+// are parsed straight from the bytes the way Scanner.nextInt/nextFloat read
+// them: whitespace, lines included, is skipped, and a token that is not a
+// number is a mismatch. Unlike Scanner it does not read ahead of what the
+// program asked for by more than the buffer, so getc sees the byte right after
+// the line of the last geti.
+//
+// Pending output is flushed before the buffer is refilled, so a prompt shows up
+// before the interpreter waits for input.
+public final class ByteInput {
+    private static final float[] POWERS_OF_TEN = {
+            1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+    };
+
+    private final InputStream in;
+    private final ByteOutput out;
+    private final byte[] buffer = new byte[1 << 16];
+    private int position;
+    private int limit;
+    private boolean eof;
+
+    // out, if not null, is flushed before reading from in
+    public ByteInput(InputStream in, ByteOutput out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    // the next byte, or -1 at the end of the input
+    public int read() {
+        if (position == limit && !fill())
+            return -1;
+        return buffer[position++] & 0xff;
+    }
+
+    // Reads an int token; a token that is not an int in range throws
+    // InputMismatchException, no token at all NoSuchElementException. The token
+    // is consumed either way.
+    public int nextInt() {
+        int start = token();
+        int end = position;
+        boolean negative = buffer[start] == '-';
+        int k = negative || buffer[start] == '+' ? start + 1 : start;
+        if (k == end)
+            throw new InputMismatchException();
+        long value = 0;
+        for (; k < end; k++) {
+            int digit = buffer[k] - '0';
+            if (digit < 0 || digit > 9)
+                throw new InputMismatchException();
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1)
+                throw new InputMismatchException();
+        }
+        if (negative)
+            value = -value;
+        if (value > Integer.MAX_VALUE)
+            throw new InputMismatchException();
+        return (int) value;
+    }
+
+    // Reads a float token: [+-]digits[.digits][e[+-]digits], NaN or Infinity.
+    // Errors as for nextInt.
+    public float nextFloat() {
+        int start = token();
+        int end = position;
+        boolean negative = buffer[start] == '-';
+        int k = negative || buffer[start] == '+' ? start + 1 : start;
+        if (matches(k, end, "NaN"))
+            return Float.NaN;
+        if (matches(k, end, "Infinity"))
+            return negative ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+
+        // the significant digits as an int while they fit in a float exactly
+        int mantissa = 0;
+        int significant = 0;
+        int scale = 0;                 // value = mantissa * 10^-scale
+        int digits = 0;
+        boolean point = false;
+        for (; k < end && buffer[k] != 'e' && buffer[k] != 'E'; k++) {
+            byte b = buffer[k];
+            if (b == '.' && !point) {
+                point = true;
+                continue;
+            }
+            if (b < '0' || b > '9')
+                throw new InputMismatchException();
+            digits++;
+            if (significant == 0 && b == '0') {
+                if (point)
+                    scale++;
+                continue;
+            }
+            significant++;
+            if (significant <= 7) {
+                mantissa = mantissa * 10 + (b - '0');
+                if (point)
+                    scale++;
+            } else if (!point) {
+                scale--;
+            }
+        }
+        if (digits == 0)
+            throw new InputMismatchException();
+        int exponent = 0;
+        if (k < end) {
+            k++;
+            boolean negativeExponent = k < end && buffer[k] == '-';
+            if (k < end && (buffer[k] == '-' || buffer[k] == '+'))
+                k++;
+            if (k == end)
+                throw new InputMismatchException();
+            for (; k < end; k++) {
+                int digit = buffer[k] - '0';
+                if (digit < 0 || digit > 9)
+                    throw new InputMismatchException();
+                if (exponent < 1000)
+                    exponent = exponent * 10 + digit;
+            }
+            if (negativeExponent)
+                exponent = -exponent;
+        }
+
+        // mantissa and 10^n are exact floats, so one multiplication or division
+        // rounds correctly; anything else goes through Float.parseFloat
+        int power = exponent - scale;
+        float value;
+        if (significant > 7 || Math.abs(power) >= POWERS_OF_TEN.length && mantissa != 0)
+            return Float.parseFloat(new String(buffer, start, end - start, StandardCharsets.US_ASCII));
+        else if (mantissa == 0 || power == 0)
+            value = mantissa;
+        else if (power > 0)
+            value = mantissa * POWERS_OF_TEN[power];
+        else
+            value = mantissa / POWERS_OF_TEN[-power];
+        return negative ? -value : value;
+    }
+
+    // skips the rest of the current line and its line break, as Scanner.nextLine
+    public void skipLine() {
+        while (position < limit || fill()) {
+            byte b = buffer[position++];
+            if (b == '\n')
+                return;
+            if (b == '\r') {
+                if ((position < limit || fill()) && buffer[position] == '\n')
+                    position++;
+                return;
+            }
+        }
+    }
+
+    // Skips whitespace and moves the next token to the buffer, leaving position
+    // after it; returns where it starts. Throws NoSuchElementException at the end
+    // of the input.
+    private int token() {
+        while (true) {
+            if (position == limit && !fill())
+                throw new NoSuchElementException();
+            if (!isWhitespace(buffer[position]))
+                break;
+            position++;
+        }
+        int start = position;
+        while (true) {
+            if (position == limit) {
+                // move the token to the front so that the rest of it fits
+                int length = limit - start;
+                if (length == buffer.length)
+                    throw new InputMismatchException();
+                System.arraycopy(buffer, start, buffer, 0, length);
+                start = 0;
+                position = limit = length;
+                if (!readMore())
+                    break;
+            }
+            if (isWhitespace(buffer[position]))
+                break;
+            position++;
+        }
+        return start;
+    }
+
+    // reads more input, at the front of the buffer if it is used up; false at
+    // the end of the input
+    private boolean fill() {
+        if (position == limit)
+            position = limit = 0;
+        return readMore();
+    }
+
+    // reads more input after limit
+    private boolean readMore() {
+        if (eof)
+            return false;
+        if (out != null)
+            out.flush();
+        try {
+            int n = in.read(buffer, limit, buffer.length - limit);
+            if (n > 0) {
+                limit += n;
+                return true;
+            }
+        } catch (IOException e) {
+            // read as the end of the input, as Scanner does
+        }
+        eof = true;
+        return false;
+    }
+
+    private boolean matches(int from, int end, String word) {
+        if (end - from != word.length())
+            return false;
+        for (int i = 0; i < word.length(); i++) {
+            if (buffer[from + i] != word.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r' || b == '\f' || b == 0x0b
+                || (b >= 0x1c && b <= 0x1f);
+    }
+}
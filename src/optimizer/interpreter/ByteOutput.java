@@ -0,0 +1,99 @@
+package interpreter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+
+// Buffered writer of program output for the puti/putf/putc intrinsics. Ints are
+// formatted straight into the buffer, and so are floats that are whole numbers;
+// the text is the same as PrintStream.print gives. The buffer goes to the
+// stream when it is full and on flush(), which the interpreters call when the
+// program stops, reports an error or waits for input.
+public final class ByteOutput {
+    private final OutputStream out;
+    private final Charset charset;
+    private final byte[] buffer = new byte[1 << 16];
+    private int size;
+
+    // non-ASCII characters are encoded with charset, as the stream's PrintStream would
+    public ByteOutput(OutputStream out, Charset charset) {
+        this.out = out;
+        this.charset = charset;
+    }
+
+    public void printInt(int i) {
+        if (buffer.length - size < 11)
+            drain();
+        long value = i;
+        if (value < 0) {
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int end = size + digits(value);
+        for (int k = end - 1; k >= size; k--) {
+            buffer[k] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size = end;
+    }
+
+    public void printFloat(float f) {
+        // Float.toString writes a whole number below 10^7 as digits and ".0"
+        if (f == (int) f && Math.abs(f) < 1e7f && (f != 0 || 1 / f > 0)) {
+            printInt((int) f);
+            printChar('.');
+            printChar('0');
+            return;
+        }
+        String s = Float.toString(f);
+        if (buffer.length - size < s.length())
+            drain();
+        for (int k = 0; k < s.length(); k++)
+            buffer[size++] = (byte) s.charAt(k);
+    }
+
+    public void printChar(int c) {
+        char ch = (char) c;
+        if (ch < 0x80) {
+            if (size == buffer.length)
+                drain();
+            buffer[size++] = (byte) ch;
+            return;
+        }
+        byte[] bytes = String.valueOf(ch).getBytes(charset);
+        if (buffer.length - size < bytes.length)
+            drain();
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    public void flush() {
+        drain();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void drain() {
+        if (size == 0)
+            return;
+        try {
+            out.write(buffer, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        size = 0;
+    }
+
+    private static int digits(long value) {
+        int n = 1;
+        while (value >= 10) {
+            value /= 10;
+            n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,210 @@
+package interpreter;
+
+import java.util.*;
+
+// Code of one JVM method being written: instructions, labels and the offsets that
+// need an entry in the StackMapTable (jump targets, and code after a goto,
+// return, athrow or switch).
+final class Bytecode {
+    static final int ICONST_0 = 3;
+    static final int LCONST_1 = 10;
+    static final int FCONST_0 = 11;
+    static final int FCONST_1 = 12;
+    static final int FCONST_2 = 13;
+    static final int BIPUSH = 16;
+    static final int SIPUSH = 17;
+    static final int LDC_W = 19;
+    static final int ILOAD = 21;
+    static final int FLOAD = 23;
+    static final int ALOAD = 25;
+    static final int ALOAD_0 = 42;
+    static final int ALOAD_1 = 43;
+    static final int ALOAD_2 = 44;
+    static final int IALOAD = 46;
+    static final int LALOAD = 47;
+    static final int FALOAD = 48;
+    static final int AALOAD = 50;
+    static final int ISTORE = 54;
+    static final int FSTORE = 56;
+    static final int ASTORE = 58;
+    static final int IASTORE = 79;
+    static final int LASTORE = 80;
+    static final int FASTORE = 81;
+    static final int AASTORE = 83;
+    static final int DUP = 89;
+    static final int DUP2 = 92;
+    static final int SWAP = 95;
+    static final int IADD = 96;
+    static final int LADD = 97;
+    static final int FADD = 98;
+    static final int ISUB = 100;
+    static final int FSUB = 102;
+    static final int IMUL = 104;
+    static final int FMUL = 106;
+    static final int IDIV = 108;
+    static final int FDIV = 110;
+    static final int IAND = 126;
+    static final int IOR = 128;
+    static final int IINC = 132;
+    static final int FCMPL = 149;
+    static final int FCMPG = 150;
+    static final int IFEQ = 153;
+    static final int IFNE = 154;
+    static final int IFLT = 155;
+    static final int IFGE = 156;
+    static final int IFGT = 157;
+    static final int IFLE = 158;
+    static final int IF_ICMPEQ = 159;
+    static final int IF_ICMPNE = 160;
+    static final int IF_ICMPLT = 161;
+    static final int IF_ICMPGE = 162;
+    static final int IF_ICMPGT = 163;
+    static final int IF_ICMPLE = 164;
+    static final int GOTO = 167;
+    static final int LOOKUPSWITCH = 171;
+    static final int RETURN = 177;
+    static final int GETFIELD = 180;
+    static final int PUTFIELD = 181;
+    static final int INVOKEVIRTUAL = 182;
+    static final int INVOKESPECIAL = 183;
+    static final int ARRAYLENGTH = 190;
+    static final int ATHROW = 191;
+    static final int CHECKCAST = 192;
+    static final int WIDE = 196;
+
+    private byte[] code = new byte[256];
+    private int size;
+
+    private int[] labels = new int[16];         // label -> offset, -1 until marked
+    private int numLabels;
+    private final List<int[]> fixups = new ArrayList<>();   // field offset, instruction offset, label, width
+    private final TreeSet<Integer> frames = new TreeSet<>();
+    private boolean unreachable;                // the last instruction does not fall through
+
+    int size() {
+        return size;
+    }
+
+    byte[] toArray() {
+        return Arrays.copyOf(code, size);
+    }
+
+    // offsets that need a stack map frame, in order
+    Set<Integer> getFrames() {
+        return frames;
+    }
+
+    int newLabel() {
+        if (numLabels == labels.length)
+            labels = Arrays.copyOf(labels, numLabels * 2);
+        labels[numLabels] = -1;
+        return numLabels++;
+    }
+
+    void mark(int label) {
+        labels[label] = size;
+        frames.add(size);
+        unreachable = false;
+    }
+
+    // an instruction; its operands follow with u1/u2
+    void op(int opcode) {
+        if (unreachable) {
+            frames.add(size);
+            unreachable = false;
+        }
+        u1(opcode);
+        if (opcode == RETURN || opcode == ATHROW)
+            unreachable = true;
+    }
+
+    void u1(int value) {
+        if (size + 4 > code.length)
+            code = Arrays.copyOf(code, code.length * 2);
+        code[size++] = (byte) value;
+    }
+
+    void u2(int value) {
+        u1(value >> 8);
+        u1(value);
+    }
+
+    void u4(int value) {
+        u2(value >> 16);
+        u2(value);
+    }
+
+    // a load or store of a local, in its shortest form
+    void local(int opcode, int index) {
+        if (index <= 3) {
+            int first;
+            switch (opcode) {
+                case ILOAD:
+                    first = 26;
+                    break;
+                case FLOAD:
+                    first = 34;
+                    break;
+                case ALOAD:
+                    first = ALOAD_0;
+                    break;
+                case ISTORE:
+                    first = 59;
+                    break;
+                case FSTORE:
+                    first = 67;
+                    break;
+                default:
+                    first = 75;
+            }
+            op(first + index);
+        } else if (index < 256) {
+            op(opcode);
+            u1(index);
+        } else {
+            op(WIDE);
+            u1(opcode);
+            u2(index);
+        }
+    }
+
+    void jump(int opcode, int label) {
+        int start = size;
+        op(opcode);
+        fixups.add(new int[]{size, start, label, 2});
+        u2(0);
+        if (opcode == GOTO)
+            unreachable = true;
+    }
+
+    // keys are code offsets of the lowered function, mapped to labels
+    void lookupSwitch(int defaultLabel, Map<Integer, Integer> cases) {
+        int start = size;
+        op(LOOKUPSWITCH);
+        while (size % 4 != 0)
+            u1(0);
+        fixups.add(new int[]{size, start, defaultLabel, 4});
+        u4(0);
+        u4(cases.size());
+        for (Map.Entry<Integer, Integer> entry : new TreeMap<>(cases).entrySet()) {
+            u4(entry.getKey());
+            fixups.add(new int[]{size, start, entry.getValue(), 4});
+            u4(0);
+        }
+        unreachable = true;
+    }
+
+    // fills in jump offsets once every label is marked
+    void resolve() {
+        for (int[] fixup : fixups) {
+            int offset = labels[fixup[2]] - fixup[1];
+            int at = fixup[0];
+            if (fixup[3] == 4) {
+                code[at++] = (byte) (offset >> 24);
+                code[at++] = (byte) (offset >> 16);
+            }
+            code[at++] = (byte) (offset >> 8);
+            code[at] = (byte) offset;
+        }
+    }
+}
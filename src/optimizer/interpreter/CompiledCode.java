@@ -0,0 +1,11 @@
+package interpreter;
+
+import ir.IRException;
+
+// A function compiled by JitCompiler. run() starts at code offset startPc of the
+// lowered function (0, or a jump target when replacing an interpreted loop),
+// with the variables taken from the frame, and returns when the function
+// returns, its value in the intResult or floatResult of the interpreter.
+interface CompiledCode {
+    void run(FastInterpreter interpreter, Frame frame, int startPc) throws IRException;
+}
@@ -0,0 +1,97 @@
+package interpreter;
+
+import java.io.*;
+import java.util.*;
+
+// Constant pool of a class file being written; equal entries are shared.
+final class ConstantPool {
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int FLOAT = 4;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    static final int FIELD = 9;
+    static final int METHOD = 10;
+    private static final int NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream data = new DataOutputStream(bytes);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int count = 1;
+
+    int utf8(String s) {
+        return entry("U" + s, () -> {
+            data.writeByte(UTF8);
+            data.writeUTF(s);
+        });
+    }
+
+    int classRef(String name) {
+        int nameIndex = utf8(name);
+        return entry("C" + name, () -> {
+            data.writeByte(CLASS);
+            data.writeShort(nameIndex);
+        });
+    }
+
+    int string(String s) {
+        int utf8Index = utf8(s);
+        return entry("S" + s, () -> {
+            data.writeByte(STRING);
+            data.writeShort(utf8Index);
+        });
+    }
+
+    int intConstant(int value) {
+        return entry("I" + value, () -> {
+            data.writeByte(INTEGER);
+            data.writeInt(value);
+        });
+    }
+
+    int floatConstant(float value) {
+        return entry("F" + Float.floatToRawIntBits(value), () -> {
+            data.writeByte(FLOAT);
+            data.writeInt(Float.floatToRawIntBits(value));
+        });
+    }
+
+    // a field (FIELD) or method (METHOD) reference
+    int member(int tag, String owner, String name, String desc) {
+        int classIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descIndex = utf8(desc);
+        int nameAndType = entry("N" + name + " " + desc, () -> {
+            data.writeByte(NAME_AND_TYPE);
+            data.writeShort(nameIndex);
+            data.writeShort(descIndex);
+        });
+        return entry(tag + owner + "." + name + " " + desc, () -> {
+            data.writeByte(tag);
+            data.writeShort(classIndex);
+            data.writeShort(nameAndType);
+        });
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeShort(count);
+        out.write(bytes.toByteArray());
+    }
+
+    private interface Writer {
+        void write() throws IOException;
+    }
+
+    private int entry(String key, Writer writer) {
+        Integer index = entries.get(key);
+        if (index != null)
+            return index;
+        try {
+            writer.write();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        entries.put(key, count);
+        return count++;
+    }
+}
@@ -0,0 +1,798 @@
+package interpreter;
+
+import ir.IRException;
+import ir.IRInstruction;
+import ir.IRInstruction.OpCode;
+import ir.IRProfile;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+// Interpreter for lowered code (see Lowering): locals live in int and float slots
+// of the frame instead of a map from names to boxed values, constants are parsed
+// once, and jumps go straight to code offsets.
+//
+// Executed instructions are counted per CFG edge (see Lowering); counts per block,
+// IR line and OpCode are worked out from the edge counts when asked for, and
+// match the ones of the tree-walking IRInterpreter. With profiling on, the
+// instructions executed while each function runs are also counted, for
+// getProfile().
+//
+// With a Jit, functions that get hot are compiled to JVM bytecode: calls to them
+// run the compiled code, and a function that is hot in a loop is moved to
+// compiled code at the next jump back (on-stack replacement). Compiled code keeps
+// the same edge counts and reports errors the same way. Each compiled run
+// nests on the Java stack, under the calls of the interpreted code around it:
+// past MAX_NESTING of them, calls and loops stay in execute(), whose calls do
+// not grow the Java stack, so deep recursion runs as deep as interpreted.
+//
+// A self tail call (Op.TAILCALL) runs in a fresh frame that takes the place of
+// the caller's on the stack, so tail recursion runs in constant stack. The
+// ENTERs it skips are counted, so the counts stay those of the tree-walking
+// IRInterpreter.
+//
+// Limits are checked in calls and, every CHECK_INTERVAL jumps back, in
+// checkLimits() (in compiled loops only with Jit.setLoopLimits); going past one
+// stops the run with a LimitExceededException.
+public final class FastInterpreter {
+    // lines of a stack trace after which the rest are left out
+    public static final int MAX_TRACE = 100;
+
+    // jumps back and calls between checks of the instruction and time limits
+    private static final int CHECK_INTERVAL = 1 << 12;
+
+    // compiled runs on the Java stack at most
+    static final int MAX_NESTING = 256;
+
+    private final LinkedProgram program;
+    private Jit jit;
+    private Limits limits = new Limits();
+    private long deadline;           // System.nanoTime() at which the time limit runs out
+    private long arrayBytes;         // bytes of the local arrays of the frames on the stack
+    int ticks;                       // jumps back and calls left before checkLimits()
+    private int nesting;             // compiled runs on the Java stack
+
+    // call stack: stack[depth - 1] is running
+    private Frame[] stack;
+    private int depth;
+    private Frame[] freeFrames;      // function index -> frames that returned, linked by next
+
+    long[][] edgeCounts;             // function index -> edge -> times taken
+
+    // profiling: instructions executed while a function runs, counted from its
+    // outermost activation
+    private boolean profiling;
+    private int[] activations;       // function index -> frames on the stack
+    private long[] enteredAt;        // function index -> instructions executed before
+    private long[] inclusive;
+
+    // value of the last return, for the caller
+    int intResult;
+    float floatResult;
+
+    private ByteInput in;
+    private ByteOutput out;
+    private PrintStream err;
+
+    public FastInterpreter(LinkedProgram program) {
+        this.program = program;
+    }
+
+    // compile hot functions with the given Jit (null to only interpret)
+    public void setJit(Jit jit) {
+        this.jit = jit;
+    }
+
+    // the limits run() stops at
+    public void setLimits(Limits limits) {
+        this.limits = limits;
+    }
+
+    // count the instructions executed under each function, for getProfile();
+    // it makes calls slower
+    public void setProfiling(boolean profiling) {
+        this.profiling = profiling;
+    }
+
+    // runs main; runtime errors are reported on stderr and thrown
+    public void run(InputStream in, PrintStream out) throws IRException {
+        run(in, out, System.err);
+    }
+
+    // runs main with the given streams, runtime errors reported on err; the
+    // output is buffered and flushed when main returns or fails, or before
+    // waiting for input
+    public void run(InputStream in, PrintStream out, PrintStream err) throws IRException {
+        this.out = new ByteOutput(out, Charset.defaultCharset());
+        this.in = new ByteInput(in, this.out);
+        this.err = err;
+        edgeCounts = new long[program.functions.length][];
+        for (LoweredFunction function : program.functions)
+            edgeCounts[function.index] = new long[function.numEdges()];
+        activations = new int[program.functions.length];
+        enteredAt = new long[program.functions.length];
+        inclusive = new long[program.functions.length];
+        stack = new Frame[64];
+        depth = 0;
+        freeFrames = new Frame[program.functions.length];
+        arrayBytes = 0;
+        ticks = CHECK_INTERVAL;
+        nesting = 0;
+        deadline = System.nanoTime() + limits.maxMillis * 1000000;
+
+        push(newFrame(program.main));
+        edgeCounts[program.main.index][0]++;
+        try {
+            if (limits.maxArrayBytes > 0 && arrayBytes > limits.maxArrayBytes)
+                throw limitExceeded(stack[0], 0, "Array memory limit exceeded");
+            execute();
+        } catch (StackOverflowError e) {
+            // only compiled code recurses on the Java stack
+            throw limitExceeded(stack[depth - 1], stack[depth - 1].pc, "Stack overflow");
+        } finally {
+            this.out.flush();
+        }
+    }
+
+    // IR instructions with the given OpCode executed by the last run
+    public long getCount(OpCode opCode) {
+        long count = 0;
+        for (LoweredFunction function : program.functions) {
+            long[] counts = blockCounts(function);
+            for (int b = 0; b < counts.length; b++)
+                count += counts[b] * function.blockOps[b][opCode.ordinal()];
+        }
+        return count;
+    }
+
+    // superinstruction -> {places in the code, times run} in the last run
+    public Map<String, long[]> getSuperinstructionCounts() {
+        long[][] counts = new long[Op.NUM_OPS - Op.FIRST_SUPER][2];
+        for (LoweredFunction function : program.functions) {
+            long[] blocks = blockCounts(function);
+            for (int k = 0; k < function.superOps.length; k++) {
+                long[] count = counts[function.superOps[k] - Op.FIRST_SUPER];
+                count[0]++;
+                count[1] += blocks[function.superBlocks[k]];
+            }
+        }
+        Map<String, long[]> result = new LinkedHashMap<>();
+        for (int op = Op.FIRST_SUPER; op < Op.NUM_OPS; op++)
+            result.put(Op.SUPER_NAMES[op - Op.FIRST_SUPER], counts[op - Op.FIRST_SUPER]);
+        return result;
+    }
+
+    public long getTotalCount() {
+        long count = 0;
+        for (OpCode opCode : OpCode.values())
+            count += getCount(opCode);
+        return count;
+    }
+
+    // execution counts of the last run, per block, edge and IR line of every
+    // function; inclusive counts are only there if profiling was on
+    public IRProfile getProfile() {
+        IRProfile profile = new IRProfile();
+        long executed = executedCount();
+        for (LoweredFunction function : program.functions) {
+            IRProfile.FunctionProfile counts = profile.addFunction(function.name);
+            long[] edges = edgeCounts[function.index];
+            long[] blocks = blockCounts(function);
+            counts.calls = edges[0];
+            for (int e = 0; e < edges.length; e++)
+                counts.instructions += edges[e] * function.edgeLength[e];
+            counts.inclusive = inclusive[function.index];
+            if (activations[function.index] > 0)
+                counts.inclusive += executed - enteredAt[function.index];
+            for (int b = 0; b < blocks.length; b++) {
+                if (function.blockLines[b] >= 0)
+                    counts.addBlockCount(function.blockLines[b], blocks[b]);
+            }
+            for (int e = 1; e < edges.length; e++) {
+                int to = function.blockLines[function.edgeTo[e]];
+                if (to >= 0)
+                    counts.addEdgeCount(function.blockLines[function.edgeFrom[e]], to, edges[e]);
+            }
+            List<IRInstruction> instructions = function.source.getInstructions();
+            for (int i = 0; i < instructions.size(); i++)
+                counts.addLineCount(instructions.get(i).irLineNumber, blocks[function.blockOf[i]]);
+        }
+        return profile;
+    }
+
+    // times each block of the function was entered
+    private long[] blockCounts(LoweredFunction function) {
+        long[] edges = edgeCounts[function.index];
+        long[] blocks = new long[function.numBlocks()];
+        for (int e = 0; e < edges.length; e++)
+            blocks[function.edgeTo[e]] += edges[e];
+        return blocks;
+    }
+
+    // non-label IR instructions executed so far, counting a block when it is entered
+    private long executedCount() {
+        long count = 0;
+        for (LoweredFunction function : program.functions) {
+            long[] edges = edgeCounts[function.index];
+            for (int e = 0; e < edges.length; e++)
+                count += edges[e] * function.edgeLength[e];
+        }
+        return count;
+    }
+
+    private void push(Frame frame) {
+        if (depth == stack.length)
+            stack = Arrays.copyOf(stack, depth * 2);
+        stack[depth++] = frame;
+        arrayBytes += frame.function.arrayBytes;
+        if (profiling && activations[frame.function.index]++ == 0)
+            enteredAt[frame.function.index] = executedCount();
+    }
+
+    private void pop() {
+        Frame frame = stack[--depth];
+        stack[depth] = null;
+        arrayBytes -= frame.function.arrayBytes;
+        frame.next = freeFrames[frame.function.index];
+        freeFrames[frame.function.index] = frame;
+        if (profiling && --activations[frame.function.index] == 0)
+            inclusive[frame.function.index] += executedCount() - enteredAt[frame.function.index];
+    }
+
+    // a frame for a call, reusing one that returned: once a frame is popped
+    // nothing refers to it, and its local arrays cannot have escaped (arrays are
+    // only passed down to callees)
+    private Frame newFrame(LoweredFunction function) {
+        Frame frame = freeFrames[function.index];
+        if (frame == null)
+            return function.newFrame();
+        freeFrames[function.index] = frame.next;
+        frame.next = null;
+        function.reset(frame);
+        return frame;
+    }
+
+    // runs the frame on top of the stack from its first instruction until it
+    // returns; its return value is left in intResult or floatResult
+    private void execute() throws IRException {
+        int base = depth - 1;
+        Frame frame = stack[base];
+        int pc = 0;
+        frames:
+        while (true) {
+            // entered with a new frame running
+            LoweredFunction function = frame.function;
+            int[] code = function.code;
+            int[] ints = frame.ints;
+            float[] floats = frame.floats;
+            Object[] arrays = frame.arrays;
+            long[] counts = edgeCounts[function.index];
+            returned:
+            while (true) {
+                int next;
+                switch (code[pc]) {
+                    case Op.IMOV:
+                        ints[code[pc + 1]] = ints[code[pc + 2]];
+                        pc += 3;
+                        continue;
+                    case Op.FMOV:
+                        floats[code[pc + 1]] = floats[code[pc + 2]];
+                        pc += 3;
+                        continue;
+
+                    case Op.IADD:
+                        ints[code[pc + 1]] = ints[code[pc + 2]] + ints[code[pc + 3]];
+                        pc += 4;
+                        continue;
+                    case Op.ISUB:
+                        ints[code[pc + 1]] = ints[code[pc + 2]] - ints[code[pc + 3]];
+                        pc += 4;
+                        continue;
+                    case Op.IMUL:
+                        ints[code[pc + 1]] = ints[code[pc + 2]] * ints[code[pc + 3]];
+                        pc += 4;
+                        continue;
+                    case Op.IDIV: {
+                        int divisor = ints[code[pc + 3]];
+                        if (divisor == 0)
+                            throw error(frame, pc, "Division by zero");
+                        ints[code[pc + 1]] = ints[code[pc + 2]] / divisor;
+                        pc += 4;
+                        continue;
+                    }
+                    case Op.IAND:
+                        ints[code[pc + 1]] = ints[code[pc + 2]] & ints[code[pc + 3]];
+                        pc += 4;
+                        continue;
+                    case Op.IOR:
+                        ints[code[pc + 1]] = ints[code[pc + 2]] | ints[code[pc + 3]];
+                        pc += 4;
+                        continue;
+                    case Op.FADD:
+                        floats[code[pc + 1]] = floats[code[pc + 2]] + floats[code[pc + 3]];
+                        pc += 4;
+                        continue;
+                    case Op.FSUB:
+                        floats[code[pc + 1]] = floats[code[pc + 2]] - floats[code[pc + 3]];
+                        pc += 4;
+                        continue;
+                    case Op.FMUL:
+                        floats[code[pc + 1]] = floats[code[pc + 2]] * floats[code[pc + 3]];
+                        pc += 4;
+                        continue;
+                    case Op.FDIV:
+                        floats[code[pc + 1]] = floats[code[pc + 2]] / floats[code[pc + 3]];
+                        pc += 4;
+                        continue;
+
+                    case Op.GOTO:
+                        counts[code[pc + 2]]++;
+                        next = code[pc + 1];
+                        break;
+                    case Op.IBREQ:
+                        next = branch(ints[code[pc + 1]] == ints[code[pc + 2]], code, pc, counts);
+                        break;
+                    case Op.IBRNEQ:
+                        next = branch(ints[code[pc + 1]] != ints[code[pc + 2]], code, pc, counts);
+                        break;
+                    case Op.IBRLT:
+                        next = branch(ints[code[pc + 1]] < ints[code[pc + 2]], code, pc, counts);
+                        break;
+                    case Op.IBRGT:
+                        next = branch(ints[code[pc + 1]] > ints[code[pc + 2]], code, pc, counts);
+                        break;
+                    case Op.IBRLEQ:
+                        next = branch(ints[code[pc + 1]] <= ints[code[pc + 2]], code, pc, counts);
+                        break;
+                    case Op.IBRGEQ:
+                        next = branch(ints[code[pc + 1]] >= ints[code[pc + 2]], code, pc, counts);
+                        break;
+                    case Op.FBREQ:
+                        next = branch(floats[code[pc + 1]] == floats[code[pc + 2]], code, pc, counts);
+                        break;
+                    case Op.FBRNEQ:
+                        next = branch(floats[code[pc + 1]] != floats[code[pc + 2]], code, pc, counts);
+                        break;
+                    case Op.FBRLT:
+                        next = branch(floats[code[pc + 1]] < floats[code[pc + 2]], code, pc, counts);
+                        break;
+                    case Op.FBRGT:
+                        next = branch(floats[code[pc + 1]] > floats[code[pc + 2]], code, pc, counts);
+                        break;
+                    case Op.FBRLEQ:
+                        next = branch(floats[code[pc + 1]] <= floats[code[pc + 2]], code, pc, counts);
+                        break;
+                    case Op.FBRGEQ:
+                        next = branch(floats[code[pc + 1]] >= floats[code[pc + 2]], code, pc, counts);
+                        break;
+                    case Op.ENTER:
+                        counts[code[pc + 1]]++;
+                        pc += 2;
+                        continue;
+
+                    // superinstructions: the first instruction, then the second
+                    // at its own pc (for errors and jumps back)
+                    case Op.IADD_IALOAD: {
+                        ints[code[pc + 1]] = ints[code[pc + 2]] + ints[code[pc + 3]];
+                        pc += 4;
+                        int[] array = (int[]) arrays[code[pc + 2]];
+                        int index = ints[code[pc + 3]];
+                        if (index < 0 || index >= array.length)
+                            throw error(frame, pc, "Out-of-bounds array access");
+                        ints[code[pc + 1]] = array[index];
+                        pc += 4;
+                        continue;
+                    }
+                    case Op.ISUB_IALOAD: {
+                        ints[code[pc + 1]] = ints[code[pc + 2]] - ints[code[pc + 3]];
+                        pc += 4;
+                        int[] array = (int[]) arrays[code[pc + 2]];
+                        int index = ints[code[pc + 3]];
+                        if (index < 0 || index >= array.length)
+                            throw error(frame, pc, "Out-of-bounds array access");
+                        ints[code[pc + 1]] = array[index];
+                        pc += 4;
+                        continue;
+                    }
+                    case Op.IADD_IBR:
+                        ints[code[pc + 1]] = ints[code[pc + 2]] + ints[code[pc + 3]];
+                        pc += 4;
+                        next = branch(intCondition(code, pc, ints), code, pc, counts);
+                        break;
+                    case Op.ISUB_IBR:
+                        ints[code[pc + 1]] = ints[code[pc + 2]] - ints[code[pc + 3]];
+                        pc += 4;
+                        next = branch(intCondition(code, pc, ints), code, pc, counts);
+                        break;
+                    case Op.IMOV_IBR:
+                        ints[code[pc + 1]] = ints[code[pc + 2]];
+                        pc += 3;
+                        next = branch(intCondition(code, pc, ints), code, pc, counts);
+                        break;
+                    case Op.IALOAD_IBR: {
+                        int[] array = (int[]) arrays[code[pc + 2]];
+                        int index = ints[code[pc + 3]];
+                        if (index < 0 || index >= array.length)
+                            throw error(frame, pc, "Out-of-bounds array access");
+                        ints[code[pc + 1]] = array[index];
+                        pc += 4;
+                        next = branch(intCondition(code, pc, ints), code, pc, counts);
+                        break;
+                    }
+                    case Op.IADD_GOTO:
+                        ints[code[pc + 1]] = ints[code[pc + 2]] + ints[code[pc + 3]];
+                        pc += 4;
+                        counts[code[pc + 2]]++;
+                        next = code[pc + 1];
+                        break;
+
+                    case Op.CALL: {
+                        frame.pc = pc;
+                        Frame callee = call(frame, code, pc);
+                        CompiledCode compiled = compiledCall(callee.function);
+                        frame = callee;
+                        if (compiled != null) {
+                            runCompiled(compiled, frame, 0);
+                            break returned;
+                        }
+                        pc = 0;
+                        continue frames;
+                    }
+                    case Op.TAILCALL: {
+                        Frame callee = tailEnter(frame, pc);
+                        passArguments(frame, callee, code, pc);
+                        CompiledCode compiled = compiledCall(function);
+                        frame = callee;
+                        if (compiled != null) {
+                            runCompiled(compiled, frame, 0);
+                            break returned;
+                        }
+                        pc = 0;
+                        continue frames;
+                    }
+                    case Op.IRET:
+                        intResult = ints[code[pc + 1]];
+                        break returned;
+                    case Op.FRET:
+                        floatResult = floats[code[pc + 1]];
+                        break returned;
+                    case Op.RET:
+                        if (function.returnKind != LoweredFunction.NONE)
+                            throw error(frame, pc, "Missing return for a function with return value");
+                        break returned;
+
+                    case Op.IALOAD: {
+                        int[] array = (int[]) arrays[code[pc + 2]];
+                        int index = ints[code[pc + 3]];
+                        if (index < 0 || index >= array.length)
+                            throw error(frame, pc, "Out-of-bounds array access");
+                        ints[code[pc + 1]] = array[index];
+                        pc += 4;
+                        continue;
+                    }
+                    case Op.FALOAD: {
+                        float[] array = (float[]) arrays[code[pc + 2]];
+                        int index = ints[code[pc + 3]];
+                        if (index < 0 || index >= array.length)
+                            throw error(frame, pc, "Out-of-bounds array access");
+                        floats[code[pc + 1]] = array[index];
+                        pc += 4;
+                        continue;
+                    }
+                    case Op.IASTORE: {
+                        int[] array = (int[]) arrays[code[pc + 2]];
+                        int index = ints[code[pc + 3]];
+                        if (index < 0 || index >= array.length)
+                            throw error(frame, pc, "Out-of-bounds array access");
+                        array[index] = ints[code[pc + 1]];
+                        pc += 4;
+                        continue;
+                    }
+                    case Op.FASTORE: {
+                        float[] array = (float[]) arrays[code[pc + 2]];
+                        int index = ints[code[pc + 3]];
+                        if (index < 0 || index >= array.length)
+                            throw error(frame, pc, "Out-of-bounds array access");
+                        array[index] = floats[code[pc + 1]];
+                        pc += 4;
+                        continue;
+                    }
+                    case Op.IAFILL:
+                        fillInts(frame, pc, (int[]) arrays[code[pc + 1]], ints[code[pc + 2]], ints[code[pc + 3]]);
+                        pc += 4;
+                        continue;
+                    case Op.FAFILL:
+                        fillFloats(frame, pc, (float[]) arrays[code[pc + 1]], ints[code[pc + 2]],
+                                floats[code[pc + 3]]);
+                        pc += 4;
+                        continue;
+
+                    case Op.GETI:
+                        ints[code[pc + 1]] = readInt(frame, pc);
+                        pc += 2;
+                        continue;
+                    case Op.GETF:
+                        floats[code[pc + 1]] = readFloat(frame, pc);
+                        pc += 2;
+                        continue;
+                    case Op.GETC:
+                        ints[code[pc + 1]] = readChar();
+                        pc += 2;
+                        continue;
+                    case Op.PUTI:
+                        putInt(ints[code[pc + 1]]);
+                        pc += 2;
+                        continue;
+                    case Op.PUTF:
+                        putFloat(floats[code[pc + 1]]);
+                        pc += 2;
+                        continue;
+                    case Op.PUTC:
+                        putChar(ints[code[pc + 1]]);
+                        pc += 2;
+                        continue;
+                    case Op.UNDEFINED:
+                        throw error(frame, pc, String.format("Undefined reference to function '%s'",
+                                function.names[code[pc + 1]]));
+                    default:
+                        throw new IllegalStateException("bad opcode " + code[pc] + " in " + function.name);
+                }
+
+                // a jump or branch to next: going back, the loop may have become hot
+                if (next <= pc) {
+                    if (--ticks < 0)
+                        checkLimits(frame, pc);
+                    if (jit != null && nesting < MAX_NESTING) {
+                        CompiledCode compiled = jit.onBackEdge(function);
+                        if (compiled != null) {
+                            frame.pc = next;
+                            runCompiled(compiled, frame, next);
+                            break returned;
+                        }
+                    }
+                }
+                pc = next;
+            }
+            // the frame on top has returned (compiled code may have put
+            // another one in place of frame with a tail call)
+            frame = stack[depth - 1];
+            int slot = frame.returnSlot;
+            int kind = frame.function.returnKind;
+            pop();
+            if (depth == base)
+                return;
+            frame = stack[depth - 1];
+            if (slot >= 0 && kind == LoweredFunction.INT)
+                frame.ints[slot] = intResult;
+            else if (slot >= 0 && kind == LoweredFunction.FLOAT)
+                frame.floats[slot] = floatResult;
+            pc = frame.pc + Op.length(frame.function.code, frame.pc);
+        }
+    }
+
+    // whether the int branch at pc is taken
+    private static boolean intCondition(int[] code, int pc, int[] ints) {
+        int a = ints[code[pc + 1]];
+        int b = ints[code[pc + 2]];
+        switch (code[pc]) {
+            case Op.IBREQ:
+                return a == b;
+            case Op.IBRNEQ:
+                return a != b;
+            case Op.IBRLT:
+                return a < b;
+            case Op.IBRGT:
+                return a > b;
+            case Op.IBRLEQ:
+                return a <= b;
+            default:
+                return a >= b;
+        }
+    }
+
+    private static int branch(boolean taken, int[] code, int pc, long[] counts) {
+        if (taken) {
+            counts[code[pc + 4]]++;
+            return code[pc + 3];
+        }
+        counts[code[pc + 5]]++;
+        return pc + 6;
+    }
+
+    // pushes the frame of the function called at pc and returns it
+    private Frame call(Frame caller, int[] code, int pc) throws IRException {
+        LoweredFunction callee = program.functions[code[pc + 1]];
+        checkCall(caller, pc, callee);
+        Frame frame = newFrame(callee);
+        frame.returnSlot = code[pc + 2];
+        passArguments(caller, frame, code, pc);
+        push(frame);
+        edgeCounts[callee.index][0]++;
+        return frame;
+    }
+
+    // sets the parameters of frame to the arguments of the call at pc in caller
+    private static void passArguments(Frame caller, Frame frame, int[] code, int pc) {
+        LoweredFunction callee = frame.function;
+        int argc = code[pc + 3];
+        for (int k = 0; k < argc; k++) {
+            int from = code[pc + 4 + k];
+            int to = callee.paramSlot[k];
+            switch (callee.paramKind[k]) {
+                case LoweredFunction.INT:
+                    frame.ints[to] = caller.ints[from];
+                    break;
+                case LoweredFunction.FLOAT:
+                    frame.floats[to] = caller.floats[from];
+                    break;
+                default:
+                    // arrays are passed by reference
+                    frame.arrays[to] = caller.arrays[from];
+            }
+        }
+    }
+
+    // Entry points for compiled code. A compiled call is enter(), which pushes
+    // the frame of the callee for the caller to fill in its parameters, then
+    // invoke(), which runs it (compiled or not) and pops it.
+
+    Frame enter(Frame caller, int pc, int calleeIndex) throws IRException {
+        caller.pc = pc;
+        LoweredFunction callee = program.functions[calleeIndex];
+        checkCall(caller, pc, callee);
+        Frame frame = newFrame(callee);
+        frame.returnSlot = -1;
+        push(frame);
+        edgeCounts[calleeIndex][0]++;
+        return frame;
+    }
+
+    // A self tail call at pc: a new frame of the function, parameters not yet
+    // set, takes the place of caller on the stack, and caller is freed (its
+    // values stay until the frame is reused, for the arguments). The ENTERs
+    // between the call and the return are counted as if the call had returned.
+    Frame tailEnter(Frame caller, int pc) throws IRException {
+        LoweredFunction function = caller.function;
+        if (--ticks < 0)
+            checkLimits(caller, pc);
+        int[] code = function.code;
+        long[] counts = edgeCounts[function.index];
+        for (int p = pc + Op.length(code, pc); code[p] == Op.ENTER; p += 2)
+            counts[code[p + 1]]++;
+        counts[0]++;
+        Frame frame = newFrame(function);
+        frame.returnSlot = caller.returnSlot;
+        stack[depth - 1] = frame;
+        caller.next = freeFrames[function.index];
+        freeFrames[function.index] = caller;
+        return frame;
+    }
+
+    // the limits a call of callee at pc could go past
+    private void checkCall(Frame caller, int pc, LoweredFunction callee) throws IRException {
+        if (depth >= limits.maxDepth)
+            throw limitExceeded(caller, pc, "Stack overflow");
+        if (limits.maxArrayBytes > 0 && arrayBytes + callee.arrayBytes > limits.maxArrayBytes)
+            throw limitExceeded(caller, pc, "Array memory limit exceeded");
+        if (--ticks < 0)
+            checkLimits(caller, pc);
+    }
+
+    // called when ticks runs out, at pc in frame: stops the run if it has gone
+    // past the instruction or time limit
+    void checkLimits(Frame frame, int pc) throws IRException {
+        ticks = CHECK_INTERVAL;
+        if (limits.maxInstructions > 0 && executedCount() > limits.maxInstructions)
+            throw limitExceeded(frame, pc, "Instruction limit exceeded");
+        if (limits.maxMillis > 0 && System.nanoTime() - deadline > 0)
+            throw limitExceeded(frame, pc, "Time limit exceeded");
+    }
+
+    void invoke(Frame frame) throws IRException {
+        CompiledCode compiled = compiledCall(frame.function);
+        if (compiled == null) {
+            execute();
+            return;
+        }
+        runCompiled(compiled, frame, 0);
+        pop();
+    }
+
+    // the compiled code to call function with, or null to interpret it
+    private CompiledCode compiledCall(LoweredFunction function) {
+        return jit == null || nesting >= MAX_NESTING ? null : jit.onCall(function);
+    }
+
+    private void runCompiled(CompiledCode compiled, Frame frame, int pc) throws IRException {
+        nesting++;
+        try {
+            compiled.run(this, frame, pc);
+        } finally {
+            nesting--;
+        }
+    }
+
+    void fillInts(Frame frame, int pc, int[] array, int count, int value) throws IRException {
+        if (count < 0 || count > array.length)
+            throw error(frame, pc, "Out-of-bounds array access");
+        Arrays.fill(array, 0, count, value);
+    }
+
+    void fillFloats(Frame frame, int pc, float[] array, int count, float value) throws IRException {
+        if (count < 0 || count > array.length)
+            throw error(frame, pc, "Out-of-bounds array access");
+        Arrays.fill(array, 0, count, value);
+    }
+
+    // intrinsics
+
+    int readInt(Frame frame, int pc) throws IRException {
+        int i;
+        try {
+            i = in.nextInt();
+        } catch (InputMismatchException e) {
+            i = 0;
+        } catch (NoSuchElementException e) {
+            throw error(frame, pc, "Unexpected end of input");
+        }
+        in.skipLine();
+        return i;
+    }
+
+    float readFloat(Frame frame, int pc) throws IRException {
+        float f;
+        try {
+            f = in.nextFloat();
+        } catch (InputMismatchException e) {
+            f = 0;
+        } catch (NoSuchElementException e) {
+            throw error(frame, pc, "Unexpected end of input");
+        }
+        in.skipLine();
+        return f;
+    }
+
+    int readChar() {
+        return in.read();
+    }
+
+    void putInt(int i) {
+        out.printInt(i);
+    }
+
+    void putFloat(float f) {
+        out.printFloat(f);
+    }
+
+    void putChar(int c) {
+        out.printChar(c);
+    }
+
+    // reports a runtime error the way IRInterpreter does: the message, then the
+    // IR line of each active call, innermost first, up to MAX_TRACE lines
+    IRException error(Frame frame, int pc, String message) {
+        report(frame, pc, message);
+        return new IRException();
+    }
+
+    private LimitExceededException limitExceeded(Frame frame, int pc, String message) {
+        report(frame, pc, message);
+        return new LimitExceededException(message);
+    }
+
+    private void report(Frame frame, int pc, String message) {
+        out.flush();
+        err.println("IR interpreter runtime exception: " + message);
+        err.println("Stack trace:");
+        err.println("\t" + frame.function.name + ":" + frame.function.lines[pc]);
+        for (int k = depth - 2; k >= 0; k--) {
+            if (depth - 1 - k == MAX_TRACE) {
+                err.println("\t... " + (k + 1) + " more");
+                break;
+            }
+            Frame caller = stack[k];
+            err.println("\t" + caller.function.name + ":" + caller.function.lines[caller.pc]);
+        }
+    }
+}
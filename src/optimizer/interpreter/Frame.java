@@ -0,0 +1,18 @@
+package interpreter;
+
+// Activation of a lowered function.
+final class Frame {
+    final LoweredFunction function;
+    int[] ints;
+    float[] floats;
+    Object[] arrays;     // int[] or float[]
+
+    int pc;              // while calling: offset of the call instruction
+    int returnSlot;      // slot of the caller that receives the return value, -1 for none
+
+    Frame next;          // next free frame of the function, while not running
+
+    Frame(LoweredFunction function) {
+        this.function = function;
+    }
+}
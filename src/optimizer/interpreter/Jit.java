@@ -0,0 +1,86 @@
+package interpreter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+
+// Tiered execution policy: every function starts interpreted, with a counter of
+// its calls and of the jumps back in its loops. When the counter reaches the
+// threshold the function is compiled to a JVM class (JitCompiler) and runs
+// compiled from then on; HotSpot then compiles the class like any other code.
+// Functions the compiler cannot handle, or too large for HotSpot to compile,
+// stay interpreted.
+//
+// A Jit belongs to one LinkedProgram and may be shared by interpreters running
+// it, so code compiled in one run is used by the next. Compiled loops only check
+// the instruction and time limits with setLoopLimits(true), as counting down in
+// them keeps HotSpot from optimizing tight loops well; calls check them anyway.
+public final class Jit {
+    public static final int DEFAULT_THRESHOLD = 1000;
+
+    private final LinkedProgram program;
+    private final int threshold;
+    private final int[] hotness;                 // function index -> calls + jumps back
+    private final CompiledCode[] compiled;
+    private final boolean[] failed;
+    private final List<String> compiledNames = new ArrayList<>();
+    private boolean loopLimits;
+
+    public Jit(LinkedProgram program, int threshold) {
+        this.program = program;
+        this.threshold = threshold;
+        this.hotness = new int[program.functions.length];
+        this.compiled = new CompiledCode[program.functions.length];
+        this.failed = new boolean[program.functions.length];
+    }
+
+    // whether code compiled from now on checks the limits at jumps back
+    public synchronized void setLoopLimits(boolean loopLimits) {
+        this.loopLimits = loopLimits;
+    }
+
+    // names of the functions compiled so far, in order
+    public synchronized List<String> getCompiled() {
+        return new ArrayList<>(compiledNames);
+    }
+
+    // the compiled code to run for a call, or null to interpret it
+    CompiledCode onCall(LoweredFunction function) {
+        return hot(function);
+    }
+
+    // the compiled code to continue a loop in, or null to keep interpreting
+    CompiledCode onBackEdge(LoweredFunction function) {
+        return hot(function);
+    }
+
+    private CompiledCode hot(LoweredFunction function) {
+        int index = function.index;
+        CompiledCode code = compiled[index];
+        if (code != null || failed[index] || ++hotness[index] < threshold)
+            return code;
+        return compile(function);
+    }
+
+    private synchronized CompiledCode compile(LoweredFunction function) {
+        int index = function.index;
+        if (compiled[index] != null || failed[index])
+            return compiled[index];
+        byte[] classFile = new JitCompiler(program, function, loopLimits).compile();
+        if (classFile == null) {
+            failed[index] = true;
+            return null;
+        }
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+            compiled[index] = (CompiledCode) lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            // a class the JVM rejects: keep interpreting the function
+            failed[index] = true;
+            return null;
+        }
+        compiledNames.add(function.name);
+        return compiled[index];
+    }
+}
@@ -0,0 +1,655 @@
+package interpreter;
+
+import java.io.*;
+import java.util.*;
+
+// Compiles one lowered function to a JVM class implementing CompiledCode.
+//
+// Each variable of the function becomes a JVM local, loaded from the frame on
+// entry, and constants become literals. run() then switches on startPc to the
+// instruction it starts at; every jump target is a label, so a loop can be
+// entered from the interpreter in the middle of the function. Edges are counted
+// in the same places the interpreter counts them. Calls, array fills, I/O and
+// errors go back to the interpreter (enter/invoke, fillInts, readInt, error...).
+// A self tail call takes a new frame from tailEnter, reloads the variables
+// from it and jumps to the start.
+// With loopLimits, jumps back count down a local copy of the interpreter's ticks
+// and call checkLimits when it runs out.
+//
+// The class is written by hand (class file version 52). All locals are set before
+// the first jump target and the operand stack is empty at every one, so a single
+// full frame describes every entry of the StackMapTable.
+final class JitCompiler {
+    // HotSpot does not compile larger methods (-XX:HugeMethodLimit)
+    private static final int MAX_CODE = 8000;
+
+    private static final String INTERPRETER = "interpreter/FastInterpreter";
+    private static final String FRAME = "interpreter/Frame";
+    private static final String INTERPRETER_DESC = "L" + INTERPRETER + ";";
+    private static final String FRAME_DESC = "L" + FRAME + ";";
+
+    // locals of run(): this, the interpreter, the frame, startPc, the edge
+    // counts of the function, jumps back left before checkLimits, then its
+    // variables
+    private static final int START = 3;
+    private static final int COUNTS = 4;
+    private static final int TICKS = 5;
+    private static final int FIRST_VARIABLE = 6;
+
+    private final LinkedProgram program;
+    private final LoweredFunction function;
+    private final String className;
+    private final boolean loopLimits;
+    private final ConstantPool pool = new ConstantPool();
+    private final Bytecode out = new Bytecode();
+
+    private int firstFloat;
+    private int firstArray;
+    private int maxLocals;
+
+    // code offset -> label, for the jump targets
+    private final Map<Integer, Integer> targets = new TreeMap<>();
+    // out-of-line error calls
+    private final List<int[]> errorStubs = new ArrayList<>();    // label, pc, message index
+    private final List<String> errorMessages = new ArrayList<>();
+
+    JitCompiler(LinkedProgram program, LoweredFunction function, boolean loopLimits) {
+        this.program = program;
+        this.function = function;
+        this.loopLimits = loopLimits;
+        this.className = "interpreter/Compiled" + function.index;
+    }
+
+    // the class file, or null if the function is too large to be worth compiling
+    byte[] compile() {
+        firstFloat = FIRST_VARIABLE + function.numIntVariables;
+        firstArray = firstFloat + function.numFloatVariables;
+        maxLocals = firstArray + function.numArrays;
+
+        int[] code = function.code;
+        targets.put(0, out.newLabel());
+        for (int pc = 0; pc < code.length; pc += Op.length(code, pc)) {
+            if (code[pc] == Op.GOTO)
+                target(code[pc + 1]);
+            else if (code[pc] >= Op.IBREQ && code[pc] <= Op.FBRGEQ)
+                target(code[pc + 3]);
+        }
+
+        prologue();
+        for (int pc = 0; pc < code.length; pc += Op.length(code, pc)) {
+            Integer label = targets.get(pc);
+            if (label != null)
+                out.mark(label);
+            instruction(code, pc);
+        }
+        for (int[] stub : errorStubs) {
+            out.mark(stub[0]);
+            out.op(Bytecode.ALOAD_1);
+            out.op(Bytecode.ALOAD_2);
+            pushInt(stub[1]);
+            out.op(Bytecode.LDC_W);
+            out.u2(pool.string(errorMessages.get(stub[2])));
+            invoke(Bytecode.INVOKEVIRTUAL, INTERPRETER, "error",
+                    "(" + FRAME_DESC + "ILjava/lang/String;)Lir/IRException;");
+            out.op(Bytecode.ATHROW);
+        }
+        if (out.size() > MAX_CODE)
+            return null;
+        out.resolve();
+        return classFile();
+    }
+
+    private void target(int pc) {
+        if (!targets.containsKey(pc))
+            targets.put(pc, out.newLabel());
+    }
+
+    // counts, ticks, variables, then the switch to startPc
+    private void prologue() {
+        out.op(Bytecode.ALOAD_1);
+        field(Bytecode.GETFIELD, INTERPRETER, "edgeCounts", "[[J");
+        pushInt(function.index);
+        out.op(Bytecode.AALOAD);
+        out.local(Bytecode.ASTORE, COUNTS);
+        loadTicks();
+        loadVariables();
+        out.local(Bytecode.ILOAD, START);
+        out.lookupSwitch(targets.get(0), targets);
+    }
+
+    private void loadVariables() {
+        for (int s = 0; s < function.numIntVariables; s++) {
+            out.op(Bytecode.ALOAD_2);
+            field(Bytecode.GETFIELD, FRAME, "ints", "[I");
+            pushInt(s);
+            out.op(Bytecode.IALOAD);
+            out.local(Bytecode.ISTORE, FIRST_VARIABLE + s);
+        }
+        for (int s = 0; s < function.numFloatVariables; s++) {
+            out.op(Bytecode.ALOAD_2);
+            field(Bytecode.GETFIELD, FRAME, "floats", "[F");
+            pushInt(s);
+            out.op(Bytecode.FALOAD);
+            out.local(Bytecode.FSTORE, firstFloat + s);
+        }
+        for (int s = 0; s < function.numArrays; s++) {
+            out.op(Bytecode.ALOAD_2);
+            field(Bytecode.GETFIELD, FRAME, "arrays", "[Ljava/lang/Object;");
+            pushInt(s);
+            out.op(Bytecode.AALOAD);
+            out.op(Bytecode.CHECKCAST);
+            out.u2(pool.classRef(function.floatArray[s] ? "[F" : "[I"));
+            out.local(Bytecode.ASTORE, firstArray + s);
+        }
+    }
+
+    // a superinstruction is compiled as the two instructions it is made of
+    private void instruction(int[] code, int pc) {
+        switch (Op.base(code[pc])) {
+            case Op.IMOV:
+                loadInt(code[pc + 2]);
+                storeInt(code[pc + 1]);
+                break;
+            case Op.FMOV:
+                loadFloat(code[pc + 2]);
+                storeFloat(code[pc + 1]);
+                break;
+            case Op.IADD:
+                intArithmetic(code, pc, Bytecode.IADD);
+                break;
+            case Op.ISUB:
+                intArithmetic(code, pc, Bytecode.ISUB);
+                break;
+            case Op.IMUL:
+                intArithmetic(code, pc, Bytecode.IMUL);
+                break;
+            case Op.IDIV:
+                if (!isIntConstant(code[pc + 3]) || intConstant(code[pc + 3]) == 0) {
+                    loadInt(code[pc + 3]);
+                    out.jump(Bytecode.IFEQ, error(pc, "Division by zero"));
+                }
+                intArithmetic(code, pc, Bytecode.IDIV);
+                break;
+            case Op.IAND:
+                intArithmetic(code, pc, Bytecode.IAND);
+                break;
+            case Op.IOR:
+                intArithmetic(code, pc, Bytecode.IOR);
+                break;
+            case Op.FADD:
+                floatArithmetic(code, pc, Bytecode.FADD);
+                break;
+            case Op.FSUB:
+                floatArithmetic(code, pc, Bytecode.FSUB);
+                break;
+            case Op.FMUL:
+                floatArithmetic(code, pc, Bytecode.FMUL);
+                break;
+            case Op.FDIV:
+                floatArithmetic(code, pc, Bytecode.FDIV);
+                break;
+
+            case Op.GOTO:
+                count(code[pc + 2]);
+                backEdge(pc, code[pc + 1]);
+                out.jump(Bytecode.GOTO, targets.get(code[pc + 1]));
+                break;
+            case Op.ENTER:
+                count(code[pc + 1]);
+                break;
+
+            case Op.CALL:
+                call(code, pc);
+                break;
+            case Op.TAILCALL:
+                out.op(Bytecode.ALOAD_1);
+                out.op(Bytecode.ALOAD_2);
+                pushInt(pc);
+                invoke(Bytecode.INVOKEVIRTUAL, INTERPRETER, "tailEnter", "(" + FRAME_DESC + "I)" + FRAME_DESC);
+                passArguments(function, code, pc);
+                out.local(Bytecode.ASTORE, 2);
+                loadVariables();
+                out.jump(Bytecode.GOTO, targets.get(0));
+                break;
+            case Op.IRET:
+                out.op(Bytecode.ALOAD_1);
+                loadInt(code[pc + 1]);
+                field(Bytecode.PUTFIELD, INTERPRETER, "intResult", "I");
+                out.op(Bytecode.RETURN);
+                break;
+            case Op.FRET:
+                out.op(Bytecode.ALOAD_1);
+                loadFloat(code[pc + 1]);
+                field(Bytecode.PUTFIELD, INTERPRETER, "floatResult", "F");
+                out.op(Bytecode.RETURN);
+                break;
+            case Op.RET:
+                if (function.returnKind != LoweredFunction.NONE)
+                    out.jump(Bytecode.GOTO, error(pc, "Missing return for a function with return value"));
+                else
+                    out.op(Bytecode.RETURN);
+                break;
+
+            case Op.IALOAD:
+            case Op.FALOAD: {
+                boolean isFloat = code[pc] == Op.FALOAD;
+                boundsCheck(pc, code[pc + 2], code[pc + 3]);
+                out.local(Bytecode.ALOAD, firstArray + code[pc + 2]);
+                loadInt(code[pc + 3]);
+                out.op(isFloat ? Bytecode.FALOAD : Bytecode.IALOAD);
+                if (isFloat)
+                    storeFloat(code[pc + 1]);
+                else
+                    storeInt(code[pc + 1]);
+                break;
+            }
+            case Op.IASTORE:
+            case Op.FASTORE: {
+                boolean isFloat = code[pc] == Op.FASTORE;
+                boundsCheck(pc, code[pc + 2], code[pc + 3]);
+                out.local(Bytecode.ALOAD, firstArray + code[pc + 2]);
+                loadInt(code[pc + 3]);
+                if (isFloat)
+                    loadFloat(code[pc + 1]);
+                else
+                    loadInt(code[pc + 1]);
+                out.op(isFloat ? Bytecode.FASTORE : Bytecode.IASTORE);
+                break;
+            }
+            case Op.IAFILL:
+            case Op.FAFILL: {
+                boolean isFloat = code[pc] == Op.FAFILL;
+                out.op(Bytecode.ALOAD_1);
+                out.op(Bytecode.ALOAD_2);
+                pushInt(pc);
+                out.local(Bytecode.ALOAD, firstArray + code[pc + 1]);
+                loadInt(code[pc + 2]);
+                if (isFloat) {
+                    loadFloat(code[pc + 3]);
+                    invoke(Bytecode.INVOKEVIRTUAL, INTERPRETER, "fillFloats", "(" + FRAME_DESC + "I[FIF)V");
+                } else {
+                    loadInt(code[pc + 3]);
+                    invoke(Bytecode.INVOKEVIRTUAL, INTERPRETER, "fillInts", "(" + FRAME_DESC + "I[III)V");
+                }
+                break;
+            }
+
+            case Op.GETI:
+                out.op(Bytecode.ALOAD_1);
+                out.op(Bytecode.ALOAD_2);
+                pushInt(pc);
+                invoke(Bytecode.INVOKEVIRTUAL, INTERPRETER, "readInt", "(" + FRAME_DESC + "I)I");
+                storeInt(code[pc + 1]);
+                break;
+            case Op.GETF:
+                out.op(Bytecode.ALOAD_1);
+                out.op(Bytecode.ALOAD_2);
+                pushInt(pc);
+                invoke(Bytecode.INVOKEVIRTUAL, INTERPRETER, "readFloat", "(" + FRAME_DESC + "I)F");
+                storeFloat(code[pc + 1]);
+                break;
+            case Op.GETC:
+                out.op(Bytecode.ALOAD_1);
+                invoke(Bytecode.INVOKEVIRTUAL, INTERPRETER, "readChar", "()I");
+                storeInt(code[pc + 1]);
+                break;
+            case Op.PUTI:
+                out.op(Bytecode.ALOAD_1);
+                loadInt(code[pc + 1]);
+                invoke(Bytecode.INVOKEVIRTUAL, INTERPRETER, "putInt", "(I)V");
+                break;
+            case Op.PUTF:
+                out.op(Bytecode.ALOAD_1);
+                loadFloat(code[pc + 1]);
+                invoke(Bytecode.INVOKEVIRTUAL, INTERPRETER, "putFloat", "(F)V");
+                break;
+            case Op.PUTC:
+                out.op(Bytecode.ALOAD_1);
+                loadInt(code[pc + 1]);
+                invoke(Bytecode.INVOKEVIRTUAL, INTERPRETER, "putChar", "(I)V");
+                break;
+            case Op.UNDEFINED:
+                out.jump(Bytecode.GOTO, error(pc,
+                        String.format("Undefined reference to function '%s'", function.names[code[pc + 1]])));
+                break;
+
+            default:
+                if (code[pc] >= Op.IBREQ && code[pc] <= Op.FBRGEQ)
+                    branch(code, pc);
+                else
+                    throw new IllegalStateException("bad opcode " + code[pc] + " in " + function.name);
+        }
+    }
+
+    private void intArithmetic(int[] code, int pc, int opcode) {
+        loadInt(code[pc + 2]);
+        loadInt(code[pc + 3]);
+        out.op(opcode);
+        storeInt(code[pc + 1]);
+    }
+
+    private void floatArithmetic(int[] code, int pc, int opcode) {
+        loadFloat(code[pc + 2]);
+        loadFloat(code[pc + 3]);
+        out.op(opcode);
+        storeFloat(code[pc + 1]);
+    }
+
+    // jumps over the taken path when the condition does not hold
+    private void branch(int[] code, int pc) {
+        int op = code[pc];
+        int notTaken = out.newLabel();
+        if (op <= Op.IBRGEQ) {
+            loadInt(code[pc + 1]);
+            loadInt(code[pc + 2]);
+            int[] negated = {Bytecode.IF_ICMPNE, Bytecode.IF_ICMPEQ, Bytecode.IF_ICMPGE, Bytecode.IF_ICMPLE,
+                    Bytecode.IF_ICMPGT, Bytecode.IF_ICMPLT};
+            out.jump(negated[op - Op.IBREQ], notTaken);
+        } else {
+            // as javac compiles float comparisons: a NaN operand never takes the branch
+            // (but does take brneq)
+            loadFloat(code[pc + 1]);
+            loadFloat(code[pc + 2]);
+            int[] compare = {Bytecode.FCMPL, Bytecode.FCMPL, Bytecode.FCMPG, Bytecode.FCMPL, Bytecode.FCMPG,
+                    Bytecode.FCMPL};
+            int[] negated = {Bytecode.IFNE, Bytecode.IFEQ, Bytecode.IFGE, Bytecode.IFLE, Bytecode.IFGT,
+                    Bytecode.IFLT};
+            out.op(compare[op - Op.FBREQ]);
+            out.jump(negated[op - Op.FBREQ], notTaken);
+        }
+        count(code[pc + 4]);
+        backEdge(pc, code[pc + 3]);
+        out.jump(Bytecode.GOTO, targets.get(code[pc + 3]));
+        out.mark(notTaken);
+        count(code[pc + 5]);
+    }
+
+    private void call(int[] code, int pc) {
+        LoweredFunction callee = program.functions[code[pc + 1]];
+        out.op(Bytecode.ALOAD_1);
+        out.op(Bytecode.ALOAD_2);
+        pushInt(pc);
+        pushInt(callee.index);
+        invoke(Bytecode.INVOKEVIRTUAL, INTERPRETER, "enter", "(" + FRAME_DESC + "II)" + FRAME_DESC);
+        passArguments(callee, code, pc);
+        out.op(Bytecode.ALOAD_1);
+        out.op(Bytecode.SWAP);
+        invoke(Bytecode.INVOKEVIRTUAL, INTERPRETER, "invoke", "(" + FRAME_DESC + ")V");
+        int result = code[pc + 2];
+        if (result >= 0 && callee.returnKind == LoweredFunction.INT) {
+            out.op(Bytecode.ALOAD_1);
+            field(Bytecode.GETFIELD, INTERPRETER, "intResult", "I");
+            storeInt(result);
+        } else if (result >= 0 && callee.returnKind == LoweredFunction.FLOAT) {
+            out.op(Bytecode.ALOAD_1);
+            field(Bytecode.GETFIELD, INTERPRETER, "floatResult", "F");
+            storeFloat(result);
+        }
+    }
+
+    // stores the arguments of the call at pc in the frame of callee on top of
+    // the operand stack, leaving it there
+    private void passArguments(LoweredFunction callee, int[] code, int pc) {
+        int argc = code[pc + 3];
+        for (int k = 0; k < argc; k++) {
+            int from = code[pc + 4 + k];
+            out.op(Bytecode.DUP);
+            switch (callee.paramKind[k]) {
+                case LoweredFunction.INT:
+                    field(Bytecode.GETFIELD, FRAME, "ints", "[I");
+                    pushInt(callee.paramSlot[k]);
+                    loadInt(from);
+                    out.op(Bytecode.IASTORE);
+                    break;
+                case LoweredFunction.FLOAT:
+                    field(Bytecode.GETFIELD, FRAME, "floats", "[F");
+                    pushInt(callee.paramSlot[k]);
+                    loadFloat(from);
+                    out.op(Bytecode.FASTORE);
+                    break;
+                default:
+                    field(Bytecode.GETFIELD, FRAME, "arrays", "[Ljava/lang/Object;");
+                    pushInt(callee.paramSlot[k]);
+                    out.local(Bytecode.ALOAD, firstArray + from);
+                    out.op(Bytecode.AASTORE);
+            }
+        }
+    }
+
+    // a jump back to target counts down to the next check of the limits
+    private void backEdge(int pc, int target) {
+        if (!loopLimits || target > pc)
+            return;
+        int skip = out.newLabel();
+        out.op(Bytecode.IINC);
+        out.u1(TICKS);
+        out.u1(-1);
+        out.local(Bytecode.ILOAD, TICKS);
+        out.jump(Bytecode.IFGE, skip);
+        out.op(Bytecode.ALOAD_1);
+        out.op(Bytecode.ALOAD_2);
+        pushInt(pc);
+        invoke(Bytecode.INVOKEVIRTUAL, INTERPRETER, "checkLimits", "(" + FRAME_DESC + "I)V");
+        loadTicks();
+        out.mark(skip);
+    }
+
+    private void loadTicks() {
+        out.op(Bytecode.ALOAD_1);
+        field(Bytecode.GETFIELD, INTERPRETER, "ticks", "I");
+        out.local(Bytecode.ISTORE, TICKS);
+    }
+
+    private void boundsCheck(int pc, int array, int index) {
+        int fail = error(pc, "Out-of-bounds array access");
+        if (!isIntConstant(index) || intConstant(index) < 0) {
+            loadInt(index);
+            out.jump(Bytecode.IFLT, fail);
+        }
+        loadInt(index);
+        out.local(Bytecode.ALOAD, firstArray + array);
+        out.op(Bytecode.ARRAYLENGTH);
+        out.jump(Bytecode.IF_ICMPGE, fail);
+    }
+
+    // label of an error call, emitted after the code
+    private int error(int pc, String message) {
+        int label = out.newLabel();
+        int index = errorMessages.indexOf(message);
+        if (index < 0) {
+            index = errorMessages.size();
+            errorMessages.add(message);
+        }
+        errorStubs.add(new int[]{label, pc, index});
+        return label;
+    }
+
+    private void count(int edge) {
+        out.local(Bytecode.ALOAD, COUNTS);
+        pushInt(edge);
+        out.op(Bytecode.DUP2);
+        out.op(Bytecode.LALOAD);
+        out.op(Bytecode.LCONST_1);
+        out.op(Bytecode.LADD);
+        out.op(Bytecode.LASTORE);
+    }
+
+    private boolean isIntConstant(int slot) {
+        return slot >= function.numIntVariables;
+    }
+
+    private int intConstant(int slot) {
+        return function.intTemplate[slot];
+    }
+
+    // an int operand: a variable or a constant
+    private void loadInt(int slot) {
+        if (isIntConstant(slot))
+            pushInt(intConstant(slot));
+        else
+            out.local(Bytecode.ILOAD, FIRST_VARIABLE + slot);
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            out.op(Bytecode.ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            out.op(Bytecode.BIPUSH);
+            out.u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            out.op(Bytecode.SIPUSH);
+            out.u2(value);
+        } else {
+            out.op(Bytecode.LDC_W);
+            out.u2(pool.intConstant(value));
+        }
+    }
+
+    private void loadFloat(int slot) {
+        if (slot < function.numFloatVariables) {
+            out.local(Bytecode.FLOAD, firstFloat + slot);
+            return;
+        }
+        float value = function.floatTemplate[slot];
+        if (Float.floatToIntBits(value) == 0)
+            out.op(Bytecode.FCONST_0);
+        else if (value == 1)
+            out.op(Bytecode.FCONST_1);
+        else if (value == 2)
+            out.op(Bytecode.FCONST_2);
+        else {
+            out.op(Bytecode.LDC_W);
+            out.u2(pool.floatConstant(value));
+        }
+    }
+
+    private void storeInt(int slot) {
+        out.local(Bytecode.ISTORE, FIRST_VARIABLE + slot);
+    }
+
+    private void storeFloat(int slot) {
+        out.local(Bytecode.FSTORE, firstFloat + slot);
+    }
+
+    private void field(int opcode, String owner, String name, String desc) {
+        out.op(opcode);
+        out.u2(pool.member(ConstantPool.FIELD, owner, name, desc));
+    }
+
+    private void invoke(int opcode, String owner, String name, String desc) {
+        out.op(opcode);
+        out.u2(pool.member(ConstantPool.METHOD, owner, name, desc));
+    }
+
+    private byte[] classFile() {
+        int thisClass = pool.classRef(className);
+        int superClass = pool.classRef("java/lang/Object");
+        int compiledCode = pool.classRef("interpreter/CompiledCode");
+        int objectInit = pool.member(ConstantPool.METHOD, "java/lang/Object", "<init>", "()V");
+        int codeName = pool.utf8("Code");
+        int initName = pool.utf8("<init>");
+        int initDesc = pool.utf8("()V");
+        int runName = pool.utf8("run");
+        int runDesc = pool.utf8("(" + INTERPRETER_DESC + FRAME_DESC + "I)V");
+        byte[] stackMap = stackMapTable();
+        int stackMapName = pool.utf8("StackMapTable");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        try {
+            data.writeInt(0xCAFEBABE);
+            data.writeShort(0);
+            data.writeShort(52);
+            pool.writeTo(data);
+            data.writeShort(0x0010 | 0x0020);         // final, super
+            data.writeShort(thisClass);
+            data.writeShort(superClass);
+            data.writeShort(1);
+            data.writeShort(compiledCode);
+            data.writeShort(0);                       // fields
+
+            data.writeShort(2);                       // methods
+            // public <init>() { super(); }
+            data.writeShort(0x0001);
+            data.writeShort(initName);
+            data.writeShort(initDesc);
+            data.writeShort(1);
+            data.writeShort(codeName);
+            data.writeInt(12 + 5);
+            data.writeShort(1);
+            data.writeShort(1);
+            data.writeInt(5);
+            data.writeByte(Bytecode.ALOAD_0);
+            data.writeByte(Bytecode.INVOKESPECIAL);
+            data.writeShort(objectInit);
+            data.writeByte(Bytecode.RETURN);
+            data.writeShort(0);
+            data.writeShort(0);
+
+            // public void run(FastInterpreter, Frame, int)
+            byte[] code = out.toArray();
+            data.writeShort(0x0001);
+            data.writeShort(runName);
+            data.writeShort(runDesc);
+            data.writeShort(1);
+            data.writeShort(codeName);
+            data.writeInt(12 + code.length + 6 + stackMap.length);
+            data.writeShort(8);                       // max stack
+            data.writeShort(maxLocals);
+            data.writeInt(code.length);
+            data.write(code);
+            data.writeShort(0);                       // exception table
+            data.writeShort(1);
+            data.writeShort(stackMapName);
+            data.writeInt(stackMap.length);
+            data.write(stackMap);
+
+            data.writeShort(0);                       // class attributes
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // the same full frame at every offset that needs one
+    private byte[] stackMapTable() {
+        ByteArrayOutputStream locals = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(locals);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream table = new DataOutputStream(bytes);
+        try {
+            objectType(data, className);
+            objectType(data, INTERPRETER);
+            objectType(data, FRAME);
+            data.writeByte(1);                        // startPc: int
+            objectType(data, "[J");
+            data.writeByte(1);                        // ticks: int
+            for (int s = 0; s < function.numIntVariables; s++)
+                data.writeByte(1);
+            for (int s = 0; s < function.numFloatVariables; s++)
+                data.writeByte(2);
+            for (int s = 0; s < function.numArrays; s++)
+                objectType(data, function.floatArray[s] ? "[F" : "[I");
+
+            Set<Integer> offsets = out.getFrames();
+            table.writeShort(offsets.size());
+            int previous = -1;
+            for (int offset : offsets) {
+                table.writeByte(255);
+                table.writeShort(offset - previous - 1);
+                table.writeShort(maxLocals);
+                table.write(locals.toByteArray());
+                table.writeShort(0);
+                previous = offset;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void objectType(DataOutputStream data, String name) throws IOException {
+        data.writeByte(7);
+        data.writeShort(pool.classRef(name));
+    }
+}
@@ -0,0 +1,12 @@
+package interpreter;
+
+import ir.IRException;
+
+// A run stopped by one of its Limits rather than by an error of the program.
+// It has been reported like a runtime error, and the counts of the run are
+// those up to where it stopped.
+public class LimitExceededException extends IRException {
+
+    public LimitExceededException(String s) { super(s); }
+
+}
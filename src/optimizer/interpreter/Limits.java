@@ -0,0 +1,21 @@
+package interpreter;
+
+// Bounds on a run of an IR program, for running programs that may not stop.
+// A run that goes past one stops with a LimitExceededException; 0 means no
+// bound. The instruction and time limits are checked every few thousand jumps
+// back and calls, so a run stops a little after it has gone past them.
+public final class Limits {
+    public static final int DEFAULT_MAX_DEPTH = 1000000;
+
+    // non-label IR instructions executed
+    public long maxInstructions;
+
+    // wall-clock time of the run
+    public long maxMillis;
+
+    // function calls active at once
+    public int maxDepth = DEFAULT_MAX_DEPTH;
+
+    // bytes of the int and float arrays of the frames of the run
+    public long maxArrayBytes;
+}
@@ -0,0 +1,29 @@
+package interpreter;
+
+import ir.IRException;
+import ir.IRProgram;
+
+// A program lowered for FastInterpreter: every function in lowered form, with
+// calls resolved. It is not changed by running it, so one LinkedProgram can be
+// run any number of times.
+public final class LinkedProgram {
+    final LoweredFunction[] functions;
+    final LoweredFunction main;
+
+    public LinkedProgram(IRProgram program) throws IRException {
+        this(program, true);
+    }
+
+    // superinstructions false lowers every IR instruction on its own
+    public LinkedProgram(IRProgram program, boolean superinstructions) throws IRException {
+        functions = Lowering.lower(program.functions, superinstructions);
+        LoweredFunction found = null;
+        for (LoweredFunction function : functions) {
+            if (function.name.equals("main"))
+                found = function;
+        }
+        if (found == null)
+            throw new IRException("Undefined reference to function 'main'");
+        main = found;
+    }
+}
@@ -0,0 +1,101 @@
+package interpreter;
+
+import ir.IRFunction;
+
+import java.util.Arrays;
+
+// One function lowered for the interpreter: its code, the layout of its frame and
+// the blocks the code is counted by.
+//
+// A frame has an int part, a float part and an array part. Scalar variables take
+// the first slots of the int and float parts, constants the slots after them, and
+// a new frame starts as a copy of the templates (variables 0, constants set).
+// Arrays that are not parameters are allocated with the frame. A frame that
+// returned can be reset and used for another call of the function.
+final class LoweredFunction {
+    // kinds of parameters and return values
+    static final int NONE = -1;
+    static final int INT = 0;
+    static final int FLOAT = 1;
+    static final int ARRAY = 2;
+
+    final IRFunction source;
+    final String name;
+    final int index;
+    final int returnKind;
+
+    int[] code;
+    int[] lines;              // code offset -> IR line of the instruction it came from
+
+    int[] intTemplate;
+    float[] floatTemplate;
+    int numIntVariables;      // slots before these hold variables, after them constants
+    int numFloatVariables;
+    int numArrays;
+    boolean[] floatArray;     // array slot -> holds a float[]
+    int[] paramKind;
+    int[] paramSlot;
+    int[] localArraySlot;     // arrays allocated with the frame
+    int[] localArraySize;
+    boolean[] localArrayFloat;
+    long arrayBytes;          // of the local arrays, 4 per element
+
+    // block -> IR instructions it executes, per OpCode ordinal; block 0 is the
+    // entry, and the last block the (empty) end of the function
+    int[][] blockOps;
+    int[] blockLines;         // block -> IR line of its first instruction, -1 for the end
+    int[] blockOf;            // IR instruction index -> block
+
+    // CFG edges, counted by the jumps, branches and ENTERs that take them; edge 0
+    // is the call that enters the function, from no block (-1)
+    int[] edgeFrom;
+    int[] edgeTo;
+    int[] edgeLength;         // edge -> non-label IR instructions of the block it enters
+    String[] names;           // operands of UNDEFINED
+
+    // the superinstructions of the code and their blocks
+    int[] superOps;
+    int[] superBlocks;
+
+    LoweredFunction(IRFunction source, int index, int returnKind) {
+        this.source = source;
+        this.name = source.name;
+        this.index = index;
+        this.returnKind = returnKind;
+    }
+
+    int numBlocks() {
+        return blockOps.length;
+    }
+
+    int numEdges() {
+        return edgeTo.length;
+    }
+
+    // a frame for a call, parameters not yet set
+    Frame newFrame() {
+        Frame frame = new Frame(this);
+        frame.ints = intTemplate.clone();
+        frame.floats = floatTemplate.clone();
+        frame.arrays = new Object[numArrays];
+        for (int i = 0; i < localArraySlot.length; i++) {
+            if (localArrayFloat[i])
+                frame.arrays[localArraySlot[i]] = new float[localArraySize[i]];
+            else
+                frame.arrays[localArraySlot[i]] = new int[localArraySize[i]];
+        }
+        return frame;
+    }
+
+    // makes a frame that returned like a new one, for another call
+    void reset(Frame frame) {
+        Arrays.fill(frame.ints, 0, numIntVariables, 0);
+        Arrays.fill(frame.floats, 0, numFloatVariables, 0);
+        for (int i = 0; i < localArraySlot.length; i++) {
+            if (localArrayFloat[i])
+                Arrays.fill((float[]) frame.arrays[localArraySlot[i]], 0);
+            else
+                Arrays.fill((int[]) frame.arrays[localArraySlot[i]], 0);
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package interpreter;
+
+import ir.*;
+import ir.IRInstruction.OpCode;
+import ir.datatype.*;
+import ir.operand.*;
+
+import java.util.*;
+
+// Lowers the functions of a program to interpreter code, in two steps: the frame
+// layout of every function first, so calls can be resolved to the layout of the
+// callee, then the code of each function.
+//
+// Labels produce no code. The blocks are the usual ones (a label or the
+// instruction after a jump or return starts one), plus a last, empty block for
+// the end of the function. Every jump, branch direction and ENTER is an edge of
+// the CFG and counts itself when taken; a block is entered as often as the edges
+// into it are taken, and its IR instructions are counted from that.
+//
+// Pairs of instructions of a block that often come together in loops (see
+// Op.fuse) are made superinstructions, left to right, an instruction being part
+// of at most one. Since a block runs whole, a superinstruction runs as often as
+// its block, which gives its count without counting it.
+//
+// A call of a function to itself right before it returns is a TAILCALL, as the
+// tree-walking IRInterpreter finds them: a call followed only by labels up to
+// the end of a void function, or a callr followed by labels and a return of
+// its result, that passes no local array of the caller. The ENTERs between it
+// and the return stay in the code for the interpreter to count.
+final class Lowering {
+    private final Map<String, LoweredFunction> byName;
+    private final LoweredFunction lowered;
+    private final boolean superinstructions;
+
+    // frame layout
+    private Map<String, Integer> slots;
+    private List<Integer> intConstants;
+    private List<Float> floatConstants;
+    private Map<Integer, Integer> intConstantSlot;
+    private Map<Integer, Integer> floatConstantSlot;   // by bits
+    private int numInts;
+    private int numFloats;
+
+    // code
+    private int[] code;
+    private int[] lines;
+    private int pc;
+    private int line;                                  // of the instruction being lowered
+    private List<Integer> edgeFrom;
+    private List<Integer> edgeTo;
+
+    private Lowering(Map<String, LoweredFunction> byName, LoweredFunction lowered, boolean superinstructions) {
+        this.byName = byName;
+        this.lowered = lowered;
+        this.superinstructions = superinstructions;
+    }
+
+    static LoweredFunction[] lower(List<IRFunction> functions, boolean superinstructions) throws IRException {
+        LoweredFunction[] result = new LoweredFunction[functions.size()];
+        Lowering[] lowerings = new Lowering[functions.size()];
+        Map<String, LoweredFunction> byName = new HashMap<>();
+        for (int i = 0; i < result.length; i++) {
+            IRFunction function = functions.get(i);
+            result[i] = new LoweredFunction(function, i, kindOf(function.returnType));
+            lowerings[i] = new Lowering(byName, result[i], superinstructions);
+            byName.put(function.name, result[i]);
+        }
+        for (Lowering lowering : lowerings)
+            lowering.layout();
+        for (Lowering lowering : lowerings)
+            lowering.emit();
+        return result;
+    }
+
+    private static int kindOf(IRType type) {
+        if (type == null)
+            return LoweredFunction.NONE;
+        if (type instanceof IRArrayType)
+            return LoweredFunction.ARRAY;
+        return type == IRFloatType.get() ? LoweredFunction.FLOAT : LoweredFunction.INT;
+    }
+
+    // slots of the variables and parameters; constants get theirs in emit()
+    private void layout() {
+        IRFunction function = lowered.source;
+        int numArrays = 0;
+        List<IRVariableOperand> localArrays = new ArrayList<>();
+        Set<String> params = new HashSet<>();
+        for (IRVariableOperand param : function.parameters)
+            params.add(param.getName());
+        slots = new HashMap<>();
+        List<Boolean> floatArray = new ArrayList<>();
+        for (IRVariableOperand variable : function.variables) {
+            switch (kindOf(variable.type)) {
+                case LoweredFunction.ARRAY:
+                    slots.put(variable.getName(), numArrays++);
+                    floatArray.add(((IRArrayType) variable.type).getElementType() == IRFloatType.get());
+                    if (!params.contains(variable.getName()))
+                        localArrays.add(variable);
+                    break;
+                case LoweredFunction.FLOAT:
+                    slots.put(variable.getName(), numFloats++);
+                    break;
+                default:
+                    slots.put(variable.getName(), numInts++);
+            }
+        }
+        lowered.numArrays = numArrays;
+        lowered.floatArray = new boolean[numArrays];
+        for (int i = 0; i < numArrays; i++)
+            lowered.floatArray[i] = floatArray.get(i);
+        lowered.numIntVariables = numInts;
+        lowered.numFloatVariables = numFloats;
+
+        lowered.paramKind = new int[function.parameters.size()];
+        lowered.paramSlot = new int[function.parameters.size()];
+        for (int i = 0; i < lowered.paramKind.length; i++) {
+            IRVariableOperand param = function.parameters.get(i);
+            lowered.paramKind[i] = kindOf(param.type);
+            lowered.paramSlot[i] = slots.get(param.getName());
+        }
+
+        lowered.localArraySlot = new int[localArrays.size()];
+        lowered.localArraySize = new int[localArrays.size()];
+        lowered.localArrayFloat = new boolean[localArrays.size()];
+        for (int i = 0; i < localArrays.size(); i++) {
+            IRArrayType type = (IRArrayType) localArrays.get(i).type;
+            lowered.localArraySlot[i] = slots.get(localArrays.get(i).getName());
+            lowered.localArraySize[i] = type.getSize();
+            lowered.localArrayFloat[i] = type.getElementType() == IRFloatType.get();
+            lowered.arrayBytes += 4L * type.getSize();
+        }
+    }
+
+    private void emit() throws IRException {
+        IRFunction function = lowered.source;
+        List<IRInstruction> insts = function.getInstructions();
+        int n = insts.size();
+        intConstants = new ArrayList<>();
+        floatConstants = new ArrayList<>();
+        intConstantSlot = new HashMap<>();
+        floatConstantSlot = new HashMap<>();
+
+        // blocks
+        int[] blockOf = new int[n];
+        int numBlocks = 0;
+        Map<String, Integer> labelIndex = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            IRInstruction inst = insts.get(i);
+            if (i == 0 || inst.opCode == OpCode.LABEL || endsBlock(insts.get(i - 1)))
+                numBlocks++;
+            blockOf[i] = numBlocks - 1;
+            if (inst.opCode == OpCode.LABEL)
+                labelIndex.put(labelName(inst), i);
+        }
+        int endBlock = numBlocks;
+        lowered.blockOps = new int[numBlocks + 1][OpCode.values().length];
+        lowered.blockLines = new int[numBlocks + 1];
+        Arrays.fill(lowered.blockLines, -1);
+        for (int i = n - 1; i >= 0; i--) {
+            lowered.blockOps[blockOf[i]][insts.get(i).opCode.ordinal()]++;
+            lowered.blockLines[blockOf[i]] = insts.get(i).irLineNumber;
+        }
+        edgeFrom = new ArrayList<>();
+        edgeTo = new ArrayList<>();
+        edge(-1, 0);
+
+        code = new int[16];
+        lines = new int[16];
+        pc = 0;
+        List<String> names = new ArrayList<>();
+        Map<String, Integer> labelPc = new HashMap<>();
+        List<Integer> fixups = new ArrayList<>();         // offsets of jump targets
+        List<String> fixupLabels = new ArrayList<>();
+        List<Integer> fixupBlocks = new ArrayList<>();    // blocks of the jumps
+        List<Integer> superOps = new ArrayList<>();
+        List<Integer> superBlocks = new ArrayList<>();
+        int previous = -1;                                // pc of the instruction before, if it can be fused
+        for (int i = 0; i < n; i++) {
+            IRInstruction inst = insts.get(i);
+            line = inst.irLineNumber;
+            if (inst.opCode == OpCode.LABEL) {
+                if (i > 0 && !endsBlock(insts.get(i - 1)))
+                    put(Op.ENTER, edge(blockOf[i - 1], blockOf[i]));
+                labelPc.put(labelName(inst), pc);
+                previous = -1;
+                continue;
+            }
+            int start = pc;
+            IROperand[] ops = inst.operands;
+            switch (inst.opCode) {
+                case ASSIGN:
+                    if (ops.length > 2)
+                        put(isFloat(ops[2]) ? Op.FAFILL : Op.IAFILL, array(ops[0]), scalar(ops[1]),
+                                scalar(ops[2]));
+                    else
+                        put(isFloat(ops[0]) ? Op.FMOV : Op.IMOV, scalar(ops[0]), scalar(ops[1]));
+                    break;
+                case ADD:
+                case SUB:
+                case MULT:
+                case DIV:
+                case AND:
+                case OR:
+                    put(arithmetic(inst), scalar(ops[0]), scalar(ops[1]), scalar(ops[2]));
+                    break;
+                case GOTO:
+                    put(Op.GOTO, 0, 0);
+                    fixups.add(pc - 2);
+                    fixupLabels.add(labelName(inst));
+                    fixupBlocks.add(blockOf[i]);
+                    break;
+                case BREQ:
+                case BRNEQ:
+                case BRLT:
+                case BRGT:
+                case BRLEQ:
+                case BRGEQ: {
+                    int op = (isFloat(ops[1]) ? Op.FBREQ : Op.IBREQ) + (inst.opCode.ordinal() - OpCode.BREQ.ordinal());
+                    int fallthrough = i + 1 < n ? blockOf[i + 1] : endBlock;
+                    put(op, scalar(ops[1]), scalar(ops[2]), 0, 0, edge(blockOf[i], fallthrough));
+                    fixups.add(pc - 3);
+                    fixupLabels.add(labelName(inst));
+                    fixupBlocks.add(blockOf[i]);
+                    break;
+                }
+                case RETURN:
+                    put(isFloat(ops[0]) ? Op.FRET : Op.IRET, scalar(ops[0]));
+                    break;
+                case CALL:
+                case CALLR:
+                    emitCall(inst, isTailCall(insts, i), names);
+                    break;
+                case ARRAY_STORE:
+                    put(isFloat(ops[0]) ? Op.FASTORE : Op.IASTORE, scalar(ops[0]), array(ops[1]),
+                            scalar(ops[2]));
+                    break;
+                case ARRAY_LOAD:
+                    put(isFloat(ops[0]) ? Op.FALOAD : Op.IALOAD, scalar(ops[0]), array(ops[1]),
+                            scalar(ops[2]));
+                    break;
+                default:
+                    throw new IRException("Invalid OpCode", line);
+            }
+
+            int fused = superinstructions && previous >= 0 ? Op.fuse(code[previous], code[start]) : -1;
+            if (fused >= 0) {
+                code[previous] = fused;
+                superOps.add(fused);
+                superBlocks.add(blockOf[i]);
+                previous = -1;
+            } else {
+                previous = start;
+            }
+        }
+        line = n > 0 ? insts.get(n - 1).irLineNumber : -1;
+        put(Op.RET);
+
+        for (int k = 0; k < fixups.size(); k++) {
+            String label = fixupLabels.get(k);
+            code[fixups.get(k)] = labelPc.get(label);
+            code[fixups.get(k) + 1] = edge(fixupBlocks.get(k), blockOf[labelIndex.get(label)]);
+        }
+        int numEdges = edgeTo.size();
+        lowered.edgeFrom = new int[numEdges];
+        lowered.edgeTo = new int[numEdges];
+        lowered.edgeLength = new int[numEdges];
+        for (int e = 0; e < numEdges; e++) {
+            lowered.edgeFrom[e] = edgeFrom.get(e);
+            lowered.edgeTo[e] = edgeTo.get(e);
+            int[] ops = lowered.blockOps[edgeTo.get(e)];
+            for (OpCode opCode : OpCode.values()) {
+                if (opCode != OpCode.LABEL)
+                    lowered.edgeLength[e] += ops[opCode.ordinal()];
+            }
+        }
+        lowered.blockOf = blockOf;
+        lowered.superOps = superOps.stream().mapToInt(Integer::intValue).toArray();
+        lowered.superBlocks = superBlocks.stream().mapToInt(Integer::intValue).toArray();
+
+        lowered.code = Arrays.copyOf(code, pc);
+        lowered.lines = Arrays.copyOf(lines, pc);
+        lowered.names = names.toArray(new String[0]);
+        lowered.intTemplate = new int[numInts];
+        for (int k = 0; k < intConstants.size(); k++)
+            lowered.intTemplate[numInts - intConstants.size() + k] = intConstants.get(k);
+        lowered.floatTemplate = new float[numFloats];
+        for (int k = 0; k < floatConstants.size(); k++)
+            lowered.floatTemplate[numFloats - floatConstants.size() + k] = floatConstants.get(k);
+    }
+
+    private void emitCall(IRInstruction inst, boolean tail, List<String> names) throws IRException {
+        boolean hasResult = inst.opCode == OpCode.CALLR;
+        int first = hasResult ? 2 : 1;
+        String calleeName = ((IRFunctionOperand) inst.operands[first - 1]).getName();
+        int result = hasResult ? scalar(inst.operands[0]) : -1;
+        int argc = inst.operands.length - first;
+
+        LoweredFunction callee = byName.get(calleeName);
+        if (callee != null) {
+            int[] words = new int[3 + argc];
+            words[0] = callee.index;
+            words[1] = result;
+            words[2] = argc;
+            for (int k = 0; k < argc; k++) {
+                IROperand arg = inst.operands[first + k];
+                words[3 + k] = isArray(arg) ? array(arg) : scalar(arg);
+            }
+            put(tail ? Op.TAILCALL : Op.CALL, words);
+            return;
+        }
+
+        // intrinsics, when called with the right arguments
+        switch (calleeName) {
+            case "geti":
+            case "getf":
+            case "getc":
+                if (argc == 0) {
+                    int op = calleeName.equals("geti") ? Op.GETI : calleeName.equals("getf") ? Op.GETF : Op.GETC;
+                    put(op, result);
+                    return;
+                }
+                break;
+            case "puti":
+            case "putf":
+            case "putc":
+                if (argc == 1) {
+                    int op = calleeName.equals("puti") ? Op.PUTI : calleeName.equals("putf") ? Op.PUTF : Op.PUTC;
+                    put(op, scalar(inst.operands[first]));
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        names.add(calleeName);
+        put(Op.UNDEFINED, names.size() - 1);
+    }
+
+    // whether the call at i is a self tail call (see above)
+    private boolean isTailCall(List<IRInstruction> insts, int i) {
+        IRInstruction inst = insts.get(i);
+        boolean hasResult = inst.opCode == OpCode.CALLR;
+        int first = hasResult ? 2 : 1;
+        if (!((IRFunctionOperand) inst.operands[first - 1]).getName().equals(lowered.name))
+            return false;
+        for (int k = first; k < inst.operands.length; k++) {
+            IROperand arg = inst.operands[k];
+            if (isArray(arg) && !isParameter(arg))
+                return false;
+        }
+        int j = i + 1;
+        while (j < insts.size() && insts.get(j).opCode == OpCode.LABEL)
+            j++;
+        if (!hasResult)
+            return j == insts.size();
+        if (j == insts.size() || insts.get(j).opCode != OpCode.RETURN)
+            return false;
+        IROperand returned = insts.get(j).operands[0];
+        return returned instanceof IRVariableOperand && ((IRVariableOperand) returned).getName().equals(
+                ((IRVariableOperand) inst.operands[0]).getName());
+    }
+
+    private boolean isParameter(IROperand operand) {
+        String name = ((IRVariableOperand) operand).getName();
+        for (IRVariableOperand param : lowered.source.parameters) {
+            if (param.getName().equals(name))
+                return true;
+        }
+        return false;
+    }
+
+    // a new edge from block to block; returns its number
+    private int edge(int from, int to) {
+        edgeFrom.add(from);
+        edgeTo.add(to);
+        return edgeTo.size() - 1;
+    }
+
+    private static int arithmetic(IRInstruction inst) throws IRException {
+        boolean isFloat = isFloat(inst.operands[0]);
+        switch (inst.opCode) {
+            case ADD:
+                return isFloat ? Op.FADD : Op.IADD;
+            case SUB:
+                return isFloat ? Op.FSUB : Op.ISUB;
+            case MULT:
+                return isFloat ? Op.FMUL : Op.IMUL;
+            case DIV:
+                return isFloat ? Op.FDIV : Op.IDIV;
+            case AND:
+                if (!isFloat)
+                    return Op.IAND;
+                break;
+            case OR:
+                if (!isFloat)
+                    return Op.IOR;
+                break;
+            default:
+                break;
+        }
+        throw new IRException("Invalid operand", inst.irLineNumber);
+    }
+
+    private static boolean endsBlock(IRInstruction inst) {
+        switch (inst.opCode) {
+            case GOTO:
+            case BREQ:
+            case BRNEQ:
+            case BRLT:
+            case BRGT:
+            case BRLEQ:
+            case BRGEQ:
+            case RETURN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String labelName(IRInstruction inst) {
+        return ((IRLabelOperand) inst.operands[0]).getName();
+    }
+
+    private static IRType typeOf(IROperand operand) {
+        if (operand instanceof IRVariableOperand)
+            return ((IRVariableOperand) operand).type;
+        return ((IRConstantOperand) operand).type;
+    }
+
+    private static boolean isFloat(IROperand operand) {
+        return typeOf(operand) == IRFloatType.get();
+    }
+
+    private static boolean isArray(IROperand operand) {
+        return typeOf(operand) instanceof IRArrayType;
+    }
+
+    private int array(IROperand operand) {
+        return slots.get(((IRVariableOperand) operand).getName());
+    }
+
+    // slot of a scalar variable or constant
+    private int scalar(IROperand operand) throws IRException {
+        if (operand instanceof IRVariableOperand)
+            return slots.get(((IRVariableOperand) operand).getName());
+        IRConstantOperand constant = (IRConstantOperand) operand;
+        try {
+            if (constant.type == IRFloatType.get()) {
+                float value = Float.parseFloat(constant.getValueString());
+                Integer slot = floatConstantSlot.get(Float.floatToIntBits(value));
+                if (slot == null) {
+                    slot = numFloats++;
+                    floatConstants.add(value);
+                    floatConstantSlot.put(Float.floatToIntBits(value), slot);
+                }
+                return slot;
+            }
+            int value = Integer.parseInt(constant.getValueString());
+            Integer slot = intConstantSlot.get(value);
+            if (slot == null) {
+                slot = numInts++;
+                intConstants.add(value);
+                intConstantSlot.put(value, slot);
+            }
+            return slot;
+        } catch (NumberFormatException e) {
+            throw new IRException(String.format("Invalid constant '%s'", constant.getValueString()), line);
+        }
+    }
+
+    private void put(int op, int... operands) {
+        if (pc + 1 + operands.length > code.length) {
+            int size = Math.max(code.length * 2, pc + 1 + operands.length);
+            code = Arrays.copyOf(code, size);
+            lines = Arrays.copyOf(lines, size);
+        }
+        lines[pc] = line;
+        code[pc++] = op;
+        for (int operand : operands) {
+            lines[pc] = line;
+            code[pc++] = operand;
+        }
+    }
+}
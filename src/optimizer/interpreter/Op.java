@@ -0,0 +1,180 @@
+package interpreter;
+
+// Opcodes of lowered code. An instruction is its opcode followed by its operand
+// words; scalar operands are slots of the int or float part of the frame (constants
+// included), array operands slots of its array part. Jump targets are code
+// offsets; every jump also names the CFG edge it takes, which the interpreter
+// counts.
+final class Op {
+    // d, s
+    static final int IMOV = 0;
+    static final int FMOV = 1;
+
+    // d, a, b
+    static final int IADD = 2;
+    static final int ISUB = 3;
+    static final int IMUL = 4;
+    static final int IDIV = 5;
+    static final int IAND = 6;
+    static final int IOR = 7;
+    static final int FADD = 8;
+    static final int FSUB = 9;
+    static final int FMUL = 10;
+    static final int FDIV = 11;
+
+    // target, edge
+    static final int GOTO = 12;
+
+    // a, b, target, taken edge, fallthrough edge
+    static final int IBREQ = 13;
+    static final int IBRNEQ = 14;
+    static final int IBRLT = 15;
+    static final int IBRGT = 16;
+    static final int IBRLEQ = 17;
+    static final int IBRGEQ = 18;
+    static final int FBREQ = 19;
+    static final int FBRNEQ = 20;
+    static final int FBRLT = 21;
+    static final int FBRGT = 22;
+    static final int FBRLEQ = 23;
+    static final int FBRGEQ = 24;
+
+    // edge: falling into a block that starts with a label
+    static final int ENTER = 25;
+
+    // callee, return slot (-1 for none), argument count, argument slots...
+    static final int CALL = 26;
+
+    // s
+    static final int IRET = 27;
+    static final int FRET = 28;
+    // falling off the end of the function
+    static final int RET = 29;
+
+    // d, array, index
+    static final int IALOAD = 30;
+    static final int FALOAD = 31;
+    // value, array, index
+    static final int IASTORE = 32;
+    static final int FASTORE = 33;
+    // array, count, value
+    static final int IAFILL = 34;
+    static final int FAFILL = 35;
+
+    // d (-1 to discard)
+    static final int GETI = 36;
+    static final int GETF = 37;
+    static final int GETC = 38;
+    // s
+    static final int PUTI = 39;
+    static final int PUTF = 40;
+    static final int PUTC = 41;
+
+    // name index: a call to a function that does not exist
+    static final int UNDEFINED = 42;
+
+    // words of a CALL: a call of the function to itself right before it
+    // returns (see Lowering), run in place of the caller's frame
+    static final int TAILCALL = 43;
+
+    // Superinstructions: the first of two instructions of a block that the
+    // interpreter runs with one dispatch (see Lowering). Only the opcode of the
+    // first instruction changes; the words of both stay as they were, so code
+    // other than the interpreter's dispatch reads it as base(op) and the second
+    // instruction as itself.
+    static final int IADD_IALOAD = 44;   // then IALOAD
+    static final int ISUB_IALOAD = 45;
+    static final int IADD_IBR = 46;      // then IBREQ..IBRGEQ
+    static final int ISUB_IBR = 47;
+    static final int IMOV_IBR = 48;
+    static final int IALOAD_IBR = 49;
+    static final int IADD_GOTO = 50;     // then GOTO
+
+    static final int FIRST_SUPER = IADD_IALOAD;
+    static final int NUM_OPS = IADD_GOTO + 1;
+
+    // names of the superinstructions, from FIRST_SUPER
+    static final String[] SUPER_NAMES = {
+            "add+array_load", "sub+array_load", "add+branch", "sub+branch", "assign+branch",
+            "array_load+branch", "add+goto"
+    };
+
+    private Op() {}
+
+    // the opcode a superinstruction starts with, op itself for the others
+    static int base(int op) {
+        switch (op) {
+            case IADD_IALOAD:
+            case IADD_IBR:
+            case IADD_GOTO:
+                return IADD;
+            case ISUB_IALOAD:
+            case ISUB_IBR:
+                return ISUB;
+            case IMOV_IBR:
+                return IMOV;
+            case IALOAD_IBR:
+                return IALOAD;
+            default:
+                return op;
+        }
+    }
+
+    // the superinstruction for the instructions first and second, or -1
+    static int fuse(int first, int second) {
+        boolean intBranch = second >= IBREQ && second <= IBRGEQ;
+        switch (first) {
+            case IADD:
+                return second == IALOAD ? IADD_IALOAD : intBranch ? IADD_IBR : second == GOTO ? IADD_GOTO : -1;
+            case ISUB:
+                return second == IALOAD ? ISUB_IALOAD : intBranch ? ISUB_IBR : -1;
+            case IMOV:
+                return intBranch ? IMOV_IBR : -1;
+            case IALOAD:
+                return intBranch ? IALOAD_IBR : -1;
+            default:
+                return -1;
+        }
+    }
+
+    // words taken by the instruction at pc (the first of a superinstruction)
+    static int length(int[] code, int pc) {
+        switch (base(code[pc])) {
+            case RET:
+                return 1;
+            case ENTER:
+            case IRET:
+            case FRET:
+            case GETI:
+            case GETF:
+            case GETC:
+            case PUTI:
+            case PUTF:
+            case PUTC:
+            case UNDEFINED:
+                return 2;
+            case IMOV:
+            case FMOV:
+            case GOTO:
+                return 3;
+            case CALL:
+            case TAILCALL:
+                return 4 + code[pc + 3];
+            case IBREQ:
+            case IBRNEQ:
+            case IBRLT:
+            case IBRGT:
+            case IBRLEQ:
+            case IBRGEQ:
+            case FBREQ:
+            case FBRNEQ:
+            case FBRLT:
+            case FBRGT:
+            case FBRLEQ:
+            case FBRGEQ:
+                return 6;
+            default:
+                return 4;
+        }
+    }
+}
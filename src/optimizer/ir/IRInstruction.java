@@ -2,6 +2,8 @@ package ir;
 
 import ir.operand.IROperand;
 
+import java.util.Arrays;
+
 public class IRInstruction {
 
     public enum OpCode {
@@ -58,4 +60,68 @@ public class IRInstruction {
         return sb.toString();
     }
 
+    // get target
+    public IROperand getTarget() {
+        switch (this.opCode){
+            case ASSIGN:
+            case ADD:
+            case SUB:
+            case MULT:
+            case DIV:
+            case AND:
+            case OR:
+            case CALLR:
+            case ARRAY_LOAD:
+                return operands[0];
+            case ARRAY_STORE:
+            // 2nd op
+                return operands[1];
+            default:
+                return null;
+        }
+    }
+
+    // get sources
+    public IROperand[] getSources() {
+        switch (this.opCode){
+            case RETURN:
+                return new IROperand[]{operands[0]};
+            case ASSIGN:
+            // 2nd op, or 2nd and 3rd op for an array assignment
+                if (operands.length > 2)
+                    return new IROperand[]{operands[1], operands[2]};
+                return new IROperand[]{operands[1]};
+            case ADD:
+            case SUB:
+            case MULT:
+            case DIV:
+            case AND:
+            case OR:
+            // 2nd and 3rd op
+                return new IROperand[]{operands[1], operands[2]};
+            case BREQ:
+            case BRNEQ:
+            case BRLT:
+            case BRGT:
+            case BRLEQ:
+            case BRGEQ:
+            // 2nd and 3rd op
+                return new IROperand[]{operands[1], operands[2]};
+            case CALL:
+            // 2nd op onwards
+                return Arrays.copyOfRange(operands, 1, operands.length);
+            case CALLR:
+            // 3rd op onwards
+                return Arrays.copyOfRange(operands, 2, operands.length);
+            case ARRAY_LOAD:
+            // 2nd and 3rd op
+                return new IROperand[]{operands[1], operands[2]};
+            case ARRAY_STORE:
+            // 1st and 3rd op
+                return new IROperand[]{operands[0], operands[2]};
+            default:
+                return new IROperand[0];
+        }
+    }
+
 }
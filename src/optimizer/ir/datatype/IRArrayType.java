@@ -16,7 +16,8 @@ public class IRArrayType extends IRType {
         this.size = size;
     }
 
-    public static IRArrayType get(IRType elementType, int size) {
+    // synchronized: functions may be optimized in parallel
+    public static synchronized IRArrayType get(IRType elementType, int size) {
         return instances
                 .computeIfAbsent(elementType, k -> new HashMap<>())
                 .computeIfAbsent(size, k -> new IRArrayType(elementType, size));
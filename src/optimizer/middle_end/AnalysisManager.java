@@ -0,0 +1,83 @@
+package middle_end;
+
+import ir.*;
+
+// Caches the analyses of one function between passes. Each analysis is built
+// (and solved) on first request and kept until a pass changes the function.
+// Everything here is derived from the CFG, so dropping the CFG drops it all.
+// The execution profile of the function, if there is one, is passed along as is.
+class AnalysisManager {
+    private IRFunction function;
+    private IRProfile.FunctionProfile profile;
+    private CFG cfg;
+    private DominatorTree dominators;
+    private VariableTable variables;
+    private ReachingDefinitions reachingDefs;
+    private Liveness liveness;
+
+    AnalysisManager(IRFunction function) {
+        this(function, null);
+    }
+
+    AnalysisManager(IRFunction function, IRProfile.FunctionProfile profile) {
+        this.function = function;
+        this.profile = profile;
+    }
+
+    IRFunction getFunction() {
+        return function;
+    }
+
+    // execution counts of the function as it was read, null without a profile
+    IRProfile.FunctionProfile getProfile() {
+        return profile;
+    }
+
+    CFG getCFG() {
+        if (cfg == null)
+            cfg = new CFG(function);
+        return cfg;
+    }
+
+    DominatorTree getDominatorTree() {
+        if (dominators == null)
+            dominators = new DominatorTree(getCFG());
+        return dominators;
+    }
+
+    VariableTable getVariables() {
+        if (variables == null)
+            variables = new VariableTable(function);
+        return variables;
+    }
+
+    ReachingDefinitions getReachingDefinitions() {
+        if (reachingDefs == null) {
+            reachingDefs = new ReachingDefinitions(getCFG(), getVariables());
+            reachingDefs.solve();
+        }
+        return reachingDefs;
+    }
+
+    Liveness getLiveness() {
+        if (liveness == null) {
+            liveness = new Liveness(getCFG(), getVariables());
+            liveness.solve();
+        }
+        return liveness;
+    }
+
+    // the instructions changed: everything is stale
+    void invalidateAll() {
+        cfg = null;
+        dominators = null;
+        invalidateDataflow();
+    }
+
+    // only operands changed: the blocks and edges still hold
+    void invalidateDataflow() {
+        variables = null;
+        reachingDefs = null;
+        liveness = null;
+    }
+}
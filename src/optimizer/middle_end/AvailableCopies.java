@@ -0,0 +1,138 @@
+package middle_end;
+
+import ir.*;
+import ir.IRInstruction.OpCode;
+import ir.datatype.*;
+import ir.operand.*;
+
+import java.util.*;
+
+// Available copies over the bit-vector framework (forward, intersection).
+// A copy is a scalar `assign x, y` between two variables of the same type; it is
+// available at a point when every path there executes it and writes neither x nor
+// y afterwards. Copies are numbered by their (x, y) pair, so at any point at most
+// one available copy has a given target.
+class AvailableCopies extends DataflowAnalysis {
+    private Map<String, Integer> ids;          // "x y" -> copy id
+    private int[] targets;                     // copy id -> variable id of x
+    private int[] sources;                     // copy id -> variable id of y
+    private VariableTable vars;
+    private List<List<Integer>> touching;      // variable id -> copies reading or writing it
+
+    AvailableCopies(CFG cfg) {
+        this(cfg, new VariableTable(cfg.function));
+    }
+
+    AvailableCopies(CFG cfg, VariableTable vars) {
+        super(cfg, Direction.FORWARD, Meet.INTERSECTION);
+        this.vars = vars;
+        this.ids = new HashMap<>();
+        this.touching = new ArrayList<>();
+        for (int v = 0; v < vars.size(); v++)
+            touching.add(new ArrayList<>());
+        List<Integer> xs = new ArrayList<>();
+        List<Integer> ys = new ArrayList<>();
+        for (BasicBlock bb : cfg.basicBlocks) {
+            for (IRInstruction inst : bb.getInstructions()) {
+                if (!isCopy(inst))
+                    continue;
+                String key = inst.operands[0] + " " + inst.operands[1];
+                if (ids.containsKey(key))
+                    continue;
+                int c = xs.size();
+                ids.put(key, c);
+                int x = vars.idOf(inst.operands[0]);
+                int y = vars.idOf(inst.operands[1]);
+                xs.add(x);
+                ys.add(y);
+                touching.get(x).add(c);
+                touching.get(y).add(c);
+            }
+        }
+        targets = xs.stream().mapToInt(Integer::intValue).toArray();
+        sources = ys.stream().mapToInt(Integer::intValue).toArray();
+        init(targets.length);
+        initLocalSets();
+    }
+
+    // `assign x, y` between two different scalar variables of the same type
+    static boolean isCopy(IRInstruction inst) {
+        if (inst.opCode != OpCode.ASSIGN || inst.operands.length != 2)
+            return false;
+        if (!(inst.operands[0] instanceof IRVariableOperand) || !(inst.operands[1] instanceof IRVariableOperand))
+            return false;
+        IRVariableOperand x = (IRVariableOperand) inst.operands[0];
+        IRVariableOperand y = (IRVariableOperand) inst.operands[1];
+        return x.type == y.type && !(x.type instanceof IRArrayType)
+                && !x.getName().equals(y.getName());
+    }
+
+    // id of the copy made by inst, -1 if it is not a copy
+    int idOf(IRInstruction inst) {
+        if (!isCopy(inst))
+            return -1;
+        Integer c = ids.get(inst.operands[0] + " " + inst.operands[1]);
+        return c == null ? -1 : c;
+    }
+
+    int targetOf(int c) {
+        return targets[c];
+    }
+
+    int sourceOf(int c) {
+        return sources[c];
+    }
+
+    @Override
+    protected void computeLocalSets() {
+        for (BasicBlock bb : cfg.basicBlocks) {
+            long[] g = gen[bb.getId()];
+            long[] k = kill[bb.getId()];
+            for (IRInstruction inst : bb.getInstructions()) {
+                for (int killed : killedBy(inst)) {
+                    BitVector.clear(g, killed);
+                    BitVector.set(k, killed);
+                }
+                int c = idOf(inst);
+                if (c >= 0)
+                    BitVector.set(g, c);
+            }
+        }
+    }
+
+    // copies that stop holding when inst writes its target
+    List<Integer> killedBy(IRInstruction inst) {
+        IRVariableOperand target = ReachingDefinitions.definedVariable(inst);
+        if (target == null || ReachingDefinitions.isPartialDefinition(inst))
+            return Collections.emptyList();
+        int v = vars.idOf(target);
+        return v < 0 ? Collections.emptyList() : touching.get(v);
+    }
+
+    // apply the effect of inst to a set of available copies
+    void step(IRInstruction inst, long[] available) {
+        step(inst, idOf(inst), available);
+    }
+
+    // same, for a copy whose source was rewritten after numbering: the
+    // copy it was numbered as (c, or -1) still holds afterwards
+    void step(IRInstruction inst, int c, long[] available) {
+        for (int killed : killedBy(inst))
+            BitVector.clear(available, killed);
+        if (c >= 0)
+            BitVector.set(available, c);
+    }
+
+    // the available copy whose target is variable v, -1 if none
+    int copyInto(int v, long[] available) {
+        for (int c : touching.get(v)) {
+            if (targets[c] == v && BitVector.get(available, c))
+                return c;
+        }
+        return -1;
+    }
+
+    VariableTable getVariables() {
+        return vars;
+    }
+}
@@ -0,0 +1,127 @@
+package middle_end;
+
+import ir.*;
+import ir.operand.*;
+
+import java.util.*;
+
+// Available expressions over the bit-vector framework (forward, intersection).
+// An expression is a binary operation (add/sub/mult/div/and/or) together with its
+// two operands; the operands of the commutative add/mult/and/or are put in a fixed
+// order so `add x, a, b` and `add y, b, a` are the same expression. An evaluation
+// makes its expression available unless it overwrites one of its own operands, and
+// any full write to a variable kills the expressions that read it.
+class AvailableExpressions extends DataflowAnalysis {
+    private Map<String, Integer> ids;          // expression key -> id
+    private List<String> keys;                 // id -> expression key
+    private VariableTable vars;
+    private List<List<Integer>> readers;       // variable id -> expressions reading it
+
+    AvailableExpressions(CFG cfg) {
+        this(cfg, new VariableTable(cfg.function));
+    }
+
+    AvailableExpressions(CFG cfg, VariableTable vars) {
+        super(cfg, Direction.FORWARD, Meet.INTERSECTION);
+        this.vars = vars;
+        this.ids = new HashMap<>();
+        this.keys = new ArrayList<>();
+        this.readers = new ArrayList<>();
+        for (int v = 0; v < vars.size(); v++)
+            readers.add(new ArrayList<>());
+        for (BasicBlock bb : cfg.basicBlocks) {
+            for (IRInstruction inst : bb.getInstructions()) {
+                String key = key(inst);
+                if (key == null || ids.containsKey(key))
+                    continue;
+                int e = keys.size();
+                ids.put(key, e);
+                keys.add(key);
+                int a = vars.idOf(inst.operands[1]);
+                int b = vars.idOf(inst.operands[2]);
+                if (a >= 0)
+                    readers.get(a).add(e);
+                if (b >= 0 && b != a)
+                    readers.get(b).add(e);
+            }
+        }
+        init(keys.size());
+        initLocalSets();
+    }
+
+    // canonical text of the expression computed by inst, null if it computes none
+    static String key(IRInstruction inst) {
+        switch (inst.opCode) {
+            case ADD:
+            case MULT:
+            case AND:
+            case OR: {
+                String a = inst.operands[1].toString();
+                String b = inst.operands[2].toString();
+                if (a.compareTo(b) > 0) {
+                    String t = a;
+                    a = b;
+                    b = t;
+                }
+                return inst.opCode + " " + a + " " + b;
+            }
+            case SUB:
+            case DIV:
+                return inst.opCode + " " + inst.operands[1] + " " + inst.operands[2];
+            default:
+                return null;
+        }
+    }
+
+    // id of the expression computed by inst, -1 if none
+    int idOf(IRInstruction inst) {
+        String key = key(inst);
+        if (key == null)
+            return -1;
+        Integer e = ids.get(key);
+        return e == null ? -1 : e;
+    }
+
+    String keyOf(int e) {
+        return keys.get(e);
+    }
+
+    @Override
+    protected void computeLocalSets() {
+        for (BasicBlock bb : cfg.basicBlocks) {
+            long[] g = gen[bb.getId()];
+            long[] k = kill[bb.getId()];
+            for (IRInstruction inst : bb.getInstructions()) {
+                int e = idOf(inst);
+                if (e >= 0)
+                    BitVector.set(g, e);
+                for (int killed : killedBy(inst)) {
+                    BitVector.clear(g, killed);
+                    BitVector.set(k, killed);
+                }
+            }
+        }
+    }
+
+    // expressions whose value is lost when inst writes its target
+    List<Integer> killedBy(IRInstruction inst) {
+        IRVariableOperand target = ReachingDefinitions.definedVariable(inst);
+        if (target == null || ReachingDefinitions.isPartialDefinition(inst))
+            return Collections.emptyList();
+        int v = vars.idOf(target);
+        return v < 0 ? Collections.emptyList() : readers.get(v);
+    }
+
+    // apply the effect of inst to a set of available expressions
+    void step(IRInstruction inst, long[] available) {
+        int e = idOf(inst);
+        if (e >= 0)
+            BitVector.set(available, e);
+        for (int killed : killedBy(inst))
+            BitVector.clear(available, killed);
+    }
+
+    VariableTable getVariables() {
+        return vars;
+    }
+}
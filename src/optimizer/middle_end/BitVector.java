@@ -0,0 +1,132 @@
+package middle_end;
+
+// Static helpers for fixed-size bit vectors stored as long[].
+// All vectors used together must be created with the same number of bits.
+final class BitVector {
+
+    private BitVector() {}
+
+    static int words(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    static long[] create(int bits) {
+        return new long[words(bits)];
+    }
+
+    // a vector with the first `bits` bits set
+    static long[] universe(int bits) {
+        long[] v = create(bits);
+        fill(v, bits);
+        return v;
+    }
+
+    static void fill(long[] v, int bits) {
+        java.util.Arrays.fill(v, -1L);
+        int rem = bits & 63;
+        if (rem != 0)
+            v[v.length - 1] = (1L << rem) - 1;
+    }
+
+    static void set(long[] v, int i) {
+        v[i >>> 6] |= 1L << i;
+    }
+
+    static void clear(long[] v, int i) {
+        v[i >>> 6] &= ~(1L << i);
+    }
+
+    static boolean get(long[] v, int i) {
+        return (v[i >>> 6] & (1L << i)) != 0;
+    }
+
+    // clear bits [from, to)
+    static void clearRange(long[] v, int from, int to) {
+        if (from >= to)
+            return;
+        int fw = from >>> 6;
+        int tw = (to - 1) >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+        if (fw == tw) {
+            v[fw] &= ~(firstMask & lastMask);
+            return;
+        }
+        v[fw] &= ~firstMask;
+        for (int i = fw + 1; i < tw; i++)
+            v[i] = 0;
+        v[tw] &= ~lastMask;
+    }
+
+    // copy src into dst, returns true if dst changed
+    static boolean copy(long[] dst, long[] src) {
+        boolean changed = false;
+        for (int i = 0; i < dst.length; i++) {
+            if (dst[i] != src[i]) {
+                dst[i] = src[i];
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // dst |= src
+    static void or(long[] dst, long[] src) {
+        for (int i = 0; i < dst.length; i++)
+            dst[i] |= src[i];
+    }
+
+    // dst &= src
+    static void and(long[] dst, long[] src) {
+        for (int i = 0; i < dst.length; i++)
+            dst[i] &= src[i];
+    }
+
+    // dst &= ~src
+    static void andNot(long[] dst, long[] src) {
+        for (int i = 0; i < dst.length; i++)
+            dst[i] &= ~src[i];
+    }
+
+    // dst = gen | (src & ~kill), returns true if dst changed
+    static boolean transfer(long[] dst, long[] gen, long[] src, long[] kill) {
+        boolean changed = false;
+        for (int i = 0; i < dst.length; i++) {
+            long w = gen[i] | (src[i] & ~kill[i]);
+            if (w != dst[i]) {
+                dst[i] = w;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // index of the first set bit at or after `from`, or -1
+    static int nextSetBit(long[] v, int from) {
+        int w = from >>> 6;
+        if (w >= v.length)
+            return -1;
+        long word = v[w] & (-1L << from);
+        while (true) {
+            if (word != 0)
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            if (++w == v.length)
+                return -1;
+            word = v[w];
+        }
+    }
+
+    static int cardinality(long[] v) {
+        int n = 0;
+        for (long w : v)
+            n += Long.bitCount(w);
+        return n;
+    }
+
+    static boolean isEmpty(long[] v) {
+        for (long w : v)
+            if (w != 0)
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,282 @@
+package middle_end;
+
+import ir.*;
+import ir.IRInstruction.OpCode;
+import ir.datatype.*;
+import ir.operand.*;
+
+import java.util.*;
+
+// Profile-guided block layout. Blocks are chained along the edges taken most
+// often (Pettis-Hansen): an edge joins the chain ending in its source to the chain
+// starting with its target, heaviest edges first, and loop back edges before
+// other edges of the same weight, so a loop whose test is at the top is rotated
+// to have it at the bottom. The chain of the entry block comes first, then at
+// each step the chain that the last block jumps to most often, or else the one
+// that came first in the old order.
+//
+// The ends of the blocks are then fixed up for the new order: a goto to the next
+// block is dropped, an int branch to the next block is inverted, and a block
+// whose fallthrough successor moved away jumps to it. Float branches are not
+// inverted (a comparison with NaN is false both ways).
+//
+// The counts are looked up by the IR lines of the blocks, so the pass only makes
+// sense on the function the profile was taken of, before other passes. The new
+// order is kept only if, by the profile, it executes fewer gotos than the old.
+class BlockLayout {
+    private CFG cfg;
+    private IRProfile.FunctionProfile profile;
+    private Set<String> labels;
+    private int numBlocks;
+    private int end;               // stands for the end of the function
+
+    private long oldJumps;
+    private long newJumps;
+
+    BlockLayout(CFG cfg, IRProfile.FunctionProfile profile) {
+        this.cfg = cfg;
+        this.profile = profile;
+        this.labels = new HashSet<>();
+        for (IRInstruction inst : cfg.function.getInstructions()) {
+            if (inst.opCode == OpCode.LABEL)
+                labels.add(((IRLabelOperand) inst.operands[0]).getName());
+        }
+        this.numBlocks = cfg.basicBlocks.size();
+        this.end = numBlocks;
+    }
+
+    // returns true if the function changed
+    boolean run() {
+        if (profile == null || profile.calls == 0 || numBlocks < 2)
+            return false;
+        List<BasicBlock> order = chainOrder();
+        for (BasicBlock bb : cfg.basicBlocks) {
+            if (last(bb).opCode == OpCode.GOTO)
+                oldJumps += count(bb);
+        }
+        for (int i = 0; i < numBlocks; i++)
+            newJumps += jumpsAfter(order.get(i), i + 1 < numBlocks ? order.get(i + 1).getId() : end);
+        Trace.event("layout", Trace.Level.INFO, cfg.function.name, "jumps", oldJumps, "laidOutJumps", newJumps);
+        if (newJumps >= oldJumps)
+            return false;
+        emit(order);
+        return true;
+    }
+
+    private List<BasicBlock> chainOrder() {
+        List<BasicBlock> blocks = cfg.basicBlocks;
+        int[] next = new int[numBlocks];
+        int[] prev = new int[numBlocks];
+        Arrays.fill(next, -1);
+        Arrays.fill(prev, -1);
+
+        List<long[]> edges = new ArrayList<>();          // weight, from, to
+        for (BasicBlock from : blocks) {
+            for (BasicBlock to : from.getSuccessors()) {
+                long weight = weight(from, to);
+                if (weight > 0)
+                    edges.add(new long[]{weight, from.getId(), to.getId()});
+            }
+        }
+        edges.sort((a, b) -> {
+            if (a[0] != b[0])
+                return Long.compare(b[0], a[0]);
+            boolean backA = a[2] <= a[1];
+            boolean backB = b[2] <= b[1];
+            if (backA != backB)
+                return backA ? -1 : 1;
+            return Long.compare(a[1], b[1]);
+        });
+        for (long[] edge : edges) {
+            int from = (int) edge[1];
+            int to = (int) edge[2];
+            if (next[from] >= 0 || prev[to] >= 0 || to == 0 || headOf(from, prev) == to
+                    || !canFallInto(blocks.get(from), to) || strandsFallthrough(blocks.get(to), from, prev))
+                continue;
+            next[from] = to;
+            prev[to] = from;
+        }
+
+        List<BasicBlock> order = new ArrayList<>(numBlocks);
+        boolean[] placed = new boolean[numBlocks];
+        int head = 0;
+        while (head >= 0) {
+            int tail = head;
+            for (int b = head; b >= 0; b = next[b]) {
+                order.add(blocks.get(b));
+                placed[b] = true;
+                tail = b;
+            }
+            // the chain the tail jumps to most, else the first one left
+            head = -1;
+            long best = 0;
+            for (BasicBlock succ : blocks.get(tail).getSuccessors()) {
+                int s = succ.getId();
+                long weight = weight(blocks.get(tail), succ);
+                if (!placed[s] && prev[s] < 0 && weight > best) {
+                    best = weight;
+                    head = s;
+                }
+            }
+            for (int b = 0; head < 0 && b < numBlocks; b++) {
+                if (!placed[b] && prev[b] < 0)
+                    head = b;
+            }
+        }
+        return order;
+    }
+
+    private static int headOf(int b, int[] prev) {
+        while (prev[b] >= 0)
+            b = prev[b];
+        return b;
+    }
+
+    // whether bb can be laid out right before the block numbered to
+    private boolean canFallInto(BasicBlock bb, int to) {
+        IRInstruction term = last(bb);
+        if (!SSAForm.isConditionalBranch(term) || fallthrough(bb) == to)
+            return true;
+        return !isFloat(term.operands[1]);
+    }
+
+    // whether bb, put after the chain ending in tail, could no longer fall into
+    // the block it has to fall into when it does not jump (the block is in that
+    // chain): for a float loop test at the bottom of its loop, the goto saved at
+    // the end of the body would come back at the test
+    private boolean strandsFallthrough(BasicBlock bb, int tail, int[] prev) {
+        IRInstruction term = last(bb);
+        if (term.opCode == OpCode.GOTO || term.opCode == OpCode.RETURN
+                || (SSAForm.isConditionalBranch(term) && !isFloat(term.operands[1])))
+            return false;
+        for (int b = tail; b >= 0; b = prev[b]) {
+            if (b == fallthrough(bb))
+                return true;
+        }
+        return false;
+    }
+
+    // gotos executed at the end of bb when the block numbered next follows it
+    private long jumpsAfter(BasicBlock bb, int next) {
+        IRInstruction term = last(bb);
+        if (term.opCode == OpCode.RETURN)
+            return 0;
+        if (term.opCode == OpCode.GOTO)
+            return target(term) == next ? 0 : count(bb);
+        int fallthrough = fallthrough(bb);
+        if (fallthrough == next)
+            return 0;
+        if (!SSAForm.isConditionalBranch(term))
+            return count(bb);
+        int target = target(term);
+        if (target == next && !isFloat(term.operands[1]))
+            return 0;
+        if (target == fallthrough)
+            return count(bb);
+        return Math.max(0, count(bb) - weight(bb, cfg.basicBlocks.get(target)));
+    }
+
+    private void emit(List<BasicBlock> order) {
+        List<List<IRInstruction>> code = new ArrayList<>();
+        for (int b = 0; b < numBlocks; b++)
+            code.add(new ArrayList<>(cfg.basicBlocks.get(b).getInstructions()));
+        String[] blockLabels = new String[numBlocks + 1];
+        for (int b = 0; b < numBlocks; b++) {
+            IRInstruction first = code.get(b).get(0);
+            if (first.opCode == OpCode.LABEL)
+                blockLabels[b] = ((IRLabelOperand) first.operands[0]).getName();
+        }
+
+        for (int i = 0; i < numBlocks; i++) {
+            BasicBlock bb = order.get(i);
+            List<IRInstruction> insts = code.get(bb.getId());
+            int next = i + 1 < numBlocks ? order.get(i + 1).getId() : end;
+            IRInstruction term = last(bb);
+            int line = term.irLineNumber;
+            if (term.opCode == OpCode.RETURN)
+                continue;
+            if (term.opCode == OpCode.GOTO) {
+                if (target(term) == next)
+                    insts.remove(insts.size() - 1);
+                continue;
+            }
+            int fallthrough = fallthrough(bb);
+            if (fallthrough == next)
+                continue;
+            if (SSAForm.isConditionalBranch(term) && target(term) == next && !isFloat(term.operands[1])) {
+                term.opCode = inverse(term.opCode);
+                term.operands[0] = new IRLabelOperand(labelOf(fallthrough, code, blockLabels), term);
+                continue;
+            }
+            insts.add(SSAForm.newJump(labelOf(fallthrough, code, blockLabels), line));
+        }
+
+        List<IRInstruction> result = new ArrayList<>();
+        for (BasicBlock bb : order)
+            result.addAll(code.get(bb.getId()));
+        if (blockLabels[end] != null)
+            result.add(SSAForm.newLabel(blockLabels[end], -1));
+        cfg.function.setInstructions(result);
+    }
+
+    // the label of the block numbered b, adding one if it has none
+    private String labelOf(int b, List<List<IRInstruction>> code, String[] blockLabels) {
+        if (blockLabels[b] == null) {
+            String base = cfg.function.name + (b == end ? "_end" : "_block" + b);
+            String name = base;
+            for (int k = 1; labels.contains(name); k++)
+                name = base + k;
+            labels.add(name);
+            blockLabels[b] = name;
+            if (b != end)
+                code.get(b).add(0, SSAForm.newLabel(name, code.get(b).get(0).irLineNumber));
+        }
+        return blockLabels[b];
+    }
+
+    private long count(BasicBlock bb) {
+        return profile.getBlockCount(bb.getInstructions().get(0).irLineNumber);
+    }
+
+    private long weight(BasicBlock from, BasicBlock to) {
+        return profile.getEdgeCount(from.getInstructions().get(0).irLineNumber,
+                to.getInstructions().get(0).irLineNumber);
+    }
+
+    // the block bb runs into when it does not jump, end if it is the last
+    private int fallthrough(BasicBlock bb) {
+        return bb.getId() + 1;
+    }
+
+    private int target(IRInstruction jump) {
+        return cfg.labelToBlock.get(((IRLabelOperand) jump.operands[0]).getName()).getId();
+    }
+
+    private static IRInstruction last(BasicBlock bb) {
+        List<IRInstruction> insts = bb.getInstructions();
+        return insts.get(insts.size() - 1);
+    }
+
+    private static boolean isFloat(IROperand operand) {
+        IRType type = operand instanceof IRVariableOperand ? ((IRVariableOperand) operand).type
+                : ((IRConstantOperand) operand).type;
+        return type == IRFloatType.get();
+    }
+
+    private static OpCode inverse(OpCode branch) {
+        switch (branch) {
+            case BREQ:
+                return OpCode.BRNEQ;
+            case BRNEQ:
+                return OpCode.BREQ;
+            case BRLT:
+                return OpCode.BRGEQ;
+            case BRGEQ:
+                return OpCode.BRLT;
+            case BRGT:
+                return OpCode.BRLEQ;
+            default:
+                return OpCode.BRGT;
+        }
+    }
+}
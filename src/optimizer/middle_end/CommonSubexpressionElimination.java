@@ -0,0 +1,250 @@
+package middle_end;
+
+import ir.*;
+import ir.IRInstruction.OpCode;
+import ir.datatype.*;
+import ir.operand.*;
+
+import java.util.*;
+
+// Global common subexpression elimination on the CFG of one function.
+//
+// An evaluation `op y, a, b` is redundant when its expression is available on
+// entry to it (AvailableExpressions). Its generators are the nearest evaluations of
+// the same expression on every path leading back from it. If they all write the
+// same variable v and nothing overwrites v on the way, the redundant evaluation
+// becomes `assign y, v` (or disappears when y is v). Otherwise, for mult and div,
+// every generator also saves the value in a new temporary and the redundant
+// evaluation copies from that; the extra copy at each generator costs as much
+// as the add/sub/and/or it would save, so those are left alone. The copies are
+// left for copy propagation and dead code elimination.
+class CommonSubexpressionElimination {
+    // instructions the generator search may look at for one redundant evaluation
+    private static final int SEARCH_LIMIT = 4096;
+
+    private CFG cfg;
+    private IRFunction function;
+    private AvailableExpressions available;
+    private Map<String, IRVariableOperand> temps;   // expression key -> temporary
+    private Set<IRInstruction> savedInTemp;         // generators already writing their temporary
+    private Set<String> names;
+
+    private int replaced;
+    private int removed;
+
+    CommonSubexpressionElimination(CFG cfg) {
+        this.cfg = cfg;
+        this.function = cfg.function;
+        this.available = new AvailableExpressions(cfg);
+        this.temps = new HashMap<>();
+        this.savedInTemp = Collections.newSetFromMap(new IdentityHashMap<>());
+        this.names = new HashSet<>();
+        for (IRVariableOperand param : function.parameters)
+            names.add(param.getName());
+        for (IRVariableOperand var : function.variables)
+            names.add(var.getName());
+    }
+
+    // returns true if the blocks changed; the caller writes them back
+    boolean run() {
+        available.solve();
+
+        // 1. find the redundant evaluations
+        List<IRInstruction> redundant = new ArrayList<>();
+        Map<IRInstruction, BasicBlock> blockOf = new IdentityHashMap<>();
+        long[] current = BitVector.create(available.getNumFacts());
+        for (BasicBlock bb : cfg.basicBlocks) {
+            System.arraycopy(available.getIn(bb), 0, current, 0, current.length);
+            for (IRInstruction inst : bb.getInstructions()) {
+                int e = available.idOf(inst);
+                if (e >= 0 && BitVector.get(current, e)) {
+                    redundant.add(inst);
+                    blockOf.put(inst, bb);
+                }
+                available.step(inst, current);
+            }
+        }
+        if (redundant.isEmpty())
+            return false;
+        Set<IRInstruction> isRedundant = Collections.newSetFromMap(new IdentityHashMap<>());
+        isRedundant.addAll(redundant);
+
+        // 2. decide how each one gets its value, before anything moves
+        List<IRInstruction> fromHolder = new ArrayList<>();
+        List<String> holders = new ArrayList<>();
+        List<IRInstruction> fromTemp = new ArrayList<>();
+        List<List<IRInstruction>> tempGenerators = new ArrayList<>();
+        for (IRInstruction inst : redundant) {
+            Search search = findGenerators(inst, blockOf.get(inst));
+            if (search == null)
+                continue;
+            String holder = search.commonTarget();
+            if (holder != null && !search.clobbered.contains(holder)) {
+                fromHolder.add(inst);
+                holders.add(holder);
+                continue;
+            }
+            // a redundant evaluation cannot also be the generator that saves a temporary
+            boolean usable = inst.opCode == OpCode.MULT || inst.opCode == OpCode.DIV;
+            for (IRInstruction g : search.generators)
+                usable &= !isRedundant.contains(g);
+            if (usable) {
+                fromTemp.add(inst);
+                tempGenerators.add(search.generators);
+            }
+        }
+
+        // 3. rewrite
+        for (int i = 0; i < fromHolder.size(); i++) {
+            IRInstruction inst = fromHolder.get(i);
+            IRVariableOperand target = (IRVariableOperand) inst.operands[0];
+            if (target.getName().equals(holders.get(i))) {
+                removeIdentity(blockOf.get(inst).getInstructions(), inst);
+                removed++;
+            } else {
+                toCopy(inst, holders.get(i));
+                replaced++;
+            }
+        }
+        for (int i = 0; i < fromTemp.size(); i++) {
+            IRInstruction inst = fromTemp.get(i);
+            IRVariableOperand temp = tempFor(inst);
+            for (IRInstruction g : tempGenerators.get(i))
+                saveInTemp(g, temp);
+            toCopy(inst, temp.getName());
+            replaced++;
+        }
+        Trace.event("gcse", Trace.Level.INFO, function.name, "replaced", replaced, "removed", removed,
+                "temporaries", temps.size());
+        return replaced + removed > 0;
+    }
+
+    private static class Search {
+        List<IRInstruction> generators = new ArrayList<>();
+        Set<String> clobbered = new HashSet<>();   // variables written between a generator and the use
+
+        // the variable all generators write, or null if they differ
+        String commonTarget() {
+            String name = null;
+            for (IRInstruction g : generators) {
+                String t = g.operands[0].toString();
+                if (name != null && !name.equals(t))
+                    return null;
+                name = t;
+            }
+            return name;
+        }
+    }
+
+    // walk backwards from inst along every path to the nearest evaluation of its
+    // expression; null if the search is too long or a path has no evaluation
+    private Search findGenerators(IRInstruction inst, BasicBlock bb) {
+        int e = available.idOf(inst);
+        Search search = new Search();
+        int[] budget = {SEARCH_LIMIT};
+        boolean[] visited = new boolean[cfg.basicBlocks.size()];
+        Deque<BasicBlock> work = new ArrayDeque<>();
+
+        List<IRInstruction> insts = bb.getInstructions();
+        int at = indexOfIdentity(insts, inst);
+        int found = scanBack(insts, at - 1, e, search, budget);
+        if (found == -1)
+            return null;
+        if (found == 0)
+            work.addAll(bb.getPredecessors());
+        boolean hasPath = found == 1 || !work.isEmpty();
+        while (!work.isEmpty()) {
+            BasicBlock pred = work.poll();
+            if (visited[pred.getId()])
+                continue;
+            visited[pred.getId()] = true;
+            List<IRInstruction> predInsts = pred.getInstructions();
+            found = scanBack(predInsts, predInsts.size() - 1, e, search, budget);
+            if (found == -1)
+                return null;
+            if (found == 0) {
+                // reaching the entry without an evaluation means it was not available
+                if (pred.getPredecessors().isEmpty())
+                    return null;
+                work.addAll(pred.getPredecessors());
+            }
+        }
+        return hasPath && !search.generators.isEmpty() ? search : null;
+    }
+
+    // 1: found a generator, 0: reached the block start, -1: gave up
+    private int scanBack(List<IRInstruction> insts, int from, int e, Search search, int[] budget) {
+        for (int i = from; i >= 0; i--) {
+            if (--budget[0] < 0)
+                return -1;
+            IRInstruction inst = insts.get(i);
+            if (available.idOf(inst) == e && !available.killedBy(inst).contains(e)) {
+                if (!containsIdentity(search.generators, inst))
+                    search.generators.add(inst);
+                return 1;
+            }
+            IRVariableOperand target = ReachingDefinitions.definedVariable(inst);
+            if (target != null)
+                search.clobbered.add(target.getName());
+        }
+        return 0;
+    }
+
+    private IRVariableOperand tempFor(IRInstruction inst) {
+        String key = AvailableExpressions.key(inst);
+        IRVariableOperand temp = temps.get(key);
+        if (temp == null) {
+            IRType type = ((IRVariableOperand) inst.operands[0]).type;
+            String name;
+            int k = temps.size();
+            do {
+                name = "cse" + k++;
+            } while (names.contains(name));
+            names.add(name);
+            temp = new IRVariableOperand(type, name, null);
+            function.variables.add(temp);
+            temps.put(key, temp);
+        }
+        return temp;
+    }
+
+    // `op x, a, b` becomes `op temp, a, b; assign x, temp`
+    private void saveInTemp(IRInstruction g, IRVariableOperand temp) {
+        if (!savedInTemp.add(g))
+            return;
+        IRVariableOperand target = (IRVariableOperand) g.operands[0];
+        g.operands[0] = new IRVariableOperand(temp.type, temp.getName(), g);
+        IRInstruction copy = new IRInstruction(OpCode.ASSIGN, null, g.irLineNumber);
+        copy.operands = new IROperand[]{
+                new IRVariableOperand(target.type, target.getName(), copy),
+                new IRVariableOperand(temp.type, temp.getName(), copy)};
+        List<IRInstruction> insts = cfg.instrToBlock.get(g).getInstructions();
+        insts.add(indexOfIdentity(insts, g) + 1, copy);
+        cfg.instrToBlock.put(copy, cfg.instrToBlock.get(g));
+    }
+
+    // `op y, a, b` becomes `assign y, source`
+    private static void toCopy(IRInstruction inst, String source) {
+        IRVariableOperand target = (IRVariableOperand) inst.operands[0];
+        inst.opCode = OpCode.ASSIGN;
+        inst.operands = new IROperand[]{target, new IRVariableOperand(target.type, source, inst)};
+    }
+
+    private static int indexOfIdentity(List<IRInstruction> insts, IRInstruction inst) {
+        for (int i = 0; i < insts.size(); i++) {
+            if (insts.get(i) == inst)
+                return i;
+        }
+        return -1;
+    }
+
+    private static boolean containsIdentity(List<IRInstruction> insts, IRInstruction inst) {
+        return indexOfIdentity(insts, inst) >= 0;
+    }
+
+    private static void removeIdentity(List<IRInstruction> insts, IRInstruction inst) {
+        int i = indexOfIdentity(insts, inst);
+        if (i >= 0)
+            insts.remove(i);
+    }
+}
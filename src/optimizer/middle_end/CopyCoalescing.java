@@ -0,0 +1,120 @@
+package middle_end;
+
+import ir.*;
+import ir.IRInstruction.OpCode;
+import ir.operand.*;
+
+import java.util.*;
+
+// Folds a copy into the instruction that computed its source, within a block:
+//
+//     add t, a, b                    add x, a, b
+//     ...                    ==>     ...
+//     assign x, t
+//
+// when t dies at the copy, nothing in between reads t or reads or writes x, and
+// both variables have the same type. This removes the temporaries the frontend
+// puts between an operation and the variable it assigns. A copy of a variable to
+// itself is dropped.
+class CopyCoalescing {
+    private CFG cfg;
+    private VariableTable vars;
+    private Liveness liveness;
+    private int coalesced;
+
+    CopyCoalescing(CFG cfg, VariableTable vars, Liveness liveness) {
+        this.cfg = cfg;
+        this.vars = vars;
+        this.liveness = liveness;
+    }
+
+    // returns true if the blocks changed; the caller writes them back
+    boolean run() {
+        liveness.solve();
+        for (BasicBlock bb : cfg.basicBlocks)
+            coalesce(bb);
+        Trace.event("coalesce", Trace.Level.INFO, cfg.function.name, "removed", coalesced);
+        return coalesced > 0;
+    }
+
+    private void coalesce(BasicBlock bb) {
+        List<IRInstruction> insts = bb.getInstructions();
+        int n = insts.size();
+        // variables live after each instruction of the block
+        List<long[]> liveAfter = new ArrayList<>(Collections.nCopies(n, null));
+        long[] live = liveness.getOut(bb).clone();
+        for (int i = n - 1; i >= 0; i--) {
+            liveAfter.set(i, live.clone());
+            IRInstruction inst = insts.get(i);
+            IRVariableOperand target = ReachingDefinitions.definedVariable(inst);
+            if (target != null && !ReachingDefinitions.isPartialDefinition(inst) && vars.idOf(target) >= 0)
+                BitVector.clear(live, vars.idOf(target));
+            for (IROperand use : inst.getSources()) {
+                if (vars.idOf(use) >= 0)
+                    BitVector.set(live, vars.idOf(use));
+            }
+        }
+
+        // from the end, so removing a copy does not move the ones still to visit
+        for (int c = n - 1; c >= 0; c--) {
+            IRInstruction copy = insts.get(c);
+            if (copy.opCode != OpCode.ASSIGN || copy.operands.length != 2
+                    || !(copy.operands[1] instanceof IRVariableOperand))
+                continue;
+            IRVariableOperand x = (IRVariableOperand) copy.operands[0];
+            IRVariableOperand t = (IRVariableOperand) copy.operands[1];
+            if (x.getName().equals(t.getName())) {
+                insts.remove(c);
+                coalesced++;
+                continue;
+            }
+            if (x.type != t.type || BitVector.get(liveAfter.get(c), vars.idOf(t)))
+                continue;
+            int d = findDefinition(insts, c, x.getName(), t.getName());
+            if (d < 0)
+                continue;
+            IRInstruction def = insts.get(d);
+            def.operands[0] = new IRVariableOperand(x.type, x.getName(), def);
+            insts.remove(c);
+            coalesced++;
+        }
+    }
+
+    // index of the instruction before c that computes t for the copy, -1 if
+    // there is none in the block or the copy cannot be folded into it
+    private static int findDefinition(List<IRInstruction> insts, int c, String x, String t) {
+        for (int i = c - 1; i >= 0; i--) {
+            IRInstruction inst = insts.get(i);
+            IRVariableOperand target = ReachingDefinitions.definedVariable(inst);
+            if (target != null && target.getName().equals(t))
+                return canRetarget(inst) ? i : -1;
+            if (target != null && target.getName().equals(x))
+                return -1;
+            for (IROperand use : inst.getSources()) {
+                String name = use.toString();
+                if (use instanceof IRVariableOperand && (name.equals(x) || name.equals(t)))
+                    return -1;
+            }
+        }
+        return -1;
+    }
+
+    // full scalar definitions whose target can be renamed
+    private static boolean canRetarget(IRInstruction inst) {
+        switch (inst.opCode) {
+            case ADD:
+            case SUB:
+            case MULT:
+            case DIV:
+            case AND:
+            case OR:
+            case CALLR:
+            case ARRAY_LOAD:
+                return true;
+            case ASSIGN:
+                return inst.operands.length == 2;
+            default:
+                return false;
+        }
+    }
+}
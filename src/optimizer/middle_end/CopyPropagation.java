@@ -0,0 +1,72 @@
+package middle_end;
+
+import ir.*;
+import ir.operand.*;
+
+import java.util.*;
+
+// Global copy propagation on the CFG of one function.
+//
+// Wherever a copy `assign x, y` is available (AvailableCopies), a read of x is
+// replaced by a read of y. Operands are rewritten in place, so the instruction
+// list of the function and its CFG do not change; copies left without readers are
+// removed by dead code elimination afterwards. A chain of copies is followed one
+// link per round, each round on a fresh analysis.
+class CopyPropagation {
+    private static final int MAX_ROUNDS = 4;
+
+    private CFG cfg;
+    private int replaced;
+
+    CopyPropagation(CFG cfg) {
+        this.cfg = cfg;
+    }
+
+    // returns true if an operand was replaced
+    boolean run() {
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            if (!propagate())
+                break;
+        }
+        Trace.event("copyprop", Trace.Level.INFO, cfg.function.name, "replaced", replaced);
+        return replaced > 0;
+    }
+
+    private boolean propagate() {
+        AvailableCopies copies = new AvailableCopies(cfg);
+        if (copies.getNumFacts() == 0)
+            return false;
+        copies.solve();
+        VariableTable vars = copies.getVariables();
+        int before = replaced;
+        long[] current = BitVector.create(copies.getNumFacts());
+        for (BasicBlock bb : cfg.basicBlocks) {
+            System.arraycopy(copies.getIn(bb), 0, current, 0, current.length);
+            for (IRInstruction inst : bb.getInstructions()) {
+                int self = copies.idOf(inst);
+                IROperand[] sources = inst.getSources();
+                for (int i = 0; i < inst.operands.length; i++) {
+                    if (!isSource(sources, inst.operands[i]))
+                        continue;
+                    int v = vars.idOf(inst.operands[i]);
+                    int c = v < 0 ? -1 : copies.copyInto(v, current);
+                    if (c < 0)
+                        continue;
+                    int y = copies.sourceOf(c);
+                    inst.operands[i] = new IRVariableOperand(vars.type(y), vars.name(y), inst);
+                    replaced++;
+                }
+                copies.step(inst, self, current);
+            }
+        }
+        return replaced > before;
+    }
+
+    private static boolean isSource(IROperand[] sources, IROperand operand) {
+        for (IROperand source : sources) {
+            if (source == operand)
+                return true;
+        }
+        return false;
+    }
+}
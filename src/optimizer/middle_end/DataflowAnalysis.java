@@ -0,0 +1,154 @@
+package middle_end;
+
+import java.util.*;
+
+// Iterative bit-vector dataflow solver over a function CFG.
+// A subclass numbers its facts densely (0 .. numFacts-1), calls init(numFacts)
+// and fills gen/kill for every block in computeLocalSets(). Analyses with a
+// cheaper block-local form can skip gen/kill and override transfer() instead.
+// solve() runs a worklist over the blocks in reverse postorder (postorder for
+// backward problems) until IN/OUT reach a fixed point:
+//   forward:  IN[b]  = meet(OUT[p] for p in preds),  OUT[b] = gen[b] U (IN[b]  - kill[b])
+//   backward: OUT[b] = meet(IN[s]  for s in succs),  IN[b]  = gen[b] U (OUT[b] - kill[b])
+abstract class DataflowAnalysis {
+    enum Direction { FORWARD, BACKWARD }
+    enum Meet { UNION, INTERSECTION }
+
+    protected final CFG cfg;
+    protected final Direction direction;
+    protected final Meet meet;
+    protected int numFacts;
+    protected long[][] gen;
+    protected long[][] kill;
+    protected long[][] in;
+    protected long[][] out;
+    private boolean solved;
+
+    DataflowAnalysis(CFG cfg, Direction direction, Meet meet) {
+        this.cfg = cfg;
+        this.direction = direction;
+        this.meet = meet;
+    }
+
+    // allocate IN/OUT for numFacts facts
+    protected void init(int numFacts) {
+        int n = cfg.basicBlocks.size();
+        this.numFacts = numFacts;
+        in = new long[n][];
+        out = new long[n][];
+        for (int i = 0; i < n; i++) {
+            in[i] = BitVector.create(numFacts);
+            out[i] = BitVector.create(numFacts);
+        }
+    }
+
+    // allocate dense gen/kill vectors, used by the default transfer()
+    protected void initLocalSets() {
+        int n = cfg.basicBlocks.size();
+        gen = new long[n][];
+        kill = new long[n][];
+        for (int i = 0; i < n; i++) {
+            gen[i] = BitVector.create(numFacts);
+            kill[i] = BitVector.create(numFacts);
+        }
+    }
+
+    // compute the block-local information (gen/kill) for every block
+    protected abstract void computeLocalSets();
+
+    // dst = gen[b] U (src - kill[b]), returns true if dst changed
+    protected boolean transfer(int b, long[] src, long[] dst) {
+        return BitVector.transfer(dst, gen[b], src, kill[b]);
+    }
+
+    // value flowing into the entry block (forward) or out of exit blocks (backward)
+    protected long[] boundary() {
+        return BitVector.create(numFacts);
+    }
+
+    void solve() {
+        if (solved)
+            return;
+        computeLocalSets();
+        List<BasicBlock> blocks = cfg.basicBlocks;
+        int n = blocks.size();
+        boolean forward = direction == Direction.FORWARD;
+        long[] boundary = boundary();
+
+        // blocks are visited in reverse postorder for forward problems and in
+        // postorder for backward ones, so most facts settle in one sweep
+        List<BasicBlock> order = new ArrayList<>(cfg.reversePostOrder());
+        if (!forward)
+            Collections.reverse(order);
+
+        // intersection problems start optimistic: everything holds;
+        // union problems start empty and every block is visited at least once
+        if (meet == Meet.INTERSECTION) {
+            for (int i = 0; i < n; i++)
+                BitVector.fill(forward ? out[i] : in[i], numFacts);
+        }
+
+        boolean[] queued = new boolean[n];
+        Arrays.fill(queued, true);
+        int pending = n;
+        while (pending > 0) {
+            for (BasicBlock bb : order) {
+                int b = bb.getId();
+                if (!queued[b])
+                    continue;
+                queued[b] = false;
+                pending--;
+
+                long[] meetIn = forward ? in[b] : out[b];
+                long[] result = forward ? out[b] : in[b];
+                List<BasicBlock> sources = forward ? bb.getPredecessors() : bb.getSuccessors();
+                boolean atBoundary = forward ? b == 0 : sources.isEmpty();
+                computeMeet(meetIn, sources, forward, atBoundary ? boundary : null);
+
+                if (transfer(b, meetIn, result)) {
+                    for (BasicBlock next : forward ? bb.getSuccessors() : bb.getPredecessors()) {
+                        if (!queued[next.getId()]) {
+                            queued[next.getId()] = true;
+                            pending++;
+                        }
+                    }
+                }
+            }
+        }
+        solved = true;
+    }
+
+    private void computeMeet(long[] dst, List<BasicBlock> sources, boolean forward, long[] boundary) {
+        boolean first = true;
+        if (boundary != null) {
+            System.arraycopy(boundary, 0, dst, 0, dst.length);
+            first = false;
+        }
+        for (BasicBlock src : sources) {
+            long[] v = forward ? out[src.getId()] : in[src.getId()];
+            if (first) {
+                System.arraycopy(v, 0, dst, 0, dst.length);
+                first = false;
+            } else if (meet == Meet.UNION) {
+                BitVector.or(dst, v);
+            } else {
+                BitVector.and(dst, v);
+            }
+        }
+        // no predecessors (unreachable) or no successors: nothing is known
+        if (first)
+            Arrays.fill(dst, 0L);
+    }
+
+    long[] getIn(BasicBlock bb) {
+        return in[bb.getId()];
+    }
+
+    long[] getOut(BasicBlock bb) {
+        return out[bb.getId()];
+    }
+
+    int getNumFacts() {
+        return numFacts;
+    }
+}
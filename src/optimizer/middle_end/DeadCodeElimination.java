@@ -0,0 +1,98 @@
+package middle_end;
+
+import ir.*;
+import ir.datatype.*;
+import ir.operand.*;
+
+import java.util.*;
+
+// Mark-and-sweep dead code elimination over def-use chains.
+// Critical instructions (control flow, calls, returns, labels and writes to
+// array parameters) are marked first; then every definition that reaches a
+// source operand of a marked instruction is marked too. Unmarked instructions
+// are removed.
+class DeadCodeElimination implements Pass {
+    @Override
+    public String getName() {
+        return "dce";
+    }
+
+    @Override
+    public boolean run(IRFunction function, AnalysisManager analyses) {
+        Set<IRInstruction> marked = mark(function, analyses);
+        List<IRInstruction> instructions = function.getInstructions();
+        Trace.event("dce", Trace.Level.INFO, function.name, "removed", instructions.size() - marked.size());
+        if (marked.size() == instructions.size())
+            return false;
+        List<IRInstruction> newInstructions = new ArrayList<>();
+        for (IRInstruction instruction : instructions) {
+            if (marked.contains(instruction))
+                newInstructions.add(instruction);
+        }
+        function.setInstructions(newInstructions);
+        return true;
+    }
+
+    private Set<IRInstruction> mark(IRFunction function, AnalysisManager analyses) {
+        // find all critical instructions in the function and mark them,
+        // then follow use-def chains from every marked instruction:
+        // each edge is visited once, so marking is linear in the chain size
+        Set<IRInstruction> marked = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<IRInstruction> workList = new ArrayDeque<>();
+        DefUseChains chains = new DefUseChains(analyses.getCFG(), analyses.getReachingDefinitions());
+        Set<String> params = new HashSet<>();
+        for (IRVariableOperand param : function.parameters)
+            params.add(param.getName());
+
+        //get list of critical inst
+        for (IRInstruction instruction : function.getInstructions()) {
+            if (isCrit(instruction) || writesParameterArray(instruction, params)) {
+                marked.add(instruction);
+                workList.add(instruction);
+            }
+        }
+
+        boolean tracing = Trace.enabled("dce", Trace.Level.TRACE);
+        while (!workList.isEmpty()) {
+            IRInstruction critInst = workList.poll();
+            // every operand the instruction reads keeps its definitions alive
+            for (IROperand use : critInst.getSources()) {
+                for (IRInstruction writingInst : chains.getDefs(use)) {
+                    if (marked.add(writingInst)) {
+                        workList.add(writingInst);
+                        if (tracing)
+                            Trace.event("dce", Trace.Level.TRACE, function.name, "marked", writingInst.toString(),
+                                    "by", critInst.toString());
+                    }
+                }
+            }
+        }
+        return marked;
+    }
+
+    // arrays are passed by reference, so a write to an array parameter is
+    // visible to the caller even if this function never reads it again
+    private static boolean writesParameterArray(IRInstruction instruction, Set<String> params) {
+        IRVariableOperand target = ReachingDefinitions.definedVariable(instruction);
+        return target != null && target.type instanceof IRArrayType && params.contains(target.getName());
+    }
+
+    private static boolean isCrit(IRInstruction instruction) {
+        switch (instruction.opCode) {
+            case GOTO:
+            case BREQ:
+            case BRNEQ:
+            case BRLT:
+            case BRGT:
+            case BRLEQ:
+            case BRGEQ:
+            case RETURN:
+            case CALL:
+            case CALLR:
+            case LABEL:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package middle_end;
+
+import ir.*;
+import ir.operand.*;
+
+import java.util.*;
+
+// Def-use and use-def chains for one function, built once from reaching definitions.
+// A use is the operand object itself (operands are never shared between instructions),
+// so "which definitions reach this operand" is a single map lookup. Variables are
+// identified by their VariableTable id. Passes that rewrite the function keep the
+// index up to date through removeInstruction / replaceUse / addDefinition.
+class DefUseChains {
+    private CFG cfg;
+    private VariableTable vars;
+    private Map<IROperand, List<IRInstruction>> useDef;      // use operand -> definitions reaching it
+    private Map<IRInstruction, List<IROperand>> defUse;      // definition -> uses it reaches
+
+    DefUseChains(CFG cfg, ReachingDefinitions rd) {
+        this.cfg = cfg;
+        this.vars = rd.getVariables();
+        this.useDef = new IdentityHashMap<>();
+        this.defUse = new IdentityHashMap<>();
+        rd.solve();
+
+        // definitions made so far in the current block, per variable id;
+        // `full` is set once the block has overwritten the whole variable
+        List<IRInstruction>[] local = newLocalTable();
+        boolean[] full = new boolean[vars.size()];
+        List<Integer> touched = new ArrayList<>();
+
+        for (BasicBlock bb : cfg.basicBlocks) {
+            for (IRInstruction inst : bb.getInstructions()) {
+                for (IROperand use : inst.getSources()) {
+                    int v = vars.idOf(use);
+                    if (v < 0)
+                        continue;
+                    List<IRInstruction> defs = new ArrayList<>();
+                    if (!full[v])
+                        defs.addAll(rd.reachingDefs(bb, use));
+                    if (local[v] != null)
+                        defs.addAll(local[v]);
+                    link(use, defs);
+                }
+
+                IRVariableOperand target = ReachingDefinitions.definedVariable(inst);
+                if (target == null)
+                    continue;
+                defUse.computeIfAbsent(inst, k -> new ArrayList<>());
+                int v = vars.idOf(target);
+                if (local[v] == null) {
+                    local[v] = new ArrayList<>();
+                    touched.add(v);
+                }
+                if (!ReachingDefinitions.isPartialDefinition(inst)) {
+                    local[v].clear();
+                    full[v] = true;
+                }
+                local[v].add(inst);
+            }
+            for (int v : touched) {
+                local[v] = null;
+                full[v] = false;
+            }
+            touched.clear();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<IRInstruction>[] newLocalTable() {
+        return (List<IRInstruction>[]) new List[vars.size()];
+    }
+
+    private void link(IROperand use, List<IRInstruction> defs) {
+        useDef.put(use, defs);
+        for (IRInstruction def : defs)
+            defUse.computeIfAbsent(def, k -> new ArrayList<>()).add(use);
+    }
+
+    // definitions that may supply the value read by `use`
+    List<IRInstruction> getDefs(IROperand use) {
+        List<IRInstruction> defs = useDef.get(use);
+        return defs == null ? Collections.emptyList() : defs;
+    }
+
+    // definitions reaching operand `index` of `inst`
+    List<IRInstruction> getDefs(IRInstruction inst, int index) {
+        return getDefs(inst.operands[index]);
+    }
+
+    // uses reached by the definition `def`
+    List<IROperand> getUses(IRInstruction def) {
+        List<IROperand> uses = defUse.get(def);
+        return uses == null ? Collections.emptyList() : uses;
+    }
+
+    // the single definition reaching `use`, or null if there are zero or several
+    IRInstruction getUniqueDef(IROperand use) {
+        List<IRInstruction> defs = getDefs(use);
+        return defs.size() == 1 ? defs.get(0) : null;
+    }
+
+    BasicBlock blockOf(IRInstruction inst) {
+        return cfg.instrToBlock.get(inst);
+    }
+
+    VariableTable getVariables() {
+        return vars;
+    }
+
+    // forget an instruction that is being deleted: its uses no longer read
+    // anything and the uses it reached lose it as a possible definition
+    void removeInstruction(IRInstruction inst) {
+        for (IROperand use : inst.getSources()) {
+            List<IRInstruction> defs = useDef.remove(use);
+            if (defs == null)
+                continue;
+            for (IRInstruction def : defs)
+                removeIdentity(defUse.get(def), use);
+        }
+        List<IROperand> uses = defUse.remove(inst);
+        if (uses != null) {
+            for (IROperand use : uses)
+                removeIdentity(useDef.get(use), inst);
+        }
+    }
+
+    // `newUse` replaces `oldUse` in its instruction and reads the value of `defs`
+    void replaceUse(IROperand oldUse, IROperand newUse, List<IRInstruction> defs) {
+        List<IRInstruction> oldDefs = useDef.remove(oldUse);
+        if (oldDefs != null) {
+            for (IRInstruction def : oldDefs)
+                removeIdentity(defUse.get(def), oldUse);
+        }
+        if (newUse instanceof IRVariableOperand)
+            link(newUse, new ArrayList<>(defs));
+    }
+
+    // register a new definition with the uses it reaches
+    void addDefinition(IRInstruction def, List<IROperand> uses) {
+        defUse.put(def, new ArrayList<>(uses));
+        for (IROperand use : uses)
+            useDef.computeIfAbsent(use, k -> new ArrayList<>()).add(def);
+    }
+
+    private static <T> void removeIdentity(List<T> list, Object item) {
+        if (list == null)
+            return;
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == item) {
+                list.remove(i);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package middle_end;
+
+import java.util.*;
+
+// Dominator tree and dominance frontiers of a CFG, computed with the iterative
+// algorithm of Cooper, Harvey and Kennedy over the reverse postorder.
+// Blocks that are unreachable from the entry have no immediate dominator.
+class DominatorTree {
+    private CFG cfg;
+    private int[] idom;                       // block id -> immediate dominator id, -1 if none
+    private List<List<BasicBlock>> children;  // block id -> blocks it immediately dominates
+    private int[] preorder;                   // DFS numbering of the tree, for O(1) dominance tests
+    private int[] lastDescendant;
+    private List<Set<BasicBlock>> frontiers;  // computed on demand
+
+    DominatorTree(CFG cfg) {
+        this.cfg = cfg;
+        int n = cfg.basicBlocks.size();
+        idom = new int[n];
+        Arrays.fill(idom, -1);
+        if (n == 0)
+            return;
+
+        List<BasicBlock> rpo = cfg.reversePostOrder();
+        int reachable = cfg.reachableBlockCount();
+        int[] rpoIndex = new int[n];
+        Arrays.fill(rpoIndex, -1);
+        for (int i = 0; i < reachable; i++)
+            rpoIndex[rpo.get(i).getId()] = i;
+
+        int entry = rpo.get(0).getId();
+        idom[entry] = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < reachable; i++) {
+                BasicBlock bb = rpo.get(i);
+                int newIdom = -1;
+                for (BasicBlock pred : bb.getPredecessors()) {
+                    int p = pred.getId();
+                    if (idom[p] == -1)
+                        continue;
+                    newIdom = newIdom == -1 ? p : intersect(p, newIdom, rpoIndex);
+                }
+                if (newIdom != idom[bb.getId()]) {
+                    idom[bb.getId()] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+
+        children = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            children.add(new ArrayList<>());
+        for (BasicBlock bb : cfg.basicBlocks) {
+            int b = bb.getId();
+            if (idom[b] != -1 && b != entry)
+                children.get(idom[b]).add(bb);
+        }
+        numberTree(entry);
+    }
+
+    private int intersect(int b1, int b2, int[] rpoIndex) {
+        while (b1 != b2) {
+            while (rpoIndex[b1] > rpoIndex[b2])
+                b1 = idom[b1];
+            while (rpoIndex[b2] > rpoIndex[b1])
+                b2 = idom[b2];
+        }
+        return b1;
+    }
+
+    private void numberTree(int entry) {
+        int n = cfg.basicBlocks.size();
+        preorder = new int[n];
+        lastDescendant = new int[n];
+        Arrays.fill(preorder, -1);
+        Deque<Integer> stack = new ArrayDeque<>();
+        Deque<Integer> next = new ArrayDeque<>();
+        int counter = 0;
+        preorder[entry] = counter++;
+        stack.push(entry);
+        next.push(0);
+        while (!stack.isEmpty()) {
+            int b = stack.peek();
+            int idx = next.pop();
+            List<BasicBlock> kids = children.get(b);
+            if (idx < kids.size()) {
+                next.push(idx + 1);
+                int c = kids.get(idx).getId();
+                preorder[c] = counter++;
+                stack.push(c);
+                next.push(0);
+            } else {
+                stack.pop();
+                lastDescendant[b] = counter - 1;
+            }
+        }
+    }
+
+    // immediate dominator of bb, null for the entry and unreachable blocks
+    BasicBlock getIdom(BasicBlock bb) {
+        int d = idom[bb.getId()];
+        if (d == -1 || d == bb.getId())
+            return null;
+        return cfg.basicBlocks.get(d);
+    }
+
+    List<BasicBlock> getChildren(BasicBlock bb) {
+        return children == null ? Collections.emptyList() : children.get(bb.getId());
+    }
+
+    boolean isReachable(BasicBlock bb) {
+        return idom[bb.getId()] != -1;
+    }
+
+    // true if every path from the entry to b goes through a (a dominates itself)
+    boolean dominates(BasicBlock a, BasicBlock b) {
+        int pa = preorder == null ? -1 : preorder[a.getId()];
+        int pb = preorder == null ? -1 : preorder[b.getId()];
+        if (pa == -1 || pb == -1)
+            return false;
+        return pa <= pb && pb <= lastDescendant[a.getId()];
+    }
+
+    // dominance frontier of bb: blocks where bb's dominance ends
+    Set<BasicBlock> getFrontier(BasicBlock bb) {
+        if (frontiers == null)
+            computeFrontiers();
+        return frontiers.get(bb.getId());
+    }
+
+    private void computeFrontiers() {
+        int n = cfg.basicBlocks.size();
+        frontiers = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            frontiers.add(new LinkedHashSet<>());
+        for (BasicBlock bb : cfg.basicBlocks) {
+            int b = bb.getId();
+            if (idom[b] == -1 || bb.getPredecessors().size() < 2)
+                continue;
+            for (BasicBlock pred : bb.getPredecessors()) {
+                int runner = pred.getId();
+                if (idom[runner] == -1)
+                    continue;
+                while (runner != idom[b]) {
+                    frontiers.get(runner).add(bb);
+                    if (runner == idom[runner])
+                        break;
+                    runner = idom[runner];
+                }
+            }
+        }
+    }
+
+    // blocks of the tree in preorder (parents before children)
+    List<BasicBlock> preorder() {
+        List<BasicBlock> order = new ArrayList<>();
+        for (BasicBlock bb : cfg.basicBlocks) {
+            if (preorder != null && preorder[bb.getId()] != -1)
+                order.add(bb);
+        }
+        order.sort(Comparator.comparingInt(bb -> preorder[bb.getId()]));
+        return order;
+    }
+}
@@ -0,0 +1,69 @@
+package middle_end;
+
+import ir.*;
+import ir.operand.*;
+
+import java.util.*;
+
+// Live variables over the bit-vector framework (backward, union), one bit per
+// VariableTable id. gen[b] holds the variables read in b before any full write,
+// kill[b] the variables b fully overwrites; array_store leaves the array live.
+// When the function is in SSA form, phi targets are written at the top of their
+// block and a phi argument is read at the end of the matching predecessor.
+class Liveness extends DataflowAnalysis {
+    private VariableTable vars;
+
+    Liveness(CFG cfg, VariableTable vars) {
+        super(cfg, Direction.BACKWARD, Meet.UNION);
+        this.vars = vars;
+        init(vars.size());
+        initLocalSets();
+    }
+
+    @Override
+    protected void computeLocalSets() {
+        for (BasicBlock bb : cfg.basicBlocks) {
+            long[] g = gen[bb.getId()];
+            long[] k = kill[bb.getId()];
+            for (PhiNode phi : bb.getPhis())
+                addDef(k, phi.target);
+            for (IRInstruction inst : bb.getInstructions()) {
+                for (IROperand use : inst.getSources())
+                    addUse(g, k, use);
+                IRVariableOperand target = ReachingDefinitions.definedVariable(inst);
+                if (target != null && !ReachingDefinitions.isPartialDefinition(inst))
+                    addDef(k, target);
+            }
+            // phi arguments flowing out along the edges of this block
+            for (BasicBlock succ : bb.getSuccessors()) {
+                for (PhiNode phi : succ.getPhis())
+                    addUse(g, k, phi.getArg(bb));
+            }
+        }
+    }
+
+    // variables missing from the table are not tracked
+    private void addDef(long[] k, IROperand def) {
+        int v = vars.idOf(def);
+        if (v >= 0)
+            BitVector.set(k, v);
+    }
+
+    private void addUse(long[] g, long[] k, IROperand use) {
+        int v = vars.idOf(use);
+        if (v >= 0 && !BitVector.get(k, v))
+            BitVector.set(g, v);
+    }
+
+    boolean isLiveIn(BasicBlock bb, int var) {
+        return BitVector.get(getIn(bb), var);
+    }
+
+    boolean isLiveOut(BasicBlock bb, int var) {
+        return BitVector.get(getOut(bb), var);
+    }
+
+    VariableTable getVariables() {
+        return vars;
+    }
+}
@@ -0,0 +1,311 @@
+package middle_end;
+
+import ir.*;
+import ir.IRInstruction.OpCode;
+import ir.datatype.*;
+import ir.operand.*;
+
+import java.util.*;
+
+// Loop-invariant code motion over the natural loops of one function.
+//
+// An instruction is invariant when each operand is a constant, a variable with no
+// definition in the loop, or a variable whose only definition in the loop is itself
+// invariant. It is hoisted into the preheader of the loop when
+//  - it cannot trap: arithmetic, and/or, scalar assign, and div only by a nonzero
+//    constant (array_load may be out of bounds or see a store in the loop);
+//  - it is the only definition of its target in the loop;
+//  - the target is not live into the header, so every use in the loop sees it;
+//  - its block dominates every latch (it runs on every iteration) and either
+//    dominates every exiting block or the target is dead on the exits.
+// A loop gets a preheader of its own unless a single outside block jumps or falls
+// straight into the header. Loops are handled inner first; code hoisted out of an
+// inner loop can move out of the enclosing one in the next round.
+//
+// With an execution profile, loops are handled hottest header first, and an
+// instruction is not hoisted if it ran fewer times than the loop was entered (the
+// loop often exits before reaching it), as the preheader would run it more often.
+// Counts are looked up by IR line, so they are estimates once other passes have
+// moved code.
+class LoopInvariantCodeMotion {
+    // rounds over the whole function, each rebuilding the CFG
+    private static final int MAX_ROUNDS = 16;
+
+    private IRFunction function;
+    private IRProfile.FunctionProfile profile;
+    private Set<String> labels;
+
+    private int loopsSeen;
+    private int hoisted;
+    private int preheaders;
+
+    LoopInvariantCodeMotion(IRFunction function) {
+        this(function, null);
+    }
+
+    LoopInvariantCodeMotion(IRFunction function, IRProfile.FunctionProfile profile) {
+        this.function = function;
+        this.profile = profile;
+        this.labels = new HashSet<>();
+        for (IRInstruction inst : function.getInstructions()) {
+            if (inst.opCode == OpCode.LABEL)
+                labels.add(((IRLabelOperand) inst.operands[0]).getName());
+        }
+    }
+
+    // returns true if the function changed
+    boolean run() {
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            if (!runRound(round))
+                break;
+        }
+        Trace.event("licm", Trace.Level.INFO, function.name, "loops", loopsSeen, "hoisted", hoisted,
+                "preheaders", preheaders);
+        return hoisted > 0;
+    }
+
+    // one pass over loops that do not overlap a loop already changed in it
+    private boolean runRound(int round) {
+        CFG cfg = new CFG(function);
+        DominatorTree dom = new DominatorTree(cfg);
+        NaturalLoops loops = new NaturalLoops(cfg, dom);
+        if (round == 0) {
+            loopsSeen = loops.getLoops().size();
+            loops.dump();
+        }
+        if (loops.isEmpty())
+            return false;
+        VariableTable vars = new VariableTable(function);
+        Liveness liveness = new Liveness(cfg, vars);
+        liveness.solve();
+
+        boolean[] touched = new boolean[cfg.basicBlocks.size()];
+        List<List<IRInstruction>> appended = new ArrayList<>();
+        boolean changed = false;
+        List<Loop> order = new ArrayList<>(loops.getLoops());
+        if (profile != null)
+            order.sort(Comparator.comparingLong((Loop loop) -> count(loop.getHeader())).reversed());
+        for (Loop loop : order) {
+            boolean overlaps = false;
+            for (BasicBlock bb : loop.getBlocks())
+                overlaps |= touched[bb.getId()];
+            if (overlaps)
+                continue;
+            List<IRInstruction> invariant = findInvariants(loop, cfg, dom, vars, liveness);
+            if (invariant.isEmpty() || !hoist(loop, cfg, invariant, appended, touched))
+                continue;
+            hoisted += invariant.size();
+            changed = true;
+        }
+        if (changed)
+            writeBack(cfg, appended);
+        return changed;
+    }
+
+    private List<IRInstruction> findInvariants(Loop loop, CFG cfg, DominatorTree dom, VariableTable vars,
+                                               Liveness liveness) {
+        // definitions of each variable inside the loop
+        int[] defCount = new int[vars.size()];
+        IRInstruction[] defOf = new IRInstruction[vars.size()];
+        for (BasicBlock bb : loop.getBlocks()) {
+            for (IRInstruction inst : bb.getInstructions()) {
+                int v = vars.idOf(ReachingDefinitions.definedVariable(inst));
+                if (v >= 0) {
+                    defCount[v]++;
+                    defOf[v] = inst;
+                }
+            }
+        }
+
+        List<BasicBlock> exiting = loop.getExitingBlocks();
+        long entries = 0;
+        if (profile != null) {
+            for (BasicBlock entry : loop.getEntries())
+                entries += count(entry);
+        }
+        List<IRInstruction> result = new ArrayList<>();
+        Set<IRInstruction> invariant = Collections.newSetFromMap(new IdentityHashMap<>());
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock bb : loop.getBlocks()) {
+                for (IRInstruction inst : bb.getInstructions()) {
+                    if (invariant.contains(inst) || !canHoist(inst))
+                        continue;
+                    int target = vars.idOf(inst.operands[0]);
+                    if (defCount[target] != 1 || liveness.isLiveIn(loop.getHeader(), target))
+                        continue;
+                    boolean operandsInvariant = true;
+                    for (IROperand use : inst.getSources()) {
+                        int v = vars.idOf(use);
+                        if (v >= 0 && defCount[v] > 0 && !(defCount[v] == 1 && invariant.contains(defOf[v])))
+                            operandsInvariant = false;
+                    }
+                    if (!operandsInvariant || !runsEveryIteration(bb, loop, dom)
+                            || !safeAtExits(bb, target, loop, exiting, dom, liveness))
+                        continue;
+                    if (profile != null && profile.getLineCount(inst.irLineNumber) < entries)
+                        continue;
+                    invariant.add(inst);
+                    result.add(inst);
+                    changed = true;
+                }
+            }
+        }
+        return result;
+    }
+
+    // instructions that compute the same value wherever they run and never trap
+    private static boolean canHoist(IRInstruction inst) {
+        IRVariableOperand target = ReachingDefinitions.definedVariable(inst);
+        if (target == null || target.type instanceof IRArrayType)
+            return false;
+        switch (inst.opCode) {
+            case ADD:
+            case SUB:
+            case MULT:
+            case AND:
+            case OR:
+                return true;
+            case DIV:
+                return inst.operands[2] instanceof IRConstantOperand
+                        && Double.parseDouble(inst.operands[2].toString()) != 0;
+            case ASSIGN:
+                return inst.operands.length == 2;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean runsEveryIteration(BasicBlock bb, Loop loop, DominatorTree dom) {
+        for (BasicBlock latch : loop.getLatches()) {
+            if (!dom.dominates(bb, latch))
+                return false;
+        }
+        return true;
+    }
+
+    // leaving the loop, the target must hold the hoisted value or not be needed
+    private static boolean safeAtExits(BasicBlock bb, int target, Loop loop, List<BasicBlock> exiting,
+                                       DominatorTree dom, Liveness liveness) {
+        for (BasicBlock exit : exiting) {
+            if (dom.dominates(bb, exit))
+                continue;
+            for (BasicBlock succ : exit.getSuccessors()) {
+                if (!loop.contains(succ) && liveness.isLiveIn(succ, target))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    // move the instructions into the preheader, creating one if needed;
+    // false if the loop has no place for a preheader
+    private boolean hoist(Loop loop, CFG cfg, List<IRInstruction> invariant, List<List<IRInstruction>> appended,
+                          boolean[] touched) {
+        BasicBlock header = loop.getHeader();
+        List<BasicBlock> entries = loop.getEntries();
+        List<IRInstruction> headerInsts = header.getInstructions();
+        int line = headerInsts.get(0).irLineNumber;
+
+        // a single block leading only into the header already is a preheader
+        BasicBlock single = entries.size() == 1 ? entries.get(0) : null;
+        IRInstruction singleLast = single == null ? null : last(single);
+        if (single != null && single.getSuccessors().size() == 1 && singleLast.opCode != OpCode.RETURN
+                && !SSAForm.isConditionalBranch(singleLast)) {
+            removeFromLoop(cfg, invariant);
+            List<IRInstruction> insts = single.getInstructions();
+            insts.addAll(singleLast.opCode == OpCode.GOTO ? insts.size() - 1 : insts.size(), invariant);
+            touched[single.getId()] = true;
+            markLoop(loop, touched);
+            return true;
+        }
+
+        if (headerInsts.get(0).opCode != OpCode.LABEL)
+            return false;
+        String headerLabel = ((IRLabelOperand) headerInsts.get(0).operands[0]).getName();
+        String preheader = freshLabel(headerLabel + "_pre");
+        removeFromLoop(cfg, invariant);
+        List<IRInstruction> block = new ArrayList<>();
+        block.add(SSAForm.newLabel(preheader, line));
+        block.addAll(invariant);
+
+        // a loop block falling into the header must keep doing so: the
+        // preheader then goes to the end of the function and jumps back
+        BasicBlock above = header.getId() > 0 ? cfg.basicBlocks.get(header.getId() - 1) : null;
+        IRInstruction aboveLast = above == null ? null : last(above);
+        if (above != null && loop.contains(above) && aboveLast.opCode != OpCode.GOTO
+                && aboveLast.opCode != OpCode.RETURN) {
+            block.add(SSAForm.newJump(headerLabel, line));
+            appended.add(block);
+        } else {
+            headerInsts.addAll(0, block);
+        }
+        for (BasicBlock entry : entries) {
+            IRInstruction term = last(entry);
+            if ((term.opCode == OpCode.GOTO || SSAForm.isConditionalBranch(term))
+                    && ((IRLabelOperand) term.operands[0]).getName().equals(headerLabel))
+                term.operands[0] = new IRLabelOperand(preheader, term);
+            touched[entry.getId()] = true;
+        }
+        markLoop(loop, touched);
+        preheaders++;
+        return true;
+    }
+
+    private static void markLoop(Loop loop, boolean[] touched) {
+        for (BasicBlock bb : loop.getBlocks())
+            touched[bb.getId()] = true;
+    }
+
+    private static void removeFromLoop(CFG cfg, List<IRInstruction> invariant) {
+        for (IRInstruction inst : invariant) {
+            List<IRInstruction> insts = cfg.instrToBlock.get(inst).getInstructions();
+            for (int i = 0; i < insts.size(); i++) {
+                if (insts.get(i) == inst) {
+                    insts.remove(i);
+                    break;
+                }
+            }
+        }
+    }
+
+    // times the block ran by the profile: the count of its last instruction,
+    // which is the one that leaves it
+    private long count(BasicBlock bb) {
+        List<IRInstruction> insts = bb.getInstructions();
+        return insts.isEmpty() ? 0 : profile.getLineCount(insts.get(insts.size() - 1).irLineNumber);
+    }
+
+    private static IRInstruction last(BasicBlock bb) {
+        List<IRInstruction> insts = bb.getInstructions();
+        return insts.get(insts.size() - 1);
+    }
+
+    private void writeBack(CFG cfg, List<List<IRInstruction>> appended) {
+        cfg.writeBack();
+        if (appended.isEmpty())
+            return;
+        // keep the old end of the function from falling into the preheaders
+        List<IRInstruction> result = new ArrayList<>(function.getInstructions());
+        IRInstruction end = result.isEmpty() ? null : result.get(result.size() - 1);
+        String exitLabel = null;
+        if (end == null || (end.opCode != OpCode.GOTO && end.opCode != OpCode.RETURN)) {
+            exitLabel = freshLabel(function.name + "_exit");
+            result.add(SSAForm.newJump(exitLabel, end == null ? -1 : end.irLineNumber));
+        }
+        for (List<IRInstruction> block : appended)
+            result.addAll(block);
+        if (exitLabel != null)
+            result.add(SSAForm.newLabel(exitLabel, -1));
+        function.setInstructions(result);
+    }
+
+    private String freshLabel(String base) {
+        String name = base;
+        for (int k = 1; labels.contains(name); k++)
+            name = base + k;
+        labels.add(name);
+        return name;
+    }
+}
@@ -0,0 +1,195 @@
+package middle_end;
+
+import java.util.*;
+
+// One natural loop: its header, the latches that jump back to it and the blocks
+// of its body (the header included).
+class Loop {
+    private BasicBlock header;
+    private List<BasicBlock> latches;
+    private List<BasicBlock> blocks;   // in CFG order
+    private boolean[] contains;        // block id -> in the loop
+    private Loop parent;               // innermost enclosing loop, null if outermost
+    private List<Loop> children;
+
+    Loop(BasicBlock header, int numBlocks) {
+        this.header = header;
+        this.latches = new ArrayList<>();
+        this.blocks = new ArrayList<>();
+        this.contains = new boolean[numBlocks];
+        this.children = new ArrayList<>();
+    }
+
+    BasicBlock getHeader() {
+        return header;
+    }
+
+    List<BasicBlock> getLatches() {
+        return latches;
+    }
+
+    List<BasicBlock> getBlocks() {
+        return blocks;
+    }
+
+    boolean contains(BasicBlock bb) {
+        return contains[bb.getId()];
+    }
+
+    Loop getParent() {
+        return parent;
+    }
+
+    List<Loop> getChildren() {
+        return children;
+    }
+
+    // 1 for an outermost loop
+    int getDepth() {
+        int depth = 1;
+        for (Loop l = parent; l != null; l = l.parent)
+            depth++;
+        return depth;
+    }
+
+    // blocks of the loop with a successor outside it
+    List<BasicBlock> getExitingBlocks() {
+        List<BasicBlock> result = new ArrayList<>();
+        for (BasicBlock bb : blocks) {
+            for (BasicBlock succ : bb.getSuccessors()) {
+                if (!contains(succ)) {
+                    result.add(bb);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    // predecessors of the header that are outside the loop
+    List<BasicBlock> getEntries() {
+        List<BasicBlock> result = new ArrayList<>();
+        for (BasicBlock pred : header.getPredecessors()) {
+            if (!contains(pred))
+                result.add(pred);
+        }
+        return result;
+    }
+
+    void addLatch(BasicBlock latch) {
+        latches.add(latch);
+    }
+
+    void add(BasicBlock bb) {
+        contains[bb.getId()] = true;
+    }
+
+    void setParent(Loop parent) {
+        this.parent = parent;
+        parent.children.add(this);
+    }
+
+    // fix the block list once the body is complete
+    void finish(CFG cfg) {
+        for (BasicBlock bb : cfg.basicBlocks) {
+            if (contains[bb.getId()])
+                blocks.add(bb);
+        }
+    }
+}
+
+// Natural loops of a CFG, found from its back edges: an edge t -> h is a back
+// edge when h dominates t, and the loop of h is h plus every block that reaches
+// t without going through h. Back edges to the same header share one loop.
+// Cycles that are not natural loops (irreducible flow) have no back edge and are
+// not reported. Only blocks reachable from the entry take part.
+class NaturalLoops {
+    private CFG cfg;
+    private List<Loop> loops;      // inner loops before the loops that contain them
+    private Loop[] innermost;      // block id -> innermost loop containing it
+
+    NaturalLoops(CFG cfg, DominatorTree dom) {
+        this.cfg = cfg;
+        int n = cfg.basicBlocks.size();
+        Map<BasicBlock, Loop> byHeader = new LinkedHashMap<>();
+        for (BasicBlock bb : cfg.basicBlocks) {
+            if (!dom.isReachable(bb))
+                continue;
+            for (BasicBlock succ : bb.getSuccessors()) {
+                if (dom.dominates(succ, bb))
+                    byHeader.computeIfAbsent(succ, h -> new Loop(h, n)).addLatch(bb);
+            }
+        }
+
+        loops = new ArrayList<>();
+        for (Loop loop : byHeader.values()) {
+            BasicBlock header = loop.getHeader();
+            loop.add(header);
+            Deque<BasicBlock> work = new ArrayDeque<>();
+            for (BasicBlock latch : loop.getLatches()) {
+                if (!loop.contains(latch)) {
+                    loop.add(latch);
+                    work.push(latch);
+                }
+            }
+            while (!work.isEmpty()) {
+                BasicBlock bb = work.pop();
+                for (BasicBlock pred : bb.getPredecessors()) {
+                    if (dom.isReachable(pred) && !loop.contains(pred)) {
+                        loop.add(pred);
+                        work.push(pred);
+                    }
+                }
+            }
+            loop.finish(cfg);
+            loops.add(loop);
+        }
+        // smaller loops first; a loop nested in another is always smaller
+        loops.sort(Comparator.comparingInt(l -> l.getBlocks().size()));
+
+        innermost = new Loop[n];
+        for (Loop loop : loops) {
+            for (BasicBlock bb : loop.getBlocks()) {
+                if (innermost[bb.getId()] == null)
+                    innermost[bb.getId()] = loop;
+            }
+        }
+        // the parent is the smallest other loop containing the header
+        for (int i = 0; i < loops.size(); i++) {
+            Loop loop = loops.get(i);
+            for (int j = i + 1; j < loops.size(); j++) {
+                if (loops.get(j).contains(loop.getHeader())) {
+                    loop.setParent(loops.get(j));
+                    break;
+                }
+            }
+        }
+    }
+
+    // all loops, every loop before the loops that contain it
+    List<Loop> getLoops() {
+        return loops;
+    }
+
+    // innermost loop containing bb, null if bb is in no loop
+    Loop loopOf(BasicBlock bb) {
+        return innermost[bb.getId()];
+    }
+
+    boolean isEmpty() {
+        return loops.isEmpty();
+    }
+
+    // one "loops" trace event per loop, at debug level
+    void dump() {
+        if (!Trace.enabled("loops", Trace.Level.DEBUG))
+            return;
+        for (Loop loop : loops) {
+            List<Integer> blocks = new ArrayList<>();
+            for (BasicBlock bb : loop.getBlocks())
+                blocks.add(bb.getId());
+            Trace.event("loops", Trace.Level.DEBUG, cfg.function.name, "header", loop.getHeader().getId(),
+                    "depth", loop.getDepth(), "blocks", blocks);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package middle_end;
+
+import ir.*;
+
+// A transformation of one function, run by the PassManager. run() returns true
+// if the function changed; the manager then drops the cached analyses of the
+// function, keeping the CFG when the pass says it only rewrites operands.
+interface Pass {
+    String getName();
+
+    boolean run(IRFunction function, AnalysisManager analyses);
+
+    // true if the pass never adds, removes or moves instructions
+    default boolean preservesCFG() {
+        return false;
+    }
+}
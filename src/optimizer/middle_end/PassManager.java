@@ -0,0 +1,230 @@
+package middle_end;
+
+import ir.*;
+
+import java.util.*;
+import java.util.function.*;
+
+// Runs a pipeline of passes over each function, one AnalysisManager per function.
+// After a pass reports a change, the cached analyses it may have invalidated are
+// dropped. A fixpoint group repeats its passes until none of them changes the
+// function or an iteration limit is hit.
+//
+// Named pipelines:
+//   -O0  nothing, the program is printed as read
+//   -O1  sccp, dce, copyprop, dce, coalesce
+//   -O2  layout, then the -O1 passes plus gcse and licm, repeated to a fixed
+//        point (default)
+// A custom pipeline is a comma-separated list of pass names, see createPass().
+//
+// With an execution profile (IRInterpreter --profile), the profile-guided passes
+// use it: layout orders the blocks by it and licm hoists out of hot loops first,
+// and not out of blocks that run less often than the loop is entered. Without
+// one they leave the function as it is.
+class PassManager {
+    private static final int FIXPOINT_ITERATIONS = 4;
+
+    private List<Pass> passes;
+    private IRProfile profile;
+
+    PassManager() {
+        this.passes = new ArrayList<>();
+    }
+
+    PassManager add(Pass pass) {
+        passes.add(pass);
+        return this;
+    }
+
+    // passes run in order, repeatedly, until none of them changes the function
+    PassManager addFixpoint(int maxIterations, Pass... group) {
+        passes.add(new FixpointGroup(Arrays.asList(group), maxIterations));
+        return this;
+    }
+
+    List<Pass> getPasses() {
+        return passes;
+    }
+
+    // the profile of the program being optimized, taken before any pass ran
+    void setProfile(IRProfile profile) {
+        this.profile = profile;
+    }
+
+    // returns true if any pass changed the function
+    boolean run(IRFunction function) {
+        AnalysisManager analyses = new AnalysisManager(function,
+                profile == null ? null : profile.getFunction(function.name));
+        boolean changed = false;
+        for (Pass pass : passes)
+            changed |= runPass(pass, function, analyses);
+        return changed;
+    }
+
+    static boolean runPass(Pass pass, IRFunction function, AnalysisManager analyses) {
+        boolean timed = Trace.enabled("passes", Trace.Level.DEBUG);
+        long begin = timed ? System.nanoTime() : 0;
+        boolean changed = pass.run(function, analyses);
+        if (timed)
+            Trace.event("passes", Trace.Level.DEBUG, function.name, "pass", pass.getName(), "changed", changed,
+                    "time_us", (System.nanoTime() - begin) / 1000);
+        if (!changed)
+            return false;
+        if (pass.preservesCFG())
+            analyses.invalidateDataflow();
+        else
+            analyses.invalidateAll();
+        return true;
+    }
+
+    // the pipeline for -O<level>
+    static PassManager forLevel(int level) {
+        PassManager pm = new PassManager();
+        switch (level) {
+            case 0:
+                break;
+            case 1:
+                for (String name : new String[]{"sccp", "dce", "copyprop", "dce", "coalesce"})
+                    pm.add(createPass(name));
+                break;
+            default:
+                pm.add(createPass("layout"));
+                pm.addFixpoint(FIXPOINT_ITERATIONS, createPass("sccp"), createPass("dce"), createPass("gcse"),
+                        createPass("copyprop"), createPass("dce"), createPass("coalesce"), createPass("licm"));
+                break;
+        }
+        return pm;
+    }
+
+    // a pipeline from a comma-separated list of pass names, run once in order
+    static PassManager fromNames(String list) {
+        PassManager pm = new PassManager();
+        for (String name : list.split(",")) {
+            if (!name.trim().isEmpty())
+                pm.add(createPass(name.trim()));
+        }
+        return pm;
+    }
+
+    static Pass createPass(String name) {
+        switch (name) {
+            case "dce":
+                return new DeadCodeElimination();
+            case "sccp":
+                return new SimplePass(name, false, (function, analyses) -> {
+                    // SCCP runs on SSA form; the definitions it makes dead are
+                    // left for the dead code elimination that follows
+                    SSAForm ssa = new SSAForm(function);
+                    SCCP sccp = new SCCP(ssa);
+                    sccp.run();
+                    ssa.dump();
+                    ssa.destruct();
+                    Trace.event("sccp", Trace.Level.INFO, function.name, "folded", sccp.getFoldedInstructions(),
+                            "resolvedBranches", sccp.getResolvedBranches(), "removedBlocks", sccp.getRemovedBlocks());
+                    // the round trip through SSA form rewrites the function even
+                    // when nothing folds; only report a change when something did
+                    analyses.invalidateAll();
+                    return sccp.getFoldedInstructions() + sccp.getResolvedBranches()
+                            + sccp.getRemovedBlocks() > 0;
+                });
+            case "gcse":
+                return new SimplePass(name, false, (function, analyses) -> {
+                    CFG cfg = analyses.getCFG();
+                    if (!new CommonSubexpressionElimination(cfg).run())
+                        return false;
+                    cfg.writeBack();
+                    return true;
+                });
+            case "copyprop":
+                // operands are rewritten in place, the copies themselves are
+                // left for dead code elimination
+                return new SimplePass(name, true,
+                        (function, analyses) -> new CopyPropagation(analyses.getCFG()).run());
+            case "coalesce":
+                return new SimplePass(name, false, (function, analyses) -> {
+                    CFG cfg = analyses.getCFG();
+                    if (!new CopyCoalescing(cfg, analyses.getVariables(), analyses.getLiveness()).run())
+                        return false;
+                    cfg.writeBack();
+                    return true;
+                });
+            case "licm":
+                // LICM rebuilds the CFG of the function after every round and
+                // writes the result back itself
+                return new SimplePass(name, false,
+                        (function, analyses) -> new LoopInvariantCodeMotion(function, analyses.getProfile()).run());
+            case "layout":
+                // the counts are by IR line, so this belongs before other passes
+                return new SimplePass(name, false,
+                        (function, analyses) -> new BlockLayout(analyses.getCFG(), analyses.getProfile()).run());
+            default:
+                throw new IllegalArgumentException("unknown pass: " + name);
+        }
+    }
+
+    // a pass given by a function
+    private static class SimplePass implements Pass {
+        private String name;
+        private boolean preservesCFG;
+        private BiPredicate<IRFunction, AnalysisManager> body;
+
+        SimplePass(String name, boolean preservesCFG, BiPredicate<IRFunction, AnalysisManager> body) {
+            this.name = name;
+            this.preservesCFG = preservesCFG;
+            this.body = body;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean run(IRFunction function, AnalysisManager analyses) {
+            return body.test(function, analyses);
+        }
+
+        @Override
+        public boolean preservesCFG() {
+            return preservesCFG;
+        }
+    }
+
+    private static class FixpointGroup implements Pass {
+        private List<Pass> group;
+        private int maxIterations;
+
+        FixpointGroup(List<Pass> group, int maxIterations) {
+            this.group = group;
+            this.maxIterations = maxIterations;
+        }
+
+        @Override
+        public String getName() {
+            StringBuilder sb = new StringBuilder("fixpoint(");
+            for (int i = 0; i < group.size(); i++)
+                sb.append(i == 0 ? "" : ",").append(group.get(i).getName());
+            return sb.append(")").toString();
+        }
+
+        @Override
+        public boolean run(IRFunction function, AnalysisManager analyses) {
+            boolean changed = false;
+            for (int i = 0; i < maxIterations; i++) {
+                boolean round = false;
+                for (Pass pass : group)
+                    round |= runPass(pass, function, analyses);
+                if (!round)
+                    break;
+                changed = true;
+            }
+            return changed;
+        }
+
+        // members invalidate as they go; the group itself leaves nothing stale
+        @Override
+        public boolean preservesCFG() {
+            return true;
+        }
+    }
+}
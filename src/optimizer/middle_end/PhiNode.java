@@ -0,0 +1,50 @@
+package middle_end;
+
+import ir.operand.*;
+
+import java.util.*;
+
+// target = phi(arg from pred 1, arg from pred 2, ...) at the top of a block.
+// Phi nodes only exist while a function is in SSA form; they are not
+// IRInstructions and never reach the printer.
+class PhiNode {
+    IRVariableOperand target;
+    int var; // id of the original variable in the SSAForm's VariableTable
+    private Map<BasicBlock, IROperand> args;
+
+    PhiNode(IRVariableOperand target, int var) {
+        this.target = target;
+        this.var = var;
+        this.args = new LinkedHashMap<>();
+    }
+
+    IROperand getArg(BasicBlock pred) {
+        return args.get(pred);
+    }
+
+    void setArg(BasicBlock pred, IROperand value) {
+        args.put(pred, value);
+    }
+
+    void removeArg(BasicBlock pred) {
+        args.remove(pred);
+    }
+
+    Map<BasicBlock, IROperand> getArgs() {
+        return args;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(target).append(" = phi(");
+        boolean first = true;
+        for (Map.Entry<BasicBlock, IROperand> e : args.entrySet()) {
+            if (!first)
+                sb.append(", ");
+            first = false;
+            sb.append(e.getValue()).append(" from ").append(e.getKey().getStartLine());
+        }
+        return sb.append(")").toString();
+    }
+}
@@ -0,0 +1,167 @@
+package middle_end;
+
+import ir.*;
+import ir.IRInstruction.OpCode;
+import ir.operand.*;
+
+import java.util.*;
+
+// Reaching definitions over the bit-vector framework.
+// Every instruction that writes a variable is a definition and gets a dense number.
+// A scalar definition (or a whole-array assign) kills every other definition of the
+// same variable; an array_store only updates one element so it kills nothing.
+// Definitions are numbered variable by variable, so the definitions of one variable
+// form a contiguous bit range and a kill is a range clear instead of a full vector.
+class ReachingDefinitions extends DataflowAnalysis {
+    private IRInstruction[] defs;                     // definition number -> instruction
+    private Map<IRInstruction, Integer> defIndex;     // instruction -> definition number
+    private VariableTable vars;
+    private int[] rangeStart;                         // variable id -> first definition number
+    private int[] rangeEnd;                           // variable id -> last definition number + 1
+    private int[][] genDefs;                          // block -> definitions reaching its end
+    private int[][] killVars;                         // block -> variables it fully defines
+    private long[] scratch;
+
+    ReachingDefinitions(CFG cfg) {
+        this(cfg, new VariableTable(cfg.function));
+    }
+
+    ReachingDefinitions(CFG cfg, VariableTable vars) {
+        super(cfg, Direction.FORWARD, Meet.UNION);
+        this.vars = vars;
+        defIndex = new IdentityHashMap<>();
+        List<List<IRInstruction>> byVar = new ArrayList<>();
+        for (int v = 0; v < vars.size(); v++)
+            byVar.add(new ArrayList<>());
+        int count = 0;
+        for (BasicBlock bb : cfg.basicBlocks) {
+            for (IRInstruction inst : bb.getInstructions()) {
+                IRVariableOperand var = definedVariable(inst);
+                if (var == null)
+                    continue;
+                byVar.get(vars.idOf(var)).add(inst);
+                count++;
+            }
+        }
+
+        defs = new IRInstruction[count];
+        rangeStart = new int[vars.size()];
+        rangeEnd = new int[vars.size()];
+        int d = 0;
+        for (int v = 0; v < vars.size(); v++) {
+            rangeStart[v] = d;
+            for (IRInstruction inst : byVar.get(v)) {
+                defs[d] = inst;
+                defIndex.put(inst, d);
+                d++;
+            }
+            rangeEnd[v] = d;
+        }
+        init(count);
+    }
+
+    @Override
+    protected void computeLocalSets() {
+        int n = cfg.basicBlocks.size();
+        genDefs = new int[n][];
+        killVars = new int[n][];
+        scratch = BitVector.create(numFacts);
+        for (BasicBlock bb : cfg.basicBlocks) {
+            // last full definition of each variable, plus partial ones after it
+            Map<Integer, List<Integer>> live = new LinkedHashMap<>();
+            for (IRInstruction inst : bb.getInstructions()) {
+                IRVariableOperand var = definedVariable(inst);
+                if (var == null)
+                    continue;
+                int v = vars.idOf(var);
+                List<Integer> list = live.computeIfAbsent(v, k -> new ArrayList<>());
+                if (!isPartialDefinition(inst)) {
+                    list.clear();
+                    list.add(-1 - v); // marks the variable as killed
+                }
+                list.add(defIndex.get(inst));
+            }
+            List<Integer> g = new ArrayList<>();
+            List<Integer> k = new ArrayList<>();
+            for (List<Integer> list : live.values()) {
+                for (int x : list) {
+                    if (x < 0)
+                        k.add(-1 - x);
+                    else
+                        g.add(x);
+                }
+            }
+            genDefs[bb.getId()] = g.stream().mapToInt(Integer::intValue).toArray();
+            killVars[bb.getId()] = k.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    @Override
+    protected boolean transfer(int b, long[] src, long[] dst) {
+        System.arraycopy(src, 0, scratch, 0, scratch.length);
+        for (int v : killVars[b])
+            BitVector.clearRange(scratch, rangeStart[v], rangeEnd[v]);
+        for (int d : genDefs[b])
+            BitVector.set(scratch, d);
+        return BitVector.copy(dst, scratch);
+    }
+
+    // the variable written by the instruction, or null
+    static IRVariableOperand definedVariable(IRInstruction inst) {
+        IROperand target = inst.getTarget();
+        if (target instanceof IRVariableOperand)
+            return (IRVariableOperand) target;
+        return null;
+    }
+
+    // array_store writes a single element, the rest of the array survives
+    static boolean isPartialDefinition(IRInstruction inst) {
+        return inst.opCode == OpCode.ARRAY_STORE;
+    }
+
+    // definitions of `operand` that reach the entry of `bb`
+    List<IRInstruction> reachingDefs(BasicBlock bb, IROperand operand) {
+        List<IRInstruction> result = new ArrayList<>();
+        if (!(operand instanceof IRVariableOperand))
+            return result;
+        int v = vars.idOf(operand);
+        if (v < 0)
+            return result;
+        long[] inSet = getIn(bb);
+        for (int d = BitVector.nextSetBit(inSet, rangeStart[v]); d >= 0 && d < rangeEnd[v];
+                d = BitVector.nextSetBit(inSet, d + 1))
+            result.add(defs[d]);
+        return result;
+    }
+
+    // all definitions reaching the entry of `bb`
+    List<IRInstruction> reachingDefs(BasicBlock bb) {
+        return collect(getIn(bb));
+    }
+
+    // all definitions reaching the exit of `bb`
+    List<IRInstruction> outDefs(BasicBlock bb) {
+        return collect(getOut(bb));
+    }
+
+    private List<IRInstruction> collect(long[] set) {
+        List<IRInstruction> result = new ArrayList<>();
+        for (int d = BitVector.nextSetBit(set, 0); d >= 0; d = BitVector.nextSetBit(set, d + 1))
+            result.add(defs[d]);
+        return result;
+    }
+
+    // true if definition `def` reaches the entry of `bb`
+    boolean reaches(IRInstruction def, BasicBlock bb) {
+        Integer d = defIndex.get(def);
+        return d != null && BitVector.get(getIn(bb), d);
+    }
+
+    VariableTable getVariables() {
+        return vars;
+    }
+
+    int getNumDefinitions() {
+        return defs.length;
+    }
+}
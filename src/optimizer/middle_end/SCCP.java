@@ -0,0 +1,539 @@
+package middle_end;
+
+import ir.*;
+import ir.IRInstruction.OpCode;
+import ir.datatype.*;
+import ir.operand.*;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+// Sparse conditional constant propagation (Wegman-Zadeck) over an SSAForm.
+//
+// Every SSA name starts at TOP (no value seen yet) and can only move down to a
+// constant and then to BOTTOM (not constant). Blocks and CFG edges start out
+// non-executable; a block is only evaluated once an edge into it is executable,
+// and a branch whose operands are constant only makes its one taken edge
+// executable. Afterwards:
+// - uses of constant names are replaced by the constant where the IR allows it,
+// - binary ops with a constant result become `assign x, c`,
+// - branches with a known outcome become a goto or disappear,
+// - blocks that never became executable are removed from the CFG.
+// The now-dead definitions are left for dead code elimination.
+class SCCP {
+    // lattice values other than constants; constants are Integer or Float
+    private static final Object TOP = new Object();
+    private static final Object BOTTOM = new Object();
+
+    private SSAForm ssa;
+    private CFG cfg;
+    private Map<String, Object> values;                      // SSA name -> lattice value
+    private Map<String, List<IRInstruction>> instUses;       // SSA name -> instructions reading it
+    private Map<String, List<BasicBlock>> phiUses;           // SSA name -> blocks whose phis read it
+    private boolean[] executable;                            // by block id
+    private Set<Long> executableEdges;
+    private Deque<BasicBlock[]> edgeWork;                    // {from, to}, from is null for the entry
+    private Deque<String> nameWork;
+
+    private int foldedInstructions;
+    private int resolvedBranches;
+    private int removedBlocks;
+
+    SCCP(SSAForm ssa) {
+        this.ssa = ssa;
+        this.cfg = ssa.getCFG();
+        this.values = new HashMap<>();
+        this.instUses = new HashMap<>();
+        this.phiUses = new HashMap<>();
+        this.executable = new boolean[cfg.basicBlocks.size()];
+        this.executableEdges = new HashSet<>();
+        this.edgeWork = new ArrayDeque<>();
+        this.nameWork = new ArrayDeque<>();
+    }
+
+    // returns true if the function changed
+    boolean run() {
+        if (cfg.basicBlocks.isEmpty())
+            return false;
+        buildUses();
+        propagate();
+        return rewrite();
+    }
+
+    int getFoldedInstructions() {
+        return foldedInstructions;
+    }
+
+    int getResolvedBranches() {
+        return resolvedBranches;
+    }
+
+    int getRemovedBlocks() {
+        return removedBlocks;
+    }
+
+    // -------- analysis --------
+
+    private void buildUses() {
+        // names defined inside the function start optimistic (TOP); anything else
+        // (parameters, the entry value of locals) is unknown
+        for (BasicBlock bb : cfg.basicBlocks) {
+            for (PhiNode phi : bb.getPhis()) {
+                values.put(phi.target.getName(), TOP);
+                for (IROperand arg : phi.getArgs().values()) {
+                    if (arg instanceof IRVariableOperand)
+                        phiUses.computeIfAbsent(arg.toString(), k -> new ArrayList<>()).add(bb);
+                }
+            }
+            for (IRInstruction inst : bb.getInstructions()) {
+                IRVariableOperand target = scalarTarget(inst);
+                if (target != null)
+                    values.put(target.getName(), TOP);
+                for (IROperand use : inst.getSources()) {
+                    if (use instanceof IRVariableOperand)
+                        instUses.computeIfAbsent(use.toString(), k -> new ArrayList<>()).add(inst);
+                }
+            }
+        }
+    }
+
+    private void propagate() {
+        edgeWork.add(new BasicBlock[]{null, cfg.basicBlocks.get(0)});
+        while (!edgeWork.isEmpty() || !nameWork.isEmpty()) {
+            while (!edgeWork.isEmpty()) {
+                BasicBlock[] edge = edgeWork.poll();
+                BasicBlock from = edge[0];
+                BasicBlock to = edge[1];
+                if (from != null && !executableEdges.add(edgeKey(from, to)))
+                    continue;
+                for (PhiNode phi : to.getPhis())
+                    visitPhi(phi, to);
+                if (!executable[to.getId()]) {
+                    executable[to.getId()] = true;
+                    visitBlock(to);
+                }
+            }
+            while (!nameWork.isEmpty()) {
+                String name = nameWork.poll();
+                for (BasicBlock bb : phiUses.getOrDefault(name, Collections.emptyList())) {
+                    if (!executable[bb.getId()])
+                        continue;
+                    for (PhiNode phi : bb.getPhis())
+                        visitPhi(phi, bb);
+                }
+                for (IRInstruction inst : instUses.getOrDefault(name, Collections.emptyList())) {
+                    BasicBlock bb = cfg.instrToBlock.get(inst);
+                    if (bb != null && executable[bb.getId()])
+                        visitInstruction(inst, bb);
+                }
+            }
+        }
+    }
+
+    private void visitBlock(BasicBlock bb) {
+        List<IRInstruction> insts = bb.getInstructions();
+        for (IRInstruction inst : insts)
+            visitInstruction(inst, bb);
+        IRInstruction last = insts.isEmpty() ? null : insts.get(insts.size() - 1);
+        if (last == null || !SSAForm.isConditionalBranch(last)) {
+            for (BasicBlock succ : bb.getSuccessors())
+                edgeWork.add(new BasicBlock[]{bb, succ});
+        }
+    }
+
+    private void visitPhi(PhiNode phi, BasicBlock bb) {
+        Object value = TOP;
+        for (Map.Entry<BasicBlock, IROperand> e : phi.getArgs().entrySet()) {
+            if (!executableEdges.contains(edgeKey(e.getKey(), bb)))
+                continue;
+            value = meet(value, valueOf(e.getValue()));
+            if (value == BOTTOM)
+                break;
+        }
+        update(phi.target.getName(), value);
+    }
+
+    private void visitInstruction(IRInstruction inst, BasicBlock bb) {
+        if (SSAForm.isConditionalBranch(inst)) {
+            visitBranch(inst, bb);
+            return;
+        }
+        IRVariableOperand target = scalarTarget(inst);
+        if (target == null)
+            return;
+        Object value;
+        switch (inst.opCode) {
+            case ASSIGN:
+                value = valueOf(inst.operands[1]);
+                break;
+            case ADD:
+            case SUB:
+            case MULT:
+            case DIV:
+            case AND:
+            case OR:
+                value = evaluate(inst.opCode, target.type, valueOf(inst.operands[1]), valueOf(inst.operands[2]));
+                break;
+            default:
+                // call results and array loads are never constant
+                value = BOTTOM;
+                break;
+        }
+        update(target.getName(), value);
+    }
+
+    private void visitBranch(IRInstruction inst, BasicBlock bb) {
+        Object a = valueOf(inst.operands[1]);
+        Object b = valueOf(inst.operands[2]);
+        if (a == TOP || b == TOP)
+            return;
+        BasicBlock taken = takenSuccessor(inst);
+        BasicBlock fallThrough = fallThroughSuccessor(bb);
+        if (a == BOTTOM || b == BOTTOM) {
+            for (BasicBlock succ : bb.getSuccessors())
+                edgeWork.add(new BasicBlock[]{bb, succ});
+            return;
+        }
+        BasicBlock next = compare(inst.opCode, a, b) ? taken : fallThrough;
+        if (next != null)
+            edgeWork.add(new BasicBlock[]{bb, next});
+    }
+
+    private void update(String name, Object value) {
+        Object old = values.getOrDefault(name, BOTTOM);
+        Object lowered = meet(old, value);
+        if (!sameValue(old, lowered)) {
+            values.put(name, lowered);
+            nameWork.add(name);
+        }
+    }
+
+    private Object valueOf(IROperand operand) {
+        if (operand instanceof IRConstantOperand)
+            return constantValue((IRConstantOperand) operand);
+        if (operand instanceof IRVariableOperand)
+            return values.getOrDefault(operand.toString(), BOTTOM);
+        return BOTTOM;
+    }
+
+    private static Object meet(Object a, Object b) {
+        if (a == TOP)
+            return b;
+        if (b == TOP)
+            return a;
+        if (a == BOTTOM || b == BOTTOM)
+            return BOTTOM;
+        return sameValue(a, b) ? a : BOTTOM;
+    }
+
+    private static boolean sameValue(Object a, Object b) {
+        if (a == b)
+            return true;
+        if (a instanceof Float && b instanceof Float)
+            return Float.floatToIntBits((Float) a) == Float.floatToIntBits((Float) b);
+        return a instanceof Integer && a.equals(b);
+    }
+
+    // fold a binary operation the way IRInterpreter evaluates it; results the
+    // interpreter would trap on or that cannot be written as an IR constant
+    // (division by zero, NaN, infinities, -0.0) are BOTTOM
+    private static Object evaluate(OpCode op, IRType type, Object y, Object z) {
+        if (type == IRIntType.get() && (op == OpCode.MULT || op == OpCode.AND)) {
+            // x * 0 and x & 0 are 0 whatever x is
+            if (isIntZero(y) && z != TOP || isIntZero(z) && y != TOP)
+                return 0;
+        }
+        if (y == BOTTOM || z == BOTTOM)
+            return BOTTOM;
+        if (y == TOP || z == TOP)
+            return TOP;
+        if (type == IRIntType.get()) {
+            int iy = (Integer) y;
+            int iz = (Integer) z;
+            switch (op) {
+                case ADD:
+                    return iy + iz;
+                case SUB:
+                    return iy - iz;
+                case MULT:
+                    return iy * iz;
+                case DIV:
+                    return iz == 0 ? BOTTOM : iy / iz;
+                case AND:
+                    return iy & iz;
+                case OR:
+                    return iy | iz;
+                default:
+                    return BOTTOM;
+            }
+        }
+        float fy = (Float) y;
+        float fz = (Float) z;
+        float result;
+        switch (op) {
+            case ADD:
+                result = fy + fz;
+                break;
+            case SUB:
+                result = fy - fz;
+                break;
+            case MULT:
+                result = fy * fz;
+                break;
+            case DIV:
+                result = fy / fz;
+                break;
+            default:
+                return BOTTOM;
+        }
+        if (Float.isNaN(result) || Float.isInfinite(result) || Float.floatToIntBits(result) == Float.floatToIntBits(-0.0f))
+            return BOTTOM;
+        return result;
+    }
+
+    private static boolean isIntZero(Object v) {
+        return v instanceof Integer && (Integer) v == 0;
+    }
+
+    private static boolean compare(OpCode op, Object a, Object b) {
+        if (a instanceof Integer) {
+            int ia = (Integer) a;
+            int ib = (Integer) b;
+            switch (op) {
+                case BREQ:
+                    return ia == ib;
+                case BRNEQ:
+                    return ia != ib;
+                case BRLT:
+                    return ia < ib;
+                case BRGT:
+                    return ia > ib;
+                case BRLEQ:
+                    return ia <= ib;
+                default:
+                    return ia >= ib;
+            }
+        }
+        float fa = (Float) a;
+        float fb = (Float) b;
+        switch (op) {
+            case BREQ:
+                return fa == fb;
+            case BRNEQ:
+                return fa != fb;
+            case BRLT:
+                return fa < fb;
+            case BRGT:
+                return fa > fb;
+            case BRLEQ:
+                return fa <= fb;
+            default:
+                return fa >= fb;
+        }
+    }
+
+    // -------- transformation --------
+
+    private boolean rewrite() {
+        boolean changed = false;
+        for (BasicBlock bb : cfg.basicBlocks) {
+            if (!executable[bb.getId()] || ssa.isRemoved(bb))
+                continue;
+            List<IRInstruction> insts = bb.getInstructions();
+            for (int i = 0; i < insts.size(); i++) {
+                IRInstruction inst = insts.get(i);
+                if (SSAForm.isConditionalBranch(inst)) {
+                    int outcome = rewriteBranch(inst);
+                    if (outcome == 0) {
+                        insts.remove(i--);
+                        changed = true;
+                    } else if (outcome == 1) {
+                        changed = true;
+                    }
+                    continue;
+                }
+                changed |= substituteConstants(inst);
+                changed |= foldToAssign(inst);
+            }
+        }
+
+        // drop the edges that can never be taken, then the blocks that can never run
+        for (BasicBlock bb : cfg.basicBlocks) {
+            if (!executable[bb.getId()])
+                continue;
+            for (BasicBlock succ : new ArrayList<>(bb.getSuccessors())) {
+                if (!executableEdges.contains(edgeKey(bb, succ))) {
+                    ssa.removeEdge(bb, succ);
+                    changed = true;
+                }
+            }
+        }
+        for (BasicBlock bb : cfg.basicBlocks) {
+            if (!executable[bb.getId()] && !ssa.isRemoved(bb)) {
+                ssa.removeBlock(bb);
+                removedBlocks++;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // 0: the branch is never taken and can go, 1: rewritten, -1: unchanged
+    private int rewriteBranch(IRInstruction inst) {
+        Object a = valueOf(inst.operands[1]);
+        Object b = valueOf(inst.operands[2]);
+        if (isConstant(a) && isConstant(b)) {
+            resolvedBranches++;
+            if (!compare(inst.opCode, a, b))
+                return 0;
+            inst.opCode = OpCode.GOTO;
+            inst.operands = new IROperand[]{inst.operands[0]};
+            return 1;
+        }
+        // nothing to do if neither side is known or the constant is already in place
+        if (isConstant(a) == isConstant(b) || inst.operands[2] instanceof IRConstantOperand)
+            return -1;
+        // one side is constant: the interpreter and the backend expect the
+        // variable first, so flip the comparison if needed
+        if (isConstant(a)) {
+            IROperand var = inst.operands[2];
+            inst.operands[2] = constantOperand(a, inst);
+            inst.operands[1] = var;
+            inst.opCode = swapped(inst.opCode);
+        } else {
+            inst.operands[2] = constantOperand(b, inst);
+        }
+        foldedInstructions++;
+        return 1;
+    }
+
+    // replace uses by constants in the operand positions that accept one in
+    // both the interpreter and the backend
+    private boolean substituteConstants(IRInstruction inst) {
+        int[] positions;
+        switch (inst.opCode) {
+            case ASSIGN:
+                positions = inst.operands.length > 2 ? new int[]{1, 2} : new int[]{1};
+                break;
+            case ADD:
+            case SUB:
+            case MULT:
+            case DIV:
+            case AND:
+            case OR:
+                // keep at least one variable unless the whole operation folds
+                if (isConstant(valueOf(inst.operands[0])))
+                    return false;
+                positions = isConstant(valueOf(inst.operands[1])) && isConstant(valueOf(inst.operands[2]))
+                        ? new int[0] : new int[]{1, 2};
+                break;
+            case ARRAY_LOAD:
+            case ARRAY_STORE:
+                positions = new int[]{2};
+                break;
+            case RETURN:
+                positions = inst.operands.length > 0 ? new int[]{0} : new int[0];
+                break;
+            default:
+                return false;
+        }
+        boolean changed = false;
+        for (int i : positions) {
+            IROperand operand = inst.operands[i];
+            if (!(operand instanceof IRVariableOperand))
+                continue;
+            Object value = valueOf(operand);
+            if (isConstant(value)) {
+                inst.operands[i] = constantOperand(value, inst);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // a binary op whose result is constant becomes `assign x, c`
+    private boolean foldToAssign(IRInstruction inst) {
+        switch (inst.opCode) {
+            case ADD:
+            case SUB:
+            case MULT:
+            case DIV:
+            case AND:
+            case OR:
+                break;
+            default:
+                return false;
+        }
+        Object value = valueOf(inst.operands[0]);
+        if (!isConstant(value))
+            return false;
+        IROperand target = inst.operands[0];
+        inst.opCode = OpCode.ASSIGN;
+        inst.operands = new IROperand[]{target, constantOperand(value, inst)};
+        foldedInstructions++;
+        return true;
+    }
+
+    private static boolean isConstant(Object value) {
+        return value instanceof Integer || value instanceof Float;
+    }
+
+    private static IRConstantOperand constantOperand(Object value, IRInstruction parent) {
+        if (value instanceof Integer)
+            return new IRConstantOperand(IRIntType.get(), value.toString(), parent);
+        return new IRConstantOperand(IRFloatType.get(), formatFloat((Float) value), parent);
+    }
+
+    // IRReader only accepts plain decimals and types a constant as float by its '.'
+    static String formatFloat(float f) {
+        String s = new BigDecimal(Float.toString(f)).toPlainString();
+        return s.indexOf('.') >= 0 ? s : s + ".0";
+    }
+
+    private static Object constantValue(IRConstantOperand c) {
+        try {
+            if (c.type == IRIntType.get())
+                return Integer.parseInt(c.getValueString());
+            return Float.parseFloat(c.getValueString());
+        } catch (NumberFormatException e) {
+            return BOTTOM;
+        }
+    }
+
+    private static OpCode swapped(OpCode op) {
+        switch (op) {
+            case BRLT:
+                return OpCode.BRGT;
+            case BRGT:
+                return OpCode.BRLT;
+            case BRLEQ:
+                return OpCode.BRGEQ;
+            case BRGEQ:
+                return OpCode.BRLEQ;
+            default:
+                return op;
+        }
+    }
+
+    // -------- helpers --------
+
+    private IRVariableOperand scalarTarget(IRInstruction inst) {
+        IRVariableOperand target = ReachingDefinitions.definedVariable(inst);
+        if (target == null || ReachingDefinitions.isPartialDefinition(inst) || target.type instanceof IRArrayType)
+            return null;
+        return target;
+    }
+
+    private BasicBlock takenSuccessor(IRInstruction branch) {
+        return cfg.labelToBlock.get(((IRLabelOperand) branch.operands[0]).getName());
+    }
+
+    private BasicBlock fallThroughSuccessor(BasicBlock bb) {
+        int next = bb.getId() + 1;
+        return next < cfg.basicBlocks.size() ? cfg.basicBlocks.get(next) : null;
+    }
+
+    private static long edgeKey(BasicBlock from, BasicBlock to) {
+        return ((long) from.getId() << 32) | to.getId();
+    }
+}
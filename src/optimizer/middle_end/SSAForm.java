@@ -0,0 +1,870 @@
+package middle_end;
+
+import ir.*;
+import ir.IRInstruction.OpCode;
+import ir.datatype.*;
+import ir.operand.*;
+
+import java.util.*;
+
+// Pruned SSA form for the scalar variables of one function, built on the CFG.
+//
+// Construction: dominator tree -> phi nodes at the iterated dominance frontier of
+// each variable's definitions, but only where the variable is live -> renaming in
+// a walk of the dominator tree. Version 0 of a variable keeps its original name and
+// stands for the value on function entry (the parameter, or the zero every local
+// starts with). Arrays are left alone.
+//
+// Destruction: names joined by phi nodes are coalesced into one variable when their
+// live ranges do not interfere, which maps nearly everything back to the original
+// names. Phi arguments that could not be coalesced become copies on the incoming
+// edges; critical edges are split with a new labelled block. The blocks are then
+// written back to the function as a plain Tiger-IR instruction list.
+class SSAForm {
+    private IRFunction function;
+    private CFG cfg;
+    private DominatorTree domTree;
+    private VariableTable vars;              // the original variables
+    private Map<String, Integer> origin;     // SSA name -> original variable id
+    private Set<String> names;               // every variable name in the function
+    private Set<String> labels;              // every label in the function
+    private Set<BasicBlock> removed;         // blocks deleted by a pass
+    private int[] marks;                     // scratch for the interference tests in destruct()
+    private int markCounter;
+
+    SSAForm(IRFunction function) {
+        this.function = function;
+        this.names = new HashSet<>();
+        this.labels = new HashSet<>();
+        this.removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (IRVariableOperand param : function.parameters)
+            names.add(param.getName());
+        for (IRVariableOperand var : function.variables)
+            names.add(var.getName());
+        for (IRInstruction inst : function.getInstructions()) {
+            if (inst.opCode == OpCode.LABEL)
+                labels.add(((IRLabelOperand) inst.operands[0]).getName());
+        }
+        ensureEntryWithoutPredecessors();
+
+        cfg = new CFG(function);
+        domTree = new DominatorTree(cfg);
+        vars = new VariableTable(function);
+        origin = new HashMap<>();
+        for (int v = 0; v < vars.size(); v++) {
+            if (isScalar(v))
+                origin.put(vars.name(v), v);
+        }
+        placePhis();
+        rename();
+    }
+
+    CFG getCFG() {
+        return cfg;
+    }
+
+    DominatorTree getDominatorTree() {
+        return domTree;
+    }
+
+    IRFunction getFunction() {
+        return function;
+    }
+
+    // true for a scalar variable name that is (a version of) an SSA variable
+    boolean isSSAName(String name) {
+        return origin.containsKey(name);
+    }
+
+    // original variable name of an SSA name
+    String originalName(String name) {
+        Integer v = origin.get(name);
+        return v == null ? name : vars.name(v);
+    }
+
+    // true if the name is the version that holds the value on function entry
+    boolean isEntryVersion(String name) {
+        Integer v = origin.get(name);
+        return v != null && vars.name(v).equals(name);
+    }
+
+    boolean isParameter(String name) {
+        for (IRVariableOperand param : function.parameters) {
+            if (param.getName().equals(name))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean isScalar(int v) {
+        IRType type = vars.type(v);
+        return type == IRIntType.get() || type == IRFloatType.get();
+    }
+
+    // -------- construction --------
+
+    // the entry of the function must not be a jump target, otherwise there is
+    // no edge to hang the entry values of its phi nodes on
+    private void ensureEntryWithoutPredecessors() {
+        List<IRInstruction> instructions = function.getInstructions();
+        if (instructions.isEmpty() || instructions.get(0).opCode != OpCode.LABEL)
+            return;
+        String first = ((IRLabelOperand) instructions.get(0).operands[0]).getName();
+        for (IRInstruction inst : instructions) {
+            if (isJump(inst) && ((IRLabelOperand) inst.operands[0]).getName().equals(first)) {
+                List<IRInstruction> newList = new ArrayList<>(instructions.size() + 1);
+                newList.add(newLabel(freshLabel(function.name + "_entry"), instructions.get(0).irLineNumber));
+                newList.addAll(instructions);
+                function.setInstructions(newList);
+                return;
+            }
+        }
+    }
+
+    private void placePhis() {
+        int n = cfg.basicBlocks.size();
+        Liveness liveness = new Liveness(cfg, vars);
+        liveness.solve();
+
+        // blocks that define each scalar variable
+        List<List<BasicBlock>> defBlocks = new ArrayList<>();
+        for (int v = 0; v < vars.size(); v++)
+            defBlocks.add(new ArrayList<>());
+        for (BasicBlock bb : cfg.basicBlocks) {
+            for (IRInstruction inst : bb.getInstructions()) {
+                int v = scalarDef(inst);
+                if (v >= 0) {
+                    List<BasicBlock> list = defBlocks.get(v);
+                    if (list.isEmpty() || list.get(list.size() - 1) != bb)
+                        list.add(bb);
+                }
+            }
+        }
+
+        int[] hasPhi = new int[n];     // last variable (id + 1) placed in each block
+        int[] onWorkList = new int[n];
+        Deque<BasicBlock> work = new ArrayDeque<>();
+        for (int v = 0; v < vars.size(); v++) {
+            if (!isScalar(v) || defBlocks.get(v).isEmpty())
+                continue;
+            int mark = v + 1;
+            for (BasicBlock bb : defBlocks.get(v)) {
+                onWorkList[bb.getId()] = mark;
+                work.add(bb);
+            }
+            while (!work.isEmpty()) {
+                BasicBlock x = work.poll();
+                if (!domTree.isReachable(x))
+                    continue;
+                for (BasicBlock y : domTree.getFrontier(x)) {
+                    if (hasPhi[y.getId()] == mark)
+                        continue;
+                    hasPhi[y.getId()] = mark;
+                    // pruned SSA: a dead variable needs no phi
+                    if (!liveness.isLiveIn(y, v))
+                        continue;
+                    y.getPhis().add(new PhiNode(new IRVariableOperand(vars.type(v), vars.name(v), null), v));
+                    if (onWorkList[y.getId()] != mark) {
+                        onWorkList[y.getId()] = mark;
+                        work.add(y);
+                    }
+                }
+            }
+        }
+    }
+
+    // id of the scalar variable fully written by inst, or -1
+    private int scalarDef(IRInstruction inst) {
+        IRVariableOperand target = ReachingDefinitions.definedVariable(inst);
+        if (target == null || ReachingDefinitions.isPartialDefinition(inst))
+            return -1;
+        int v = vars.idOf(target);
+        return v >= 0 && isScalar(v) ? v : -1;
+    }
+
+    private void rename() {
+        if (cfg.basicBlocks.isEmpty())
+            return;
+        int nv = vars.size();
+        List<Deque<String>> stacks = new ArrayList<>(nv);
+        for (int v = 0; v < nv; v++) {
+            Deque<String> stack = new ArrayDeque<>();
+            stack.push(vars.name(v));
+            stacks.add(stack);
+        }
+        int[] counters = new int[nv];
+
+        // iterative preorder walk of the dominator tree; each frame remembers
+        // which variables it pushed so they can be popped on the way back up
+        Deque<BasicBlock> blocks = new ArrayDeque<>();
+        Deque<Integer> next = new ArrayDeque<>();
+        Deque<List<Integer>> pushed = new ArrayDeque<>();
+        BasicBlock entry = cfg.basicBlocks.get(0);
+        blocks.push(entry);
+        next.push(0);
+        pushed.push(renameBlock(entry, stacks, counters));
+        while (!blocks.isEmpty()) {
+            BasicBlock bb = blocks.peek();
+            int idx = next.pop();
+            List<BasicBlock> kids = domTree.getChildren(bb);
+            if (idx < kids.size()) {
+                next.push(idx + 1);
+                BasicBlock child = kids.get(idx);
+                blocks.push(child);
+                next.push(0);
+                pushed.push(renameBlock(child, stacks, counters));
+            } else {
+                blocks.pop();
+                for (int v : pushed.pop())
+                    stacks.get(v).pop();
+            }
+        }
+    }
+
+    private List<Integer> renameBlock(BasicBlock bb, List<Deque<String>> stacks, int[] counters) {
+        List<Integer> pushed = new ArrayList<>();
+        for (PhiNode phi : bb.getPhis()) {
+            String name = newVersion(phi.var, counters);
+            phi.target = new IRVariableOperand(vars.type(phi.var), name, null);
+            stacks.get(phi.var).push(name);
+            pushed.add(phi.var);
+        }
+        for (IRInstruction inst : bb.getInstructions()) {
+            int def = scalarDef(inst);
+            for (int i = 0; i < inst.operands.length; i++) {
+                if (i == 0 && def >= 0)
+                    continue;
+                int v = vars.idOf(inst.operands[i]);
+                if (v >= 0 && isScalar(v))
+                    inst.operands[i] = new IRVariableOperand(vars.type(v), stacks.get(v).peek(), inst);
+            }
+            if (def >= 0) {
+                String name = newVersion(def, counters);
+                inst.operands[0] = new IRVariableOperand(vars.type(def), name, inst);
+                stacks.get(def).push(name);
+                pushed.add(def);
+            }
+        }
+        for (BasicBlock succ : bb.getSuccessors()) {
+            for (PhiNode phi : succ.getPhis())
+                phi.setArg(bb, new IRVariableOperand(vars.type(phi.var), stacks.get(phi.var).peek(), null));
+        }
+        return pushed;
+    }
+
+    private String newVersion(int v, int[] counters) {
+        String name;
+        do {
+            name = vars.name(v) + "_" + (++counters[v]);
+        } while (names.contains(name));
+        names.add(name);
+        origin.put(name, v);
+        return name;
+    }
+
+    // -------- editing helpers for SSA passes --------
+
+    // drop the CFG edge from -> to, together with the phi arguments it carried
+    void removeEdge(BasicBlock from, BasicBlock to) {
+        removeIdentity(from.getSuccessors(), to);
+        removeIdentity(to.getPredecessors(), from);
+        for (PhiNode phi : to.getPhis())
+            phi.removeArg(from);
+    }
+
+    // delete a block that can never execute
+    void removeBlock(BasicBlock bb) {
+        for (BasicBlock succ : new ArrayList<>(bb.getSuccessors()))
+            removeEdge(bb, succ);
+        for (BasicBlock pred : new ArrayList<>(bb.getPredecessors()))
+            removeEdge(pred, bb);
+        bb.getInstructions().clear();
+        bb.getPhis().clear();
+        removed.add(bb);
+    }
+
+    boolean isRemoved(BasicBlock bb) {
+        return removed.contains(bb);
+    }
+
+    private static void removeIdentity(List<BasicBlock> list, BasicBlock bb) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == bb) {
+                list.remove(i);
+                return;
+            }
+        }
+    }
+
+    // -------- destruction --------
+
+    void destruct() {
+        List<BasicBlock> blocks = cfg.basicBlocks;
+
+        // number every name that occurs in the SSA program
+        VariableTable ssaVars = new VariableTable();
+        for (IRVariableOperand param : function.parameters)
+            ssaVars.intern(param);
+        for (IRVariableOperand var : function.variables)
+            ssaVars.intern(var);
+        for (BasicBlock bb : blocks) {
+            for (PhiNode phi : bb.getPhis()) {
+                ssaVars.intern(phi.target);
+                for (IROperand arg : phi.getArgs().values()) {
+                    if (arg instanceof IRVariableOperand)
+                        ssaVars.intern((IRVariableOperand) arg);
+                }
+            }
+            for (IRInstruction inst : bb.getInstructions()) {
+                for (IROperand operand : inst.operands) {
+                    if (operand instanceof IRVariableOperand)
+                        ssaVars.intern((IRVariableOperand) operand);
+                }
+            }
+        }
+        int nv = ssaVars.size();
+        int[] originOf = new int[nv];
+        for (int v = 0; v < nv; v++) {
+            Integer o = origin.get(ssaVars.name(v));
+            originOf[v] = o == null ? -1 : o;
+        }
+        marks = new int[nv];
+
+        // 1. coalesce phi targets with their arguments where they do not interfere;
+        //    only versions of the same variable are ever merged
+        long[] phiRelated = BitVector.create(nv);
+        for (BasicBlock bb : blocks) {
+            for (PhiNode phi : bb.getPhis()) {
+                BitVector.set(phiRelated, ssaVars.idOf(phi.target));
+                for (IROperand arg : phi.getArgs().values()) {
+                    if (arg instanceof IRVariableOperand)
+                        BitVector.set(phiRelated, ssaVars.idOf(arg));
+                }
+            }
+        }
+        List<List<Integer>> interference = computeInterference(ssaVars, originOf, phiRelated);
+        int[] parent = new int[nv];
+        for (int v = 0; v < nv; v++)
+            parent[v] = v;
+        List<List<Integer>> members = new ArrayList<>(nv);
+        for (int v = 0; v < nv; v++)
+            members.add(new ArrayList<>(Collections.singletonList(v)));
+        for (BasicBlock bb : blocks) {
+            for (PhiNode phi : bb.getPhis()) {
+                for (IROperand arg : phi.getArgs().values()) {
+                    if (!(arg instanceof IRVariableOperand))
+                        continue;
+                    int a = find(parent, ssaVars.idOf(arg));
+                    int p = find(parent, ssaVars.idOf(phi.target));
+                    if (a != p && originOf[a] == originOf[p] && !classesInterfere(interference, members, a, p)) {
+                        parent[a] = p;
+                        members.get(p).addAll(members.get(a));
+                        members.set(a, null);
+                    }
+                }
+            }
+        }
+
+        // 2. give each class a final name: classes of one original variable share
+        //    its name unless they interfere, the rest keep an SSA name
+        Map<Integer, List<Integer>> classesByOrigin = new LinkedHashMap<>();
+        for (int v = 0; v < nv; v++) {
+            if (find(parent, v) == v && originOf[v] >= 0)
+                classesByOrigin.computeIfAbsent(originOf[v], k -> new ArrayList<>()).add(v);
+        }
+        long[] shared = BitVector.create(nv);
+        for (List<Integer> roots : classesByOrigin.values()) {
+            if (roots.size() > 1) {
+                for (int r : roots)
+                    for (int m : members.get(r))
+                        BitVector.set(shared, m);
+            }
+        }
+        List<List<Integer>> sharedInterference = BitVector.isEmpty(shared) ? null
+                : computeInterference(ssaVars, originOf, shared);
+
+        String[] finalName = new String[nv];
+        for (int v = 0; v < nv; v++)
+            finalName[v] = ssaVars.name(v);
+        for (Map.Entry<Integer, List<Integer>> e : classesByOrigin.entrySet()) {
+            String base = vars.name(e.getKey());
+            List<Integer> roots = e.getValue();
+            // the class holding the entry value must keep the original name
+            int entryVar = ssaVars.idOf(base);
+            if (entryVar >= 0) {
+                int entryRoot = find(parent, entryVar);
+                roots.remove(Integer.valueOf(entryRoot));
+                roots.add(0, entryRoot);
+            }
+            // marks[v] == mark: v interferes with a class already named `base`
+            int mark = ++markCounter;
+            for (int r : roots) {
+                boolean fits = true;
+                for (int m : members.get(r)) {
+                    if (marks[m] == mark) {
+                        fits = false;
+                        break;
+                    }
+                }
+                String name = ssaVars.name(r);
+                if (fits) {
+                    if (sharedInterference != null) {
+                        for (int m : members.get(r))
+                            markNeighbours(sharedInterference, m, mark);
+                    }
+                    name = base;
+                }
+                for (int m : members.get(r))
+                    finalName[m] = name;
+            }
+        }
+        marks = null;
+
+        // 3. rename every operand to its final name
+        for (BasicBlock bb : blocks) {
+            for (IRInstruction inst : bb.getInstructions()) {
+                for (int i = 0; i < inst.operands.length; i++) {
+                    IROperand operand = inst.operands[i];
+                    if (!(operand instanceof IRVariableOperand))
+                        continue;
+                    String name = finalName[ssaVars.idOf(operand)];
+                    if (!name.equals(operand.toString()))
+                        inst.operands[i] = new IRVariableOperand(((IRVariableOperand) operand).type, name, inst);
+                }
+            }
+        }
+
+        // 4. turn the remaining phi arguments into copies on the incoming edges
+        Map<BasicBlock, List<IRInstruction>> fallThroughBlocks = new IdentityHashMap<>();
+        List<List<IRInstruction>> appendedBlocks = new ArrayList<>();
+        for (BasicBlock succ : blocks) {
+            if (succ.getPhis().isEmpty())
+                continue;
+            for (BasicBlock pred : new ArrayList<>(succ.getPredecessors())) {
+                List<String[]> moves = new ArrayList<>();
+                List<IRType> types = new ArrayList<>();
+                for (PhiNode phi : succ.getPhis()) {
+                    IROperand arg = phi.getArg(pred);
+                    if (arg == null)
+                        continue;
+                    String dst = finalName[ssaVars.idOf(phi.target)];
+                    String src = arg instanceof IRVariableOperand ? finalName[ssaVars.idOf(arg)] : arg.toString();
+                    if (dst.equals(src))
+                        continue;
+                    moves.add(new String[]{dst, src, arg instanceof IRVariableOperand ? "v" : "c"});
+                    types.add(phi.target.type);
+                }
+                if (moves.isEmpty())
+                    continue;
+                int line = lastLine(pred);
+                List<IRInstruction> copies = sequentialize(moves, types, line);
+                placeCopies(pred, succ, copies, line, fallThroughBlocks, appendedBlocks);
+            }
+        }
+
+        // 5. write the blocks back as one instruction list
+        List<IRInstruction> result = new ArrayList<>();
+        for (BasicBlock bb : blocks) {
+            if (removed.contains(bb))
+                continue;
+            result.addAll(bb.getInstructions());
+            List<IRInstruction> split = fallThroughBlocks.get(bb);
+            if (split != null)
+                result.addAll(split);
+            bb.getPhis().clear();
+        }
+        if (!appendedBlocks.isEmpty()) {
+            // keep the old last block from falling into the split blocks
+            IRInstruction last = result.isEmpty() ? null : result.get(result.size() - 1);
+            String exitLabel = null;
+            if (last == null || (last.opCode != OpCode.GOTO && last.opCode != OpCode.RETURN)) {
+                exitLabel = freshLabel(function.name + "_exit");
+                result.add(newJump(exitLabel, last == null ? -1 : last.irLineNumber));
+            }
+            for (List<IRInstruction> split : appendedBlocks)
+                result.addAll(split);
+            if (exitLabel != null)
+                result.add(newLabel(exitLabel, -1));
+        }
+        function.setInstructions(removeJumpsToNext(result));
+
+        // 6. declare the variables that did not exist before
+        Set<String> declared = new HashSet<>();
+        for (IRVariableOperand param : function.parameters)
+            declared.add(param.getName());
+        for (IRVariableOperand var : function.variables)
+            declared.add(var.getName());
+        for (IRInstruction inst : result) {
+            for (IROperand operand : inst.operands) {
+                if (operand instanceof IRVariableOperand && declared.add(operand.toString()))
+                    function.variables.add(new IRVariableOperand(((IRVariableOperand) operand).type, operand.toString(), null));
+            }
+        }
+    }
+
+    // drop every `goto L` that only skips over labels to reach L; removed
+    // blocks and resolved branches leave these behind
+    private static List<IRInstruction> removeJumpsToNext(List<IRInstruction> insts) {
+        List<IRInstruction> result = new ArrayList<>(insts.size());
+        for (int i = 0; i < insts.size(); i++) {
+            IRInstruction inst = insts.get(i);
+            if (inst.opCode == OpCode.GOTO) {
+                String target = ((IRLabelOperand) inst.operands[0]).getName();
+                boolean next = false;
+                for (int j = i + 1; j < insts.size() && insts.get(j).opCode == OpCode.LABEL && !next; j++)
+                    next = ((IRLabelOperand) insts.get(j).operands[0]).getName().equals(target);
+                if (next)
+                    continue;
+            }
+            result.add(inst);
+        }
+        return result;
+    }
+
+    // interference between the variables selected by `subset`: two of them
+    // interfere if one is live where the other is defined. Only versions of the
+    // same original variable are compared, which keeps the neighbour lists short.
+    private List<List<Integer>> computeInterference(VariableTable ssaVars, int[] originOf, long[] subset) {
+        VariableTable local = new VariableTable();
+        List<Integer> toGlobal = new ArrayList<>();
+        List<List<Integer>> graph = new ArrayList<>(Collections.nCopies(ssaVars.size(), null));
+        for (int v = BitVector.nextSetBit(subset, 0); v >= 0; v = BitVector.nextSetBit(subset, v + 1)) {
+            local.intern(new IRVariableOperand(ssaVars.type(v), ssaVars.name(v), null));
+            toGlobal.add(v);
+            graph.set(v, new ArrayList<>());
+        }
+        List<List<Integer>> liveOut = computeLiveOut(local);
+
+        long[] live = BitVector.create(local.size());
+        for (BasicBlock bb : cfg.basicBlocks) {
+            Arrays.fill(live, 0);
+            for (int v : liveOut.get(bb.getId()))
+                BitVector.set(live, v);
+            for (BasicBlock succ : bb.getSuccessors()) {
+                for (PhiNode phi : succ.getPhis()) {
+                    int a = local.idOf(phi.getArg(bb));
+                    if (a >= 0)
+                        BitVector.set(live, a);
+                }
+            }
+            List<IRInstruction> insts = bb.getInstructions();
+            for (int i = insts.size() - 1; i >= 0; i--) {
+                IRInstruction inst = insts.get(i);
+                IRVariableOperand target = ReachingDefinitions.definedVariable(inst);
+                if (target != null && !ReachingDefinitions.isPartialDefinition(inst)) {
+                    int d = local.idOf(target);
+                    if (d >= 0) {
+                        addInterference(graph, toGlobal, originOf, live, d);
+                        BitVector.clear(live, d);
+                    }
+                }
+                for (IROperand use : inst.getSources()) {
+                    int u = local.idOf(use);
+                    if (u >= 0)
+                        BitVector.set(live, u);
+                }
+            }
+            for (PhiNode phi : bb.getPhis()) {
+                int d = local.idOf(phi.target);
+                if (d >= 0)
+                    addInterference(graph, toGlobal, originOf, live, d);
+            }
+            if (bb.getId() == 0) {
+                // everything live on entry is defined together at the entry
+                for (int v = BitVector.nextSetBit(live, 0); v >= 0; v = BitVector.nextSetBit(live, v + 1))
+                    addInterference(graph, toGlobal, originOf, live, v);
+            }
+        }
+        return graph;
+    }
+
+    // live-out variables of every block, for the variables in `local` only.
+    // In SSA form a name has one definition, so liveness is found by walking
+    // backwards from each use until the defining block; this touches only the
+    // blocks a name is live in, unlike the dense bit-vector analysis.
+    private List<List<Integer>> computeLiveOut(VariableTable local) {
+        int n = cfg.basicBlocks.size();
+        int nv = local.size();
+        List<List<Integer>> liveOut = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            liveOut.add(new ArrayList<>());
+
+        // defining block of each name (null: defined on entry or more than once,
+        // in which case the walk simply runs up to the entry), and the blocks
+        // that read it before writing it / pass it to a phi node
+        BasicBlock[] defBlock = new BasicBlock[nv];
+        int[] defCount = new int[nv];
+        List<List<BasicBlock>> useIn = new ArrayList<>(nv);
+        List<List<BasicBlock>> useOut = new ArrayList<>(nv);
+        for (int v = 0; v < nv; v++) {
+            useIn.add(new ArrayList<>());
+            useOut.add(new ArrayList<>());
+        }
+        int[] definedIn = new int[nv]; // block id + 1 of the last block that wrote the name
+        for (BasicBlock bb : cfg.basicBlocks) {
+            int mark = bb.getId() + 1;
+            for (PhiNode phi : bb.getPhis()) {
+                int d = local.idOf(phi.target);
+                if (d >= 0) {
+                    definedIn[d] = mark;
+                    defBlock[d] = bb;
+                    defCount[d]++;
+                }
+            }
+            for (IRInstruction inst : bb.getInstructions()) {
+                for (IROperand use : inst.getSources()) {
+                    int u = local.idOf(use);
+                    if (u >= 0 && definedIn[u] != mark) {
+                        List<BasicBlock> blocks = useIn.get(u);
+                        if (blocks.isEmpty() || blocks.get(blocks.size() - 1) != bb)
+                            blocks.add(bb);
+                    }
+                }
+                IRVariableOperand target = ReachingDefinitions.definedVariable(inst);
+                if (target != null && !ReachingDefinitions.isPartialDefinition(inst)) {
+                    int d = local.idOf(target);
+                    if (d >= 0) {
+                        definedIn[d] = mark;
+                        defBlock[d] = bb;
+                        defCount[d]++;
+                    }
+                }
+            }
+            for (BasicBlock succ : bb.getSuccessors()) {
+                for (PhiNode phi : succ.getPhis()) {
+                    int a = local.idOf(phi.getArg(bb));
+                    if (a >= 0)
+                        useOut.get(a).add(bb);
+                }
+            }
+        }
+
+        int[] inStamp = new int[n];
+        int[] outStamp = new int[n];
+        Deque<BasicBlock> work = new ArrayDeque<>();
+        for (int v = 0; v < nv; v++) {
+            int stamp = v + 1;
+            BasicBlock def = defCount[v] == 1 ? defBlock[v] : null;
+            for (BasicBlock bb : useOut.get(v)) {
+                if (outStamp[bb.getId()] != stamp) {
+                    outStamp[bb.getId()] = stamp;
+                    liveOut.get(bb.getId()).add(v);
+                }
+                if (bb != def)
+                    work.push(bb);
+            }
+            work.addAll(useIn.get(v));
+            while (!work.isEmpty()) {
+                BasicBlock bb = work.pop();
+                if (inStamp[bb.getId()] == stamp)
+                    continue;
+                inStamp[bb.getId()] = stamp;
+                for (BasicBlock pred : bb.getPredecessors()) {
+                    if (outStamp[pred.getId()] != stamp) {
+                        outStamp[pred.getId()] = stamp;
+                        liveOut.get(pred.getId()).add(v);
+                    }
+                    if (pred != def && inStamp[pred.getId()] != stamp)
+                        work.push(pred);
+                }
+            }
+        }
+        return liveOut;
+    }
+
+    private static void addInterference(List<List<Integer>> graph, List<Integer> toGlobal, int[] originOf,
+                                        long[] live, int d) {
+        int gd = toGlobal.get(d);
+        for (int v = BitVector.nextSetBit(live, 0); v >= 0; v = BitVector.nextSetBit(live, v + 1)) {
+            int gv = toGlobal.get(v);
+            if (v == d || originOf[gv] != originOf[gd])
+                continue;
+            graph.get(gd).add(gv);
+            graph.get(gv).add(gd);
+        }
+    }
+
+    private static int find(int[] parent, int v) {
+        while (parent[v] != v) {
+            parent[v] = parent[parent[v]];
+            v = parent[v];
+        }
+        return v;
+    }
+
+    private void markNeighbours(List<List<Integer>> graph, int v, int mark) {
+        List<Integer> neighbours = graph.get(v);
+        if (neighbours == null)
+            return;
+        for (int w : neighbours)
+            marks[w] = mark;
+    }
+
+    // classes are given by their roots; true if a member of one interferes
+    // with a member of the other
+    private boolean classesInterfere(List<List<Integer>> graph, List<List<Integer>> members, int a, int b) {
+        int mark = ++markCounter;
+        for (int m : members.get(a))
+            markNeighbours(graph, m, mark);
+        for (int m : members.get(b)) {
+            if (marks[m] == mark)
+                return true;
+        }
+        return false;
+    }
+
+    // order a parallel copy (all sources read before any destination is written)
+    // as a sequence of assigns, breaking cycles with a temporary
+    private List<IRInstruction> sequentialize(List<String[]> moves, List<IRType> types, int line) {
+        List<IRInstruction> result = new ArrayList<>();
+        List<String[]> pending = new ArrayList<>(moves);
+        List<IRType> pendingTypes = new ArrayList<>(types);
+        while (!pending.isEmpty()) {
+            int ready = -1;
+            for (int i = 0; i < pending.size() && ready < 0; i++) {
+                String dst = pending.get(i)[0];
+                boolean isSource = false;
+                for (String[] other : pending) {
+                    if (other != pending.get(i) && other[2].equals("v") && other[1].equals(dst)) {
+                        isSource = true;
+                        break;
+                    }
+                }
+                if (!isSource)
+                    ready = i;
+            }
+            if (ready >= 0) {
+                String[] move = pending.remove(ready);
+                IRType type = pendingTypes.remove(ready);
+                result.add(newAssign(move[0], move[1], move[2].equals("v"), type, line));
+                continue;
+            }
+            // every destination is still needed as a source: save one of them
+            String[] move = pending.get(0);
+            IRType type = pendingTypes.get(0);
+            String temp = freshName(move[0] + "_tmp");
+            function.variables.add(new IRVariableOperand(type, temp, null));
+            result.add(newAssign(temp, move[0], true, type, line));
+            for (String[] other : pending) {
+                if (other[2].equals("v") && other[1].equals(move[0]))
+                    other[1] = temp;
+            }
+        }
+        return result;
+    }
+
+    private void placeCopies(BasicBlock pred, BasicBlock succ, List<IRInstruction> copies, int line,
+                             Map<BasicBlock, List<IRInstruction>> fallThroughBlocks,
+                             List<List<IRInstruction>> appendedBlocks) {
+        List<IRInstruction> insts = pred.getInstructions();
+        IRInstruction term = insts.isEmpty() ? null : insts.get(insts.size() - 1);
+        if (term != null && isConditionalBranch(term)) {
+            // critical edge: the copies get a block of their own
+            BasicBlock next = pred.getId() + 1 < cfg.basicBlocks.size() ? cfg.basicBlocks.get(pred.getId() + 1) : null;
+            String target = ((IRLabelOperand) term.operands[0]).getName();
+            if (cfg.labelToBlock.get(target) == succ) {
+                String label = freshLabel(target + "_split");
+                List<IRInstruction> split = new ArrayList<>();
+                split.add(newLabel(label, line));
+                for (IRInstruction copy : copies)
+                    split.add(copy);
+                split.add(newJump(target, line));
+                appendedBlocks.add(split);
+                term.operands[0] = new IRLabelOperand(label, term);
+            }
+            if (next == succ) {
+                List<IRInstruction> split = new ArrayList<>();
+                for (IRInstruction copy : copies)
+                    split.add(copyOf(copy));
+                fallThroughBlocks.put(pred, split);
+            }
+        } else if (term != null && term.opCode == OpCode.GOTO) {
+            insts.addAll(insts.size() - 1, copies);
+        } else {
+            insts.addAll(copies);
+        }
+    }
+
+    private int lastLine(BasicBlock bb) {
+        List<IRInstruction> insts = bb.getInstructions();
+        return insts.isEmpty() ? -1 : insts.get(insts.size() - 1).irLineNumber;
+    }
+
+    private String freshName(String base) {
+        String name = base;
+        for (int k = 1; names.contains(name); k++)
+            name = base + k;
+        names.add(name);
+        return name;
+    }
+
+    private String freshLabel(String base) {
+        String name = base;
+        for (int k = 1; labels.contains(name); k++)
+            name = base + k;
+        labels.add(name);
+        return name;
+    }
+
+    private static boolean isJump(IRInstruction inst) {
+        return inst.opCode == OpCode.GOTO || isConditionalBranch(inst);
+    }
+
+    static boolean isConditionalBranch(IRInstruction inst) {
+        switch (inst.opCode) {
+            case BREQ:
+            case BRNEQ:
+            case BRLT:
+            case BRGT:
+            case BRLEQ:
+            case BRGEQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static IRInstruction newAssign(String dst, String src, boolean srcIsVar, IRType type, int line) {
+        IRInstruction inst = new IRInstruction(OpCode.ASSIGN, null, line);
+        IROperand source = srcIsVar ? new IRVariableOperand(type, src, inst) : new IRConstantOperand(type, src, inst);
+        inst.operands = new IROperand[]{new IRVariableOperand(type, dst, inst), source};
+        return inst;
+    }
+
+    private static IRInstruction copyOf(IRInstruction assign) {
+        IRVariableOperand dst = (IRVariableOperand) assign.operands[0];
+        IROperand src = assign.operands[1];
+        IRType type = dst.type;
+        return newAssign(dst.getName(), src.toString(), src instanceof IRVariableOperand, type, assign.irLineNumber);
+    }
+
+    static IRInstruction newLabel(String name, int line) {
+        IRInstruction inst = new IRInstruction(OpCode.LABEL, null, line);
+        inst.operands = new IROperand[]{new IRLabelOperand(name, inst)};
+        return inst;
+    }
+
+    static IRInstruction newJump(String label, int line) {
+        IRInstruction inst = new IRInstruction(OpCode.GOTO, null, line);
+        inst.operands = new IROperand[]{new IRLabelOperand(label, inst)};
+        return inst;
+    }
+
+    // one "ssa" trace event per block, at debug level
+    void dump() {
+        if (!Trace.enabled("ssa", Trace.Level.DEBUG))
+            return;
+        for (BasicBlock bb : cfg.basicBlocks) {
+            if (removed.contains(bb))
+                continue;
+            List<String> phis = new ArrayList<>();
+            for (PhiNode phi : bb.getPhis())
+                phis.add(phi.toString());
+            List<String> insts = new ArrayList<>();
+            for (IRInstruction inst : bb.getInstructions())
+                insts.add(inst.toString());
+            Trace.event("ssa", Trace.Level.DEBUG, function.name, "block", bb.getId(), "phis", phis,
+                    "instructions", insts);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package middle_end;
+
+import java.io.*;
+import java.util.*;
+
+// Debug tracing for the optimizer, off by default.
+//
+// Every event has a category (the pass or analysis that reports it, e.g. "sccp",
+// "dce", "cfg", "passes") and a level:
+//   INFO   one summary per pass and function
+//   DEBUG  per-block dumps and per-pass timings
+//   TRACE  per-instruction detail
+// An event is written only if tracing is on at its level or above and its
+// category is selected. enabled() is a field read, so callers that would build
+// a message in a loop check it first and pay nothing while tracing is off.
+//
+// Events are written as text lines to stderr, or as JSON lines (one object per
+// event) to a file:
+//   {"time_us":1234,"level":"info","category":"sccp","function":"main","folded":3}
+class Trace {
+    enum Level { OFF, INFO, DEBUG, TRACE }
+
+    private static volatile Level level = Level.OFF;
+    private static volatile Set<String> categories;   // null selects all
+    private static PrintStream out = System.err;
+    private static boolean json;
+    private static final long start = System.nanoTime();
+
+    private Trace() {}
+
+    // categories == null selects every category
+    static synchronized void configure(Level newLevel, Set<String> newCategories, PrintStream stream,
+                                       boolean asJson) {
+        level = newLevel;
+        categories = newCategories;
+        out = stream;
+        json = asJson;
+    }
+
+    static boolean enabled(String category, Level at) {
+        if (level.ordinal() < at.ordinal() || at == Level.OFF)
+            return false;
+        Set<String> selected = categories;
+        return selected == null || selected.contains(category);
+    }
+
+    // a structured event: fields are name, value, name, value, ...
+    static void event(String category, Level at, String function, Object... fields) {
+        if (!enabled(category, at))
+            return;
+        long micros = (System.nanoTime() - start) / 1000;
+        StringBuilder sb = new StringBuilder();
+        if (json) {
+            sb.append("{\"time_us\":").append(micros);
+            sb.append(",\"level\":").append(quote(at.name().toLowerCase()));
+            sb.append(",\"category\":").append(quote(category));
+            if (function != null)
+                sb.append(",\"function\":").append(quote(function));
+            for (int i = 0; i + 1 < fields.length; i += 2)
+                sb.append(',').append(quote(fields[i].toString())).append(':').append(jsonValue(fields[i + 1]));
+            sb.append('}');
+        } else {
+            sb.append('[').append(at.name().toLowerCase()).append("] ").append(category);
+            if (function != null)
+                sb.append(' ').append(function).append(':');
+            for (int i = 0; i + 1 < fields.length; i += 2)
+                sb.append(' ').append(fields[i]).append('=').append(fields[i + 1]);
+        }
+        synchronized (Trace.class) {
+            out.println(sb);
+        }
+    }
+
+    // a free-form line, for dumps
+    static void message(String category, Level at, String function, String text) {
+        event(category, at, function, "message", text);
+    }
+
+    static void flush() {
+        synchronized (Trace.class) {
+            out.flush();
+        }
+    }
+
+    private static String jsonValue(Object value) {
+        if (value instanceof Number || value instanceof Boolean)
+            return value.toString();
+        if (value instanceof Collection) {
+            StringBuilder sb = new StringBuilder("[");
+            for (Object element : (Collection<?>) value) {
+                if (sb.length() > 1)
+                    sb.append(',');
+                sb.append(jsonValue(element));
+            }
+            return sb.append(']').toString();
+        }
+        return quote(String.valueOf(value));
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,79 @@
+package middle_end;
+
+import ir.*;
+import ir.datatype.*;
+import ir.operand.*;
+
+import java.util.*;
+
+// Interns the variable names of one function into dense ids (0 .. size-1),
+// so analyses can index arrays and bit vectors by variable instead of
+// hashing or comparing operand strings.
+class VariableTable {
+    private Map<String, Integer> ids;
+    private List<String> names;
+    private List<IRType> types;
+
+    // an empty table, filled with intern()
+    VariableTable() {
+        ids = new HashMap<>();
+        names = new ArrayList<>();
+        types = new ArrayList<>();
+    }
+
+    VariableTable(IRFunction function) {
+        this();
+        for (IRVariableOperand param : function.parameters)
+            intern(param);
+        for (IRVariableOperand var : function.variables)
+            intern(var);
+        // operands always refer to declared variables, but be lenient
+        for (IRInstruction inst : function.getInstructions()) {
+            for (IROperand operand : inst.operands) {
+                if (operand instanceof IRVariableOperand)
+                    intern((IRVariableOperand) operand);
+            }
+        }
+    }
+
+    // id of the variable, creating one if needed
+    int intern(IRVariableOperand var) {
+        Integer id = ids.get(var.getName());
+        if (id == null) {
+            id = names.size();
+            ids.put(var.getName(), id);
+            names.add(var.getName());
+            types.add(var.type);
+        }
+        return id;
+    }
+
+    // id of a variable operand, -1 for constants, labels and function names
+    int idOf(IROperand operand) {
+        if (!(operand instanceof IRVariableOperand))
+            return -1;
+        Integer id = ids.get(((IRVariableOperand) operand).getName());
+        return id == null ? -1 : id;
+    }
+
+    int idOf(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    String name(int id) {
+        return names.get(id);
+    }
+
+    IRType type(int id) {
+        return types.get(id);
+    }
+
+    boolean isArray(int id) {
+        return types.get(id) instanceof IRArrayType;
+    }
+
+    int size() {
+        return names.size();
+    }
+}
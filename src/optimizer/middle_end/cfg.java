@@ -19,12 +19,16 @@ private
 private int startLine;
 private int endLine;
 private IRFunction function;
+private int id; // index in CFG.basicBlocks
+private boolean loaded; // instructions copied from the function list
+private List<PhiNode> phis; // only used while the function is in SSA form
 
     BasicBlock()
     {
         this.instructions = new ArrayList<>();
         this.successors = new ArrayList<>();
         this.predecessors = new ArrayList<>();
+        this.phis = new ArrayList<>();
         this.visited = false;
         this.startLine = -1;
         this.endLine = -1;
@@ -35,6 +39,7 @@ private IRFunction function;
         this.instructions = new ArrayList<>();
         this.successors = new ArrayList<>();
         this.predecessors = new ArrayList<>();
+        this.phis = new ArrayList<>();
         this.visited = false;
         this.startLine = startLine;
         this.endLine = endLine;
@@ -66,6 +71,16 @@ private IRFunction function;
         return endLine;
     }
 
+    void setId(int id)
+    {
+        this.id = id;
+    }
+
+    int getId()
+    {
+        return id;
+    }
+
     IRFunction getFunction()
     {
         return function;
@@ -88,9 +103,12 @@ private IRFunction function;
             predecessors.add(pred);
     }
 
+    // the list is loaded once and then owned by the block, so passes may
+    // edit it (even empty it) and write the function back from the blocks
     List<IRInstruction> getInstructions()
     {
-        if (instructions.size() == 0) {
+        if (!loaded) {
+            loaded = true;
             List<IRInstruction> instuctionList = function.getInstructions();
             for (int i = startLine; i <= endLine; i++) {
                 instructions.add(instuctionList.get(i));
@@ -99,6 +117,11 @@ private IRFunction function;
         return instructions;
     }
 
+    List<PhiNode> getPhis()
+    {
+        return phis;
+    }
+
     List<BasicBlock> getSuccessors()
     {
         return successors;
@@ -140,6 +163,8 @@ class CFG {
     Map <Integer, BasicBlock> lineToBlock; //startLine to BasicBlock
     Map <String, BasicBlock> labelToBlock; //label to BasicBlock
     Map <IRInstruction, BasicBlock> instrToBlock; //instruction to BasicBlock
+    private List<BasicBlock> rpo; // reverse postorder, computed on demand
+    private int numReachable;     // length of the rpo prefix reachable from the entry
 
 
      CFG(IRFunction function)
@@ -148,7 +173,7 @@ class CFG {
         this.basicBlocks = new ArrayList<>();
         this.lineToBlock = new HashMap<>();
         this.labelToBlock = new HashMap<>();
-        this.instrToBlock = new HashMap<>();
+        this.instrToBlock = new IdentityHashMap<>();
         buildCFG();
     }
 
@@ -158,20 +183,22 @@ class CFG {
         List<Integer> endLNs = new ArrayList<>();
         List<IRInstruction> instuctionList = function.getInstructions();
         int n = instuctionList.size();
+        if (n == 0)
+            return;
+        boolean[] isLeader = new boolean[n];
 
         // leader instructions are:
         // 1. the first instruction of the program/function
         // 2. the target of a conditional or unconditional jump / goto -- label instruction
-        // 3. the instruction following a jump/goto 
-        startLNs.add(0);
-        for (int i = 1;  i < n; i++) {
+        // 3. the instruction following a jump/goto or a return
+        isLeader[0] = true;
+        for (int i = 0;  i < n; i++) {
             // check if the instruction is a leader
             IRInstruction instr = instuctionList.get(i);
             switch (instr.opCode) {
                 case LABEL:
                     // this instruction is a leader
-                    if (startLNs.contains(i) == false)
-                        startLNs.add(i);
+                    isLeader[i] = true;
                     break;
                 
                 case GOTO:
@@ -181,11 +208,10 @@ class CFG {
                 case BRGT:
                 case BRLEQ:
                 case BRGEQ:
+                case RETURN:
                     if (i + 1 < n) {
                         // next instruction is a leader
-                        if (startLNs.contains(i+1) == false)
-                            startLNs.add(i+1);
-                        
+                        isLeader[i + 1] = true;
                     }
                     // next instruction is a leader
                     // find the instruction that uses the 2nd onwards 
@@ -194,32 +220,25 @@ class CFG {
                     // this instr is not a leader
             }
         }
-        // dump all the leaders
-        System.err.println("+=======================+");
-        for (int i = 0; i < startLNs.size(); i++) {
-            System.err.print(startLNs.get(i) + ", ");
+        for (int i = 0; i < n; i++) {
+            if (isLeader[i])
+                startLNs.add(i);
         }
-        System.err.println("");
-        System.err.println("+=======================+");
+        // dump all the leaders
+        Trace.event("cfg", Trace.Level.DEBUG, function.name, "leaders", startLNs);
 
         int v = startLNs.size();
         for (int i =0; i < v ; i++){
-            int j = startLNs.get(i) + 1; // the next instruction
-            while (j < n && startLNs.contains(j) == false) {
-                j++;
-            }
-            j--;
-            if (endLNs.contains(j) == false)
-                endLNs.add(j);
-            else {
-                System.err.println("Error: end line already exists!!!!!!!!!!");
-            }
+            // a block ends right before the next leader
+            int j = (i + 1 < v) ? startLNs.get(i + 1) : n;
+            endLNs.add(j - 1);
         }
         
         // we have pairs of start and end lines of basic blocks
 
         for (int i = 0; i < v; i++) {
             BasicBlock bb = new BasicBlock(startLNs.get(i), endLNs.get(i), function);
+            bb.setId(i);
             basicBlocks.add(bb);
             lineToBlock.put(startLNs.get(i), bb);
             if (instuctionList.get(startLNs.get(i)).opCode == OpCode.LABEL) {
@@ -262,8 +281,11 @@ class CFG {
                         bb.addSuccessor(target_goto);
                         target_goto.addPredecessor(bb);
                         break;
+                    case RETURN:
+                        // 3. a return leaves the function, no successors
+                        break;
                     default:    
-                        // 3. else if not the end of the function,
+                        // 4. else if not the end of the function,
                         // connect it w the next instruction after 
                         if (endLine + 1 < n){
                             BasicBlock next_line = lineToBlock.get(endLine+1);
@@ -283,21 +305,89 @@ class CFG {
 
     }
 
+    // blocks in reverse postorder of a DFS from the entry block;
+    // blocks that are unreachable from the entry are appended at the end
+    List<BasicBlock> reversePostOrder()
+    {
+        if (rpo != null)
+            return rpo;
+        int n = basicBlocks.size();
+        List<BasicBlock> postOrder = new ArrayList<>(n);
+        boolean[] seen = new boolean[n];
+        int reachable = 0;
+        for (BasicBlock root : basicBlocks) {
+            if (seen[root.getId()])
+                continue;
+            // iterative DFS: stack of blocks and their next successor index
+            Deque<BasicBlock> stack = new ArrayDeque<>();
+            Deque<Integer> next = new ArrayDeque<>();
+            seen[root.getId()] = true;
+            stack.push(root);
+            next.push(0);
+            while (!stack.isEmpty()) {
+                BasicBlock bb = stack.peek();
+                int idx = next.pop();
+                List<BasicBlock> succs = bb.getSuccessors();
+                if (idx < succs.size()) {
+                    next.push(idx + 1);
+                    BasicBlock succ = succs.get(idx);
+                    if (!seen[succ.getId()]) {
+                        seen[succ.getId()] = true;
+                        stack.push(succ);
+                        next.push(0);
+                    }
+                } else {
+                    stack.pop();
+                    postOrder.add(bb);
+                }
+            }
+            // the first root is the entry, everything it reaches is done
+            if (root.getId() == 0)
+                reachable = postOrder.size();
+        }
+        List<BasicBlock> order = new ArrayList<>(n);
+        for (int i = reachable - 1; i >= 0; i--)
+            order.add(postOrder.get(i));
+        for (int i = n - 1; i >= reachable; i--)
+            order.add(postOrder.get(i));
+        rpo = order;
+        numReachable = reachable;
+        return rpo;
+    }
+
+    // number of blocks reachable from the entry; they come first in reversePostOrder()
+    int reachableBlockCount()
+    {
+        reversePostOrder();
+        return numReachable;
+    }
+
+    // make the function's instruction list the concatenation of the (edited)
+    // blocks; the CFG itself is stale afterwards and must be rebuilt
+    void writeBack()
+    {
+        List<IRInstruction> instructions = new ArrayList<>();
+        for (BasicBlock bb : basicBlocks)
+            instructions.addAll(bb.getInstructions());
+        function.setInstructions(instructions);
+    }
+
+    // one "cfg" trace event per block, at debug level
     void dumpCFG()
     {
-        int cnt = 0;
-        System.err.println("CFG for function " + function.name);
+        if (!Trace.enabled("cfg", Trace.Level.DEBUG))
+            return;
         for (BasicBlock bb : basicBlocks) {
-            System.err.println("Basic Block " + cnt + ": " + bb.getStartLine() + " - " + bb.getEndLine());
-            System.err.println("    Successors: ");
+            List<String> succs = new ArrayList<>();
             for (BasicBlock succ : bb.getSuccessors()) {
-                System.err.println("        " + succ.getStartLine() + " - " + succ.getEndLine());
+                succs.add(succ.getStartLine() + " - " + succ.getEndLine());
             }
-            System.err.println("    Predecessors: ");
+            List<String> preds = new ArrayList<>();
             for (BasicBlock pred : bb.getPredecessors()) {
-                System.err.println("        " + pred.getStartLine() + " - " + pred.getEndLine());
+                preds.add(pred.getStartLine() + " - " + pred.getEndLine());
             }
-            cnt++;
+            Trace.event("cfg", Trace.Level.DEBUG, function.name, "block", bb.getId(),
+                    "lines", bb.getStartLine() + " - " + bb.getEndLine(), "successors", succs, "predecessors", preds);
         }
     }
 
@@ -8,7 +8,7 @@ import ir.operand.IRConstantOperand;
 import ir.operand.IROperand;
 import ir.operand.IRVariableOperand;
 
-import java.io.PrintStream;
+import java.io.*;
 import java.util.*;
 
 import middle_end.*;
@@ -16,21 +16,59 @@ import middle_end.*;
 // main class
 public class midEnd {
     public static void main(String[] args) throws Exception{
+        // usage: midEnd <file.ir> [-O0|-O1|-O2] [--passes=name,name,...] [-j threads]
+        //               [--trace[=info|debug|trace]] [--trace-categories=sccp,dce,...] [--trace-json=file]
+        //               [--profile=file]
         // read program, optimize, and print optimized program
         IRReader irReader = new IRReader();
         IRProgram program = irReader.parseIRFile(args[0]);
 
-        for (IRFunction function : program.functions) {
-            System.err.println("Function: " + function.name);
-            CFG cfg = new CFG(function);
-            cfg.dumpCFG();
-            System.err.println("===========================================");
+        PassManager passManager = PassManager.forLevel(2);
+        int threads = Runtime.getRuntime().availableProcessors();
+        Trace.Level traceLevel = Trace.Level.OFF;
+        Set<String> traceCategories = null;
+        String traceFile = null;
+        IRProfile profile = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].matches("-O[0-2]"))
+                passManager = PassManager.forLevel(args[i].charAt(2) - '0');
+            else if (args[i].startsWith("--passes="))
+                passManager = PassManager.fromNames(args[i].substring("--passes=".length()));
+            else if (args[i].equals("-j") && i + 1 < args.length)
+                threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--trace"))
+                traceLevel = Trace.Level.INFO;
+            else if (args[i].startsWith("--trace="))
+                traceLevel = Trace.Level.valueOf(args[i].substring("--trace=".length()).toUpperCase());
+            else if (args[i].startsWith("--trace-categories="))
+                traceCategories = new HashSet<>(
+                        Arrays.asList(args[i].substring("--trace-categories=".length()).split(",")));
+            else if (args[i].startsWith("--trace-json="))
+                traceFile = args[i].substring("--trace-json=".length());
+            else if (args[i].startsWith("--profile="))
+                profile = IRProfile.read(args[i].substring("--profile=".length()));
+            else
+                throw new IllegalArgumentException("unknown option: " + args[i]);
         }
+        // tracing is off unless asked for; a JSON trace without a level gets the summaries
+        if (traceFile != null && traceLevel == Trace.Level.OFF)
+            traceLevel = Trace.Level.INFO;
+        PrintStream traceStream = traceFile == null ? System.err
+                : new PrintStream(new BufferedOutputStream(new FileOutputStream(traceFile)), false);
+        Trace.configure(traceLevel, traceCategories, traceStream, traceFile != null);
 
-        Optimizer optimizer = new Optimizer(program);
+        if (Trace.enabled("cfg", Trace.Level.DEBUG)) {
+            for (IRFunction function : program.functions)
+                new CFG(function).dumpCFG();
+        }
+
+        // counts of a run of this same file, see IRInterpreter --profile
+        passManager.setProfile(profile);
+        Optimizer optimizer = new Optimizer(program, passManager, threads);
         optimizer.optimize();
 
         IRPrinter filePrinter = new IRPrinter(new PrintStream(System.out));
         filePrinter.printProgram(program);
+        Trace.flush();
     }
 }
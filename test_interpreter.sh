@@ -0,0 +1,36 @@
+#!/bin/bash
+
+# Tiger IR Interpreter Test Script
+# Runs every program in test/interpreter_tests with each engine and checks that
+# it exits normally and prints the expected output for each input (N.in ->
+# N.out). The jit engine also runs with --jit-threshold=1, so that compiled
+# code runs from the first call.
+
+echo "=== Tiger IR Interpreter Engines ==="
+echo
+
+# Build the optimizer, which holds the interpreter (no ANTLR needed)
+mkdir -p build/optimizer
+javac src/optimizer/ir/*.java src/optimizer/ir/datatype/*.java src/optimizer/ir/operand/*.java src/optimizer/middle_end/*.java src/optimizer/interpreter/*.java src/optimizer/*.java -d build/optimizer || exit 1
+
+status=0
+for dir in test/interpreter_tests/*/; do
+    ir=$(ls "$dir"*.ir 2>/dev/null | head -1)
+    [ -z "$ir" ] && continue
+    name=$(basename "$dir")
+    for engine in "--engine=tree" "--engine=fast" "--engine=jit" "--engine=jit --jit-threshold=1"; do
+        failed=0
+        for input in "$dir"*.in; do
+            expected="${input%.in}.out"
+            actual=$(java -cp build/optimizer IRInterpreter $engine "$ir" < "$input" 2>/dev/null)
+            code=$?
+            if [ $code -ne 0 ] || [ "$actual" != "$(cat "$expected")" ]; then
+                echo "$name $engine $(basename "$input"): exit status $code, output differs"
+                failed=1
+            fi
+        done
+        [ $failed -eq 0 ] && echo "$name $engine: ok" || status=1
+    done
+done
+
+exit $status
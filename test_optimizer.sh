@@ -0,0 +1,59 @@
+#!/bin/bash
+
+# Tiger IR Optimizer Test Script
+# Optimizes every program in test/optimizer_tests, checks that the optimized
+# program prints the same output as the original for each input, and compares
+# the dynamic instruction count with dyn_inst_cnt.csv
+# (O = unoptimized, A and B = reference optimizers)
+
+echo "=== Tiger IR Optimizer Dynamic Instruction Count ==="
+echo
+
+# Build the optimizer (no ANTLR needed)
+mkdir -p build/optimizer
+javac src/optimizer/ir/*.java src/optimizer/ir/datatype/*.java src/optimizer/ir/operand/*.java src/optimizer/middle_end/*.java src/optimizer/interpreter/*.java src/optimizer/*.java -d build/optimizer || exit 1
+
+status=0
+for dir in test/optimizer_tests/*/; do
+    csv="$dir/dyn_inst_cnt.csv"
+    ir=$(ls "$dir"*.ir 2>/dev/null | head -1)
+    if [ ! -f "$csv" ] || [ -z "$ir" ]; then
+        continue
+    fi
+    name=$(basename "$dir")
+    opt_ir="${name}_opt.ir"
+
+    echo "Test: $name"
+    echo "------------------------"
+    java -cp build/optimizer middle_end.midEnd "$ir" > "$opt_ir" 2>/dev/null || { echo "Optimizer failed"; status=1; continue; }
+
+    # every input of both programs in one JVM each; a CSV row per input:
+    # input,status,instructions,time_ms,output,errors
+    java -cp build/optimizer IRInterpreter --batch --threads=4 "$ir" "$dir" > "${name}_base.csv"
+    java -cp build/optimizer IRInterpreter --batch --threads=4 "$opt_ir" "$dir" > "${name}_opt.csv"
+
+    printf "%-6s %8s %8s %8s %8s %8s\n" case O A B ours "vs O"
+    total_o=0; total_b=0; total_ours=0
+    while IFS=, read -r case o a b; do
+        [ "$case" == "case" ] && continue
+        base_row=$(grep "/$case.in\"," "${name}_base.csv")
+        opt_row=$(grep "/$case.in\"," "${name}_opt.csv")
+        expected=$(echo "$base_row" | cut -d, -f5-)
+        actual=$(echo "$opt_row" | cut -d, -f5-)
+        ours=$(echo "$opt_row" | cut -d, -f3)
+        if [ "$expected" != "$actual" ] || [ "$(echo "$opt_row" | cut -d, -f2)" != ok ]; then
+            echo "$case: output differs from the unoptimized program"
+            status=1
+            continue
+        fi
+        printf "%-6s %8d %8d %8d %8d %7d%%\n" "$case" "$o" "$a" "$b" "$ours" $(( (o - ours) * 100 / o ))
+        total_o=$((total_o + o)); total_b=$((total_b + b)); total_ours=$((total_ours + ours))
+    done < "$csv"
+    if [ $total_o -gt 0 ]; then
+        printf "%-6s %8d %8s %8d %8d %7d%%\n" total "$total_o" "" "$total_b" "$total_ours" $(( (total_o - total_ours) * 100 / total_o ))
+    fi
+    echo
+    rm -f "$opt_ir" "${name}_base.csv" "${name}_opt.csv"
+done
+
+exit $status
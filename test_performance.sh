@@ -1,10 +1,10 @@
 #!/bin/bash
 
 # Tiger Compiler Performance Test Script
-# Compares naive vs greedy code generation
+# Compares naive vs greedy vs graph-coloring code generation
 
 echo "=== Tiger Compiler Performance Comparison ==="
-echo "Comparing naive vs greedy instruction selection"
+echo "Comparing naive vs greedy vs graph-coloring instruction selection"
 echo
 
 # Function to count lines in assembly files
@@ -27,12 +27,18 @@ echo "Generating MIPS with greedy approach..."
 java -cp build/backend BackEnd quicksort_opt.ir --greedy greedy_quicksort.s 2>&1
 cp out.s greedy_quicksort.s
 
+echo "Generating MIPS with graph coloring..."
+java -cp build/backend BackEnd quicksort_opt.ir --graph > /dev/null 2>&1
+cp out.s graph_quicksort.s
+
 naive_count=$(count_instructions naive_quicksort.s)
 greedy_count=$(count_instructions greedy_quicksort.s)
+graph_count=$(count_instructions graph_quicksort.s)
 
 echo "Naive approach: $naive_count instructions"
 echo "Greedy approach: $greedy_count instructions"
-echo "Reduction: $(( (naive_count - greedy_count) * 100 / naive_count ))%"
+echo "Graph coloring:  $graph_count instructions"
+echo "Reduction: $(( (naive_count - greedy_count) * 100 / naive_count ))% (greedy), $(( (naive_count - graph_count) * 100 / naive_count ))% (graph)"
 echo
 
 # Test 2: Comprehensive test
@@ -52,12 +58,18 @@ echo "Generating MIPS with greedy approach..."
 java -cp build/backend BackEnd comprehensive_opt.ir --greedy > /dev/null 2>&1
 cp out.s greedy_comprehensive.s
 
+echo "Generating MIPS with graph coloring..."
+java -cp build/backend BackEnd comprehensive_opt.ir --graph > /dev/null 2>&1
+cp out.s graph_comprehensive.s
+
 naive_count=$(count_instructions naive_comprehensive.s)
 greedy_count=$(count_instructions greedy_comprehensive.s)
+graph_count=$(count_instructions graph_comprehensive.s)
 
 echo "Naive approach: $naive_count instructions"
 echo "Greedy approach: $greedy_count instructions"
-echo "Reduction: $(( (naive_count - greedy_count) * 100 / naive_count ))%"
+echo "Graph coloring:  $graph_count instructions"
+echo "Reduction: $(( (naive_count - greedy_count) * 100 / naive_count ))% (greedy), $(( (naive_count - graph_count) * 100 / naive_count ))% (graph)"
 echo
 
 # Test 3: Register pressure test
@@ -77,12 +89,18 @@ echo "Generating MIPS with greedy approach..."
 java -cp build/backend BackEnd simple_opt.ir --greedy > /dev/null 2>&1
 cp out.s greedy_simple.s
 
+echo "Generating MIPS with graph coloring..."
+java -cp build/backend BackEnd simple_opt.ir --graph > /dev/null 2>&1
+cp out.s graph_simple.s
+
 naive_count=$(count_instructions naive_simple.s)
 greedy_count=$(count_instructions greedy_simple.s)
+graph_count=$(count_instructions graph_simple.s)
 
 echo "Naive approach: $naive_count instructions"
 echo "Greedy approach: $greedy_count instructions"
-echo "Reduction: $(( (naive_count - greedy_count) * 100 / naive_count ))%"
+echo "Graph coloring:  $graph_count instructions"
+echo "Reduction: $(( (naive_count - greedy_count) * 100 / naive_count ))% (greedy), $(( (naive_count - graph_count) * 100 / naive_count ))% (graph)"
 echo
 
 # Show a sample diff
@@ -92,6 +110,9 @@ head -30 naive_simple.s | grep -v "^#"
 echo
 echo "GREEDY:"
 head -30 greedy_simple.s | grep -v "^#"
+echo
+echo "GRAPH:"
+head -30 graph_simple.s | grep -v "^#"
 
 # Clean up
 rm -f quicksort_opt.ir comprehensive_opt.ir simple_opt.ir